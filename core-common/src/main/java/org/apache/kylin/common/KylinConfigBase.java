@@ -1778,6 +1778,13 @@ public abstract class KylinConfigBase implements Serializable {
         return Long.parseLong(getOptional("kylin.query.lazy-query-waiting-timeout-milliseconds", "60000"));
     }
 
+    /**
+     * identical select queries arriving while one of them runs wait for its response instead of running again
+     */
+    public boolean isQueryInflightDedupEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.inflight-dedup-enabled", TRUE));
+    }
+
     public int getQueryConcurrentRunningThresholdForProject() {
         // by default there's no limitation
         return Integer.parseInt(getOptional("kylin.query.project-concurrent-running-threshold", "0"));
@@ -2046,6 +2053,42 @@ public abstract class KylinConfigBase implements Serializable {
         return Boolean.parseBoolean(this.getOptional("kylin.query.cache-signature-enabled", FALSE));
     }
 
+    /**
+     * local directory of the files keeping the rows of open query cursors
+     */
+    public String getQueryCursorSpoolDir() {
+        return getOptional("kylin.query.cursor.spool-dir",
+                System.getProperty("java.io.tmpdir") + File.separator + "kylin_query_cursor");
+    }
+
+    /**
+     * query cursors not fetched for this long are closed
+     */
+    public int getQueryCursorTimeoutSeconds() {
+        return Integer.parseInt(getOptional("kylin.query.cursor.timeout-seconds", "600"));
+    }
+
+    /**
+     * max open query cursors of a query server, the least recently fetched ones are closed beyond it
+     */
+    public int getQueryCursorMaxCount() {
+        return Integer.parseInt(getOptional("kylin.query.cursor.max-count", "100"));
+    }
+
+    /**
+     * max MB of the spool files of the open query cursors of a query server, a query spooling beyond it fails
+     */
+    public long getQueryCursorMaxSpoolSizeMB() {
+        return Long.parseLong(getOptional("kylin.query.cursor.max-spool-size-mb", "10240"));
+    }
+
+    /**
+     * max rows of a page fetched from a query cursor
+     */
+    public int getQueryCursorMaxFetchSize() {
+        return Integer.parseInt(getOptional("kylin.query.cursor.max-fetch-size", "100000"));
+    }
+
     public int getFlatFilterMaxChildrenSize() {
         return Integer.parseInt(this.getOptional("kylin.query.flat-filter-max-children", "500000"));
     }
@@ -2591,6 +2634,34 @@ public abstract class KylinConfigBase implements Serializable {
         return Integer.parseInt(getOptional("kylin.engine.persist-flattable-threshold", "1"));
     }
 
+    /**
+     * the number of layouts built at the same time by a cubing job, each of them runs its own spark jobs
+     */
+    public int getSparkEngineBuildLayoutParallelism() {
+        return Integer.parseInt(getOptional("kylin.engine.spark.build-layout-parallelism", "8"));
+    }
+
+    /**
+     * the fraction of executor memory to cache the parent layouts read by several children when building, 0 to disable
+     */
+    public double getSparkEngineParentCacheMemoryFraction() {
+        return Double.parseDouble(getOptional("kylin.engine.spark.parent-cache-memory-fraction", "0.3"));
+    }
+
+    /**
+     * the max number of sibling layouts aggregated together in one scan of their parent, 1 to aggregate them one by one
+     */
+    public int getSparkEngineSiblingLayoutsAggSize() {
+        return Integer.parseInt(getOptional("kylin.engine.spark.sibling-layouts-agg-size", "8"));
+    }
+
+    /**
+     * whether to merge the segments of a layout sharded the same way by merging its sorted shards, without a shuffle
+     */
+    public boolean isSparkEngineMergeWithoutShuffleEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.engine.spark.merge-without-shuffle-enabled", TRUE));
+    }
+
     public Path getJobTmpFlatTableDir(String project, String jobId) {
         String path = getJobTmpDir(project) + jobId + "/flat_table/";
         return new Path(path);
@@ -2653,6 +2724,40 @@ public abstract class KylinConfigBase implements Serializable {
         return Integer.valueOf(getOptional("kylin.storage.columnar.dfs-replication", "3"));
     }
 
+    /**
+     * collect per-file min/max of dimensions after a layout is written, used to prune files at query time
+     */
+    public boolean isParquetFileStatsEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.storage.columnar.file-stats-enabled", TRUE));
+    }
+
+    /**
+     * dimensions (as TABLE_ALIAS.COLUMN) to build per-file bloom filters for, meant for high cardinality
+     * columns queried by equality, like user id or order id
+     */
+    public String[] getParquetBloomFilterColumns() {
+        return getOptionalStringArray("kylin.storage.columnar.bloom-filter-columns", new String[0]);
+    }
+
+    public double getParquetBloomFilterFpp() {
+        return Double.parseDouble(getOptional("kylin.storage.columnar.bloom-filter-fpp", "0.01"));
+    }
+
+    /**
+     * dimensions (as TABLE_ALIAS.COLUMN) to roll the bitmap measures of layouts up to at build time, meant
+     * for the filter columns of INTERSECT_COUNT in funnel and retention queries
+     */
+    public String[] getBitmapRollupColumns() {
+        return getOptionalStringArray("kylin.storage.columnar.bitmap-rollup-columns", new String[0]);
+    }
+
+    /**
+     * write the listing of layout files at build time, so that queries need not list the layout directories
+     */
+    public boolean isParquetFileManifestEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.storage.columnar.file-manifest-enabled", TRUE));
+    }
+
     public boolean isAutoSetSparkConf() {
         return Boolean.parseBoolean(getOptional("kylin.spark-conf.auto.prior", "true"));
     }
@@ -2716,6 +2821,21 @@ public abstract class KylinConfigBase implements Serializable {
         return Integer.parseInt(getOptional("kylin.query.spark-engine.partition-split-size-mb", "64"));
     }
 
+    /**
+     * rows of layouts a scan task reads at most, the split size shrinks for densely compressed layouts
+     */
+    public long getQueryPartitionSplitRows() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.partition-split-rows", "5000000"));
+    }
+
+    /**
+     * size scan splits by the pruned bytes and rows of the query and the live executor cores,
+     * instead of spark.sql.files.maxPartitionBytes
+     */
+    public boolean isAdaptiveScanPartitionEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.adaptive-scan-partition-enabled", TRUE));
+    }
+
     public boolean isShardingJoinOptEnabled() {
         return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.expose-sharding-trait", "true"));
     }
@@ -2724,6 +2844,155 @@ public abstract class KylinConfigBase implements Serializable {
         return Integer.valueOf(getOptional("kylin.query.spark-engine.spark-sql-shuffle-partitions", "-1"));
     }
 
+    public boolean isFileStatsPruningEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.file-stats-pruning-enabled", TRUE));
+    }
+
+    public boolean isBloomFilterPruningEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.bloom-filter-pruning-enabled", TRUE));
+    }
+
+    /**
+     * read the bitmap rollups of the segments for INTERSECT_COUNT over whole segments, instead of the layouts
+     */
+    public boolean isBitmapRollupEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.bitmap-rollup-enabled", TRUE));
+    }
+
+    public boolean isFileManifestEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.file-manifest-enabled", TRUE));
+    }
+
+    /**
+     * collect query results as arrow batches, which are decoded lazily instead of collecting rows
+     */
+    public boolean isArrowResultEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.arrow-result-enabled", TRUE));
+    }
+
+    /**
+     * results of queries which hand their rows on as they are read, e.g. csv exports and cursors, are
+     * pulled from executors a wave of partitions at a time, instead of being collected at once on the driver
+     */
+    public boolean isQueryStreamResultEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.stream-result-enabled", TRUE));
+    }
+
+    /**
+     * queries whose supported plans scan at most this many MB after pruning are run in the query server,
+     * without spark jobs, -1 to disable
+     */
+    public long getQueryLocalExecutionThresholdMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.local-execution-threshold-mb", "4"));
+    }
+
+    /**
+     * cache pages of layout files read by sparder executors, in off-heap memory and on local disk
+     */
+    public boolean isChunkCacheEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.chunk-cache.enabled", FALSE));
+    }
+
+    public long getChunkCacheMemorySizeMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.chunk-cache.memory-size-mb", "256"));
+    }
+
+    public long getChunkCacheDiskSizeMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.chunk-cache.disk-size-mb", "10240"));
+    }
+
+    public int getChunkCachePageSizeKB() {
+        return Integer.parseInt(getOptional("kylin.query.spark-engine.chunk-cache.page-size-kb", "1024"));
+    }
+
+    /**
+     * local directory of the disk tier on executors, the spark local directory by default
+     */
+    public String getChunkCacheLocalDir() {
+        return getOptional("kylin.query.spark-engine.chunk-cache.local-dir", "");
+    }
+
+    /**
+     * check the splits of layout files against cached footers, before the parquet reader opens them
+     */
+    public boolean isParquetFooterCacheEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.footer-cache-enabled", TRUE));
+    }
+
+    /**
+     * keep lookup table snapshots read by sparder on the driver, with their join relations broadcast once
+     */
+    public boolean isLookupTableCacheEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.lookup-cache.enabled", TRUE));
+    }
+
+    /**
+     * memory of the cached snapshots, a snapshot larger than a quarter of it is read for every query
+     */
+    public long getLookupTableCacheSizeMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.lookup-cache.size-mb", "1024"));
+    }
+
+    /**
+     * derived columns of lookup snapshots up to this many MB of parquet files are joined inside the
+     * cuboid scan stage, on a broadcast of the snapshot, -1 to leave the join to spark. The snapshot
+     * is decoded several times larger on the driver, the default is the same as the default of
+     * spark.sql.autoBroadcastJoinThreshold
+     */
+    public long getDerivedLookupBroadcastThresholdMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.derived-lookup-broadcast-threshold-mb", "10"));
+    }
+
+    /**
+     * push join keys of small filtered sides of joins to the scans of the other side, to prune files by them
+     */
+    public boolean isRuntimeFilterEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.runtime-filter.enabled", TRUE));
+    }
+
+    /**
+     * a side of a join up to this many MB before filtering is run first for its join keys
+     */
+    public long getRuntimeFilterMaxBuildSizeMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.runtime-filter.max-build-size-mb", "64"));
+    }
+
+    /**
+     * runtime filters with more join key values than this are given up
+     */
+    public int getRuntimeFilterMaxValues() {
+        return Integer.parseInt(getOptional("kylin.query.spark-engine.runtime-filter.max-values", "10000"));
+    }
+
+    /**
+     * keep partial aggregates of cuboid scans per segment, so that a new segment is the only one scanned
+     * by a query run again
+     */
+    public boolean isSegmentResultCacheEnabled() {
+        return Boolean.parseBoolean(getOptional("kylin.query.spark-engine.segment-result-cache.enabled", FALSE));
+    }
+
+    /**
+     * storage memory of the cached partial aggregates on the executors
+     */
+    public long getSegmentResultCacheSizeMB() {
+        return Long.parseLong(getOptional("kylin.query.spark-engine.segment-result-cache.size-mb", "256"));
+    }
+
+    /**
+     * segments whose layout or partial aggregates have more rows than this are not cached
+     */
+    public int getSegmentResultCacheMaxRows() {
+        return Integer.parseInt(getOptional("kylin.query.spark-engine.segment-result-cache.max-rows", "100000"));
+    }
+
+    /**
+     * queries scanning more segments than this are not aggregated by segment
+     */
+    public int getSegmentResultCacheMaxSegments() {
+        return Integer.parseInt(getOptional("kylin.query.spark-engine.segment-result-cache.max-segments", "32"));
+    }
+
     public Map<String, String> getSparkConf() {
         return getPropertiesByPrefix("kylin.query.spark-conf.");
     }
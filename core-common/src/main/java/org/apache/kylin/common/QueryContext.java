@@ -59,9 +59,12 @@ public class QueryContext {
     private AtomicLong scannedBytes = new AtomicLong();
     private AtomicLong sourceScanBytes = new AtomicLong();
     private AtomicLong sourceScanRows = new AtomicLong();
+    private AtomicLong totalShards = new AtomicLong();
+    private AtomicLong scannedShards = new AtomicLong();
     private Object calcitePlan;
     private boolean isHighPriorityQuery = false;
     private boolean isTableIndex = false;
+    private boolean isStreamResult = false;
     private boolean withoutSyntaxError;
 
     private AtomicBoolean isRunning = new AtomicBoolean(true);
@@ -75,6 +78,8 @@ public class QueryContext {
     private Object olapRel;
     private Object resultType;
     private Object dataset;
+    // paths of the source files read by pushdown, a cached result is valid as long as they are unchanged
+    private List<String> pushDownSourcePaths = Lists.newArrayList();
 
     QueryContext() {
         this(System.currentTimeMillis());
@@ -167,6 +172,22 @@ public class QueryContext {
         return sourceScanRows.addAndGet(rows);
     }
 
+    public long getTotalShards() {
+        return totalShards.get();
+    }
+
+    public long addAndGetTotalShards(long shards) {
+        return totalShards.addAndGet(shards);
+    }
+
+    public long getScannedShards() {
+        return scannedShards.get();
+    }
+
+    public long addAndGetScannedShards(long shards) {
+        return scannedShards.addAndGet(shards);
+    }
+
     public void addQueryStopListener(QueryStopListener listener) {
         this.stopListeners.add(listener);
     }
@@ -203,6 +224,14 @@ public class QueryContext {
         this.dataset = dataset;
     }
 
+    public List<String> getPushDownSourcePaths() {
+        return pushDownSourcePaths;
+    }
+
+    public void setPushDownSourcePaths(List<String> pushDownSourcePaths) {
+        this.pushDownSourcePaths = pushDownSourcePaths;
+    }
+
     public boolean isTableIndex() {
         return isTableIndex;
     }
@@ -211,6 +240,14 @@ public class QueryContext {
         isTableIndex = tableIndex;
     }
 
+    public boolean isStreamResult() {
+        return isStreamResult;
+    }
+
+    public void setStreamResult(boolean streamResult) {
+        isStreamResult = streamResult;
+    }
+
     public boolean isWithoutSyntaxError() {
         return withoutSyntaxError;
     }
@@ -119,17 +119,21 @@ public class HLLCounter implements Serializable, Comparable<HLLCounter> {
         int bucketMask = m - 1;
         int bucket = (int) (hash & bucketMask);
         int firstOnePos = Long.numberOfLeadingZeros(hash | bucketMask) + 1;
+        mergeRegister(bucket, (byte) firstOnePos);
+    }
+
+    private void mergeRegister(int bucket, byte value) {
         if (register.getRegisterType() == RegisterType.SINGLE_VALUE) {
             SingleValueRegister sr = (SingleValueRegister) register;
             int pos = sr.getSingleValuePos();
             if (pos < 0 || pos == bucket) { //one or zero value
-                setIfBigger(register, bucket, (byte) firstOnePos);
+                setIfBigger(register, bucket, value);
             } else { //two value
                 this.register = sr.toSparse();
-                setIfBigger(register, bucket, (byte) firstOnePos);
+                setIfBigger(register, bucket, value);
             }
         } else {
-            setIfBigger(register, bucket, (byte) firstOnePos);
+            setIfBigger(register, bucket, value);
             toDenseIfNeeded();
         }
     }
@@ -352,6 +356,45 @@ public class HLLCounter implements Serializable, Comparable<HLLCounter> {
             throw new IllegalStateException();
     }
 
+    /**
+     * Merge registers written by writeRegisters into this counter, like merge(HLLCounter) but without
+     * reading them into another counter first.
+     */
+    public void mergeRegisters(ByteBuffer in) throws IOException {
+        byte scheme = in.get();
+        if (scheme == 0) { // map scheme
+            int size = BytesUtil.readVInt(in);
+            if (size > m)
+                throw new IllegalArgumentException("register size (" + size + ") cannot be larger than m (" + m + ")");
+            if (isDense(size)) {
+                toDense();
+            }
+            int indexLen = getRegisterIndexSize();
+            for (int i = 0; i < size; i++) {
+                int key = readUnsigned(in, indexLen);
+                mergeRegister(key, in.get());
+            }
+        } else if (scheme == 1) { // array scheme
+            toDense();
+            byte[] registers = ((DenseRegister) register).getRawRegister();
+            for (int i = 0; i < m; i++) {
+                byte value = in.get();
+                if (value > registers[i]) {
+                    registers[i] = value;
+                }
+            }
+        } else
+            throw new IllegalStateException();
+    }
+
+    private void toDense() {
+        if (register.getRegisterType() == RegisterType.SINGLE_VALUE) {
+            register = ((SingleValueRegister) register).toDense(p);
+        } else if (register.getRegisterType() == RegisterType.SPARSE) {
+            register = ((SparseRegister) register).toDense(p);
+        }
+    }
+
     public int peekLength(ByteBuffer in) {
         int mark = in.position();
         int len;
@@ -31,8 +31,8 @@ public interface IPushDownRunner {
      * Run an pushdown query in the source database in case Kylin cannot serve using cube.
      * 
      * @param query                 the query statement
-     * @param returnRows            an empty list to collect returning rows
-     * @param returnColumnMeta      an empty list to collect metadata of returning columns
+     * @param returnRows            an empty list to collect returning rows, which may hand them on as they are added
+     * @param returnColumnMeta      an empty list to collect metadata of returning columns, before the rows
      * @throws Exception if running pushdown query fails
      */
     void executeQuery(String query, List<List<String>> returnRows, List<SelectedColumnMeta> returnColumnMeta) throws Exception;
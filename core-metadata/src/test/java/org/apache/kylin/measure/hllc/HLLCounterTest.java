@@ -331,6 +331,41 @@ public class HLLCounterTest {
         checkSerialize(counter);
     }
 
+    @Test
+    public void testMergeRegisters() throws IOException {
+        int p = 10;
+        int m = 1 << p;
+        // empty, single value, sparse and dense counters
+        int[] sizes = new int[] { 0, 1, 5, m * 2 };
+        for (int a : sizes) {
+            for (int b : sizes) {
+                HLLCounter merged = newCounter(p, a, rand1);
+                HLLCounter expected = new HLLCounter(merged);
+                HLLCounter another = newCounter(p, b, rand2);
+                expected.merge(another);
+
+                buf.clear();
+                another.writeRegisters(buf);
+                buf.flip();
+                merged.mergeRegisters(buf);
+                assertEquals(buf.limit(), buf.position());
+                for (int i = 0; i < m; i++) {
+                    assertEquals(expected.getRegister().get(i), merged.getRegister().get(i));
+                }
+                assertEquals(expected.getCountEstimate(), merged.getCountEstimate());
+            }
+        }
+        buf.clear();
+    }
+
+    private HLLCounter newCounter(int p, int size, Random rand) {
+        HLLCounter counter = new HLLCounter(p);
+        for (int i = 0; i < size; i++) {
+            counter.add(rand.nextInt());
+        }
+        return counter;
+    }
+
     private Set<String> generateTestData(int n) {
         Set<String> testData = new HashSet<String>();
         for (int i = 0; i < n; i++) {
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.jdbc;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.kylin.jdbc.json.SQLResponseStub;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads a query response in the columnar encoding of ColumnarResponseWriter in the query server.
+ * The values of a column are read in the binary form of the column type instead of parsed from
+ * strings, and they are the same values as those converted from a JSON response.
+ */
+class ColumnarResponseReader {
+
+    static final String CONTENT_TYPE = "application/vnd.apache.kylin.columnar";
+
+    private static final int MAGIC = 0x4B594C43;
+    private static final byte VERSION = 1;
+
+    private static final byte ENCODING_STRING = 0;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private ColumnarResponseReader() {
+    }
+
+    static SQLResponseStub read(InputStream in, ObjectMapper jsonMapper) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a columnar query response");
+        }
+        byte version = header.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version + " of columnar query response");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream data = new DataInputStream(new InflaterInputStream(in, inflater, BUFFER_SIZE));
+            SQLResponseStub response = jsonMapper.readValue(readBytes(data), SQLResponseStub.class);
+
+            int rowCount = data.readInt();
+            int columnCount = data.readInt();
+            Object[][] rows = new Object[rowCount][columnCount];
+            byte[] nulls = new byte[(rowCount + 7) / 8];
+            for (int i = 0; i < columnCount; i++) {
+                int sqlType = response.getColumnMetas().get(i).getColumnType();
+                boolean binary = data.readByte() != ENCODING_STRING;
+                data.readFully(nulls);
+                for (int row = 0; row < rowCount; row++) {
+                    if ((nulls[row >> 3] & (1 << (row & 7))) != 0) {
+                        continue;
+                    }
+                    rows[row][i] = binary ? readValue(data, sqlType)
+                            : KylinClient.wrapObject(new String(readBytes(data), StandardCharsets.UTF_8), sqlType);
+                }
+            }
+
+            List<Object> results = new ArrayList<Object>(rowCount);
+            for (Object[] row : rows) {
+                results.add(row);
+            }
+            response.setTypedResults(results);
+            return response;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Object readValue(DataInputStream in, int sqlType) throws IOException {
+        switch (sqlType) {
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+            int scale = in.readInt();
+            return new BigDecimal(new BigInteger(readBytes(in)), scale);
+        case Types.BIT:
+        case Types.BOOLEAN:
+            return in.readBoolean();
+        case Types.TINYINT:
+            return in.readByte();
+        case Types.SMALLINT:
+            return in.readShort();
+        case Types.INTEGER:
+            return in.readInt();
+        case Types.BIGINT:
+            return in.readLong();
+        case Types.FLOAT:
+            return in.readFloat();
+        case Types.REAL:
+        case Types.DOUBLE:
+            return in.readDouble();
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+            return readBytes(in);
+        case Types.DATE:
+            return new Date(in.readInt() * MILLIS_PER_DAY);
+        case Types.TIME:
+            return Time.valueOf(LocalTime.ofSecondOfDay(in.readInt()));
+        case Types.TIMESTAMP:
+            return new Timestamp(in.readLong());
+        default:
+            return new String(readBytes(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
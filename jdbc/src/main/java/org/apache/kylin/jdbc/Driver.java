@@ -52,6 +52,8 @@ import org.apache.calcite.avatica.UnregisteredDriver;
  * <li>user: username</li>
  * <li>password: password</li>
  * <li>ssl: true/false</li>
+ * <li>useCursorFetch: true/false, fetch the rows of a result from a server side cursor, in pages of the fetch size of the statement</li>
+ * <li>useColumnarResult: true/false, receive query results in the compact columnar encoding instead of JSON</li>
  * <li>{@link #CLIENT_CALCITE_PROP_NAMES extras calcite props} like: caseSensitive, unquotedCasing, quoting, conformance</li>
  * </ul>
  * </p>
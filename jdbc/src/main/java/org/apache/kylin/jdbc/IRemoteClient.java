@@ -53,4 +53,11 @@ public interface IRemoteClient extends Closeable {
      */
     QueryResult executeQuery(String sql, List<Object> paramValues, Map<String, String> queryToggles) throws IOException;
 
+    /**
+     * Execute query remotely and get back result, which is fetched from a server side cursor page by
+     * page if the fetch size is positive.
+     */
+    QueryResult executeQuery(String sql, List<Object> paramValues, Map<String, String> queryToggles, int fetchSize)
+            throws IOException;
+
 }
@@ -18,6 +18,7 @@
 
 package org.apache.kylin.jdbc;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -34,9 +35,11 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 
 import javax.xml.bind.DatatypeConverter;
@@ -44,8 +47,10 @@ import javax.xml.bind.DatatypeConverter;
 import org.apache.calcite.avatica.ColumnMetaData;
 import org.apache.calcite.avatica.ColumnMetaData.Rep;
 import org.apache.calcite.avatica.ColumnMetaData.ScalarType;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
@@ -238,6 +243,10 @@ public class KylinClient implements IRemoteClient {
         return Boolean.parseBoolean(connProps.getProperty("ssl", "false"));
     }
 
+    private boolean isColumnarResult() {
+        return Boolean.parseBoolean(connProps.getProperty("useColumnarResult", "false"));
+    }
+
     private boolean isSetKeyTrustStore() {
         return isSetKeyStore() && isSetTrustStore();
     }
@@ -274,6 +283,15 @@ public class KylinClient implements IRemoteClient {
         method.addHeader("Authorization", "Basic " + basicAuth);
     }
 
+    // query results are asked in the columnar encoding, a server without it responds in JSON
+    private void addQueryHttpHeaders(HttpRequestBase method) {
+        addHttpHeaders(method);
+        if (isColumnarResult()) {
+            method.setHeader("Accept",
+                    ColumnarResponseReader.CONTENT_TYPE + ", application/json;q=0.9, text/plain;q=0.8, */*;q=0.5");
+        }
+    }
+
     @Override
     public void connect() throws IOException {
         HttpPost post = new HttpPost(baseUrl() + "/kylin/api/user/authentication");
@@ -398,15 +416,89 @@ public class KylinClient implements IRemoteClient {
     @Override
     public QueryResult executeQuery(String sql, List<Object> paramValues,
             Map<String, String> queryToggles) throws IOException {
+        return executeQuery(sql, paramValues, queryToggles, 0);
+    }
+
+    @Override
+    public QueryResult executeQuery(String sql, List<Object> paramValues, Map<String, String> queryToggles,
+            int fetchSize) throws IOException {
 
-        SQLResponseStub queryResp = executeKylinQuery(sql, convertParameters(paramValues), queryToggles);
+        SQLResponseStub queryResp = executeKylinQuery(sql, convertParameters(paramValues), queryToggles, fetchSize);
         if (queryResp.getIsException())
             throw new IOException(queryResp.getExceptionMessage());
 
         List<ColumnMetaData> metas = convertColumnMeta(queryResp);
         List<Object> data = convertResultData(queryResp, metas);
 
-        return new QueryResult(metas, data);
+        if (queryResp.getCursorId() == null) {
+            return new QueryResult(metas, data);
+        }
+        return new QueryResult(metas, new CursorResult(queryResp.getCursorId(), data, metas, fetchSize));
+    }
+
+    /**
+     * Rows of a result kept by a server side cursor. The next page is fetched when the rows of the
+     * current one are consumed, and the cursor is closed when the iterator is closed before the last
+     * page, e.g. by closing the result set. It can be iterated once.
+     */
+    private class CursorResult implements Iterable<Object> {
+
+        private final List<ColumnMetaData> metas;
+        private final int fetchSize;
+        private String cursorId;
+        private Iterator<Object> page;
+
+        CursorResult(String cursorId, List<Object> firstPage, List<ColumnMetaData> metas, int fetchSize) {
+            this.cursorId = cursorId;
+            this.page = firstPage.iterator();
+            this.metas = metas;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new CursorIterator();
+        }
+
+        private class CursorIterator implements Iterator<Object>, Closeable {
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && cursorId != null) {
+                    try {
+                        SQLResponseStub queryResp = fetchCursor(cursorId, fetchSize);
+                        cursorId = queryResp.getCursorId();
+                        page = convertResultData(queryResp, metas).iterator();
+                    } catch (IOException e) {
+                        cursorId = null;
+                        throw new IllegalStateException("Failed to fetch the next page of query result", e);
+                    }
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (cursorId != null) {
+                    String id = cursorId;
+                    cursorId = null;
+                    closeCursor(id);
+                }
+            }
+        }
     }
 
     private List<StatementParameter> convertParameters(List<Object> paramValues) {
@@ -421,7 +513,7 @@ public class KylinClient implements IRemoteClient {
     }
 
     private SQLResponseStub executeKylinQuery(String sql, List<StatementParameter> params,
-            Map<String, String> queryToggles) throws IOException {
+            Map<String, String> queryToggles, int fetchSize) throws IOException {
         String url = baseUrl() + "/kylin/api/query";
         String project = connInfo.getProject();
 
@@ -432,9 +524,12 @@ public class KylinClient implements IRemoteClient {
         request.setSql(sql);
         request.setProject(project);
         request.setBackdoorToggles(queryToggles);
+        if (fetchSize > 0) {
+            request.setFetchSize(fetchSize);
+        }
 
         HttpPost post = new HttpPost(url);
-        addHttpHeaders(post);
+        addQueryHttpHeaders(post);
 
         String postBody = jsonMapper.writeValueAsString(request);
         logger.debug("Post body:\n {}", postBody);
@@ -447,13 +542,53 @@ public class KylinClient implements IRemoteClient {
                 throw asIOException(post, response);
             }
 
-            SQLResponseStub stub = jsonMapper.readValue(response.getEntity().getContent(), SQLResponseStub.class);
-            return stub;
+            return readQueryResponse(response);
+        } finally {
+            post.releaseConnection();
+        }
+    }
+
+    private SQLResponseStub fetchCursor(String cursorId, int fetchSize) throws IOException {
+        HttpPost post = new HttpPost(baseUrl() + "/kylin/api/query/cursor/" + cursorId + "?fetchSize=" + fetchSize);
+        addQueryHttpHeaders(post);
+        post.setEntity(new StringEntity("{}", ContentType.create("application/json", "UTF-8")));
+
+        try {
+            HttpResponse response = httpClient.execute(post);
+            if (response.getStatusLine().getStatusCode() != 200 && response.getStatusLine().getStatusCode() != 201) {
+                throw asIOException(post, response);
+            }
+
+            return readQueryResponse(response);
         } finally {
             post.releaseConnection();
         }
     }
 
+    private SQLResponseStub readQueryResponse(HttpResponse response) throws IOException {
+        Header contentType = response.getEntity().getContentType();
+        if (contentType != null && contentType.getValue().startsWith(ColumnarResponseReader.CONTENT_TYPE)) {
+            return ColumnarResponseReader.read(response.getEntity().getContent(), jsonMapper);
+        }
+        return jsonMapper.readValue(response.getEntity().getContent(), SQLResponseStub.class);
+    }
+
+    private void closeCursor(String cursorId) throws IOException {
+        HttpDelete delete = new HttpDelete(baseUrl() + "/kylin/api/query/cursor/" + cursorId);
+        addHttpHeaders(delete);
+
+        try {
+            HttpResponse response = httpClient.execute(delete);
+            // not found if expired already
+            int code = response.getStatusLine().getStatusCode();
+            if (code != 200 && code != 204 && code != 404) {
+                throw asIOException(delete, response);
+            }
+        } finally {
+            delete.releaseConnection();
+        }
+    }
+
     private List<ColumnMetaData> convertColumnMeta(SQLResponseStub queryResp) {
         List<ColumnMetaData> metas = new ArrayList<ColumnMetaData>();
         for (int i = 0; i < queryResp.getColumnMetas().size(); i++) {
@@ -474,6 +609,9 @@ public class KylinClient implements IRemoteClient {
     }
 
     private List<Object> convertResultData(SQLResponseStub queryResp, List<ColumnMetaData> metas) {
+        if (queryResp.getTypedResults() != null) {
+            return queryResp.getTypedResults();
+        }
         List<String[]> stringResults = queryResp.getResults();
         List<Object> data = new ArrayList<Object>(stringResults.size());
         for (String[] result : stringResults) {
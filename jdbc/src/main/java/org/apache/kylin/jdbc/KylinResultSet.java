@@ -68,9 +68,16 @@ public class KylinResultSet extends AvaticaResultSet {
         queryToggles.put("ATTR_STATEMENT_MAX_ROWS", String.valueOf(maxRows));
         addServerProps(queryToggles, connection);
 
+        // the rows are fetched page by page from a server side cursor if asked by the connection
+        int fetchSize = 0;
+        if (Boolean.parseBoolean(connection.getConnectionProperties().getProperty("useCursorFetch", "false"))) {
+            fetchSize = statement.getFetchSize();
+        }
+
         QueryResult result;
         try {
-            result = client.executeQuery(sql, paramValues, queryToggles);
+            result = fetchSize > 0 ? client.executeQuery(sql, paramValues, queryToggles, fetchSize)
+                    : client.executeQuery(sql, paramValues, queryToggles);
         } catch (IOException e) {
             throw new SQLException(e);
         }
@@ -20,11 +20,17 @@ package org.apache.kylin.jdbc.json;
 
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 public class QueryRequest {
     private String sql;
     private String project;
     private boolean acceptPartial = false;
 
+    // rows of the first page of a result kept by a server side cursor, left out when not paging
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer fetchSize;
+
     private Map<String, String> backdoorToggles;
 
     public String getSql() {
@@ -51,6 +57,14 @@ public class QueryRequest {
         this.acceptPartial = acceptPartial;
     }
 
+    public Integer getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     public Map<String, String> getBackdoorToggles() {
         return backdoorToggles;
     }
@@ -21,6 +21,7 @@ package org.apache.kylin.jdbc.json;
 import java.io.Serializable;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 /**
@@ -58,6 +59,13 @@ public class SQLResponseStub implements Serializable {
 
     private boolean storageCacheUsed = false;
 
+    // id of the server side cursor keeping the rows after this page, null if there are no more rows
+    private String cursorId;
+
+    // rows of a columnar response, with the values already of their column types
+    @JsonIgnore
+    private List<Object> typedResults;
+
     public SQLResponseStub() {
     }
 
@@ -73,6 +81,24 @@ public class SQLResponseStub implements Serializable {
         this.columnMetas = columnMetas;
     }
 
+    public String getCursorId() {
+        return cursorId;
+    }
+
+    public void setCursorId(String cursorId) {
+        this.cursorId = cursorId;
+    }
+
+    @JsonIgnore
+    public List<Object> getTypedResults() {
+        return typedResults;
+    }
+
+    @JsonIgnore
+    public void setTypedResults(List<Object> typedResults) {
+        this.typedResults = typedResults;
+    }
+
     public List<String[]> getResults() {
         return results;
     }
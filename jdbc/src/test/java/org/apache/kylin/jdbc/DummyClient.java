@@ -91,6 +91,12 @@ public class DummyClient implements IRemoteClient {
         return new QueryResult(meta, data);
     }
 
+    @Override
+    public QueryResult executeQuery(String sql, List<Object> paramValues, Map<String, String> queryToggles,
+            int fetchSize) throws IOException {
+        return executeQuery(sql, paramValues, queryToggles);
+    }
+
     @Override
     public void close() throws IOException {
     }
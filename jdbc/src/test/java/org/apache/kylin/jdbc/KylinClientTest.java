@@ -22,18 +22,32 @@ import com.google.common.collect.Lists;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.message.BasicStatusLine;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.DeflaterOutputStream;
 
 import static org.apache.http.HttpVersion.HTTP_1_1;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -113,6 +127,126 @@ public class KylinClientTest {
         assertEquals(1, list.size());
     }
 
+    @Test
+    public void executeQueryWithCursor() throws Exception {
+        String firstPage = TestUtil.getResourceContent("query.json").replace("\"traceUrl\": null",
+                "\"traceUrl\": null, \"cursorId\": \"c1\"");
+        String lastPage = TestUtil.getResourceContent("query.json").replace("\"1\"", "\"2\"");
+        final List<String> requests = new ArrayList<>();
+        when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) {
+                HttpUriRequest request = (HttpUriRequest) invocation.getArguments()[0];
+                String path = request.getURI().getPath();
+                path = path.substring(path.indexOf("/kylin/api/"));
+                requests.add(request.getMethod() + " " + path);
+                if (path.equals("/kylin/api/query")) {
+                    return TestUtil.mockHttpResponse(200, "OK", firstPage);
+                }
+                return TestUtil.mockHttpResponse(200, "OK", lastPage);
+            }
+        });
+
+        IRemoteClient.QueryResult queryResult = client.executeQuery("SELECT 1 as val", Collections.emptyList(),
+                new HashMap<String, String>(), 1);
+        ArrayList<Object> list = Lists.newArrayList(queryResult.iterable);
+        assertEquals(2, list.size());
+        assertEquals(1, ((Object[]) list.get(0))[0]);
+        assertEquals(2, ((Object[]) list.get(1))[0]);
+        assertEquals(Lists.newArrayList("POST /kylin/api/query", "POST /kylin/api/query/cursor/c1"), requests);
+
+        // the cursor is closed when the rows are not all read
+        requests.clear();
+        queryResult = client.executeQuery("SELECT 1 as val", Collections.emptyList(), new HashMap<String, String>(),
+                1);
+        Iterator<Object> iterator = queryResult.iterable.iterator();
+        iterator.next();
+        ((Closeable) iterator).close();
+        assertEquals(Lists.newArrayList("POST /kylin/api/query", "DELETE /kylin/api/query/cursor/c1"), requests);
+    }
+
+    @Test
+    public void executeQueryColumnar() throws Exception {
+        KylinClient columnarClient = new KylinClient(new KylinConnectionInfo() {
+            @Override
+            public String getProject() {
+                return "default";
+            }
+
+            @Override
+            public String getBaseUrl() {
+                return "http://localhost:7070";
+            }
+
+            @Override
+            public Properties getConnectionProperties() {
+                Properties props = connInfo.getConnectionProperties();
+                props.setProperty("useColumnarResult", "true");
+                return props;
+            }
+        });
+        columnarClient.setHttpClient(httpClient);
+
+        String header = "{\"columnMetas\": ["
+                + "{\"columnType\": 4, \"columnTypeName\": \"INTEGER\", \"name\": \"ID\", \"label\": \"ID\"}, "
+                + "{\"columnType\": 3, \"columnTypeName\": \"DECIMAL\", \"name\": \"PRICE\", \"label\": \"PRICE\"}, "
+                + "{\"columnType\": 91, \"columnTypeName\": \"DATE\", \"name\": \"DT\", \"label\": \"DT\"}], "
+                + "\"isException\": false}";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x4B594C43);
+        out.writeByte(1);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out);
+        DataOutputStream data = new DataOutputStream(deflated);
+        writeBytes(data, header.getBytes(StandardCharsets.UTF_8));
+        data.writeInt(2);
+        data.writeInt(3);
+        // binary values, null in the second row
+        data.writeByte(1);
+        data.writeByte(2);
+        data.writeInt(7);
+        data.writeByte(1);
+        data.writeByte(0);
+        data.writeInt(2);
+        writeBytes(data, BigInteger.valueOf(150).toByteArray());
+        data.writeInt(3);
+        writeBytes(data, BigInteger.valueOf(-25).toByteArray());
+        // strings
+        data.writeByte(0);
+        data.writeByte(2);
+        writeBytes(data, "2012-01-01".getBytes(StandardCharsets.UTF_8));
+        data.flush();
+        deflated.finish();
+
+        final List<String> accepts = new ArrayList<>();
+        final HttpResponse response = mock(HttpResponse.class);
+        when(response.getStatusLine()).thenReturn(new BasicStatusLine(HTTP_1_1, 200, "OK"));
+        when(response.getEntity()).thenReturn(new ByteArrayEntity(bytes.toByteArray(),
+                ContentType.create(ColumnarResponseReader.CONTENT_TYPE)));
+        when(httpClient.execute(any(HttpUriRequest.class))).thenAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(InvocationOnMock invocation) {
+                accepts.add(((HttpUriRequest) invocation.getArguments()[0]).getFirstHeader("Accept").getValue());
+                return response;
+            }
+        });
+
+        IRemoteClient.QueryResult queryResult = columnarClient.executeQuery("SELECT 1", Collections.emptyList(),
+                new HashMap<String, String>());
+        assertTrue(accepts.get(0).startsWith(ColumnarResponseReader.CONTENT_TYPE));
+        assertEquals(3, queryResult.columnMeta.size());
+        ArrayList<Object> rows = Lists.newArrayList(queryResult.iterable);
+        assertEquals(2, rows.size());
+        assertArrayEquals(new Object[] { 7, new BigDecimal("1.50"), KylinClient.wrapObject("2012-01-01", Types.DATE) },
+                (Object[]) rows.get(0));
+        assertArrayEquals(new Object[] { null, new BigDecimal("-0.025"), null }, (Object[]) rows.get(1));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
   @Test(expected = IllegalArgumentException.class)
   public void testWrapObjectThrowsIllegalArgumentExceptionUsingDateType() {
       KylinClient.wrapObject("OQ? PYC6BWm`kOE", Types.DATE);
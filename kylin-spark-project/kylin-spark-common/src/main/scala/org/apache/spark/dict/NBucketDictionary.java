@@ -84,6 +84,9 @@ public class NBucketDictionary {
         if (absoluteDictMap.isEmpty())
             return;
         NGlobalDictStore globalDictStore = new NGlobalDictHDFSStore(workingDir);
+        // the previous values are already in the parent version of a delta
+        if (globalDictStore.isDeltaWorkingDir(workingDir))
+            return;
         globalDictStore.writeBucketPrevDict(workingDir, bucketId, absoluteDictMap);
     }
 
@@ -62,6 +62,7 @@ public class NGlobalDictHDFSStore extends NGlobalDictStore {
     private static final String DICT_METADATA_NAME = "meta";
     private static final String DICT_CURR_PREFIX = "CURR_";
     private static final String DICT_PREV_PREFIX = "PREV_";
+    private static final String DICT_PARENT_NAME = "parent";
 
     private final Path basePath;
     private final FileSystem fileSystem;
@@ -148,6 +149,11 @@ public class NGlobalDictHDFSStore extends NGlobalDictStore {
             throws IOException {
         Object2LongMap<String> object2IntMap = new Object2LongOpenHashMap<>();
         Path versionDir = getVersionDir(version);
+        // a delta version only has the values new to its parent
+        long parentVersion = getParentVersion(versionDir);
+        if (parentVersion >= 0) {
+            object2IntMap.putAll(getBucketDict(parentVersion, getMetaInfo(parentVersion), bucketId));
+        }
         FileStatus[] bucketFiles = fileSystem.listStatus(versionDir, path -> path.getName().endsWith("_" + bucketId));
 
         for (FileStatus file : bucketFiles) {
@@ -228,6 +234,19 @@ public class NGlobalDictHDFSStore extends NGlobalDictStore {
         long[] bucketCnts = new long[bucketSize];
         long[] bucketOffsets = new long[bucketSize];
 
+        // the previous values of a delta are counted in its parent instead of the PREV files
+        long parentVersion = getParentVersion(workPath);
+        if (parentVersion >= 0) {
+            NGlobalDictMetaInfo parentMetaInfo = getMetaInfo(parentVersion);
+            if (parentMetaInfo.getBucketSize() != bucketSize) {
+                throw new IllegalStateException("The bucket size " + bucketSize
+                        + " is different from the bucket size of the parent version " + parentVersion + ": "
+                        + parentMetaInfo.getBucketSize());
+            }
+            prevDictCount = parentMetaInfo.getDictCount();
+            bucketCnts = parentMetaInfo.getBucketCount().clone();
+        }
+
         for (FileStatus fileStatus : dictPrevFiles) {
             try (FSDataInputStream is = fileSystem.open(fileStatus.getPath())) {
                 String bucketId = fileStatus.getPath().getName().replaceAll(DICT_PREV_PREFIX, "");
@@ -278,6 +297,50 @@ public class NGlobalDictHDFSStore extends NGlobalDictStore {
         }
     }
 
+    @Override
+    public void writeParentVersion(String workingDir, long parentVersion) throws IOException {
+        Path parentPath = new Path(workingDir, DICT_PARENT_NAME);
+        try (FSDataOutputStream dos = fileSystem.create(parentPath, true)) {
+            dos.writeLong(parentVersion);
+            dos.flush();
+        }
+        logger.info("Write dict path: {} as a delta of version {}", workingDir, parentVersion);
+    }
+
+    @Override
+    public boolean isDeltaWorkingDir(String workingDir) throws IOException {
+        return getParentVersion(new Path(workingDir)) >= 0;
+    }
+
+    @Override
+    public int getVersionChainLength(long version) throws IOException {
+        int length = 1;
+        for (long v = getParentVersion(getVersionDir(version)); v >= 0; v = getParentVersion(getVersionDir(v))) {
+            length++;
+        }
+        return length;
+    }
+
+    // the last full version the version is read on top of
+    private long getFullVersion(long version) throws IOException {
+        long fullVersion = version;
+        for (long v = getParentVersion(getVersionDir(version)); v >= 0; v = getParentVersion(getVersionDir(v))) {
+            fullVersion = v;
+        }
+        return fullVersion;
+    }
+
+    // -1 if the dir is a full dictionary
+    private long getParentVersion(Path dir) throws IOException {
+        Path parentPath = new Path(dir, DICT_PARENT_NAME);
+        if (!fileSystem.exists(parentPath)) {
+            return -1;
+        }
+        try (FSDataInputStream is = fileSystem.open(parentPath)) {
+            return is.readLong();
+        }
+    }
+
     @Override
     public void commit(String workingDir, int maxVersions, long versionTTL) throws IOException {
         Path workingPath = new Path(workingDir);
@@ -292,7 +355,12 @@ public class NGlobalDictHDFSStore extends NGlobalDictStore {
     private void cleanUp(int maxVersions, long versionTTL) throws IOException {
         long timestamp = System.currentTimeMillis();
         Long[] versions = listAllVersions();
-        for (int i = 0; i < versions.length - maxVersions; i++) {
+        // the kept versions are read on top of the versions they are deltas of, which must be kept too
+        long oldestNeeded = Long.MAX_VALUE;
+        for (int i = Math.max(versions.length - maxVersions, 0); i < versions.length; i++) {
+            oldestNeeded = Math.min(oldestNeeded, getFullVersion(versions[i]));
+        }
+        for (int i = 0; i < versions.length - maxVersions && versions[i] < oldestNeeded; i++) {
             if (versions[i] + versionTTL < timestamp) {
                 fileSystem.delete(getVersionDir(versions[i]), true);
             }
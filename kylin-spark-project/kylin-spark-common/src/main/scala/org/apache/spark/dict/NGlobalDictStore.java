@@ -68,5 +68,16 @@ public abstract class NGlobalDictStore {
 
     public abstract void writeMetaInfo(int bucketSize, String workingDir) throws IOException;
 
+    // the working dir will be a delta of the parent version, which only has the values new to the parent
+    public abstract void writeParentVersion(String workingDir, long parentVersion) throws IOException;
+
+    public abstract boolean isDeltaWorkingDir(String workingDir) throws IOException;
+
+    /**
+     * @return the number of versions read for the version, from its last full version to itself
+     * @throws IOException on I/O error
+     */
+    public abstract int getVersionChainLength(long version) throws IOException;
+
     public abstract void commit(String workingDir, int maxVersions, long versionTTL) throws IOException;
 }
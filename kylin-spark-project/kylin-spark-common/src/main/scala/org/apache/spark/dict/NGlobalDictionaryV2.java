@@ -89,6 +89,24 @@ public class NGlobalDictionaryV2 implements Serializable {
         globalDictStore.prepareForWrite(getWorkingDir());
     }
 
+    /**
+     * Prepares to write a delta of the latest version, which only has the new values instead of all of them,
+     * unless the latest version is already read from maxVersions versions, then a full version is written.
+     */
+    public void prepareWrite(int maxVersions) throws IOException {
+        prepareWrite();
+        NGlobalDictStore globalDictStore = getResourceStore(baseDir);
+        Long[] versions = globalDictStore.listAllVersions();
+        if (versions.length == 0) {
+            return;
+        }
+        long latestVersion = versions[versions.length - 1];
+        if (globalDictStore.getMetaInfo(latestVersion) != null
+                && globalDictStore.getVersionChainLength(latestVersion) < maxVersions) {
+            globalDictStore.writeParentVersion(getWorkingDir(), latestVersion);
+        }
+    }
+
     public void writeMetaDict(int bucketSize, int maxVersions, long versionTTL) throws IOException {
         NGlobalDictStore globalDictStore = getResourceStore(baseDir);
         globalDictStore.writeMetaInfo(bucketSize, getWorkingDir());
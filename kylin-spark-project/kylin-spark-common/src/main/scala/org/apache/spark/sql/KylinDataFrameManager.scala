@@ -20,12 +20,14 @@ package org.apache.spark.sql
 
 import org.apache.kylin.cube.CubeInstance
 import org.apache.kylin.cube.cuboid.Cuboid
+import org.apache.kylin.metadata.model.SegmentStatusEnum
 import org.apache.spark.sql.types.StructType
 import org.apache.spark.sql.SparkSession
 import org.apache.spark.sql.execution.datasource.FilePruner
 import org.apache.spark.sql.execution.datasources.HadoopFsRelation
-import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.execution.datasources.parquet.{KylinParquetFileFormat, ParquetFileFormat}
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable.{HashMap => MutableHashMap}
 
 
@@ -71,13 +73,22 @@ class KylinDataFrameManager(sparkSession: SparkSession) {
     option("dataflowId", cubeInstance.getUuid)
     option("cuboidId", layout.getId)
     val indexCatalog = new FilePruner(cubeInstance, layout, sparkSession, options = extraOptions.toMap)
+    val fileFormat = if (cubeInstance.getConfig.isParquetFooterCacheEnabled) {
+      // executors read the cached footers of a segment again once it is built again
+      val segmentVersions = cubeInstance.getSegments(SegmentStatusEnum.READY).asScala.map { seg =>
+        (seg.getName + "_" + seg.getStorageLocationIdentifier) -> seg.getLastBuildTime.toString
+      }.toMap
+      new KylinParquetFileFormat(segmentVersions)
+    } else {
+      new ParquetFileFormat
+    }
     sparkSession.baseRelationToDataFrame(
       HadoopFsRelation(
         indexCatalog,
         partitionSchema = indexCatalog.partitionSchema,
         dataSchema = indexCatalog.dataSchema.asNullable,
         bucketSpec = None,
-        new ParquetFileFormat,
+        fileFormat,
         options = extraOptions.toMap)(sparkSession))
   }
 
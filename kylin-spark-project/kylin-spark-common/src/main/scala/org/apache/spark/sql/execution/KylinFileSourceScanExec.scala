@@ -25,9 +25,9 @@ import org.apache.spark.sql.catalyst.expressions.{Ascending, Attribute, Expressi
 import org.apache.spark.sql.catalyst.plans.physical.{HashPartitioning, Partitioning, UnknownPartitioning}
 import org.apache.spark.sql.catalyst.{InternalRow, TableIdentifier}
 import org.apache.spark.sql.execution.datasources._
-import org.apache.spark.sql.execution.metric.SQLMetrics
+import org.apache.spark.sql.execution.metric.{SQLMetric, SQLMetrics}
 import org.apache.spark.sql.execution.SQLExecution
-import org.apache.spark.sql.execution.datasource.{FilePruner, ShardSpec}
+import org.apache.spark.sql.execution.datasource.{ChunkCache, ChunkCacheFileSystem, ChunkCacheMetrics, FilePruner, ScanPartitions, ShardSpec}
 import org.apache.spark.sql.types.StructType
 
 import scala.collection.mutable.ArrayBuffer
@@ -59,7 +59,12 @@ class KylinFileSourceScanExec(
   }
 
   private lazy val inputRDD: RDD[InternalRow] = {
-    val readFile: (PartitionedFile) => Iterator[InternalRow] =
+    val chunkCacheEnabled = KylinConfig.getInstanceFromEnv.isChunkCacheEnabled
+    val hadoopConf = relation.sparkSession.sessionState.newHadoopConfWithOptions(relation.options)
+    if (chunkCacheEnabled) {
+      ChunkCacheFileSystem.enable(hadoopConf, KylinConfig.getInstanceFromEnv)
+    }
+    val reader: (PartitionedFile) => Iterator[InternalRow] =
       relation.fileFormat.buildReaderWithPartitionValues(
         sparkSession = relation.sparkSession,
         dataSchema = relation.dataSchema,
@@ -67,7 +72,20 @@ class KylinFileSourceScanExec(
         requiredSchema = requiredSchema,
         filters = pushedDownFilters,
         options = relation.options,
-        hadoopConf = relation.sparkSession.sessionState.newHadoopConfWithOptions(relation.options))
+        hadoopConf = hadoopConf)
+    val readFile = if (chunkCacheEnabled) {
+      val cacheMetrics = new ChunkCacheMetrics(longMetric("chunkCacheHits"), longMetric("chunkCacheMisses"))
+      (file: PartitionedFile) => {
+        val rows = ChunkCache.tracked(cacheMetrics)(reader(file))
+        new Iterator[InternalRow] {
+          override def hasNext: Boolean = ChunkCache.tracked(cacheMetrics)(rows.hasNext)
+
+          override def next(): InternalRow = ChunkCache.tracked(cacheMetrics)(rows.next())
+        }
+      }
+    } else {
+      reader
+    }
 
     optionalShardSpec match {
       case Some(spec) if KylinConfig.getInstanceFromEnv.isShardingJoinOptEnabled =>
@@ -77,6 +95,15 @@ class KylinFileSourceScanExec(
     }
   }
 
+  // copied from FileSourceScanExec#metrics, with the chunk cache metrics
+  override lazy val metrics: Map[String, SQLMetric] =
+    Map("numOutputRows" -> SQLMetrics.createMetric(sparkContext, "number of output rows"),
+      "numFiles" -> SQLMetrics.createMetric(sparkContext, "number of files"),
+      "metadataTime" -> SQLMetrics.createMetric(sparkContext, "metadata time (ms)"),
+      "scanTime" -> SQLMetrics.createTimingMetric(sparkContext, "scan time"),
+      "chunkCacheHits" -> SQLMetrics.createMetric(sparkContext, "chunk cache hit pages"),
+      "chunkCacheMisses" -> SQLMetrics.createMetric(sparkContext, "chunk cache missed pages"))
+
   override def inputRDDs(): Seq[RDD[InternalRow]] = {
     inputRDD :: Nil
   }
@@ -156,7 +183,8 @@ class KylinFileSourceScanExec(
   }
 
   /**
-   * Copied from org.apache.spark.sql.execution.FileSourceScanExec#createNonBucketedReadRDD, no hacking.
+   * Copied from org.apache.spark.sql.execution.FileSourceScanExec#createNonBucketedReadRDD,
+   * the max split size is from [[ScanPartitions]] unless adaptive scan partition is disabled.
    *
    * Create an RDD for non-sharding reads.
    * The sharding variant of this function is [[createShardingReadRDD]].
@@ -169,9 +197,22 @@ class KylinFileSourceScanExec(
     readFile: (PartitionedFile) => Iterator[InternalRow],
     selectedPartitions: Seq[PartitionDirectory],
     fsRelation: HadoopFsRelation): RDD[InternalRow] = {
-    val defaultMaxSplitBytes =
+    val filesMaxPartitionBytes =
       fsRelation.sparkSession.sessionState.conf.filesMaxPartitionBytes
     val openCostInBytes = fsRelation.sparkSession.sessionState.conf.filesOpenCostInBytes
+    val kylinConfig = KylinConfig.getInstanceFromEnv
+    val defaultMaxSplitBytes = if (kylinConfig.isAdaptiveScanPartitionEnabled) {
+      val totalBytes = selectedPartitions.flatMap(_.files.map(_.getLen + openCostInBytes)).sum
+      val totalRows = fsRelation.location match {
+        case pruner: FilePruner => pruner.totalRows
+        case _ => -1L
+      }
+      val cores = ScanPartitions.liveCores(sparkContext)
+      math.min(filesMaxPartitionBytes,
+        ScanPartitions.maxSplitBytes(kylinConfig, totalBytes, totalRows, cores, openCostInBytes))
+    } else {
+      filesMaxPartitionBytes
+    }
 
     logInfo(s"Planning scan with bin packing, max size is: $defaultMaxSplitBytes bytes, " +
       s"open cost is considered as scanning $openCostInBytes bytes.")
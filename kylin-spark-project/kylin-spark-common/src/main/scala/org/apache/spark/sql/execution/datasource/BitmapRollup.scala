@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.util.concurrent.{Callable, TimeUnit}
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.{Column, SaveMode, SparkSession, Strategy}
+import org.apache.spark.sql.catalyst.expressions.{Alias, And, Attribute, AttributeMap, AttributeSet, Expression, NamedExpression}
+import org.apache.spark.sql.catalyst.expressions.aggregate.AggregateExpression
+import org.apache.spark.sql.catalyst.planning.PhysicalOperation
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, Filter, LogicalPlan}
+import org.apache.spark.sql.execution.SparkPlan
+import org.apache.spark.sql.execution.datasources.{FileIndex, HadoopFsRelation, InMemoryFileIndex, LogicalRelation}
+import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.functions.col
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.sql.udaf.{IntersectCount, ReusePreciseCountDistinct}
+
+/**
+ * Bitmap measures of a layout rolled up to a dimension at build time, one row of merged bitmaps by
+ * value of the dimension in each segment.
+ *
+ * Funnel and retention queries count the intersection of the bitmaps of a few values of a dimension
+ * over a long time range, the rollups of the segments in the range hold these bitmaps already merged
+ * over the rows of the layout, so the query reads a few rows instead of scanning the layout. A rollup
+ * is saved in a hidden directory of the layout, which the readers of the layout skip.
+ */
+object BitmapRollup extends Logging {
+
+  private val DIR_PREFIX = "_bitmap_rollup_"
+  private val DEFAULT_MAXSIZE = 10000
+  private val DEFAULT_EXPIRE_TIME = 1
+  private val DEFAULT_TIME_UNIT = TimeUnit.HOURS
+
+  // rollup path -> whether it is written, built segments never change so a missing rollup is cached as well
+  private val existsCache: Cache[String, java.lang.Boolean] = CacheBuilder.newBuilder
+    .maximumSize(DEFAULT_MAXSIZE)
+    .expireAfterAccess(DEFAULT_EXPIRE_TIME, DEFAULT_TIME_UNIT)
+    .build[String, java.lang.Boolean]
+
+  def path(layoutPath: String, column: String): Path = new Path(layoutPath, DIR_PREFIX + column)
+
+  /**
+   * Roll the bitmap measures of the written layout up to each of the dimensions, in as many files as
+   * the layout has.
+   */
+  def save(ss: SparkSession, layoutPath: String, columnIds: Seq[Int], bitmapIds: Seq[Int]): Unit = {
+    val layout = ss.read.parquet(layoutPath)
+    val numFiles = math.max(layout.inputFiles.length, 1)
+    val bitmaps = bitmapIds.map { id =>
+      new Column(ReusePreciseCountDistinct(col(id.toString).expr).toAggregateExpression()).as(id.toString)
+    }
+    columnIds.foreach { id =>
+      layout.groupBy(col(id.toString))
+        .agg(bitmaps.head, bitmaps.tail: _*)
+        .coalesce(numFiles)
+        .write
+        .mode(SaveMode.Overwrite)
+        .parquet(path(layoutPath, id.toString).toString)
+    }
+  }
+
+  // a rollup is complete once the job writing it has succeeded
+  def exists(layoutPath: String, column: String, hadoopConf: Configuration): Boolean = {
+    val rollupPath = path(layoutPath, column)
+    existsCache.get(rollupPath.toString, new Callable[java.lang.Boolean] {
+      override def call(): java.lang.Boolean = {
+        rollupPath.getFileSystem(hadoopConf).exists(new Path(rollupPath, "_SUCCESS"))
+      }
+    })
+  }
+}
+
+/**
+ * A file index over segments whose layouts may have [[BitmapRollup]]s.
+ */
+trait BitmapRollupIndex extends FileIndex {
+
+  /**
+   * Rollups of the bitmap measures to the column in the segments selected by the filters. None
+   * unless the filters are on the time partition column and keep or drop whole segments, and each
+   * kept segment has a rollup to the column.
+   */
+  def bitmapRollups(relation: LogicalRelation, filters: Seq[Expression], column: String): Option[Seq[Path]]
+}
+
+/**
+ * Intersect counts of bitmap measures by the values of a single dimension, over whole segments, are
+ * planned on the [[BitmapRollup]]s of the segments to the dimension, when all of them have one.
+ * Grouping by the dimension and filtering on it are supported as well.
+ */
+object BitmapRollupStrategy extends Strategy with Logging {
+
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = plan match {
+    case Aggregate(groupingExprs, aggregateExprs, PhysicalOperation(projects, filters,
+    relation @ LogicalRelation(fsRelation @ HadoopFsRelation(index: BitmapRollupIndex, _, _, _, _, _), _, _, _)))
+      if KylinConfig.getInstanceFromEnv.isBitmapRollupEnabled && (projects ++ filters).forall(_.deterministic) =>
+      val aliases = AttributeMap(projects.collect { case alias: Alias => (alias.toAttribute, alias.child) })
+      def substitute(expr: Expression): Expression = expr transformUp {
+        case a: Attribute if aliases.contains(a) => aliases(a)
+      }
+      val groupings = groupingExprs.map(substitute)
+      val aggregates = aggregateExprs.map {
+        case a: Attribute if aliases.contains(a) => Alias(aliases(a), a.name)(a.exprId, a.qualifier)
+        case other => substitute(other).asInstanceOf[NamedExpression]
+      }
+
+      val intersects = aggregates.flatMap(_.collect {
+        case AggregateExpression(IntersectCount(bitmap: Attribute, column: Attribute, _, _, _), _, false, _) =>
+          Some((bitmap, column))
+        case _: AggregateExpression =>
+          None
+      })
+      if (intersects.isEmpty || intersects.exists(_.isEmpty) || intersects.flatten.map(_._2).distinct.size != 1) {
+        Nil
+      } else {
+        val column = intersects.head.get._2
+        val readColumns = AttributeSet(column +: intersects.flatten.map(_._1))
+        val (onColumn, others) = filters.partition(_.references.subsetOf(AttributeSet(column)))
+        if (!(groupings ++ aggregates).forall(_.references.subsetOf(readColumns))) {
+          Nil
+        } else {
+          index.bitmapRollups(relation, others, column.name) match {
+            case Some(paths) =>
+              logInfo(s"Read bitmap rollups to column ${column.name}: ${paths.mkString(",")}")
+              val output = relation.output.filter(readColumns.contains)
+              val session = fsRelation.sparkSession
+              val rollup = HadoopFsRelation(new InMemoryFileIndex(session, paths, Map.empty, None), new StructType(),
+                output.toStructType, None, new ParquetFileFormat, Map.empty)(session)
+              val scan = LogicalRelation(rollup, output, None, isStreaming = false)
+              val filtered = onColumn.reduceOption(And).map(Filter(_, scan)).getOrElse(scan)
+              planLater(Aggregate(groupings, aggregates, filtered)) :: Nil
+            case None =>
+              Nil
+          }
+        }
+      }
+    case _ =>
+      Nil
+  }
+}
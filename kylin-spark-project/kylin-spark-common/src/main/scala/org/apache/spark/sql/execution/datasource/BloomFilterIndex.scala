@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.io.{DataInputStream, DataOutputStream, IOException}
+import java.util.concurrent.Callable
+
+import com.google.common.cache.{Cache, CacheBuilder, Weigher}
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.util.HadoopUtil
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions
+import org.apache.spark.sql.catalyst.expressions.{Attribute, Expression, Literal}
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.vectorized.ColumnarBatch
+import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.util.sketch.BloomFilter
+
+import scala.collection.JavaConverters._
+
+/**
+ * Per-file bloom filters of high cardinality dimensions of layout parquet files.
+ *
+ * Min/max of a file says nothing about point lookups on columns like user id, so for the configured
+ * columns a bloom filter of each file is saved in the hidden [[BloomFilterIndex.FILE_NAME]] file of
+ * the layout directory, and used by [[FilePruner]] to skip files for equality and IN filters.
+ */
+object BloomFilterIndex extends Logging {
+
+  val FILE_NAME = "_bloom_filters"
+
+  private val VERSION = 1
+  private val DEFAULT_MAX_WEIGHT = 256L * 1024 * 1024
+
+  type FileBloomFilters = Map[Int, BloomFilter]
+
+  // layout path -> file name -> column id -> bloom filter, weighted by the bytes of the bit arrays
+  // a single segment of the cache, otherwise the weight is split over the segments, and filters of a
+  // layout larger than a segment's share would be evicted right after loaded
+  private val filterCache: Cache[String, Option[Map[String, FileBloomFilters]]] = CacheBuilder.newBuilder
+    .concurrencyLevel(1)
+    .maximumWeight(DEFAULT_MAX_WEIGHT)
+    .weigher(new Weigher[String, Option[Map[String, FileBloomFilters]]] {
+      override def weigh(key: String, value: Option[Map[String, FileBloomFilters]]): Int = {
+        val bytes = value.map(_.values.flatMap(_.values).map(_.bitSize() / 8).sum).getOrElse(0L)
+        math.min(bytes + 1, Int.MaxValue).toInt
+      }
+    })
+    .build
+    .asInstanceOf[Cache[String, Option[Map[String, FileBloomFilters]]]]
+
+  def isSupported(dataType: DataType): Boolean = dataType match {
+    case ByteType | ShortType | IntegerType | LongType | DateType | TimestampType | StringType => true
+    case _ => false
+  }
+
+  /**
+   * Build a bloom filter of each column from the rows of a file, which are read by the task indexing
+   * the file, see [[FileStatsIndex.collect]].
+   *
+   * @param rows         rows or column batches of the columns, read from the file
+   * @param expectedRows rows of the file, used to size the bloom filters
+   */
+  private[datasource] def build(
+                                 rows: Iterator[_],
+                                 types: Seq[DataType],
+                                 expectedRows: Long,
+                                 fpp: Double): Array[BloomFilter] = {
+    val filters = types.map(_ => BloomFilter.create(math.max(expectedRows, 1L), fpp)).toArray
+    rows.flatMap {
+      case batch: ColumnarBatch => batch.rowIterator().asScala
+      case row: InternalRow => Iterator.single(row)
+    }.foreach { row =>
+      types.indices.foreach { i =>
+        if (!row.isNullAt(i)) {
+          toBloomValue(row.get(i, types(i))) match {
+            case v: Long => filters(i).putLong(v)
+            case v: Array[Byte] => filters(i).putBinary(v)
+          }
+        }
+      }
+    }
+    filters
+  }
+
+  def save(layoutPath: String, filters: Map[String, FileBloomFilters]): Unit = {
+    val fs = HadoopUtil.getWorkingFileSystem
+    val out = new DataOutputStream(fs.create(new Path(layoutPath, FILE_NAME), true))
+    try {
+      out.writeInt(VERSION)
+      out.writeInt(filters.size)
+      filters.foreach { case (file, columnFilters) =>
+        out.writeUTF(file)
+        out.writeInt(columnFilters.size)
+        columnFilters.foreach { case (id, filter) =>
+          out.writeInt(id)
+          filter.writeTo(out)
+        }
+      }
+    } finally {
+      out.close()
+    }
+  }
+
+  def load(layoutPath: String, hadoopConf: Configuration): Option[Map[String, FileBloomFilters]] = {
+    filterCache.get(layoutPath, new Callable[Option[Map[String, FileBloomFilters]]] {
+      override def call(): Option[Map[String, FileBloomFilters]] = {
+        val path = new Path(layoutPath, FILE_NAME)
+        val fs = path.getFileSystem(hadoopConf)
+        if (fs.exists(path)) {
+          val in = new DataInputStream(fs.open(path))
+          try {
+            val version = in.readInt()
+            if (version != VERSION) {
+              throw new IOException(s"Unsupported bloom filter version $version of $path")
+            }
+            Some((0 until in.readInt()).map { _ =>
+              val file = in.readUTF()
+              val columnFilters = (0 until in.readInt()).map { _ =>
+                val id = in.readInt()
+                (id, BloomFilter.readFrom(in))
+              }.toMap
+              (file, columnFilters)
+            }.toMap)
+          } finally {
+            in.close()
+          }
+        } else {
+          None
+        }
+      }
+    })
+  }
+
+  // integral types (date and timestamp included) are put as long, strings as utf8 bytes
+  private def toBloomValue(value: Any): Any = value match {
+    case v: UTF8String => v.getBytes
+    case v: Byte => v.toLong
+    case v: Short => v.toLong
+    case v: Int => v.toLong
+    case v: Long => v
+  }
+
+  /**
+   * Whether a file might contain rows satisfying the filter, answers true when not sure.
+   */
+  def mightMatch(filter: Expression, filters: FileBloomFilters): Boolean = {
+    def mightContain(a: Attribute, v: Any, dataType: DataType): Option[Boolean] = {
+      if (dataType != a.dataType || !isSupported(a.dataType) || !a.name.forall(Character.isDigit)) {
+        None
+      } else {
+        filters.get(a.name.toInt).map { filter =>
+          v != null && (toBloomValue(v) match {
+            case l: Long => filter.mightContainLong(l)
+            case b: Array[Byte] => filter.mightContainBinary(b)
+          })
+        }
+      }
+    }
+
+    val result = filter match {
+      case expressions.EqualTo(a: Attribute, Literal(v, dt)) =>
+        mightContain(a, v, dt)
+      case expressions.EqualTo(Literal(v, dt), a: Attribute) =>
+        mightContain(a, v, dt)
+      case expressions.In(a: Attribute, list) if list.forall(_.isInstanceOf[Literal]) =>
+        Some(list.exists(e => mightMatch(expressions.EqualTo(a, e), filters)))
+      case expressions.InSet(a: Attribute, hset) =>
+        Some(hset.exists(v => mightMatch(expressions.EqualTo(a, Literal(v, a.dataType)), filters)))
+      case expressions.And(left, right) =>
+        Some(mightMatch(left, filters) && mightMatch(right, filters))
+      case expressions.Or(left, right) =>
+        Some(mightMatch(left, filters) || mightMatch(right, filters))
+      case _ =>
+        None
+    }
+    result.getOrElse(true)
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.io.{File, FileInputStream, FileOutputStream, IOException}
+import java.nio.ByteBuffer
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import com.google.common.cache.{Cache, CacheBuilder, RemovalCause, RemovalListener, RemovalNotification, Weigher}
+import com.google.common.io.ByteStreams
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.FileStatus
+import org.apache.spark.SparkEnv
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.execution.metric.SQLMetric
+import org.apache.spark.storage.StorageUtils
+import org.apache.spark.util.{ThreadUtils, Utils}
+
+case class PageKey(path: String, length: Long, modificationTime: Long, index: Long)
+
+/**
+ * A cached page in direct memory. It is freed as soon as it is evicted and no reader holds it,
+ * instead of whenever the GC collects the buffer.
+ */
+private[datasource] class Page(val buffer: ByteBuffer, onFree: Page => Unit) {
+
+  // held by the memory cache until eviction, and by each reader until it copied the bytes
+  private val refs = new AtomicInteger(1)
+
+  /**
+   * Hold the page for reading, false if it was already freed.
+   */
+  def retain(): Boolean = {
+    var n = refs.get()
+    while (n > 0 && !refs.compareAndSet(n, n + 1)) {
+      n = refs.get()
+    }
+    n > 0
+  }
+
+  def release(): Unit = {
+    if (refs.decrementAndGet() == 0) {
+      StorageUtils.dispose(buffer)
+      onFree(this)
+    }
+  }
+}
+
+/**
+ * Fixed size pages of immutable layout files, kept in off-heap memory and spilled to local disk
+ * when evicted from memory, both tiers are LRU and bounded by bytes.
+ *
+ * The statuses of the files are cached as well, since the files never change once written.
+ */
+class ChunkCache(memoryBytes: Long, diskBytes: Long, val pageSize: Int, localDir: File) extends Logging {
+
+  private val memoryHits = new AtomicLong()
+  private val diskHits = new AtomicLong()
+  private val misses = new AtomicLong()
+  private val remoteBytes = new AtomicLong()
+  private val spillFileId = new AtomicLong()
+  private val directBytes = new AtomicLong()
+  private val pendingSpillBytes = new AtomicLong()
+
+  // evicted pages are written to disk in the background, not by the reader that evicted them
+  private lazy val spillExecutor = ThreadUtils.newDaemonSingleThreadExecutor("kylin-chunk-cache-spill")
+
+  // evicted pages until they are on disk, still served from memory
+  private val spilling = new ConcurrentHashMap[PageKey, Page]()
+
+  private val statusCache: Cache[String, FileStatus] = CacheBuilder.newBuilder
+    .maximumSize(ChunkCache.MAX_CACHED_STATUSES)
+    .build
+    .asInstanceOf[Cache[String, FileStatus]]
+
+  // a single segment for each cache of pages, so that the whole budget is shared by all pages
+  private val diskCache: Cache[PageKey, File] = CacheBuilder.newBuilder
+    .concurrencyLevel(1)
+    .maximumWeight(diskBytes)
+    .weigher(new Weigher[PageKey, File] {
+      override def weigh(key: PageKey, value: File): Int = value.length().toInt
+    })
+    .removalListener(new RemovalListener[PageKey, File] {
+      override def onRemoval(notification: RemovalNotification[PageKey, File]): Unit = {
+        notification.getValue.delete()
+      }
+    })
+    .build
+    .asInstanceOf[Cache[PageKey, File]]
+
+  private val memoryCache: Cache[PageKey, Page] = CacheBuilder.newBuilder
+    .concurrencyLevel(1)
+    .maximumWeight(memoryBytes)
+    .weigher(new Weigher[PageKey, Page] {
+      override def weigh(key: PageKey, value: Page): Int = value.buffer.capacity()
+    })
+    .removalListener(new RemovalListener[PageKey, Page] {
+      override def onRemoval(notification: RemovalNotification[PageKey, Page]): Unit = {
+        val page = notification.getValue
+        if (notification.getCause == RemovalCause.SIZE && shouldSpill(page)) {
+          val key = notification.getKey
+          spilling.put(key, page)
+          spillExecutor.execute(new Runnable {
+            override def run(): Unit = {
+              try {
+                spill(key, page)
+              } finally {
+                spilling.remove(key, page)
+                pendingSpillBytes.addAndGet(-page.buffer.capacity())
+                page.release()
+              }
+            }
+          })
+        } else {
+          page.release()
+        }
+      }
+    })
+    .build
+    .asInstanceOf[Cache[PageKey, Page]]
+
+  /**
+   * The status of the file, loaded by the given function when it is not cached.
+   */
+  def getFileStatus(path: String, load: => FileStatus): FileStatus = {
+    val cached = statusCache.getIfPresent(path)
+    if (cached != null) {
+      cached
+    } else {
+      val status = load
+      statusCache.put(path, status)
+      status
+    }
+  }
+
+  /**
+   * The cached page, promoted to memory if it was on disk. The returned page is held for the
+   * caller, who must release it after reading, its buffer is never modified, callers read a
+   * duplicate of it.
+   */
+  def get(key: PageKey): Option[Page] = {
+    val cached = memoryCache.getIfPresent(key)
+    if (cached != null && cached.retain()) {
+      memoryHits.incrementAndGet()
+      ChunkCache.recordScanHit()
+      return Some(cached)
+    }
+    val evicted = spilling.get(key)
+    if (evicted != null && evicted.retain()) {
+      memoryHits.incrementAndGet()
+      ChunkCache.recordScanHit()
+      return Some(evicted)
+    }
+    val file = diskCache.getIfPresent(key)
+    if (file != null) {
+      try {
+        val bytes = load(file)
+        diskCache.invalidate(key)
+        diskHits.incrementAndGet()
+        ChunkCache.recordScanHit()
+        return Some(put(key, bytes, 0, bytes.length))
+      } catch {
+        case e: IOException =>
+          // deleted by an eviction in the meantime
+          logDebug(s"Failed to read spilled page $key", e)
+      }
+    }
+    None
+  }
+
+  /**
+   * Cache the bytes as a page, which is returned held for the caller as by [[get]].
+   */
+  def put(key: PageKey, bytes: Array[Byte], offset: Int, length: Int): Page = {
+    val buffer = ByteBuffer.allocateDirect(length)
+    buffer.put(bytes, offset, length)
+    buffer.flip()
+    directBytes.addAndGet(length)
+    val page = new Page(buffer, freed => directBytes.addAndGet(-freed.buffer.capacity()))
+    page.retain()
+    memoryCache.put(key, page)
+    page
+  }
+
+  def recordMiss(pages: Int, bytes: Long): Unit = {
+    misses.addAndGet(pages)
+    remoteBytes.addAndGet(bytes)
+    ChunkCache.recordScanMiss(pages)
+  }
+
+  def memoryHitCount: Long = memoryHits.get()
+
+  def diskHitCount: Long = diskHits.get()
+
+  def missCount: Long = misses.get()
+
+  def remoteReadBytes: Long = remoteBytes.get()
+
+  /**
+   * Bytes of direct memory held by pages, cached or still being read or spilled.
+   */
+  def directMemoryBytes: Long = directBytes.get()
+
+  /**
+   * Wait for the pages evicted so far to be spilled.
+   */
+  private[datasource] def awaitSpills(): Unit = {
+    spillExecutor.submit(new Runnable {
+      override def run(): Unit = {}
+    }).get(1, TimeUnit.MINUTES)
+  }
+
+  def hitRate: Double = {
+    val hits = memoryHitCount + diskHitCount
+    val total = hits + missCount
+    if (total == 0) 0.0 else hits.toDouble / total
+  }
+
+  override def toString: String = {
+    f"hit rate $hitRate%.2f, memory hits $memoryHitCount, disk hits $diskHitCount, " +
+      s"misses $missCount, remote bytes $remoteReadBytes"
+  }
+
+  // evicted pages waiting to be spilled still take direct memory, past a quarter of the memory
+  // budget, or the pages of a single remote read, they are dropped instead
+  private def shouldSpill(page: Page): Boolean = {
+    val size = page.buffer.capacity()
+    val maxPending = math.max(memoryBytes / 4, ChunkCache.MAX_PAGES_PER_READ.toLong * pageSize)
+    if (diskBytes <= 0 || pendingSpillBytes.addAndGet(size) > maxPending) {
+      if (diskBytes > 0) {
+        pendingSpillBytes.addAndGet(-size)
+      }
+      false
+    } else {
+      true
+    }
+  }
+
+  private def spill(key: PageKey, page: Page): Unit = {
+    val file = new File(localDir, s"page-${spillFileId.incrementAndGet()}")
+    val out = new FileOutputStream(file)
+    try {
+      out.getChannel.write(page.buffer.duplicate())
+      diskCache.put(key, file)
+    } catch {
+      case e: IOException =>
+        logWarning(s"Failed to spill page $key to $file", e)
+        file.delete()
+    } finally {
+      out.close()
+    }
+  }
+
+  private def load(file: File): Array[Byte] = {
+    val bytes = new Array[Byte](file.length().toInt)
+    val in = new FileInputStream(file)
+    try {
+      ByteStreams.readFully(in, bytes)
+    } finally {
+      in.close()
+    }
+    bytes
+  }
+}
+
+object ChunkCache extends Logging {
+
+  val MEMORY_SIZE = "kylin.chunk-cache.memory-size"
+  val DISK_SIZE = "kylin.chunk-cache.disk-size"
+  val PAGE_SIZE = "kylin.chunk-cache.page-size"
+  val LOCAL_DIR = "kylin.chunk-cache.local-dir"
+
+  private val MAX_CACHED_STATUSES = 100000
+
+  private[datasource] val MAX_PAGES_PER_READ = 16
+
+  @volatile private var instance: ChunkCache = _
+
+  // metrics of the scan reading on this thread, parquet readers read on the task thread
+  private val scanMetrics = new ThreadLocal[ChunkCacheMetrics]
+
+  /**
+   * The cache of this JVM, created with the settings of the first scan that reads through it.
+   */
+  def getOrCreate(conf: Configuration): ChunkCache = {
+    if (instance == null) {
+      synchronized {
+        if (instance == null) {
+          val root = conf.get(LOCAL_DIR, "") match {
+            case "" if SparkEnv.get != null => Utils.getLocalDir(SparkEnv.get.conf)
+            case "" => System.getProperty("java.io.tmpdir")
+            case dir => dir
+          }
+          val cache = new ChunkCache(conf.getLong(MEMORY_SIZE, 256L * 1024 * 1024),
+            conf.getLong(DISK_SIZE, 10L * 1024 * 1024 * 1024), conf.getInt(PAGE_SIZE, 1024 * 1024),
+            Utils.createTempDir(root, "kylin-chunk-cache"))
+          logInfo(s"Created chunk cache of ${conf.get(MEMORY_SIZE)} bytes in memory " +
+            s"and ${conf.get(DISK_SIZE)} bytes on disk under $root")
+          instance = cache
+        }
+      }
+    }
+    instance
+  }
+
+  /**
+   * Count the pages read while running body as reads of the scan.
+   */
+  def tracked[T](metrics: ChunkCacheMetrics)(body: => T): T = {
+    val previous = scanMetrics.get()
+    scanMetrics.set(metrics)
+    try {
+      body
+    } finally {
+      scanMetrics.set(previous)
+    }
+  }
+
+  private def recordScanHit(): Unit = {
+    val metrics = scanMetrics.get()
+    if (metrics != null) {
+      metrics.hits.add(1)
+    }
+  }
+
+  private def recordScanMiss(pages: Int): Unit = {
+    val metrics = scanMetrics.get()
+    if (metrics != null) {
+      metrics.misses.add(pages)
+    }
+  }
+}
+
+/**
+ * Hits and misses of the pages read by the tasks of a scan.
+ */
+class ChunkCacheMetrics(val hits: SQLMetric, val misses: SQLMetric) extends Serializable
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.io.EOFException
+import java.net.URI
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FSDataInputStream, FSInputStream, FileStatus, FileSystem, FilterFileSystem, Path}
+import org.apache.kylin.common.KylinConfig
+
+/**
+ * Reads files under the working directory through the [[ChunkCache]] of the JVM.
+ *
+ * It is only plugged into the hadoop configuration of sparder scans by [[ChunkCacheFileSystem.enable]],
+ * and delegates to the file system that would be used otherwise, which is shared through the file
+ * system cache, so creating it for each file is cheap.
+ */
+class ChunkCacheFileSystem extends FilterFileSystem {
+
+  private var pathPrefix: String = _
+  private var cache: ChunkCache = _
+
+  override def initialize(name: URI, conf: Configuration): Unit = {
+    val scheme = name.getScheme
+    val delegateConf = new Configuration(conf)
+    conf.get(ChunkCacheFileSystem.ORIGINAL_IMPL_PREFIX + scheme, "") match {
+      case "" => delegateConf.unset(s"fs.$scheme.impl")
+      case impl => delegateConf.set(s"fs.$scheme.impl", impl)
+    }
+    delegateConf.unset(s"fs.$scheme.impl.disable.cache")
+    fs = FileSystem.get(name, delegateConf)
+    super.initialize(name, conf)
+    pathPrefix = conf.get(ChunkCacheFileSystem.PATH_PREFIX)
+    cache = ChunkCache.getOrCreate(conf)
+  }
+
+  override def open(f: Path, bufferSize: Int): FSDataInputStream = {
+    val path = makeQualified(f)
+    if (isCached(path)) {
+      new FSDataInputStream(new CachedInputStream(cache, fs, getFileStatus(path)))
+    } else {
+      fs.open(f, bufferSize)
+    }
+  }
+
+  // the files under the working directory never change, so a file whose pages are all cached is
+  // read without any call to the delegate, the parquet reader also asks for the status
+  override def getFileStatus(f: Path): FileStatus = {
+    val path = makeQualified(f)
+    if (isCached(path)) {
+      cache.getFileStatus(path.toString, fs.getFileStatus(path))
+    } else {
+      fs.getFileStatus(f)
+    }
+  }
+
+  private def isCached(path: Path): Boolean = pathPrefix != null && path.toString.startsWith(pathPrefix)
+
+  // the delegate is shared through the file system cache, it must stay open
+  override def close(): Unit = {}
+}
+
+object ChunkCacheFileSystem {
+
+  val PATH_PREFIX = "kylin.chunk-cache.path-prefix"
+  private val ORIGINAL_IMPL_PREFIX = "kylin.chunk-cache.original-impl."
+
+  /**
+   * Read the files under the working directory through the chunk cache, for the readers
+   * created with this hadoop configuration.
+   */
+  def enable(hadoopConf: Configuration, config: KylinConfig): Unit = {
+    val workingDir = new Path(config.getReadHdfsWorkingDirectory)
+    val qualified = workingDir.getFileSystem(hadoopConf).makeQualified(workingDir)
+    val scheme = qualified.toUri.getScheme
+    hadoopConf.set(ORIGINAL_IMPL_PREFIX + scheme, hadoopConf.get(s"fs.$scheme.impl", ""))
+    hadoopConf.set(s"fs.$scheme.impl", classOf[ChunkCacheFileSystem].getName)
+    hadoopConf.setBoolean(s"fs.$scheme.impl.disable.cache", true)
+    hadoopConf.set(PATH_PREFIX, qualified.toString)
+    hadoopConf.setLong(ChunkCache.MEMORY_SIZE, config.getChunkCacheMemorySizeMB * 1024 * 1024)
+    hadoopConf.setLong(ChunkCache.DISK_SIZE, config.getChunkCacheDiskSizeMB * 1024 * 1024)
+    hadoopConf.setInt(ChunkCache.PAGE_SIZE, config.getChunkCachePageSizeKB * 1024)
+    hadoopConf.set(ChunkCache.LOCAL_DIR, config.getChunkCacheLocalDir)
+  }
+}
+
+/**
+ * Serves reads from cached pages, pages missing from the cache are read from the delegate with a
+ * single positioned read for each run of contiguous missing pages.
+ */
+private[datasource] class CachedInputStream(cache: ChunkCache, fs: FileSystem, status: FileStatus)
+  extends FSInputStream {
+
+  private val path = status.getPath
+  private val length = status.getLen
+  private val pageSize = cache.pageSize
+  private val oneByte = new Array[Byte](1)
+
+  // opened on the first miss, not at all if every page is cached
+  private var in: FSDataInputStream = _
+  private var pos = 0L
+
+  override def seek(target: Long): Unit = {
+    if (target < 0 || target > length) {
+      throw new EOFException(s"Cannot seek to $target of $path of $length bytes")
+    }
+    pos = target
+  }
+
+  override def getPos: Long = pos
+
+  override def seekToNewSource(targetPos: Long): Boolean = false
+
+  override def available(): Int = math.min(length - pos, Int.MaxValue).toInt
+
+  override def read(): Int = {
+    if (read(oneByte, 0, 1) == -1) -1 else oneByte(0) & 0xff
+  }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    val n = read(pos, b, off, len)
+    if (n > 0) {
+      pos += n
+    }
+    n
+  }
+
+  override def read(position: Long, b: Array[Byte], off: Int, len: Int): Int = {
+    if (len == 0) {
+      return 0
+    }
+    if (position >= length) {
+      return -1
+    }
+    val n = math.min(len, length - position).toInt
+    val first = position / pageSize
+    val pages = readPages(first, ((position + n - 1) / pageSize - first + 1).toInt)
+    try {
+      var copied = 0
+      var i = 0
+      while (copied < n) {
+        val page = pages(i).buffer.duplicate()
+        page.position(((position + copied) - (first + i) * pageSize).toInt)
+        val size = math.min(page.remaining(), n - copied)
+        page.get(b, off + copied, size)
+        copied += size
+        i += 1
+      }
+    } finally {
+      pages.foreach(page => if (page != null) page.release())
+    }
+    n
+  }
+
+  override def close(): Unit = {
+    if (in != null) {
+      in.close()
+      in = null
+    }
+  }
+
+  private def key(index: Long): PageKey = PageKey(path.toString, length, status.getModificationTime, index)
+
+  // the returned pages are held, and must be released once read
+  private def readPages(first: Long, count: Int): Array[Page] = {
+    val pages = Array.tabulate(count)(i => cache.get(key(first + i)).orNull)
+    try {
+      var i = 0
+      while (i < count) {
+        if (pages(i) == null) {
+          var j = i
+          while (j < count && pages(j) == null && j - i < ChunkCache.MAX_PAGES_PER_READ) {
+            j += 1
+          }
+          fetch(first + i, j - i).copyToArray(pages, i)
+          i = j
+        } else {
+          i += 1
+        }
+      }
+    } catch {
+      case t: Throwable =>
+        pages.foreach(page => if (page != null) page.release())
+        throw t
+    }
+    pages
+  }
+
+  private def fetch(firstPage: Long, count: Int): Seq[Page] = {
+    if (in == null) {
+      in = fs.open(path)
+    }
+    val offset = firstPage * pageSize
+    val bytes = new Array[Byte](math.min(count.toLong * pageSize, length - offset).toInt)
+    in.readFully(offset, bytes)
+    cache.recordMiss(count, bytes.length)
+    (0 until count).map { i =>
+      val start = i * pageSize
+      cache.put(key(firstPage + i), bytes, start, math.min(pageSize, bytes.length - start))
+    }
+  }
+}
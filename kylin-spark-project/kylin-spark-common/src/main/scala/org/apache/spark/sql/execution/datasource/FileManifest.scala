@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.io.FileNotFoundException
+import java.util.concurrent.{Callable, TimeUnit}
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{BlockLocation, FileStatus, FileSystem, LocatedFileStatus, Path}
+import org.apache.kylin.common.util.{HadoopUtil, JsonUtil}
+import org.apache.kylin.engine.spark.metadata.cube.model.LayoutFileManifest
+import org.apache.kylin.engine.spark.metadata.cube.model.LayoutFileManifest.{Block, FileEntry}
+import org.apache.spark.internal.Logging
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * File listing of built layouts, written once a layout is built and cached by segment and layout,
+ * so that [[FilePruner]] does not list layout directories on the NameNode for every query.
+ */
+object FileManifest extends Logging {
+
+  private val DEFAULT_MAXSIZE = 10000
+  private val DEFAULT_EXPIRE_TIME = 1
+  private val DEFAULT_TIME_UNIT = TimeUnit.HOURS
+
+  // (segment id, layout id) -> manifest, built segments never change so a missing manifest is cached as well
+  private val manifestCache: Cache[(String, Long), Option[LayoutFileManifest]] = CacheBuilder.newBuilder
+    .maximumSize(DEFAULT_MAXSIZE)
+    .expireAfterAccess(DEFAULT_EXPIRE_TIME, DEFAULT_TIME_UNIT)
+    .build
+    .asInstanceOf[Cache[(String, Long), Option[LayoutFileManifest]]]
+
+  def isDataFile(path: Path): Boolean = {
+    !path.getName.startsWith("_") && !path.getName.startsWith(".")
+  }
+
+  /**
+   * List the written layout with block locations.
+   *
+   * @param fileRows rows of each file, missing ones are saved as unknown
+   */
+  def collect(fs: FileSystem, layoutPath: String, layoutId: Long, fileRows: Map[String, Long]): LayoutFileManifest = {
+    val files = new ArrayBuffer[FileEntry]()
+    val iter = fs.listLocatedStatus(new Path(layoutPath))
+    while (iter.hasNext) {
+      val status = iter.next()
+      if (status.isFile && isDataFile(status.getPath)) {
+        val file = new FileEntry
+        file.setFileName(status.getPath.getName)
+        file.setLength(status.getLen)
+        file.setModificationTime(status.getModificationTime)
+        file.setBlockSize(status.getBlockSize)
+        file.setReplication(status.getReplication)
+        file.setRows(fileRows.getOrElse(status.getPath.getName, -1L))
+        file.setBlocks(status.getBlockLocations.map { block =>
+          new Block(block.getOffset, block.getLength, block.getHosts, block.getNames)
+        }.toList.asJava)
+        files += file
+      }
+    }
+
+    val manifest = new LayoutFileManifest
+    manifest.setLayoutId(layoutId)
+    manifest.setFiles(files.asJava)
+    manifest
+  }
+
+  def save(layoutPath: String, manifest: LayoutFileManifest): Unit = {
+    val fs = HadoopUtil.getWorkingFileSystem
+    val out = fs.create(new Path(layoutPath, LayoutFileManifest.FILE_NAME), true)
+    try {
+      JsonUtil.writeValue(out, manifest)
+    } finally {
+      out.close()
+    }
+  }
+
+  def load(layoutPath: String, segmentId: String, layoutId: Long, hadoopConf: Configuration): Option[LayoutFileManifest] = {
+    manifestCache.get((segmentId, layoutId), new Callable[Option[LayoutFileManifest]] {
+      override def call(): Option[LayoutFileManifest] = {
+        val path = new Path(layoutPath, LayoutFileManifest.FILE_NAME)
+        val fs = path.getFileSystem(hadoopConf)
+        // a single open instead of exists + open, layouts built before the manifest fall into the catch
+        try {
+          val in = fs.open(path)
+          try {
+            Some(JsonUtil.readValue(in, classOf[LayoutFileManifest]))
+          } finally {
+            in.close()
+          }
+        } catch {
+          case _: FileNotFoundException =>
+            None
+        }
+      }
+    })
+  }
+
+  def toFileStatuses(layoutPath: Path, manifest: LayoutFileManifest): Seq[FileStatus] = {
+    manifest.getFiles.asScala.map { file =>
+      val status = new FileStatus(file.getLength, false, file.getReplication, file.getBlockSize,
+        file.getModificationTime, new Path(layoutPath, file.getFileName))
+      val blocks = file.getBlocks.asScala.map { block =>
+        new BlockLocation(block.getNames, block.getHosts, block.getOffset, block.getLength)
+      }.toArray
+      new LocatedFileStatus(status, blocks)
+    }
+  }
+}
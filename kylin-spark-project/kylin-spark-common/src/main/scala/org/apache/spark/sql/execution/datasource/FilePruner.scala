@@ -18,29 +18,31 @@
 
 package org.apache.spark.sql.execution.datasource
 
+import java.io.FileNotFoundException
 import java.sql.{Date, Timestamp}
 
 import org.apache.hadoop.fs.{FileStatus, Path}
+import org.apache.kylin.common.{KylinConfig, QueryContextFacade}
 import org.apache.kylin.common.util.DateFormat
 import org.apache.kylin.cube.cuboid.Cuboid
 import org.apache.kylin.cube.CubeInstance
-import org.apache.kylin.engine.spark.metadata.cube.model.ForestSpanningTree
-import org.apache.kylin.engine.spark.metadata.cube.{ManagerHub, PathManager}
+import org.apache.kylin.engine.spark.metadata.cube.PathManager
 import org.apache.kylin.engine.spark.metadata.MetadataConverter
 import org.apache.kylin.metadata.model.{PartitionDesc, SegmentStatusEnum}
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.analysis.Resolver
-import org.apache.spark.sql.catalyst.expressions.{Attribute, AttributeSet, EmptyRow, Expression, Literal}
+import org.apache.spark.sql.catalyst.expressions.{Attribute, AttributeSet, EmptyRow, Expression, Literal, UnsafeProjection}
+import org.apache.spark.sql.catalyst.plans.physical.HashPartitioning
 import org.apache.spark.sql.catalyst.{InternalRow, expressions}
 import org.apache.spark.sql.execution.datasources._
 import org.apache.spark.sql.sources._
-import org.apache.spark.sql.types.{StructField, StructType}
+import org.apache.spark.sql.types.{DataType, StructField, StructType}
 import org.apache.spark.sql.{AnalysisException, SparkSession}
 import org.apache.spark.sql.utils.SparkTypeUtil
 import org.apache.spark.util.collection.BitSet
 
-import scala.collection.JavaConversions
 import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
 
 case class SegmentDirectory(segmentName: String, identifier: String, files: Seq[FileStatus])
 
@@ -78,27 +80,39 @@ class FilePruner(
                   cubeInstance: CubeInstance,
                   cuboid: Cuboid,
                   val session: SparkSession,
-                  val options: Map[String, String])
-  extends FileIndex with ResetShufflePartition with Logging {
+                  val options: Map[String, String],
+                  segmentFilter: Option[Set[String]] = None)
+  extends SegmentFileIndex with BitmapRollupIndex with ResetShufflePartition with Logging {
 
+  private lazy val readySegments = cubeInstance.getSegments.asScala
+    .filter(_.getStatus.equals(SegmentStatusEnum.READY))
+    .filter(seg => segmentFilter.forall(_.contains(seg.getName + "_" + seg.getStorageLocationIdentifier)))
+
+  // files are listed after segment pruning, see listLayoutFiles
   private lazy val segmentDirs: Seq[SegmentDirectory] = {
-    cubeInstance.getSegments.asScala
-      .filter(_.getStatus.equals(SegmentStatusEnum.READY))
-      .map(seg => SegmentDirectory(seg.getName, seg.getStorageLocationIdentifier, null))
-    cubeInstance.getSegments.asScala
-      .filter(_.getStatus.equals(SegmentStatusEnum.READY)).map(seg => {
-      val segName = seg.getName
-      val path = PathManager.getParquetStoragePath(cubeInstance, segName, seg.getStorageLocationIdentifier, layoutEntity.getId)
-      val files = new InMemoryFileIndex(session,
-        Seq(new Path(path)),
-        options,
-        Some(dataSchema),
-        FileStatusCache.getOrCreate(session))
-        .listFiles(Nil, Nil)
-        .flatMap(_.files)
-        .filter(_.isFile)
-      SegmentDirectory(segName, seg.getStorageLocationIdentifier, files)
-    }).filter(_.files.nonEmpty)
+    readySegments.map(seg => SegmentDirectory(seg.getName, seg.getStorageLocationIdentifier, Nil))
+  }
+
+  override lazy val segmentVersions: Map[String, String] = readySegments.map { seg =>
+    (seg.getName + "_" + seg.getStorageLocationIdentifier,
+      s"${cubeInstance.getUuid}/${cuboid.getId}/${seg.getUuid}/${seg.getLastBuildTime}")
+  }.toMap
+
+  override def segmentRows(directoryName: String): Option[Long] = readySegments
+    .find(seg => seg.getName + "_" + seg.getStorageLocationIdentifier == directoryName)
+    .map(seg => estimateRows(listLayoutFiles(seg.getName, seg.getStorageLocationIdentifier)))
+    .filter(_ >= 0)
+
+  override def prunedSegments(relation: LogicalRelation, filters: Seq[Expression]): Set[String] = {
+    resolve(relation, session.sessionState.analyzer.resolver)
+    val timeFilters = Option(timePartitionColumn).map(getSpecFilter(filters, _)).getOrElse(Nil)
+    afterPruning("segment", timeFilters, segmentDirs) {
+      pruneSegments
+    }.map(seg => seg.segmentName + "_" + seg.identifier).toSet
+  }
+
+  override def withSegments(directoryNames: Set[String]): FilePruner = {
+    new FilePruner(cubeInstance, cuboid, session, options, Some(directoryNames))
   }
 
   val layoutEntity = MetadataConverter.toLayoutEntity(cubeInstance, cuboid)
@@ -113,7 +127,8 @@ class FilePruner(
   }
 
   override def rootPaths: Seq[Path] = {
-    segmentDirs.map(seg => new Path(toPath(seg.segmentName, seg.identifier)))
+    segmentDirs.filter(seg => listLayoutFiles(seg.segmentName, seg.identifier).nonEmpty)
+      .map(seg => new Path(toPath(seg.segmentName, seg.identifier)))
   }
 
   def toPath(segmentName: String, identifier: String): String = {
@@ -150,21 +165,17 @@ class FilePruner(
       })
   }
 
+  // keep the order of shard by columns, the shard id is the hash of them in this order
   lazy val shardBySchema: StructType = {
     val shardByCols = layoutEntity.getShardByColumns.asScala.map(_.toString)
 
-    StructType(
-      if (shardByCols.isEmpty) {
-        Seq.empty
-      } else {
-        dataSchema.filter(f => shardByCols.contains(f.name))
-      })
+    StructType(shardByCols.flatMap(col => dataSchema.find(_.name == col)))
   }
 
   // timePartitionColumn is the mechanism of kylin.
   private var timePartitionColumn: Attribute = _
 
-  private var shardByColumn: Attribute = _
+  private var shardByColumns: Seq[Attribute] = Seq.empty
 
   private var isResolved: Boolean = false
 
@@ -174,10 +185,7 @@ class FilePruner(
       timePartitionColumn = timePartitionAttr.head
     }
 
-    val shardByAttr = relation.resolve(shardBySchema, resolver)
-    if (shardByAttr.nonEmpty) {
-      shardByColumn = shardByAttr.head
-    }
+    shardByColumns = relation.resolve(shardBySchema, resolver)
     isResolved = true
   }
 
@@ -187,6 +195,11 @@ class FilePruner(
 
   var cached = new java.util.HashMap[(Seq[Expression], Seq[Expression]), Seq[PartitionDirectory]]()
   var totalSize = 0L
+  // -1 when the rows of the selected files are unknown
+  var totalRows = -1L
+
+  // rows of files listed from manifests, by path
+  private val fileRows = TrieMap[String, Long]()
 
   override def listFiles(partitionFilters: Seq[Expression], dataFilters: Seq[Expression]): Seq[PartitionDirectory] = {
     if (cached.containsKey((partitionFilters, dataFilters))) {
@@ -197,36 +210,38 @@ class FilePruner(
     val timePartitionFilters = getSpecFilter(dataFilters, timePartitionColumn)
     logInfo(s"Applying time partition filters: ${timePartitionFilters.mkString(",")}")
 
-    val fsc = ShardFileStatusCache.getFileStatusCache(session)
-
     // segment pruning
     var selected = afterPruning("segment", timePartitionFilters, segmentDirs) {
       pruneSegments
     }
     //    QueryContextFacade.current().record("seg_pruning")
     selected = selected.par.map { e =>
-      val path = new Path(toPath(e.segmentName, e.identifier))
-      val maybeStatuses = fsc.getLeafFiles(path)
-      if (maybeStatuses.isDefined) {
-        SegmentDirectory(e.segmentName, e.identifier, maybeStatuses.get)
-      } else {
-        val statuses = path.getFileSystem(session.sparkContext.hadoopConfiguration).listStatus(path)
-        fsc.putLeafFiles(path, statuses)
-        SegmentDirectory(e.segmentName, e.identifier, statuses)
-      }
-    }.toIterator.toSeq
+      SegmentDirectory(e.segmentName, e.identifier, listLayoutFiles(e.segmentName, e.identifier))
+    }.toIterator.toSeq.filter(_.files.nonEmpty)
     //    QueryContextFacade.current().record("fetch_file_status")
     // shards pruning
     selected = afterPruning("shard", dataFilters, selected) {
       pruneShards
     }
     //    QueryContextFacade.current().record("shard_pruning")
-    val totalFileSize = selected.flatMap(partition => partition.files).map(_.getLen).sum
-    logInfo(s"totalFileSize is ${totalFileSize}")
-    setShufflePartitions(totalFileSize, session)
+    // files pruning
+    if (KylinConfig.getInstanceFromEnv.isFileStatsPruningEnabled) {
+      selected = afterPruning("file", dataFilters, selected) {
+        pruneFiles
+      }
+    }
+    if (KylinConfig.getInstanceFromEnv.isBloomFilterPruningEnabled) {
+      selected = afterPruning("bloom filter", dataFilters, selected) {
+        pruneFilesByBloomFilter
+      }
+    }
+    val selectedFiles = selected.flatMap(partition => partition.files)
+    val totalFileSize = selectedFiles.map(_.getLen).sum
+    val sourceRows = estimateRows(selectedFiles)
+    logInfo(s"totalFileSize is ${totalFileSize}, sourceRows is ${sourceRows}")
+    setShufflePartitions(totalFileSize, sourceRows, session)
     totalSize = totalFileSize
-    //    val sourceRows = selected.map(seg => cubeInstance.getSegment(seg.segmentID).getLayout(layout.getId).getRows).sum
-    //    QueryContextFacade.current().addAndGetSourceScanRows(sourceRows)
+    totalRows = sourceRows
     if (selected.isEmpty) {
       val value = Seq.empty[PartitionDirectory]
       cached.put((partitionFilters, dataFilters), value)
@@ -239,6 +254,84 @@ class FilePruner(
 
   }
 
+  override def bitmapRollups(
+                              relation: LogicalRelation,
+                              filters: Seq[Expression],
+                              column: String): Option[Seq[Path]] = {
+    resolve(relation, session.sessionState.analyzer.resolver)
+    val timeFilters = Option(timePartitionColumn).map(getSpecFilter(filters, _)).getOrElse(Nil)
+    val translated = timeFilters.flatMap(DataSourceStrategy.translateFilter)
+    if (timeFilters.size != filters.size || translated.size != filters.size) {
+      return None
+    }
+
+    val selected = pruneSegments(timeFilters, segmentDirs)
+      .filter(seg => listLayoutFiles(seg.segmentName, seg.identifier).nonEmpty)
+    val covered = selected.forall { seg =>
+      val tsRange = cubeInstance.getSegment(seg.segmentName, SegmentStatusEnum.READY).getTSRange
+      translated.forall(SegFilters(tsRange.startValue, tsRange.endValue, pattern).covers)
+    }
+    val hadoopConf = session.sparkContext.hadoopConfiguration
+    val layoutPaths = selected.map(seg => toPath(seg.segmentName, seg.identifier))
+    if (covered && layoutPaths.forall(BitmapRollup.exists(_, column, hadoopConf))) {
+      Some(layoutPaths.map(BitmapRollup.path(_, column)))
+    } else {
+      None
+    }
+  }
+
+  /**
+   * Files of the layout in a segment, from the manifest written at build time when there is one,
+   * otherwise listed from the file system. Hidden files like the file stats are skipped.
+   */
+  private def listLayoutFiles(segmentName: String, identifier: String): Seq[FileStatus] = {
+    val path = new Path(toPath(segmentName, identifier))
+    val hadoopConf = session.sparkContext.hadoopConfiguration
+    val manifest = if (KylinConfig.getInstanceFromEnv.isFileManifestEnabled) {
+      val segmentId = cubeInstance.getSegment(segmentName, SegmentStatusEnum.READY).getUuid
+      FileManifest.load(path.toString, segmentId, layoutEntity.getId, hadoopConf)
+    } else {
+      None
+    }
+    manifest match {
+      case Some(m) =>
+        m.getFiles.asScala.filter(_.getRows >= 0).foreach { file =>
+          fileRows.put(new Path(path, file.getFileName).toString, file.getRows)
+        }
+        FileManifest.toFileStatuses(path, m)
+      case None =>
+        val fsc = ShardFileStatusCache.getFileStatusCache(session)
+        fsc.getLeafFiles(path).getOrElse {
+          val statuses = try {
+            path.getFileSystem(hadoopConf).listStatus(path).filter(f => f.isFile && FileManifest.isDataFile(f.getPath))
+          } catch {
+            case _: FileNotFoundException =>
+              Array.empty[FileStatus]
+          }
+          fsc.putLeafFiles(path, statuses)
+          statuses
+        }.toSeq
+    }
+  }
+
+  /**
+   * Rows of the files, extrapolated by size when only some files have known rows.
+   */
+  private def estimateRows(files: Seq[FileStatus]): Long = {
+    val known = files.flatMap(f => fileRows.get(f.getPath.toString).map(rows => (f.getLen, rows)))
+    if (known.isEmpty) {
+      -1L
+    } else {
+      val knownBytes = known.map(_._1).sum
+      val knownRows = known.map(_._2).sum
+      if (known.size == files.size || knownBytes == 0) {
+        knownRows
+      } else {
+        (knownRows.toDouble / knownBytes * files.map(_.getLen).sum).toLong
+      }
+    }
+  }
+
   private def afterPruning(pruningType: String, specFilters: Seq[Expression], inputs: Seq[SegmentDirectory])
                           (pruningFunc: (Seq[Expression], Seq[SegmentDirectory]) => Seq[SegmentDirectory]): Seq[SegmentDirectory] = {
     if (specFilters.isEmpty) {
@@ -284,96 +377,184 @@ class FilePruner(
     filteredStatuses
   }
 
-    private def pruneShards(
-      filters: Seq[Expression],
-      segDirs: Seq[SegmentDirectory]): Seq[SegmentDirectory] = {
-      val filteredStatuses = if (layoutEntity.getShardByColumns.size() != 1) {
-        segDirs
-      } else {
-        val normalizedFiltersAndExpr = filters.reduce(expressions.And)
-
-        val pruned = segDirs.map { case SegmentDirectory(segName, segIdentifier, files) =>
-          val segment = cubeInstance.getSegment(segName, SegmentStatusEnum.READY);
-          val segID = segment.getUuid
-          val segmentInfo = ManagerHub.getSegmentInfo(cubeInstance.getConfig, cubeInstance.getId, segID)
-          val spanningTree = new ForestSpanningTree(JavaConversions.asJavaCollection(segmentInfo.toBuildLayouts))
-          //val partitionNumber = spanningTree.getLayoutEntity(layoutEntity.getId).getShardNum
-          val partitionNumber = segment.getCuboidShardNum(layoutEntity.getId).toInt
-          require(partitionNumber > 0, "Shards num with shard by col should greater than 0.")
-
-          val bitSet = getExpressionShards(normalizedFiltersAndExpr, shardByColumn.name, partitionNumber)
-
-          val selected = files.filter(f => {
-            val partitionId = FilePruner.getPartitionId(f.getPath)
-            bitSet.get(partitionId)
-          })
+  private def pruneShards(
+                           filters: Seq[Expression],
+                           segDirs: Seq[SegmentDirectory]): Seq[SegmentDirectory] = {
+    val filteredStatuses = if (shardByColumns.isEmpty || shardByColumns.size != layoutEntity.getShardByColumns.size()) {
+      segDirs
+    } else {
+      val normalizedFiltersAndExpr = filters.reduce(expressions.And)
+      val shardValues = FilePruner.getShardValues(normalizedFiltersAndExpr, shardByColumns)
+
+      val pruned = segDirs.map { case SegmentDirectory(segName, segIdentifier, files) =>
+        val segment = cubeInstance.getSegment(segName, SegmentStatusEnum.READY)
+        val partitionNumber = segment.getCuboidShardNum(layoutEntity.getId).toInt
+        require(partitionNumber > 0, "Shards num with shard by col should greater than 0.")
+
+        val bitSet = FilePruner.selectShards(shardValues, shardByColumns, partitionNumber)
+
+        val selected = files.filter(f => {
+          val partitionId = FilePruner.getPartitionId(f.getPath)
+          bitSet.get(partitionId)
+        })
+        SegmentDirectory(segName, segIdentifier, selected)
+      }
+      logInfo(s"Selected files after shards pruning:" + pruned.flatMap(_.files).map(_.getPath.toString).mkString(";"))
+      pruned
+    }
+    filteredStatuses
+  }
+
+  private def pruneFiles(
+                          filters: Seq[Expression],
+                          segDirs: Seq[SegmentDirectory]): Seq[SegmentDirectory] = {
+    val normalizedFiltersAndExpr = filters.reduce(expressions.And)
+    val hadoopConf = session.sparkContext.hadoopConfiguration
+    val pruned = segDirs.map { case SegmentDirectory(segName, segIdentifier, files) =>
+      FileStatsIndex.load(toPath(segName, segIdentifier), hadoopConf) match {
+        case Some(layoutStats) =>
+          val fileStats = layoutStats.getFiles.asScala.map(f => (f.getFileName, f)).toMap
+          val selected = files.filter { f =>
+            fileStats.get(f.getPath.getName).forall(FileStatsIndex.mightMatch(normalizedFiltersAndExpr, _))
+          }
           SegmentDirectory(segName, segIdentifier, selected)
-        }
-        logInfo(s"Selected files after shards pruning:" + pruned.flatMap(_.files).map(_.getPath.toString).mkString(";"))
-        pruned
+        case None =>
+          SegmentDirectory(segName, segIdentifier, files)
       }
-      filteredStatuses
     }
+    logInfo(s"Selected files after file stats pruning:" + pruned.flatMap(_.files).map(_.getPath.toString).mkString(";"))
+    pruned
+  }
+
+  private def pruneFilesByBloomFilter(
+                                      filters: Seq[Expression],
+                                      segDirs: Seq[SegmentDirectory]): Seq[SegmentDirectory] = {
+    val normalizedFiltersAndExpr = filters.reduce(expressions.And)
+    val hadoopConf = session.sparkContext.hadoopConfiguration
+    val pruned = segDirs.map { case SegmentDirectory(segName, segIdentifier, files) =>
+      BloomFilterIndex.load(toPath(segName, segIdentifier), hadoopConf) match {
+        case Some(layoutFilters) =>
+          val selected = files.filter { f =>
+            layoutFilters.get(f.getPath.getName).forall(BloomFilterIndex.mightMatch(normalizedFiltersAndExpr, _))
+          }
+          SegmentDirectory(segName, segIdentifier, selected)
+        case None =>
+          SegmentDirectory(segName, segIdentifier, files)
+      }
+    }
+    logInfo(s"Selected files after bloom filter pruning:" + pruned.flatMap(_.files).map(_.getPath.toString).mkString(";"))
+    pruned
+  }
 
   override lazy val inputFiles: Array[String] = Array.empty[String]
 
   override lazy val sizeInBytes: Long = {
-    cubeInstance.getSegments.asScala
-      .filter(_.getStatus.equals(SegmentStatusEnum.READY))
-      .map(_.getSizeKB * 1024)
-      .sum
+    readySegments.map(_.getSizeKB * 1024).sum
   }
 
   override def refresh(): Unit = {}
+}
 
-  private def getExpressionShards(
-                                   expr: Expression,
-                                   shardColumnName: String,
-                                   numShards: Int): BitSet = {
-
-    def getShardNumber(attr: Attribute, v: Any): Int = {
-      BucketingUtils.getBucketIdFromValue(attr, numShards, v)
-    }
+object FilePruner {
+  // upper bound of shard key combinations to hash, pruning is given up beyond it
+  val MAX_SHARD_KEYS = 100000
 
-    def getShardSetFromIterable(attr: Attribute, iter: Iterable[Any]): BitSet = {
-      val matchedShards = new BitSet(numShards)
-      iter.map(v => getShardNumber(attr, v))
-        .foreach(shardNum => matchedShards.set(shardNum))
-      matchedShards
+  /**
+   * Possible values of shard by columns, as a disjunction of column name -> values, a column
+   * missing in a disjunct is not constrained by the filters.
+   */
+  private[datasource] def getShardValues(
+                                          expr: Expression,
+                                          shardByColumns: Seq[Attribute]): Seq[Map[String, Set[Any]]] = {
+    val unconstrained = Seq(Map.empty[String, Set[Any]])
+
+    def isShardColumn(a: Attribute, dataType: DataType): Boolean = {
+      // literals of other types would be hashed differently from the stored values
+      a.dataType == dataType && shardByColumns.exists(_.name == a.name)
     }
 
-    def getShardSetFromValue(attr: Attribute, v: Any): BitSet = {
-      val matchedShards = new BitSet(numShards)
-      matchedShards.set(getShardNumber(attr, v))
-      matchedShards
-    }
+    def size(values: Seq[Map[String, Set[Any]]]): Long = values.map(_.values.map(_.size.toLong).sum).sum
 
     expr match {
-      case expressions.Equality(a: Attribute, Literal(v, _)) if a.name == shardColumnName =>
-        getShardSetFromValue(a, v)
+      case expressions.Equality(a: Attribute, Literal(v, dataType)) if isShardColumn(a, dataType) =>
+        Seq(Map(a.name -> Set(v)))
+      case expressions.Equality(Literal(v, dataType), a: Attribute) if isShardColumn(a, dataType) =>
+        Seq(Map(a.name -> Set(v)))
       case expressions.In(a: Attribute, list)
-        if list.forall(_.isInstanceOf[Literal]) && a.name == shardColumnName =>
-        getShardSetFromIterable(a, list.map(e => e.eval(EmptyRow)))
-      case expressions.InSet(a: Attribute, hset)
-        if hset.forall(_.isInstanceOf[Literal]) && a.name == shardColumnName =>
-        getShardSetFromIterable(a, hset.map(e => expressions.Literal(e).eval(EmptyRow)))
-      case expressions.IsNull(a: Attribute) if a.name == shardColumnName =>
-        getShardSetFromValue(a, null)
+        if list.forall(e => e.isInstanceOf[Literal] && isShardColumn(a, e.dataType)) =>
+        Seq(Map(a.name -> list.map(e => e.eval(EmptyRow)).toSet))
+      case expressions.InSet(a: Attribute, hset) if isShardColumn(a, a.dataType) =>
+        Seq(Map(a.name -> hset.toSet[Any]))
+      case expressions.IsNull(a: Attribute) if isShardColumn(a, a.dataType) =>
+        Seq(Map(a.name -> Set[Any](null)))
       case expressions.And(left, right) =>
-        getExpressionShards(left, shardColumnName, numShards) &
-          getExpressionShards(right, shardColumnName, numShards)
+        val leftValues = getShardValues(left, shardByColumns)
+        val rightValues = getShardValues(right, shardByColumns)
+        if (leftValues.size.toLong * rightValues.size > MAX_SHARD_KEYS) {
+          unconstrained
+        } else {
+          for (l <- leftValues; r <- rightValues) yield {
+            (l.keySet ++ r.keySet).map { name =>
+              (l.get(name), r.get(name)) match {
+                case (Some(lv), Some(rv)) => (name, lv.intersect(rv))
+                case (lv, rv) => (name, lv.orElse(rv).get)
+              }
+            }.toMap
+          }
+        }
       case expressions.Or(left, right) =>
-        getExpressionShards(left, shardColumnName, numShards) |
-          getExpressionShards(right, shardColumnName, numShards)
+        val values = getShardValues(left, shardByColumns) ++ getShardValues(right, shardByColumns)
+        if (size(values) > MAX_SHARD_KEYS) unconstrained else values
       case _ =>
-        val matchedShards = new BitSet(numShards)
-        matchedShards.setUntil(numShards)
-        matchedShards
+        unconstrained
     }
   }
-}
 
-object FilePruner {
+  /**
+   * Shards to scan, only a disjunct pinning all shard by columns can be pruned, by hashing every
+   * combination of its values the same way the layout was repartitioned.
+   */
+  private[datasource] def getShardSet(
+                                       shardValues: Seq[Map[String, Set[Any]]],
+                                       shardByColumns: Seq[Attribute],
+                                       numShards: Int): BitSet = {
+    val matchedShards = new BitSet(numShards)
+    val names = shardByColumns.map(_.name)
+
+    def multiply(a: Long, b: Long): Long = if (a == 0 || b == 0) 0 else if (a > Long.MaxValue / b) Long.MaxValue else a * b
+
+    def add(a: Long, b: Long): Long = if (a > Long.MaxValue - b) Long.MaxValue else a + b
+
+    // a column not constrained counts as infinite values
+    val keyCount = shardValues.map { values =>
+      names.map(name => values.get(name).map(_.size.toLong).getOrElse(Long.MaxValue)).foldLeft(1L)(multiply)
+    }.foldLeft(0L)(add)
+
+    if (keyCount > MAX_SHARD_KEYS) {
+      matchedShards.setUntil(numShards)
+    } else if (keyCount > 0) {
+      val shardIdOf = UnsafeProjection.create(
+        HashPartitioning(shardByColumns, numShards).partitionIdExpression :: Nil, shardByColumns)
+      shardValues.filter(values => names.forall(values.contains)).foreach { values =>
+        names.map(values(_).toSeq)
+          .foldLeft(Seq(Seq.empty[Any]))((keys, column) => for (key <- keys; v <- column) yield key :+ v)
+          .foreach(key => matchedShards.set(shardIdOf(InternalRow.fromSeq(key)).getInt(0)))
+      }
+    }
+    matchedShards
+  }
+
+  // shards of a segment to scan, which are counted in the query context with all the shards
+  private[datasource] def selectShards(
+                                        shardValues: Seq[Map[String, Set[Any]]],
+                                        shardByColumns: Seq[Attribute],
+                                        numShards: Int): BitSet = {
+    val shards = getShardSet(shardValues, shardByColumns, numShards)
+    QueryContextFacade.current().addAndGetTotalShards(numShards)
+    QueryContextFacade.current().addAndGetScannedShards(shards.cardinality())
+    shards
+  }
+
   def getPartitionId(p: Path): Int = {
     // path like: part-00001-91f13932-3d5e-4f85-9a56-d1e2b47d0ccb-c000.snappy.parquet
     // we need to get 00001.
@@ -386,19 +567,55 @@ case class SegFilters(start: Long, end: Long, pattern: String) extends Logging {
 
   private def insurance(value: Any)
                        (func: Long => Filter): Filter = {
+    toMillis(value).map(func).getOrElse(Trivial(true))
+  }
+
+  private def toMillis(value: Any): Option[Long] = {
     value match {
       case v: Date =>
         // see SPARK-27546
-        val ts = DateFormat.stringToMillis(v.toString)
-        func(ts)
+        Some(DateFormat.stringToMillis(v.toString))
       case v: String if pattern != null =>
         val format = DateFormat.getDateFormat(pattern)
-        val time = format.parse(v.toString).getTime
-        func(time)
+        Some(format.parse(v.toString).getTime)
       case v: Timestamp =>
-        func(v.getTime)
+        Some(v.getTime)
       case _ =>
-        Trivial(true)
+        None
+    }
+  }
+
+  // the last value of a segment of dates is the day before its end
+  private def lastValueAtMost(value: Any): Option[Long] = {
+    val isDate = value match {
+      case _: Date => true
+      case _: String => pattern != null && !pattern.contains("H")
+      case _ => false
+    }
+    toMillis(value).map(ts => if (isDate) ts + 24 * 3600 * 1000L else ts)
+  }
+
+  /**
+   * Whether all the rows of the segment satisfy the filter, false when it is not known.
+   */
+  def covers(filter: Filter): Boolean = {
+    filter match {
+      case GreaterThan(_, value: Any) =>
+        toMillis(value).exists(_ < start)
+      case GreaterThanOrEqual(_, value: Any) =>
+        toMillis(value).exists(_ <= start)
+      case LessThan(_, value: Any) =>
+        toMillis(value).exists(end <= _)
+      case LessThanOrEqual(_, value: Any) =>
+        lastValueAtMost(value).exists(end <= _)
+      case IsNotNull(_) =>
+        true
+      case And(left: Filter, right: Filter) =>
+        covers(left) && covers(right)
+      case Or(left: Filter, right: Filter) =>
+        covers(left) || covers(right)
+      case _ =>
+        false
     }
   }
 
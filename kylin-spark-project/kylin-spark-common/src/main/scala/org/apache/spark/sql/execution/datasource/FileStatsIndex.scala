@@ -0,0 +1,324 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.util.concurrent.{Callable, TimeUnit}
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.util.{HadoopUtil, JsonUtil}
+import org.apache.kylin.engine.spark.metadata.cube.model.LayoutFileStats
+import org.apache.kylin.engine.spark.metadata.cube.model.LayoutFileStats.{ColumnStats, FileStats}
+import org.apache.parquet.format.converter.ParquetMetadataConverter
+import org.apache.parquet.hadoop.ParquetFileReader
+import org.apache.parquet.hadoop.metadata.{ColumnPath, ParquetMetadata}
+import org.apache.parquet.io.api.Binary
+import org.apache.parquet.schema.{OriginalType, PrimitiveType}
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions
+import org.apache.spark.sql.catalyst.expressions.{Attribute, Expression, Literal}
+import org.apache.spark.sql.catalyst.util.TypeUtils
+import org.apache.spark.sql.execution.datasource.BloomFilterIndex.FileBloomFilters
+import org.apache.spark.sql.execution.datasources.PartitionedFile
+import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.util.SerializableConfiguration
+import org.apache.spark.util.sketch.BloomFilter
+
+import scala.collection.JavaConverters._
+
+/**
+ * Per-file min/max/null-count index of layout parquet files.
+ *
+ * The index is read from the parquet footers once a layout is written, saved as [[LayoutFileStats]] in
+ * the layout directory, and used by [[FilePruner]] to skip files whose value range can not satisfy the
+ * filters.
+ */
+object FileStatsIndex extends Logging {
+
+  private val DEFAULT_MAXSIZE = 10000
+  private val DEFAULT_EXPIRE_TIME = 1
+  private val DEFAULT_TIME_UNIT = TimeUnit.HOURS
+
+  // layout path -> stats, built segments never change so a missing stats file is cached as well
+  private val statsCache: Cache[String, Option[LayoutFileStats]] = CacheBuilder.newBuilder
+    .maximumSize(DEFAULT_MAXSIZE)
+    .expireAfterAccess(DEFAULT_EXPIRE_TIME, DEFAULT_TIME_UNIT)
+    .build
+    .asInstanceOf[Cache[String, Option[LayoutFileStats]]]
+
+  def isSupported(dataType: DataType): Boolean = dataType match {
+    case ByteType | ShortType | IntegerType | LongType | FloatType | DoubleType => true
+    case BooleanType | StringType | DateType | TimestampType => true
+    case _: DecimalType => true
+    case _ => false
+  }
+
+  /**
+   * Collect min/max/null count of the given columns for each file of the written layout from the
+   * row group statistics in the parquet footers, without scanning the data. A column is left out of
+   * the stats of a file when a row group of it has no usable statistics.
+   */
+  def collect(ss: SparkSession, layoutPath: String, layoutId: Long, columnIds: Seq[Int]): LayoutFileStats = {
+    collect(ss, layoutPath, layoutId, columnIds, Nil, 0)._1
+  }
+
+  /**
+   * Collect the file stats, and build bloom filters of the bloom filter columns of each file in the
+   * same task that reads its footer. The task reads only the bloom filter columns of the file, and
+   * the filters are sized by the rows in the footer.
+   */
+  def collect(
+               ss: SparkSession,
+               layoutPath: String,
+               layoutId: Long,
+               columnIds: Seq[Int],
+               bloomColumnIds: Seq[Int],
+               fpp: Double): (LayoutFileStats, Map[String, FileBloomFilters]) = {
+    val hadoopConf = ss.sessionState.newHadoopConf()
+    val files = new Path(layoutPath).getFileSystem(hadoopConf).listStatus(new Path(layoutPath))
+      .filter(f => f.isFile && f.getPath.getName.startsWith("part-"))
+      .map(f => (f.getPath.toString, f.getLen)).toSeq
+    val stats = new LayoutFileStats
+    stats.setLayoutId(layoutId)
+    if (files.isEmpty) {
+      return (stats, Map.empty)
+    }
+
+    val schema = ss.read.parquet(layoutPath).schema
+    val columns = columnIds.map(id => (id, schema(id.toString).dataType)).filter(c => isSupported(c._2))
+    val bloomColumns = bloomColumnIds.map(id => (id, schema(id.toString).dataType))
+      .filter(c => BloomFilterIndex.isSupported(c._2))
+    val bloomTypes = bloomColumns.map(_._2)
+    val readBloomColumns = new ParquetFileFormat().buildReaderWithPartitionValues(
+      sparkSession = ss,
+      dataSchema = schema,
+      partitionSchema = new StructType(),
+      requiredSchema = StructType(bloomColumns.map(c => schema(c._1.toString))),
+      filters = Nil,
+      options = Map.empty,
+      hadoopConf = hadoopConf)
+    val conf = new SerializableConfiguration(hadoopConf)
+
+    // a file is indexed in a task of its own, in parallel
+    val indexes = ss.sparkContext.parallelize(files, files.size).map { case (file, length) =>
+      val path = new Path(file)
+      val footer = ParquetFileReader.readFooter(conf.value, path, ParquetMetadataConverter.NO_FILTER)
+      val rows = footer.getBlocks.asScala.map(_.getRowCount).sum
+      val columnStats = columns.flatMap { case (id, dataType) =>
+        footerStats(footer, id, dataType).map(s => (id, s))
+      }
+      val fileFilters = if (bloomTypes.isEmpty) {
+        Array.empty[BloomFilter]
+      } else {
+        BloomFilterIndex.build(readBloomColumns(PartitionedFile(InternalRow.empty, file, 0, length)),
+          bloomTypes, rows, fpp)
+      }
+      (path.getName, rows, columnStats, fileFilters)
+    }.collect()
+
+    stats.setFiles(indexes.map { case (fileName, rows, columnStats, _) =>
+      val file = new FileStats
+      file.setFileName(fileName)
+      file.setRows(rows)
+      columnStats.foreach { case (id, (min, max, nullCount)) =>
+        file.getColumns.put(id, new ColumnStats(min, max, nullCount))
+      }
+      file
+    }.toList.asJava)
+    val bloomFilters = if (bloomColumns.isEmpty) {
+      Map.empty[String, FileBloomFilters]
+    } else {
+      indexes.map { case (fileName, _, _, fileFilters) => (fileName, bloomColumns.map(_._1).zip(fileFilters).toMap) }
+        .toMap
+    }
+    (stats, bloomFilters)
+  }
+
+  // min/max/null count of a column over all the row groups of a file
+  private def footerStats(footer: ParquetMetadata, id: Int, dataType: DataType): Option[(String, String, Long)] = {
+    val path = ColumnPath.get(id.toString)
+    val ordering = TypeUtils.getInterpretedOrdering(dataType)
+    var min: Any = null
+    var max: Any = null
+    var nullCount = 0L
+    val valid = footer.getBlocks.asScala.forall { block =>
+      block.getColumns.asScala.find(_.getPath == path).exists { chunk =>
+        val stats = chunk.getStatistics
+        if (stats == null || !stats.isNumNullsSet) {
+          false
+        } else if (!stats.hasNonNullValue) {
+          // min/max are dropped by parquet when they can't be trusted, then not all values are null
+          nullCount += stats.getNumNulls
+          stats.getNumNulls == block.getRowCount
+        } else {
+          val lower = toInternal(stats.genericGetMin, chunk.getPrimitiveType, dataType)
+          val upper = toInternal(stats.genericGetMax, chunk.getPrimitiveType, dataType)
+          lower.isDefined && upper.isDefined && {
+            nullCount += stats.getNumNulls
+            if (min == null || ordering.lt(lower.get, min)) min = lower.get
+            if (max == null || ordering.gt(upper.get, max)) max = upper.get
+            true
+          }
+        }
+      }
+    }
+    if (valid) Some((encode(min), encode(max), nullCount)) else None
+  }
+
+  // parquet statistics values in spark's internal representation, None when not comparable with spark's ordering
+  private def toInternal(value: Any, parquetType: PrimitiveType, dataType: DataType): Option[Any] = {
+    (value, dataType) match {
+      case (v: java.lang.Integer, ByteType) => Some(v.byteValue())
+      case (v: java.lang.Integer, ShortType) => Some(v.shortValue())
+      case (v: java.lang.Integer, IntegerType | DateType) => Some(v.intValue())
+      case (v: java.lang.Long, LongType) => Some(v.longValue())
+      case (v: java.lang.Long, TimestampType) => parquetType.getOriginalType match {
+        case OriginalType.TIMESTAMP_MICROS => Some(v.longValue())
+        case OriginalType.TIMESTAMP_MILLIS => Some(v.longValue() * 1000)
+        case _ => None
+      }
+      case (v: java.lang.Float, FloatType) if !v.isNaN => Some(v.floatValue())
+      case (v: java.lang.Double, DoubleType) if !v.isNaN => Some(v.doubleValue())
+      case (v: java.lang.Boolean, BooleanType) => Some(v.booleanValue())
+      case (v: Binary, StringType) => Some(UTF8String.fromBytes(v.getBytes))
+      case (v: java.lang.Integer, t: DecimalType) => Some(Decimal(v.longValue(), t.precision, t.scale))
+      case (v: java.lang.Long, t: DecimalType) => Some(Decimal(v.longValue(), t.precision, t.scale))
+      case _ => None
+    }
+  }
+
+  def save(layoutPath: String, stats: LayoutFileStats): Unit = {
+    val fs = HadoopUtil.getWorkingFileSystem
+    val out = fs.create(new Path(layoutPath, LayoutFileStats.FILE_NAME), true)
+    try {
+      JsonUtil.writeValue(out, stats)
+    } finally {
+      out.close()
+    }
+  }
+
+  def load(layoutPath: String, hadoopConf: Configuration): Option[LayoutFileStats] = {
+    statsCache.get(layoutPath, new Callable[Option[LayoutFileStats]] {
+      override def call(): Option[LayoutFileStats] = {
+        val path = new Path(layoutPath, LayoutFileStats.FILE_NAME)
+        val fs = path.getFileSystem(hadoopConf)
+        if (fs.exists(path)) {
+          val in = fs.open(path)
+          try {
+            Some(JsonUtil.readValue(in, classOf[LayoutFileStats]))
+          } finally {
+            in.close()
+          }
+        } else {
+          None
+        }
+      }
+    })
+  }
+
+  // values are stored in spark's internal representation, so that they can be compared with literals
+  private def encode(value: Any): String = value match {
+    case null => null
+    case v: Decimal => v.toJavaBigDecimal.toPlainString
+    case v => v.toString
+  }
+
+  private[datasource] def decode(value: String, dataType: DataType): Any = dataType match {
+    case ByteType => value.toByte
+    case ShortType => value.toShort
+    case IntegerType | DateType => value.toInt
+    case LongType | TimestampType => value.toLong
+    case FloatType => value.toFloat
+    case DoubleType => value.toDouble
+    case BooleanType => value.toBoolean
+    case StringType => UTF8String.fromString(value)
+    case _: DecimalType => Decimal(new java.math.BigDecimal(value))
+  }
+
+  /**
+   * Whether a file might contain rows satisfying the filter, answers true when not sure.
+   */
+  def mightMatch(filter: Expression, file: FileStats): Boolean = {
+    def stats(a: Attribute): Option[ColumnStats] = {
+      if (isSupported(a.dataType) && a.name.forall(Character.isDigit)) {
+        Option(file.getColumns.get(a.name.toInt))
+      } else {
+        None
+      }
+    }
+
+    // compare the literal with min and max of the column, None when the column is not indexed
+    def range(a: Attribute, v: Any, dataType: DataType)(pred: (Int, Int) => Boolean): Option[Boolean] = {
+      stats(a).filter(_ => dataType == a.dataType).map { s =>
+        if (v == null) {
+          false
+        } else if (s.getMin == null || s.getMax == null) {
+          // all values are null
+          false
+        } else {
+          val ordering = TypeUtils.getInterpretedOrdering(a.dataType)
+          pred(ordering.compare(decode(s.getMin, a.dataType), v), ordering.compare(decode(s.getMax, a.dataType), v))
+        }
+      }
+    }
+
+    val result = filter match {
+      case expressions.EqualTo(a: Attribute, Literal(v, dt)) =>
+        range(a, v, dt)((minCmp, maxCmp) => minCmp <= 0 && maxCmp >= 0)
+      case expressions.EqualTo(Literal(v, dt), a: Attribute) =>
+        range(a, v, dt)((minCmp, maxCmp) => minCmp <= 0 && maxCmp >= 0)
+      case expressions.LessThan(a: Attribute, Literal(v, dt)) =>
+        range(a, v, dt)((minCmp, _) => minCmp < 0)
+      case expressions.LessThan(Literal(v, dt), a: Attribute) =>
+        range(a, v, dt)((_, maxCmp) => maxCmp > 0)
+      case expressions.LessThanOrEqual(a: Attribute, Literal(v, dt)) =>
+        range(a, v, dt)((minCmp, _) => minCmp <= 0)
+      case expressions.LessThanOrEqual(Literal(v, dt), a: Attribute) =>
+        range(a, v, dt)((_, maxCmp) => maxCmp >= 0)
+      case expressions.GreaterThan(a: Attribute, Literal(v, dt)) =>
+        range(a, v, dt)((_, maxCmp) => maxCmp > 0)
+      case expressions.GreaterThan(Literal(v, dt), a: Attribute) =>
+        range(a, v, dt)((minCmp, _) => minCmp < 0)
+      case expressions.GreaterThanOrEqual(a: Attribute, Literal(v, dt)) =>
+        range(a, v, dt)((_, maxCmp) => maxCmp >= 0)
+      case expressions.GreaterThanOrEqual(Literal(v, dt), a: Attribute) =>
+        range(a, v, dt)((minCmp, _) => minCmp <= 0)
+      case expressions.In(a: Attribute, list) if list.forall(_.isInstanceOf[Literal]) =>
+        Some(list.exists(e => mightMatch(expressions.EqualTo(a, e), file)))
+      case expressions.InSet(a: Attribute, hset) =>
+        Some(hset.exists(v => mightMatch(expressions.EqualTo(a, Literal(v, a.dataType)), file)))
+      case expressions.IsNull(a: Attribute) =>
+        stats(a).map(_.getNullCount > 0)
+      case expressions.IsNotNull(a: Attribute) =>
+        stats(a).map(_.getNullCount < file.getRows)
+      case expressions.And(left, right) =>
+        Some(mightMatch(left, file) && mightMatch(right, file))
+      case expressions.Or(left, right) =>
+        Some(mightMatch(left, file) || mightMatch(right, file))
+      case _ =>
+        None
+    }
+    result.getOrElse(true)
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.TimeUnit
+
+import com.google.common.cache.{Cache, CacheBuilder, Weigher}
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.KylinConfig
+import org.apache.kylin.cube.CubeManager
+import org.apache.kylin.metadata.cachesync.Broadcaster
+import org.apache.kylin.metadata.model.SegmentStatusEnum
+import org.apache.parquet.format.converter.ParquetMetadataConverter
+import org.apache.parquet.hadoop.ParquetFileReader
+import org.apache.parquet.hadoop.metadata.ParquetMetadata
+import org.apache.spark.internal.Logging
+
+import scala.collection.JavaConverters._
+
+/**
+ * Parsed footers of layout parquet files, with all row groups, in the driver and the executors.
+ *
+ * Layout files are not rewritten in place once their segment is ready, so footers are cached by path,
+ * along with a version of the file given by the caller, e.g. the last build time of its segment. A
+ * footer cached with another version is read again. On the query server the footers of dropped
+ * segments are invalidated through the [[Broadcaster]], executors leave them to expire.
+ */
+object ParquetFooterCache extends Logging {
+
+  // weighted by column chunks, a few hundred bytes of metadata each
+  private val DEFAULT_MAX_WEIGHT = 200000
+  private val DEFAULT_EXPIRE_TIME = 1
+  private val DEFAULT_TIME_UNIT = TimeUnit.HOURS
+
+  // path -> version and footer
+  // a single segment, so that the footers of a hot layout may take the whole weight
+  private val footerCache: Cache[String, (String, ParquetMetadata)] = CacheBuilder.newBuilder
+    .concurrencyLevel(1)
+    .maximumWeight(DEFAULT_MAX_WEIGHT)
+    .weigher(new Weigher[String, (String, ParquetMetadata)] {
+      override def weigh(key: String, value: (String, ParquetMetadata)): Int = {
+        value._2.getBlocks.asScala.map(_.getColumns.size()).sum + 1
+      }
+    })
+    .expireAfterAccess(DEFAULT_EXPIRE_TIME, DEFAULT_TIME_UNIT)
+    .build
+    .asInstanceOf[Cache[String, (String, ParquetMetadata)]]
+
+  private val listenerRegistered = new AtomicBoolean()
+
+  def get(path: Path, conf: Configuration, version: String): ParquetMetadata = {
+    val key = path.toString
+    val cached = footerCache.getIfPresent(key)
+    if (cached != null && cached._1 == version) {
+      cached._2
+    } else {
+      if (cached != null) {
+        logInfo(s"Read the footer of $path again, its version changed from ${cached._1} to $version")
+      }
+      val footer = ParquetFileReader.readFooter(conf, path, ParquetMetadataConverter.NO_FILTER)
+      footerCache.put(key, (version, footer))
+      footer
+    }
+  }
+
+  def invalidate(predicate: String => Boolean): Unit = {
+    val paths = footerCache.asMap().keySet().asScala.filter(predicate).toList
+    if (paths.nonEmpty) {
+      logInfo(s"Invalidate ${paths.size} cached parquet footers")
+      footerCache.invalidateAll(paths.asJava)
+    }
+  }
+
+  def size: Long = footerCache.size()
+
+  /**
+   * Invalidate the footers of segments that are no longer ready when a cube changes.
+   */
+  def registerListener(config: KylinConfig): Unit = {
+    if (listenerRegistered.compareAndSet(false, true)) {
+      // static listeners run after the cube manager reloaded the cube
+      Broadcaster.getInstance(config).registerStaticListener(new FooterSyncListener(config), "cube")
+    }
+  }
+
+  private class FooterSyncListener(config: KylinConfig) extends Broadcaster.Listener {
+
+    override def onClearAll(broadcaster: Broadcaster): Unit = {
+      footerCache.invalidateAll()
+    }
+
+    override def onEntityChange(broadcaster: Broadcaster, entity: String, event: Broadcaster.Event,
+                                cacheKey: String): Unit = {
+      // see PathManager#getParquetStoragePath, segment directories are named segName_identifier
+      val cubeDir = s"/parquet/$cacheKey/"
+      val cube = CubeManager.getInstance(config).getCube(cacheKey)
+      val retained = if (cube == null || event == Broadcaster.Event.DROP) {
+        Set.empty[String]
+      } else {
+        cube.getSegments.asScala
+          .filter(_.getStatus == SegmentStatusEnum.READY)
+          .map(seg => seg.getName + "_" + seg.getStorageLocationIdentifier)
+          .toSet
+      }
+      invalidate { path =>
+        val i = path.indexOf(cubeDir)
+        i >= 0 && !retained.contains(path.substring(i + cubeDir.length).takeWhile(_ != '/'))
+      }
+    }
+  }
+}
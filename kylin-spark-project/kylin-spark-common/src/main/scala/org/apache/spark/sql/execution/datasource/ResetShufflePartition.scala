@@ -17,24 +17,27 @@
  */
 package org.apache.spark.sql.execution.datasource
 
-import org.apache.kylin.common.{KylinConfig, QueryContext, QueryContextFacade}
+import org.apache.kylin.common.{KylinConfig, QueryContextFacade}
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.SparkSession
 
 trait ResetShufflePartition extends Logging {
 
-  def setShufflePartitions(bytes: Long, sparkSession: SparkSession): Unit = {
-    QueryContextFacade.current().addAndGetSourceScanBytes(bytes)
-    val defaultParallelism = sparkSession.sparkContext.defaultParallelism
+  def setShufflePartitions(bytes: Long, rows: Long, sparkSession: SparkSession): Unit = {
+    val context = QueryContextFacade.current()
+    context.addAndGetSourceScanBytes(bytes)
+    if (rows > 0) {
+      context.addAndGetSourceScanRows(rows)
+    }
     val kapConfig = KylinConfig.getInstanceFromEnv
     val partitionsNum = if (kapConfig.getSparkSqlShufflePartitions != -1) {
       kapConfig.getSparkSqlShufflePartitions
     } else {
-      Math.min(QueryContextFacade.current().getSourceScanBytes / (
-        KylinConfig.getInstanceFromEnv.getQueryPartitionSplitSizeMB * 1024 * 1024 * 2) + 1,
-        defaultParallelism).toInt
+      ScanPartitions.shufflePartitions(kapConfig, context.getSourceScanBytes, context.getSourceScanRows,
+        ScanPartitions.liveCores(sparkSession.sparkContext))
     }
     sparkSession.sessionState.conf.setLocalProperty("spark.sql.shuffle.partitions", partitionsNum.toString)
-    logInfo(s"Set partition to $partitionsNum, total bytes ${QueryContextFacade.current().getSourceScanBytes}")
+    logInfo(s"Set partition to $partitionsNum, total bytes ${context.getSourceScanBytes}, " +
+      s"total rows ${context.getSourceScanRows}")
   }
 }
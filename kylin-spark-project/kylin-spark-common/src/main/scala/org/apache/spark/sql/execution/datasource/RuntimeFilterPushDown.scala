@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.{Dataset, SparkSession, Strategy}
+import org.apache.spark.sql.catalyst.expressions.{Alias, Attribute, Expression, InSet, IsNotNull, Literal, NamedExpression, Predicate, PredicateHelper, UnaryExpression, Unevaluable}
+import org.apache.spark.sql.catalyst.planning.ExtractEquiJoinKeys
+import org.apache.spark.sql.catalyst.plans.{Inner, JoinType, LeftOuter, LeftSemi, RightOuter}
+import org.apache.spark.sql.catalyst.plans.logical.{Aggregate, Distinct, Filter, Join, Limit, LogicalPlan, Project}
+import org.apache.spark.sql.catalyst.rules.Rule
+import org.apache.spark.sql.execution.SparkPlan
+import org.apache.spark.sql.execution.datasources.{HadoopFsRelation, LogicalRelation}
+
+/**
+ * Runtime filters of joins between a file scan and a small, filtered side like a lookup table.
+ *
+ * The optimizer only marks the scan of the other side with a [[RuntimeFilter]] on its column.
+ * Join keys of the filtered side are collected by [[RuntimeFilterStrategy]] when the query is
+ * planned, and replace the mark by an IN set, so that [[FilePruner]] prunes shards and files by
+ * them, and parquet skips row groups, as it does for a literal IN filter in the query.
+ */
+case class RuntimeFilterPushDown(session: SparkSession) extends Rule[LogicalPlan]
+  with PredicateHelper with Logging {
+
+  override def apply(plan: LogicalPlan): LogicalPlan = {
+    val config = KylinConfig.getInstanceFromEnv
+    if (!config.isRuntimeFilterEnabled) {
+      return plan
+    }
+    val maxBuildBytes = config.getRuntimeFilterMaxBuildSizeMB * 1024 * 1024
+    val maxValues = config.getRuntimeFilterMaxValues
+
+    plan transformUp {
+      case join @ ExtractEquiJoinKeys(joinType, leftKeys, rightKeys, _, left, right) =>
+        var newLeft = left
+        var newRight = right
+        if (canFilter(joinType, probeLeft = true)) {
+          newLeft = pushDown(left, leftKeys, right, rightKeys, maxBuildBytes, maxValues)
+        }
+        if (canFilter(joinType, probeLeft = false)) {
+          newRight = pushDown(right, rightKeys, left, leftKeys, maxBuildBytes, maxValues)
+        }
+        if ((newLeft eq left) && (newRight eq right)) {
+          join
+        } else {
+          join.asInstanceOf[Join].copy(left = newLeft, right = newRight)
+        }
+    }
+  }
+
+  // rows of the probe side without a match on the other side must be dropped by the join
+  private def canFilter(joinType: JoinType, probeLeft: Boolean): Boolean = joinType match {
+    case Inner => true
+    case LeftSemi | RightOuter => probeLeft
+    case LeftOuter => !probeLeft
+    case _ => false
+  }
+
+  private def pushDown(
+                        probe: LogicalPlan,
+                        probeKeys: Seq[Expression],
+                        build: LogicalPlan,
+                        buildKeys: Seq[Expression],
+                        maxBuildBytes: Long,
+                        maxValues: Int): LogicalPlan = {
+    val targets = probeKeys.zip(buildKeys).flatMap { case (probeKey, buildKey) =>
+      probeKey match {
+        case a: Attribute =>
+          toScanColumn(probe, a).filter(_._2.dataType == buildKey.dataType).map(t => (t._1, t._2, buildKey))
+        case _ => None
+      }
+    }
+    // only a small side with selective filters of its own is worth running first
+    val deterministic = build.find(_.expressions.exists(!_.deterministic)).isEmpty
+    if (targets.isEmpty || !deterministic || !isSelective(build) || build.stats.sizeInBytes > maxBuildBytes) {
+      return probe
+    }
+
+    targets.foldLeft(probe) { case (plan, (relation, column, buildKey)) =>
+      if (build.stats.sizeInBytes >= relation.stats.sizeInBytes) {
+        plan
+      } else {
+        val values = new RuntimeFilterValues(session, build, buildKey, maxValues)
+        plan transformUp {
+          case r: LogicalRelation if r eq relation => Filter(RuntimeFilter(column, values), r)
+        }
+      }
+    }
+  }
+
+  // not null filters are inferred from the join keys of any side, and runtime filters from the other side
+  private def isSelective(plan: LogicalPlan): Boolean = plan.find {
+    case Filter(condition, _) => splitConjunctivePredicates(condition).exists {
+      case _: IsNotNull | _: RuntimeFilter => false
+      case _ => true
+    }
+    case _ => false
+  }.isDefined
+
+  /**
+   * The file scan and its column the key is read from, following projections, filters and
+   * grouping columns only. None when the scan already has a runtime filter on the column.
+   */
+  private def toScanColumn(plan: LogicalPlan, key: Attribute): Option[(LogicalRelation, Attribute)] = {
+    def passThrough(exprs: Seq[NamedExpression]): Option[Attribute] = exprs.find(_.exprId == key.exprId).collect {
+      case a: Attribute => a
+      case Alias(a: Attribute, _) => a
+    }
+
+    plan match {
+      case Project(projectList, child) =>
+        passThrough(projectList).flatMap(toScanColumn(child, _))
+      case Aggregate(groupings, aggregates, child) =>
+        passThrough(aggregates)
+          .filter(a => groupings.exists(_.semanticEquals(a)))
+          .flatMap(toScanColumn(child, _))
+      case Filter(condition, r: LogicalRelation) if splitConjunctivePredicates(condition).exists {
+        case RuntimeFilter(a: Attribute, _) => a.semanticEquals(key)
+        case _ => false
+      } && r.output.exists(_.semanticEquals(key)) =>
+        None
+      case Filter(_, child) =>
+        toScanColumn(child, key)
+      case r @ LogicalRelation(_: HadoopFsRelation, _, _, _) =>
+        r.output.find(_.semanticEquals(key)).map(a => (r, a))
+      case _ =>
+        None
+    }
+  }
+}
+
+/**
+ * Values of a runtime filter, collected once for all the copies of its expression.
+ */
+class RuntimeFilterValues(session: SparkSession, plan: LogicalPlan, key: Expression, maxValues: Int)
+  extends Logging {
+
+  /**
+   * Distinct non null values of the key on the plan, None when there are more than the max.
+   */
+  lazy val values: Option[Set[Any]] = {
+    val alias = Alias(key, "runtime_filter_key")()
+    val values = Limit(Literal(maxValues + 1),
+      Distinct(Project(Seq(alias), Filter(IsNotNull(key), plan))))
+    val rows = Dataset.ofRows(session, values).queryExecution.executedPlan.executeCollect()
+    if (rows.length > maxValues) {
+      logInfo(s"Give up runtime filter on ${key.sql}, more than $maxValues values")
+      None
+    } else {
+      logInfo(s"Collect ${rows.length} values of runtime filter on ${key.sql}")
+      Some(rows.map(_.get(0, key.dataType)).toSet)
+    }
+  }
+}
+
+/**
+ * Keeps the rows whose column is among the key values of the other side of a join. A mark of the
+ * optimizer which never runs, it is replaced by an IN set or dropped by [[RuntimeFilterStrategy]].
+ */
+case class RuntimeFilter(child: Expression, values: RuntimeFilterValues)
+  extends UnaryExpression with Predicate with Unevaluable {
+
+  override def nullable: Boolean = child.nullable
+
+  override def toString: String = s"runtimefilter($child)"
+
+  def resolve(): Expression = values.values match {
+    case Some(set) => InSet(child, set)
+    case None => Literal.TrueLiteral
+  }
+}
+
+/**
+ * Collects the values of the runtime filters of a query when it is planned, before the scans
+ * they are pushed to, so that optimizing the query or computing its statistics runs no job.
+ */
+object RuntimeFilterStrategy extends Strategy {
+
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = {
+    val hasRuntimeFilter = plan.find(_.expressions.exists(_.find(_.isInstanceOf[RuntimeFilter]).isDefined))
+    if (hasRuntimeFilter.isEmpty) {
+      Nil
+    } else {
+      val resolved = plan transformAllExpressions {
+        case filter: RuntimeFilter => filter.resolve()
+      }
+      planLater(resolved) :: Nil
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.SparkContext
+
+/**
+ * Number and size of scan tasks, from the bytes and rows left after pruning.
+ *
+ * A task reads at most partition-split-size-mb bytes or partition-split-rows rows, so a query
+ * touching a few small files runs as a single task. Queries needing more tasks than the executors
+ * have cores are rounded up to full waves, so that the last wave is not a straggler of tiny tasks.
+ */
+object ScanPartitions {
+
+  /**
+   * Cores of the registered executors, spark.default.parallelism is not set by sparder.
+   */
+  def liveCores(sc: SparkContext): Int = sc.defaultParallelism
+
+  /**
+   * Bytes a task should read, smaller than the split size when rows are densely compressed.
+   *
+   * @param rows rows of the bytes, not positive when unknown
+   */
+  def splitBytes(config: KylinConfig, bytes: Long, rows: Long): Long = {
+    val maxBytes = config.getQueryPartitionSplitSizeMB * 1024L * 1024L
+    val maxRows = config.getQueryPartitionSplitRows
+    if (rows > maxRows && maxRows > 0) {
+      math.max(math.min(maxBytes, (bytes.toDouble / rows * maxRows).toLong), 1L)
+    } else {
+      maxBytes
+    }
+  }
+
+  /**
+   * Tasks needed to scan the bytes, regardless of the available cores.
+   */
+  def scanTasks(config: KylinConfig, bytes: Long, rows: Long): Int = {
+    divideCeil(bytes, splitBytes(config, bytes, rows)).max(1L).min(Int.MaxValue).toInt
+  }
+
+  /**
+   * Max bytes of a scan partition, the tasks are rounded up to full waves of the cores.
+   *
+   * @param minBytes bytes a partition reads at least, e.g. the cost of opening a file, so that the
+   *                 splits of dense layouts are not smaller than their row groups and mostly empty
+   */
+  def maxSplitBytes(config: KylinConfig, bytes: Long, rows: Long, cores: Int, minBytes: Long): Long = {
+    val tasks = divideCeil(bytes, splitBytes(config, bytes, rows).max(minBytes)).max(1L)
+    val waves = if (tasks > cores && cores > 0) divideCeil(tasks, cores) * cores else tasks
+    divideCeil(bytes, waves).max(minBytes).max(1L)
+  }
+
+  /**
+   * Shuffle partitions of the query, aggregated rows are about half the size of the scanned ones.
+   */
+  def shufflePartitions(config: KylinConfig, bytes: Long, rows: Long, cores: Int): Int = {
+    val partitions = divideCeil(bytes, splitBytes(config, bytes, rows) * 2).max(1L)
+    partitions.min(math.max(cores, 1).toLong).toInt
+  }
+
+  private def divideCeil(a: Long, b: Long): Long = (a + b - 1) / b
+}
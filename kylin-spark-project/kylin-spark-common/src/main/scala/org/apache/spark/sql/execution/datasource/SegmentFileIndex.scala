@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import org.apache.spark.sql.catalyst.expressions.Expression
+import org.apache.spark.sql.execution.datasources.{FileIndex, LogicalRelation}
+
+/**
+ * A file index over the segments of a layout. Files of a segment are in the directory of the
+ * segment, or in a sub directory of it, e.g. seg_identifier/layoutId/part-00000.parquet, so the
+ * segment of a row is known from the name of the grandparent directory of its file.
+ */
+trait SegmentFileIndex extends FileIndex {
+
+  /**
+   * Versions of the segments, by the names of their directories. A segment built again has a new
+   * version, so results of the segment are kept as long as the version does not change.
+   */
+  def segmentVersions: Map[String, String]
+
+  /**
+   * Rows of the layout in the segment of the given directory, None when they are not known.
+   */
+  def segmentRows(directoryName: String): Option[Long]
+
+  /**
+   * Directories of the segments left to scan by the given filters on the columns of the relation,
+   * after the segments are pruned by their time ranges.
+   */
+  def prunedSegments(relation: LogicalRelation, filters: Seq[Expression]): Set[String]
+
+  /**
+   * An index of the same layout over the segments in the given directories only.
+   */
+  def withSegments(directoryNames: Set[String]): SegmentFileIndex
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.util
+
+import org.apache.hadoop.fs.FileStatus
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{Ascending, BoundReference, InterpretedOrdering, SortOrder, UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.catalyst.plans.physical.HashPartitioning
+import org.apache.spark.sql.execution.aggregate.{HashAggregateExec, ObjectHashAggregateExec, SortAggregateExec}
+import org.apache.spark.sql.execution.{CollapseCodegenStages, InputAdapter, LogicalRDD, SparkPlan, WholeStageCodegenExec}
+import org.apache.spark.sql.execution.datasources.PartitionedFile
+import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.sql.vectorized.ColumnarBatch
+import org.apache.spark.sql.{DataFrame, Dataset, SparkSession}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Reads the files of a layout from several segments, whose rows are hash partitioned into the same
+ * shards by the shard by columns and sorted in each file. A partition of the result is a shard of all
+ * the segments, whose files are merged in order without a shuffle or a sort, so the result is known to
+ * be hash partitioned by the shard by columns and sorted within partitions, and aggregating it by the
+ * dimensions doesn't shuffle it again.
+ */
+object ShardedLayoutReader extends Logging {
+
+  /**
+   * @param files        the parquet files of the layout in all the segments, the shard of a file is in its name
+   * @param shardColumns the columns the layout is sharded by
+   * @param sortColumns  the columns the files are sorted by
+   */
+  def read(ss: SparkSession,
+           files: util.List[FileStatus],
+           numShards: Int,
+           shardColumns: util.List[Integer],
+           sortColumns: util.Set[Integer]): DataFrame = {
+    val statuses = files.asScala
+    val schema = ss.read.parquet(statuses.head.getPath.toString).schema
+    val readFile = new ParquetFileFormat().buildReaderWithPartitionValues(
+      sparkSession = ss,
+      dataSchema = schema,
+      partitionSchema = new StructType(),
+      requiredSchema = schema,
+      filters = Nil,
+      options = Map.empty,
+      hadoopConf = ss.sessionState.newHadoopConf())
+
+    val shards = statuses.groupBy(f => FilePruner.getPartitionId(f.getPath)).map { case (shard, shardFiles) =>
+      shard -> shardFiles.map(f => PartitionedFile(InternalRow.empty, f.getPath.toUri.toString, 0, f.getLen))
+    }
+    require(shards.keys.forall(_ < numShards), s"Files out of the $numShards shards: ${shards.keys}")
+    logInfo(s"Merge ${statuses.size} files of $numShards shards in order of columns $sortColumns.")
+
+    val ordinals = sortColumns.asScala.map(c => schema.fieldIndex(c.toString)).toSeq
+    val rdd = ss.sparkContext.parallelize(0 until numShards, numShards).mapPartitions { iter =>
+      val ordering = new InterpretedOrdering(
+        ordinals.map(i => SortOrder(BoundReference(i, schema(i).dataType, nullable = true), Ascending)))
+      iter.flatMap { shard =>
+        val sorted = shards.getOrElse(shard, Nil).map(f => toUnsafeRows(readFile(f), schema))
+        new MergedIterator(sorted, ordering)
+      }
+    }
+
+    val output = schema.toAttributes
+    val shardAttributes = shardColumns.asScala.map(c => output(schema.fieldIndex(c.toString)))
+    val sortOrders = ordinals.map(i => SortOrder(output(i), Ascending))
+    Dataset.ofRows(ss, LogicalRDD(output, rdd, HashPartitioning(shardAttributes, numShards), sortOrders)(ss))
+  }
+
+  /**
+   * Plans the aggregation of the merged shards with sort aggregates instead of hash aggregates, which
+   * aggregate the rows in the order they are read and keep it, so that saving the result by shards
+   * doesn't sort it again.
+   *
+   * @return the aggregated dataset sorted by its grouping columns, or null if the input isn't sorted by them
+   */
+  def sortAggregate(ss: SparkSession, aggregated: DataFrame): DataFrame = {
+    var inOrder = true
+    def toSortAggregate(agg: SortAggregateExec, hashAgg: SparkPlan): SparkPlan = {
+      if (SortOrder.orderingSatisfies(agg.child.outputOrdering, agg.requiredChildOrdering.head)) {
+        agg
+      } else {
+        inOrder = false
+        hashAgg
+      }
+    }
+
+    // the codegen stages are collapsed again once the hash aggregates are replaced
+    val plan = aggregated.queryExecution.executedPlan.transformUp {
+      case WholeStageCodegenExec(child) => child
+      case InputAdapter(child) => child
+    }.transformUp {
+      case agg @ HashAggregateExec(distribution, grouping, aggregates, attributes, offset, results, child) =>
+        toSortAggregate(SortAggregateExec(distribution, grouping, aggregates, attributes, offset, results, child), agg)
+      case agg @ ObjectHashAggregateExec(distribution, grouping, aggregates, attributes, offset, results, child) =>
+        toSortAggregate(SortAggregateExec(distribution, grouping, aggregates, attributes, offset, results, child), agg)
+    }
+    if (!inOrder || plan.outputOrdering.isEmpty) {
+      logInfo(s"The aggregation can't keep the order of the merged shards: $plan")
+      return null
+    }
+    val rdd = CollapseCodegenStages(ss.sessionState.conf).apply(plan).execute()
+    Dataset.ofRows(ss, LogicalRDD(plan.output, rdd, plan.outputPartitioning, plan.outputOrdering)(ss))
+  }
+
+  // the vectorized reader returns batches of rows, and the rows of a file are projected into its own row
+  private def toUnsafeRows(rows: Iterator[_], schema: StructType): Iterator[UnsafeRow] = {
+    val projection = UnsafeProjection.create(schema)
+    rows.flatMap {
+      case batch: ColumnarBatch => batch.rowIterator().asScala
+      case row: InternalRow => Iterator.single(row)
+    }.map(row => projection(row))
+  }
+
+  /**
+   * Merges the sorted rows of the files in order, a row is valid until the next row is taken.
+   */
+  private class MergedIterator(files: Seq[Iterator[UnsafeRow]], ordering: Ordering[InternalRow])
+    extends Iterator[InternalRow] {
+
+    private val heads = new mutable.PriorityQueue[(UnsafeRow, Int)]()(
+      Ordering.fromLessThan[(UnsafeRow, Int)]((a, b) => ordering.gt(a._1, b._1)))
+    // the file of the last returned row, advanced on the next call as its row is reused
+    private var last = -1
+
+    files.indices.foreach(advance)
+
+    private def advance(file: Int): Unit = {
+      if (files(file).hasNext) {
+        heads.enqueue((files(file).next(), file))
+      }
+    }
+
+    override def hasNext: Boolean = {
+      if (last >= 0) {
+        advance(last)
+        last = -1
+      }
+      heads.nonEmpty
+    }
+
+    override def next(): InternalRow = {
+      if (!hasNext) {
+        throw new NoSuchElementException
+      }
+      val (row, file) = heads.dequeue()
+      last = file
+      row
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.parquet
+
+import java.net.URI
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.Path
+import org.apache.parquet.filter2.compat.{FilterCompat, RowGroupFilter}
+import org.apache.parquet.filter2.predicate.FilterApi
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.execution.datasource.ParquetFooterCache
+import org.apache.spark.sql.execution.datasources.PartitionedFile
+import org.apache.spark.sql.sources.Filter
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.util.SerializableConfiguration
+
+import scala.collection.JavaConverters._
+
+/**
+ * Parquet format of layouts, which checks each split against the cached footer of its file first.
+ *
+ * The parquet reader parses the footer of the file for every split, only to find out that the
+ * split has no row group, or that the statistics of its row groups refute the filters. Such splits
+ * are skipped here without opening the file. The others are read by [[ParquetFileFormat]], whose
+ * record readers parse the footer themselves and can not be handed a parsed one.
+ *
+ * Footers are cached with the last build time of their segment, so that executors read a footer
+ * again once its segment is built again, instead of using a stale one until it expires.
+ *
+ * @param segmentVersions last build time of the segments of the layout, by segment directory name
+ */
+class KylinParquetFileFormat(segmentVersions: Map[String, String]) extends ParquetFileFormat {
+
+  def this() = this(Map.empty)
+
+  override def buildReaderWithPartitionValues(
+    sparkSession: SparkSession,
+    dataSchema: StructType,
+    partitionSchema: StructType,
+    requiredSchema: StructType,
+    filters: Seq[Filter],
+    options: Map[String, String],
+    hadoopConf: Configuration): PartitionedFile => Iterator[InternalRow] = {
+    val read = super.buildReaderWithPartitionValues(sparkSession, dataSchema, partitionSchema,
+      requiredSchema, filters, options, hadoopConf)
+    val broadcastedHadoopConf =
+      sparkSession.sparkContext.broadcast(new SerializableConfiguration(hadoopConf))
+
+    // same as ParquetFileFormat#buildReaderWithPartitionValues
+    val sqlConf = sparkSession.sessionState.conf
+    val enableParquetFilterPushDown = sqlConf.parquetFilterPushDown
+    val pushDownDate = sqlConf.parquetFilterPushDownDate
+    val pushDownTimestamp = sqlConf.parquetFilterPushDownTimestamp
+    val pushDownDecimal = sqlConf.parquetFilterPushDownDecimal
+    val pushDownStringStartWith = sqlConf.parquetFilterPushDownStringStartWith
+    val pushDownInFilterThreshold = sqlConf.parquetFilterPushDownInFilterThreshold
+    val isCaseSensitive = sqlConf.caseSensitiveAnalysis
+    val versions = segmentVersions
+
+    (file: PartitionedFile) => {
+      val filePath = new Path(new URI(file.filePath))
+      val version = versions.getOrElse(KylinParquetFileFormat.segmentDirectory(filePath), "")
+      val footer = ParquetFooterCache.get(filePath, broadcastedHadoopConf.value.value, version)
+      // row groups of the split, by their midpoint like ParquetMetadataConverter#filterFileMetaDataByMidpoint
+      val blocks = footer.getBlocks.asScala.filter { block =>
+        val midPoint = block.getStartingPos + block.getCompressedSize / 2
+        midPoint >= file.start && midPoint < file.start + file.length
+      }
+      val skipped = blocks.isEmpty || enableParquetFilterPushDown && {
+        val parquetSchema = footer.getFileMetaData.getSchema
+        val parquetFilters = new ParquetFilters(pushDownDate, pushDownTimestamp, pushDownDecimal,
+          pushDownStringStartWith, pushDownInFilterThreshold, isCaseSensitive)
+        filters.flatMap(parquetFilters.createFilter(parquetSchema, _)).reduceOption(FilterApi.and).exists {
+          predicate => RowGroupFilter.filterRowGroups(FilterCompat.get(predicate), blocks.asJava, parquetSchema).isEmpty
+        }
+      }
+
+      if (skipped) {
+        Iterator.empty
+      } else {
+        read(file)
+      }
+    }
+  }
+}
+
+object KylinParquetFileFormat {
+
+  // see PathManager#getParquetStoragePath, files are in segment directory / layout id
+  def segmentDirectory(file: Path): String = {
+    Option(file.getParent).flatMap(layout => Option(layout.getParent)).map(_.getName).getOrElse("")
+  }
+}
@@ -30,7 +30,8 @@ import org.apache.kylin.common.util.HadoopUtil
 import org.apache.kylin.engine.spark.metadata.cube.model.LayoutEntity
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.execution.columnar.InMemoryTableScanExec
-import org.apache.spark.sql.execution.{FileSourceScanExec, SparkPlan}
+import org.apache.spark.sql.execution.exchange.ReusedExchangeExec
+import org.apache.spark.sql.execution.{FileSourceScanExec, LocalTableScanExec, SparkPlan}
 import org.apache.spark.sql.hive.execution.HiveTableScanExec
 
 import scala.collection.JavaConverters._
@@ -59,6 +60,35 @@ object ResourceDetectUtils extends Logging {
     paths
   }
 
+  /**
+   * Paths of the files read by the plan and its subqueries, with the locations of the tables of
+   * the partitions read, as a partition added to a table changes the modification time of the table
+   * location. None if the plan reads anything else than files, e.g. a cached or a jdbc relation.
+   */
+  def getSourcePaths(plan: SparkPlan): Option[Seq[Path]] = {
+    val plans = withSubqueries(plan)
+    val fileBased = plans.flatMap(_.collectLeaves()).forall {
+      case _: FileSourceScanExec | _: HiveTableScanExec | _: LocalTableScanExec | _: ReusedExchangeExec => true
+      case _ => false
+    }
+    if (fileBased) {
+      val tableLocations = plans.flatMap(_.collect {
+        case scan: FileSourceScanExec if scan.tableIdentifier.isDefined =>
+          val catalog = scan.relation.sparkSession.sessionState.catalog
+          new Path(catalog.getTableMetadata(scan.tableIdentifier.get).location)
+        case scan: HiveTableScanExec =>
+          new Path(scan.relation.tableMeta.location)
+      })
+      Some(tableLocations ++ plans.flatMap(getPaths))
+    } else {
+      None
+    }
+  }
+
+  private def withSubqueries(plan: SparkPlan): Seq[SparkPlan] = {
+    plan +: plan.collect { case node => node.subqueries.flatMap(withSubqueries) }.flatten
+  }
+
   @throws[IOException]
   protected def listSourcePath(shareDir: Path): java.util.Map[String, java.util.Map[String, java.util.List[String]]] = {
     val fs = HadoopUtil.getWorkingFileSystem
@@ -20,7 +20,7 @@ package org.apache.spark.sql.udaf
 
 import java.nio.ByteBuffer
 
-import org.apache.kylin.measure.hllc.{HLLCAggregator, HLLCounter}
+import org.apache.kylin.measure.hllc.HLLCounter
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions._
@@ -47,15 +47,19 @@ abstract sealed class BasicApproxCountDistinct(
 
   lazy val buf: ByteBuffer = ByteBuffer.allocate(1024 * 1024)
 
-  override def createAggregationBuffer(): HLLCCounter.State = {
-    val aggregator = new HLLCAggregator(precision)
-    aggregator.aggregate(new HLLCounter(precision))
-    HLLCCounter.State(aggregator)
-  }
+  override def createAggregationBuffer(): HLLCCounter.State = HLLCCounter.State(new HLLCounter(precision))
 
 
   override def merge(buffer: HLLCCounter.State, input: HLLCCounter.State): HLLCCounter.State = {
-    buffer.hllc.aggregate(input.hllc.getState)
+    buffer.hllc.merge(input.hllc)
+    buffer
+  }
+
+  // registers of the serialized counter are merged into the buffer as they are read
+  protected def mergeSerialized(buffer: HLLCCounter.State, bytes: Array[Byte]): HLLCCounter.State = {
+    if (bytes != null && bytes.nonEmpty) {
+      buffer.hllc.mergeRegisters(ByteBuffer.wrap(bytes))
+    }
     buffer
   }
 
@@ -63,7 +67,7 @@ abstract sealed class BasicApproxCountDistinct(
   override def serialize(buffer: HLLCCounter.State): Array[Byte] = {
     try {
       buf.clear()
-      buffer.hllc.getState.writeRegisters(buf)
+      buffer.hllc.writeRegisters(buf)
       val i = buf.position()
       val bytes = buf.array().slice(0, i)
       bytes
@@ -78,14 +82,11 @@ abstract sealed class BasicApproxCountDistinct(
 
   override def deserialize(storageFormat: Array[Byte]): HLLCCounter.State = {
     try {
-      val aggregator = new HLLCAggregator(precision)
       val counter = new HLLCounter(precision)
       if (storageFormat.nonEmpty) {
-        val buffer = ByteBuffer.wrap(storageFormat)
-        counter.readRegisters(buffer)
-        aggregator.aggregate(counter)
+        counter.readRegisters(ByteBuffer.wrap(storageFormat))
       }
-      HLLCCounter.State(aggregator)
+      HLLCCounter.State(counter)
     } catch {
       case throwable: Throwable =>
         throwable.printStackTrace()
@@ -103,7 +104,7 @@ abstract sealed class BasicApproxCountDistinct(
 
 object HLLCCounter {
 
-  case class State(var hllc: HLLCAggregator)
+  case class State(var hllc: HLLCounter)
 
 }
 
@@ -151,9 +152,7 @@ case class ReuseApproxCountDistinct(
   override def dataType: DataType = BinaryType
 
   override def update(buffer: HLLCCounter.State, input: InternalRow): HLLCCounter.State = {
-    val colValue = child.eval(input)
-    buffer.hllc.aggregate(deserialize(colValue.asInstanceOf[Array[Byte]]).hllc.getState)
-    buffer
+    mergeSerialized(buffer, child.eval(input).asInstanceOf[Array[Byte]])
   }
 
   override def eval(buffer: HLLCCounter.State): Any = {
@@ -180,13 +179,11 @@ case class ApproxCountDistinct(
   override def dataType: DataType = LongType
 
   override def update(buffer: HLLCCounter.State, input: InternalRow): HLLCCounter.State = {
-    val colValue = child.eval(input)
-    buffer.hllc.aggregate(deserialize(colValue.asInstanceOf[Array[Byte]]).hllc.getState)
-    buffer
+    mergeSerialized(buffer, child.eval(input).asInstanceOf[Array[Byte]])
   }
 
   override def eval(buffer: HLLCCounter.State): Any = {
-    buffer.hllc.getState.getCountEstimate
+    buffer.hllc.getCountEstimate
   }
 
   override def withNewMutableAggBufferOffset(newMutableAggBufferOffset: Int): ImperativeAggregate =
@@ -63,9 +63,13 @@ class IntersectBitmapCounter() {
     if (_map.size() != filterSize || _map.size() == 0) {
       0
     } else {
-      val bitmap = _map.asScala.values.reduce { (a, b) =>
-        a.and(b)
-        a
+      // the smallest bitmap first, so that the intersection shrinks early and stops once it is empty
+      val bitmaps = _map.asScala.values.toSeq.sortBy(_.getLongCardinality)
+      val bitmap = bitmaps.head
+      bitmaps.tail.foreach { other =>
+        if (!bitmap.isEmpty) {
+          bitmap.and(other)
+        }
       }
       bitmap.getLongCardinality
     }
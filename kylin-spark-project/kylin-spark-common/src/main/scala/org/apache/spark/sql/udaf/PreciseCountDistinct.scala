@@ -44,8 +44,24 @@ sealed abstract class BasicPreciseCountDistinct(
   override def createAggregationBuffer(): Roaring64NavigableMap = new Roaring64NavigableMap()
 
   override def merge(buffer: Roaring64NavigableMap, input: Roaring64NavigableMap): Roaring64NavigableMap = {
-    buffer.or(input)
-    buffer
+    if (buffer.isEmpty) {
+      input
+    } else {
+      buffer.or(input)
+      buffer
+    }
+  }
+
+  // the first bitmap read into an empty buffer becomes the buffer, instead of being copied into it
+  protected def mergeSerialized(buffer: Roaring64NavigableMap, bytes: Array[Byte]): Roaring64NavigableMap = {
+    if (bytes == null || bytes.isEmpty) {
+      buffer
+    } else if (buffer.isEmpty) {
+      deserialize(bytes)
+    } else {
+      buffer.or(deserialize(bytes))
+      buffer
+    }
   }
 
   var array: Array[Byte] = _
@@ -128,9 +144,7 @@ case class ReusePreciseCountDistinct(
   override def dataType: DataType = BinaryType
 
   override def update(buffer: Roaring64NavigableMap, input: InternalRow): Roaring64NavigableMap = {
-    val colValue = child.eval(input)
-    buffer.or(deserialize(colValue.asInstanceOf[Array[Byte]]))
-    buffer
+    mergeSerialized(buffer, child.eval(input).asInstanceOf[Array[Byte]])
   }
 
   override def eval(buffer: Roaring64NavigableMap): Any = {
@@ -156,9 +170,7 @@ case class PreciseCountDistinct(
   override def dataType: DataType = LongType
 
   override def update(buffer: Roaring64NavigableMap, input: InternalRow): Roaring64NavigableMap = {
-    val colValue = child.eval(input)
-    buffer.or(deserialize(colValue.asInstanceOf[Array[Byte]]))
-    buffer
+    mergeSerialized(buffer, child.eval(input).asInstanceOf[Array[Byte]])
   }
 
   override def eval(buffer: Roaring64NavigableMap): Any = {
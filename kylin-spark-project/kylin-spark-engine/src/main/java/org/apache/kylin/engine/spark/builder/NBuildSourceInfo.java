@@ -123,4 +123,8 @@ public class NBuildSourceInfo {
     public void setParentStoragePath(String parentStoragePath) {
         this.parentStoragePath = parentStoragePath;
     }
+
+    public String getParentStoragePath() {
+        return parentStoragePath;
+    }
 }
\ No newline at end of file
@@ -71,7 +71,7 @@ class DFDictionaryBuilder(val dataset: Dataset[Row],
     logInfo(s"Start building global dictionaries V2 for column $columnName.")
 
     val globalDict = new NGlobalDictionaryV2(seg.project, ref.tableAliasName, ref.columnName, seg.kylinconf.getHdfsWorkingDirectory)
-    globalDict.prepareWrite()
+    globalDict.prepareWrite(seg.kylinconf.getGlobalDictV2MaxVersions)
     val broadcastDict = ss.sparkContext.broadcast(globalDict)
 
     ss.sparkContext.setJobDescription("Build dict " + columnName)
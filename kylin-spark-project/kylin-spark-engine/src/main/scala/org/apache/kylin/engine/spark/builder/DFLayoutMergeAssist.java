@@ -18,8 +18,12 @@
 
 package org.apache.kylin.engine.spark.builder;
 
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.kylin.engine.spark.NSparkCubingEngine;
 import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.util.HadoopUtil;
 import org.apache.kylin.engine.spark.metadata.SegmentInfo;
 import org.apache.kylin.engine.spark.metadata.cube.PathManager;
 import org.apache.kylin.engine.spark.metadata.cube.model.LayoutEntity;
@@ -27,9 +31,12 @@ import org.apache.kylin.storage.StorageFactory;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.execution.datasource.FilePruner;
+import org.apache.spark.sql.execution.datasource.ShardedLayoutReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -92,4 +99,45 @@ public class DFLayoutMergeAssist implements Serializable {
 
     }
 
+    /**
+     * Merge the layout of the segments by merging their sorted shards in order, without a shuffle,
+     * which requires the layout to be sharded into the same number of shards in all the segments, and
+     * the merged shards to be within the shard size, as they are saved without a repartition.
+     *
+     * @return the merged dataset, partitioned by the shards, or null if a file is not in the shards or
+     * the merged shards are too large
+     */
+    public Dataset<Row> mergeSortedShards(KylinConfig config, String cubeId, int numShards) throws IOException {
+        FileSystem fs = HadoopUtil.getWorkingFileSystem();
+        List<FileStatus> files = new ArrayList<>();
+        long mergedSize = 0;
+        for (SegmentInfo segment : toMergeSegments) {
+            Path path = new Path(PathManager.getParquetStoragePath(config, cubeId, segment.name(),
+                    segment.identifier(), String.valueOf(layout.getId())));
+            for (FileStatus file : fs.listStatus(path)) {
+                // skip the indexes of the files
+                if (!file.getPath().getName().startsWith("part-")) {
+                    continue;
+                }
+                if (FilePruner.getPartitionId(file.getPath()) >= numShards) {
+                    logger.info("File {} is not in the {} shards of layout {}.", file.getPath(), numShards,
+                            layout.getId());
+                    return null;
+                }
+                files.add(file);
+                mergedSize += file.getLen();
+            }
+        }
+        if (files.isEmpty()) {
+            return null;
+        }
+        if (mergedSize > (long) config.getParquetStorageShardSizeMB() * 1024 * 1024 * numShards) {
+            logger.info("Merged shards of layout {} are {} bytes, larger than {} shards of {} MB.", layout.getId(),
+                    mergedSize, numShards, config.getParquetStorageShardSizeMB());
+            return null;
+        }
+        return ShardedLayoutReader.read(ss, files, numShards, layout.getShardByColumns(),
+                layout.getOrderedDimensions().keySet());
+    }
+
 }
@@ -19,26 +19,42 @@
 package org.apache.kylin.engine.spark.job;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.engine.spark.metadata.SegmentInfo;
 import org.apache.kylin.engine.spark.metadata.cube.model.LayoutEntity;
+import org.apache.kylin.engine.spark.metadata.cube.model.SpanningTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class BuildLayoutWithUpdate {
     protected static final Logger logger = LoggerFactory.getLogger(BuildLayoutWithUpdate.class);
-    private ExecutorService pool = Executors.newCachedThreadPool();
-    private CompletionService<JobResult> completionService = new ExecutorCompletionService<>(pool);
+    private final ExecutorService pool;
+    private final CompletionService<JobResult> completionService;
     private int currentLayoutsNum = 0;
 
+    public BuildLayoutWithUpdate(KylinConfig config) {
+        // layouts more than the parallelism wait in the queue of the pool, idle threads end like a cached pool
+        int parallelism = Math.max(1, config.getSparkEngineBuildLayoutParallelism());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        this.pool = executor;
+        this.completionService = new ExecutorCompletionService<>(pool);
+        logger.info("Build at most {} layouts at the same time.", parallelism);
+    }
+
     public void submit(JobEntity job, KylinConfig config) {
         completionService.submit(new Callable<JobResult>() {
             @Override
@@ -60,22 +76,50 @@ public class BuildLayoutWithUpdate {
     }
 
     public void updateLayout(SegmentInfo seg, KylinConfig config) {
-        for (int i = 0; i < currentLayoutsNum; i++) {
-            try {
-                logger.info("Wait to take job result.");
-                JobResult result = completionService.take().get();
-                logger.info("Take job result successful.");
-                if (result.isFailed()) {
-                    shutDownPool();
-                    throw new RuntimeException(result.getThrowable());
-                }
-                seg.updateLayout(result.layout);
-            } catch (InterruptedException | ExecutionException e) {
+        while (currentLayoutsNum > 0) {
+            takeLayout(seg);
+        }
+    }
+
+    /**
+     * Wait for any of the submitted layouts to be built, and update it to the segment.
+     *
+     * @return the built layout, or null if no layout is being built
+     */
+    public LayoutEntity takeLayout(SegmentInfo seg) {
+        if (currentLayoutsNum == 0) {
+            return null;
+        }
+        try {
+            logger.info("Wait to take job result.");
+            JobResult result = completionService.take().get();
+            logger.info("Take job result successful.");
+            currentLayoutsNum--;
+            if (result.isFailed()) {
                 shutDownPool();
-                throw new RuntimeException(e);
+                throw new RuntimeException(result.getThrowable());
+            }
+            seg.updateLayout(result.layout);
+            return result.layout;
+        } catch (InterruptedException | ExecutionException e) {
+            shutDownPool();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Take the built layouts until no layout is being built, and submit the children each of them made
+     * ready, so that a layout is built as soon as its parent candidates are all built.
+     */
+    public void takeLayoutsOfTree(SegmentInfo seg, SpanningTree st,
+            BiConsumer<LayoutEntity, List<LayoutEntity>> submitChildren) {
+        LayoutEntity built;
+        while ((built = takeLayout(seg)) != null) {
+            Map<LayoutEntity, List<LayoutEntity>> readyChildren = st.decideTheReadyChildren(built, seg);
+            for (Map.Entry<LayoutEntity, List<LayoutEntity>> entry : readyChildren.entrySet()) {
+                submitChildren.accept(entry.getKey(), entry.getValue());
             }
         }
-        currentLayoutsNum = 0;
     }
 
     private void shutDownPool() {
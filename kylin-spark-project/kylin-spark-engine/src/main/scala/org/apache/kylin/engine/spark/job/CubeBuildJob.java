@@ -21,8 +21,6 @@ package org.apache.kylin.engine.spark.job;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -61,6 +59,7 @@ import org.apache.kylin.storage.StorageFactory;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.hive.utils.ResourceDetectUtils;
+import org.apache.spark.storage.StorageLevel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,6 +75,8 @@ public class CubeBuildJob extends SparkApplication {
 
     private CubeManager cubeManager;
     private BuildLayoutWithUpdate buildLayoutWithUpdate;
+    private ParentDatasetCache parentDatasetCache;
+    private List<SiblingAggregation> siblingAggregations = new ArrayList<>();
     private Map<Long, Short> cuboidShardNum = Maps.newHashMap();
     public static void main(String[] args) {
         CubeBuildJob nDataflowBuildJob = new CubeBuildJob();
@@ -87,7 +88,8 @@ public class CubeBuildJob extends SparkApplication {
 
         long start = System.currentTimeMillis();
         logger.info("Start building cube job...");
-        buildLayoutWithUpdate = new BuildLayoutWithUpdate();
+        buildLayoutWithUpdate = new BuildLayoutWithUpdate(config);
+        parentDatasetCache = new ParentDatasetCache(config, ss);
         Set<String> segmentIds = Sets.newHashSet(StringUtils.split(getParam(MetadataConstants.P_SEGMENT_IDS)));
         cubeManager = CubeManager.getInstance(config);
         List<String> persistedFlatTable = new ArrayList<>();
@@ -107,15 +109,14 @@ public class CubeBuildJob extends SparkApplication {
 
                 infos.clearCuboidsNumPerLayer(segId);
 
-                // build cuboids from flat table
+                // build cuboids from flat table and reused layouts together
+                List<NBuildSourceInfo> buildSources = new ArrayList<>(buildFromLayouts.values());
                 if (buildFromFlatTable != null) {
                     collectPersistedTablePath(persistedFlatTable, sourceChooser);
-                    build(Collections.singletonList(buildFromFlatTable), seg, spanningTree);
+                    buildSources.add(0, buildFromFlatTable);
                 }
-
-                // build cuboids from reused layouts
-                if (!buildFromLayouts.isEmpty()) {
-                    build(buildFromLayouts.values(), seg, spanningTree);
+                if (!buildSources.isEmpty()) {
+                    build(buildSources, seg, spanningTree);
                 }
                 infos.recordSpanningTree(segId, spanningTree);
 
@@ -125,6 +126,8 @@ public class CubeBuildJob extends SparkApplication {
             updateSegmentSourceBytesSize(getParam(MetadataConstants.P_CUBE_ID),
                     ResourceDetectUtils.getSegmentSourceSize(shareDir));
         } finally {
+            siblingAggregations.forEach(SiblingAggregation::releaseAll);
+            parentDatasetCache.releaseAll();
             FileSystem fs = HadoopUtil.getWorkingFileSystem();
             for (String viewPath : persistedViewFactTable) {
                 fs.delete(new Path(viewPath), true);
@@ -182,42 +185,66 @@ public class CubeBuildJob extends SparkApplication {
         cubeManager.updateCube(update);
     }
 
+    // build the layouts of the spanning tree, a layout starts as soon as its parent is built,
+    // instead of waiting for all layouts of the parent's layer
     private void build(Collection<NBuildSourceInfo> buildSourceInfos, SegmentInfo seg, SpanningTree st) {
-
-        List<NBuildSourceInfo> theFirstLevelBuildInfos = buildLayer(buildSourceInfos, seg, st);
-        LinkedList<List<NBuildSourceInfo>> queue = new LinkedList<>();
-
-        if (!theFirstLevelBuildInfos.isEmpty()) {
-            queue.offer(theFirstLevelBuildInfos);
+        Map<Long, Integer> layers = Maps.newHashMap();
+        List<Integer> cuboidsNumPerLayer = new ArrayList<>();
+        for (NBuildSourceInfo info : buildSourceInfos) {
+            submitLayouts(info, seg, st, 0, layers, cuboidsNumPerLayer);
         }
 
-        while (!queue.isEmpty()) {
-            List<NBuildSourceInfo> buildInfos = queue.poll();
-            List<NBuildSourceInfo> theNextLayer = buildLayer(buildInfos, seg, st);
-            if (!theNextLayer.isEmpty()) {
-                queue.offer(theNextLayer);
-            }
-        }
+        buildLayoutWithUpdate.takeLayoutsOfTree(seg, st, (parent, children) -> {
+            NBuildSourceInfo info = constructBuildInfo(seg, parent, children);
+            submitLayouts(info, seg, st, layers.get(parent.getId()) + 1, layers, cuboidsNumPerLayer);
+        });
 
+        for (int num : cuboidsNumPerLayer) {
+            infos.recordCuboidsNumPerLayer(seg.id(), num);
+        }
     }
 
-    // build current layer and return the next layer to be built.
-    private List<NBuildSourceInfo> buildLayer(Collection<NBuildSourceInfo> buildSourceInfos, SegmentInfo seg,
-                                              SpanningTree st) {
-        int cuboidsNumInLayer = 0;
+    private void submitLayouts(NBuildSourceInfo info, SegmentInfo seg, SpanningTree st, int layer,
+                               Map<Long, Integer> layers, List<Integer> cuboidsNumPerLayer) {
+        Collection<LayoutEntity> toBuildCuboids = info.getToBuildCuboids();
+        infos.recordParent2Children(info.getLayout(),
+                toBuildCuboids.stream().map(LayoutEntity::getId).collect(Collectors.toList()));
+        Preconditions.checkState(!toBuildCuboids.isEmpty(), "To be built cuboids is empty.");
+        // the parent is scanned once for each batch of the children, and by the children decided later
+        long parentSize = parentDatasetCache.estimateSize(info.getParentDS(), info.getParentStoragePath());
+        List<List<LayoutEntity>> batches = batchSiblings(toBuildCuboids, info.getLayoutId(), parentSize);
+        Dataset<Row> parentDS = parentDatasetCache.acquire(info.getLayoutId(), info.getParentDS(),
+                info.getParentStoragePath(), toLayoutIds(toBuildCuboids), batches.size(),
+                toLayoutIds(st.getUndecidedChildren(info.getLayoutId())));
+        Preconditions.checkNotNull(parentDS, "Parent dataset is null when building.");
+
+        for (List<LayoutEntity> batch : batches) {
+            if (batch.size() == 1) {
+                LayoutEntity index = batch.get(0);
+                buildLayoutWithUpdate.submit(new BuildLayoutWithUpdate.JobEntity() {
+                    @Override
+                    public String getName() {
+                        return "build-index-" + index.getId();
+                    }
 
-        // build current layer
-        List<LayoutEntity> allIndexesInCurrentLayer = new ArrayList<>();
-        for (NBuildSourceInfo info : buildSourceInfos) {
-            Collection<LayoutEntity> toBuildCuboids = info.getToBuildCuboids();
-            infos.recordParent2Children(info.getLayout(),
-                    toBuildCuboids.stream().map(LayoutEntity::getId).collect(Collectors.toList()));
-            cuboidsNumInLayer += toBuildCuboids.size();
-            Preconditions.checkState(!toBuildCuboids.isEmpty(), "To be built cuboids is empty.");
-            Dataset<Row> parentDS = info.getParentDS();
-
-            for (LayoutEntity index : toBuildCuboids) {
-                Preconditions.checkNotNull(parentDS, "Parent dataset is null when building.");
+                    @Override
+                    public LayoutEntity build() throws IOException {
+                        try {
+                            return buildIndex(seg, index, parentDS, st, info.getLayoutId());
+                        } finally {
+                            parentDatasetCache.release(info.getLayoutId());
+                        }
+                    }
+                }, config);
+                layers.put(index.getId(), layer);
+                continue;
+            }
+
+            SiblingAggregation siblings = new SiblingAggregation(ss, info.getLayoutId(), parentDS, batch,
+                    StorageLevel.fromString(config.getSparkStorageLevel()), parentDatasetCache,
+                    parentSize * batch.size());
+            siblingAggregations.add(siblings);
+            for (LayoutEntity index : batch) {
                 buildLayoutWithUpdate.submit(new BuildLayoutWithUpdate.JobEntity() {
                     @Override
                     public String getName() {
@@ -226,42 +253,64 @@ public class CubeBuildJob extends SparkApplication {
 
                     @Override
                     public LayoutEntity build() throws IOException {
-                        return buildIndex(seg, index, parentDS, st, info.getLayoutId());
+                        try {
+                            return buildSibling(seg, index, siblings, info.getLayoutId());
+                        } finally {
+                            siblings.release();
+                        }
                     }
                 }, config);
-                allIndexesInCurrentLayer.add(index);
+                layers.put(index.getId(), layer);
             }
         }
 
-        infos.recordCuboidsNumPerLayer(seg.id(), cuboidsNumInLayer);
-        buildLayoutWithUpdate.updateLayout(seg, config);
+        while (cuboidsNumPerLayer.size() <= layer) {
+            cuboidsNumPerLayer.add(0);
+        }
+        cuboidsNumPerLayer.set(layer, cuboidsNumPerLayer.get(layer) + toBuildCuboids.size());
+    }
 
-        // decided the next layer by current layer's all indexes.
-        st.decideTheNextLayer(allIndexesInCurrentLayer, seg);
-        return constructTheNextLayerBuildInfos(st, seg, allIndexesInCurrentLayer);
+    private List<Long> toLayoutIds(Collection<LayoutEntity> layouts) {
+        return layouts.stream().map(LayoutEntity::getId).collect(Collectors.toList());
     }
 
-    // decided and construct the next layer.
-    private List<NBuildSourceInfo> constructTheNextLayerBuildInfos(SpanningTree st, SegmentInfo seg,
-                                                                   Collection<LayoutEntity> allIndexesInCurrentLayer) {
-
-        List<NBuildSourceInfo> childrenBuildSourceInfos = new ArrayList<>();
-        for (LayoutEntity index : allIndexesInCurrentLayer) {
-            Collection<LayoutEntity> children = st.getChildrenByIndexPlan(index);
-
-            if (!children.isEmpty()) {
-                NBuildSourceInfo theRootLevelBuildInfos = new NBuildSourceInfo();
-                theRootLevelBuildInfos.setSparkSession(ss);
-                String path = PathManager.getParquetStoragePath(config, getParam(MetadataConstants.P_CUBE_NAME), seg.name(), seg.identifier(),
-                        String.valueOf(index.getId()));
-                theRootLevelBuildInfos.setLayoutId(index.getId());
-                theRootLevelBuildInfos.setParentStoragePath(path);
-                theRootLevelBuildInfos.setToBuildCuboids(children);
-                childrenBuildSourceInfos.add(theRootLevelBuildInfos);
+    // the aggregated children with measures are batched to be aggregated together, the others are built one by one.
+    // the aggregated result of a batch is at most the parent size for each of the children, and the children
+    // are built one by one too if it doesn't fit in the budget of the parent cache.
+    private List<List<LayoutEntity>> batchSiblings(Collection<LayoutEntity> toBuildCuboids, long parentId,
+                                                   long parentSize) {
+        int batchSize = config.getSparkEngineSiblingLayoutsAggSize();
+        List<List<LayoutEntity>> batches = new ArrayList<>();
+        List<LayoutEntity> siblings = new ArrayList<>();
+        for (LayoutEntity layout : toBuildCuboids) {
+            if (batchSize <= 1 || layout.isTableIndex() || layout.getOrderedMeasures().isEmpty()) {
+                batches.add(Lists.newArrayList(layout));
+            } else {
+                siblings.add(layout);
             }
         }
-        // return the next to be built layer.
-        return childrenBuildSourceInfos;
+        for (List<LayoutEntity> batch : Lists.partition(siblings, Math.max(1, batchSize))) {
+            if (batch.size() > 1 && parentSize > 0
+                    && parentDatasetCache.reserve("siblings of parent " + parentId, parentSize * batch.size())) {
+                batches.add(batch);
+            } else {
+                batch.forEach(layout -> batches.add(Lists.newArrayList(layout)));
+            }
+        }
+        return batches;
+    }
+
+    // the children read the parent from its storage path.
+    private NBuildSourceInfo constructBuildInfo(SegmentInfo seg, LayoutEntity parent, List<LayoutEntity> children) {
+        NBuildSourceInfo buildInfo = new NBuildSourceInfo();
+        buildInfo.setSparkSession(ss);
+        String path = PathManager.getParquetStoragePath(config, getParam(MetadataConstants.P_CUBE_NAME), seg.name(), seg.identifier(),
+                String.valueOf(parent.getId()));
+        buildInfo.setLayoutId(parent.getId());
+        buildInfo.setLayout(parent);
+        buildInfo.setParentStoragePath(path);
+        buildInfo.setToBuildCuboids(children);
+        return buildInfo;
     }
 
     @Override
@@ -289,10 +338,7 @@ public class CubeBuildJob extends SparkApplication {
 
     private LayoutEntity buildIndex(SegmentInfo seg, LayoutEntity cuboid, Dataset<Row> parent,
                                     SpanningTree spanningTree, long parentId) throws IOException {
-        String parentName = String.valueOf(parentId);
-        if (parentId == ParentSourceChooser.FLAT_TABLE_FLAG()) {
-            parentName = "flat table";
-        }
+        String parentName = getParentName(parentId);
         logger.info("Build index:{}, in segment:{}", cuboid.getId(), seg.id());
         LayoutEntity layoutEntity = cuboid;
         Set<Integer> dimIndexes = cuboid.getOrderedDimensions().keySet();
@@ -323,7 +369,33 @@ public class CubeBuildJob extends SparkApplication {
         return layoutEntity;
     }
 
+    private LayoutEntity buildSibling(SegmentInfo seg, LayoutEntity layout, SiblingAggregation siblings,
+                                      long parentId) throws IOException {
+        logger.info("Build index:{}, in segment:{}, with its siblings", layout.getId(), seg.id());
+        ss.sparkContext().setJobDescription("build " + layout.getId() + " with siblings "
+                + siblings.getLayouts().stream().map(LayoutEntity::getId).collect(Collectors.toList())
+                + " from parent " + getParentName(parentId));
+        Set<Integer> rowKeys = layout.getOrderedDimensions().keySet();
+        Dataset<Row> afterSort = siblings.getLayoutDS(layout)
+                .select(NSparkCubingUtil.getColumns(rowKeys, layout.getOrderedMeasures().keySet()))
+                .sortWithinPartitions(NSparkCubingUtil.getColumns(rowKeys));
+        saveAndUpdateLayout(afterSort, seg, layout, siblings.getMetrics(layout));
+        ss.sparkContext().setJobDescription(null);
+        logger.info("Finished Build index :{}, in segment:{}", layout.getId(), seg.id());
+        return layout;
+    }
+
+    private String getParentName(long parentId) {
+        return parentId == ParentSourceChooser.FLAT_TABLE_FLAG() ? "flat table" : String.valueOf(parentId);
+    }
+
     private void saveAndUpdateLayout(Dataset<Row> dataset, SegmentInfo seg, LayoutEntity layout) throws IOException {
+        saveAndUpdateLayout(dataset, seg, layout, null);
+    }
+
+    // the metrics are collected from the plan of saving the layout unless they are known
+    private void saveAndUpdateLayout(Dataset<Row> dataset, SegmentInfo seg, LayoutEntity layout,
+                                     JobMetrics knownMetrics) throws IOException {
         long layoutId = layout.getId();
 
         // for spark metrics
@@ -339,7 +411,7 @@ public class CubeBuildJob extends SparkApplication {
         logger.info("Cuboids are saved to temp path : " + tempPath);
         storage.saveTo(tempPath, dataset, ss);
 
-        JobMetrics metrics = JobMetricsUtils.collectMetrics(queryExecutionId);
+        JobMetrics metrics = knownMetrics != null ? knownMetrics : JobMetricsUtils.collectMetrics(queryExecutionId);
         long rowCount = metrics.getMetrics(Metrics.CUBOID_ROWS_CNT());
         if (rowCount == -1) {
             infos.recordAbnormalLayouts(layoutId, "'Job metrics seems null, use count() to collect cuboid rows.'");
@@ -353,6 +425,8 @@ public class CubeBuildJob extends SparkApplication {
         ss.sparkContext().setLocalProperty(QueryExecutionCache.N_EXECUTION_ID_KEY(), null);
         QueryExecutionCache.removeQueryExecution(queryExecutionId);
         BuildUtils.fillCuboidInfo(layout, path);
+        BuildUtils.saveFileIndexes(layout, path, config, ss);
+        BuildUtils.saveBitmapRollups(layout, path, config, ss);
     }
 
     @Override
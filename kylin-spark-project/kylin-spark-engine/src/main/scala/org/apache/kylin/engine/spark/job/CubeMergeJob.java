@@ -22,8 +22,11 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
+import org.apache.kylin.common.util.Pair;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeManager;
 import org.apache.kylin.cube.CubeSegment;
@@ -40,6 +43,7 @@ import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.execution.datasource.ShardedLayoutReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +58,7 @@ import org.apache.kylin.engine.spark.utils.JobMetrics;
 import org.apache.kylin.engine.spark.utils.JobMetricsUtils;
 import org.apache.kylin.engine.spark.utils.Metrics;
 import org.apache.kylin.engine.spark.utils.QueryExecutionCache;
+import org.apache.kylin.engine.spark.utils.Repartitioner;
 import scala.collection.JavaConversions;
 
 public class CubeMergeJob extends SparkApplication {
@@ -64,7 +69,7 @@ public class CubeMergeJob extends SparkApplication {
 
     @Override
     protected void doExecute() throws Exception {
-        buildLayoutWithUpdate = new BuildLayoutWithUpdate();
+        buildLayoutWithUpdate = new BuildLayoutWithUpdate(config);
         String cubeId = getParam(MetadataConstants.P_CUBE_ID);
         String newSegmentId = getParam(MetadataConstants.P_SEGMENT_IDS);
         final CubeManager cubeManager = CubeManager.getInstance(config);
@@ -88,18 +93,11 @@ public class CubeMergeJob extends SparkApplication {
         Map<Long, DFLayoutMergeAssist> mergeCuboidsAssist = generateMergeAssist(mergingSegInfos, ss);
         for (DFLayoutMergeAssist assist : mergeCuboidsAssist.values()) {
             SpanningTree spanningTree = new ForestSpanningTree(JavaConversions.asJavaCollection(mergedSegInfo.toBuildLayouts()));
-            Dataset<Row> afterMerge = assist.merge(config, cube.getName());
             LayoutEntity layout = assist.getLayout();
-
-            Dataset<Row> afterSort;
-            if (layout.isTableIndex()) {
-                afterSort = afterMerge.sortWithinPartitions(NSparkCubingUtil.getColumns(layout.getOrderedDimensions().keySet()));
-            } else {
-                Column[] dimsCols = NSparkCubingUtil.getColumns(layout.getOrderedDimensions().keySet());
-                Dataset<Row> afterAgg = CuboidAggregator.agg(ss, afterMerge, layout.getOrderedDimensions().keySet(),
-                        layout.getOrderedMeasures(), spanningTree, false);
-                afterSort = afterAgg.sortWithinPartitions(dimsCols);
-            }
+            Pair<Dataset<Row>, Integer> merged = mergeLayout(assist, spanningTree, cube.getName(),
+                    getShardNumOfMergingSegments(layout));
+            Dataset<Row> afterSort = merged.getFirst();
+            int sortedShards = merged.getSecond();
             buildLayoutWithUpdate.submit(new BuildLayoutWithUpdate.JobEntity() {
                 @Override
                 public String getName() {
@@ -108,12 +106,71 @@ public class CubeMergeJob extends SparkApplication {
 
                 @Override
                 public LayoutEntity build() throws IOException {
-                    return saveAndUpdateCuboid(afterSort, mergedSegInfo, layout, assist);
+                    return saveAndUpdateCuboid(afterSort, mergedSegInfo, layout, assist, sortedShards);
                 }
             }, config);
+        }
+        // the layouts are merged in parallel
+        buildLayoutWithUpdate.updateLayout(mergedSegInfo, config);
+
+        Map<Long, Short> cuboidShardNums = Maps.newHashMap();
+        for (DFLayoutMergeAssist assist : mergeCuboidsAssist.values()) {
+            cuboidShardNums.put(assist.getLayout().getId(), (short) assist.getLayout().getShardNum());
+        }
+        updateCuboidShardNums(cubeId, segmentId, cuboidShardNums);
+    }
+
+    /**
+     * The merged layout to be saved, with the number of its sorted shards to be saved as they are, or -1 if
+     * it's repartitioned after saved. The sorted shards of the segments are merged in order and aggregated
+     * in order, without a shuffle or a sort.
+     */
+    Pair<Dataset<Row>, Integer> mergeLayout(DFLayoutMergeAssist assist, SpanningTree spanningTree, String cubeName,
+                                            int numShards) throws IOException {
+        LayoutEntity layout = assist.getLayout();
+        Dataset<Row> afterMerge = numShards > 0 ? assist.mergeSortedShards(config, cubeName, numShards) : null;
+        int sortedShards = afterMerge != null ? numShards : -1;
+        if (afterMerge == null) {
+            afterMerge = assist.merge(config, cubeName);
+        } else {
+            logger.info("Merge layout {} of {} shards without shuffle.", layout.getId(), numShards);
+        }
+
+        Column[] dimsCols = NSparkCubingUtil.getColumns(layout.getOrderedDimensions().keySet());
+        if (layout.isTableIndex()) {
+            return Pair.newPair(sortedShards > 0 ? afterMerge : afterMerge.sortWithinPartitions(dimsCols),
+                    sortedShards);
+        }
+        Dataset<Row> afterAgg = CuboidAggregator.agg(ss, afterMerge, layout.getOrderedDimensions().keySet(),
+                layout.getOrderedMeasures(), spanningTree, false);
+        Dataset<Row> afterSort = sortedShards > 0 ? ShardedLayoutReader.sortAggregate(ss, afterAgg) : null;
+        if (afterSort == null) {
+            afterSort = afterAgg.sortWithinPartitions(dimsCols);
+        }
+        return Pair.newPair(afterSort, sortedShards);
+    }
 
-            buildLayoutWithUpdate.updateLayout(mergedSegInfo, config);
+    // the number of shards of the layout sharded the same way in all the merging segments, -1 if it's not
+    private int getShardNumOfMergingSegments(LayoutEntity layout) {
+        if (!config.isSparkEngineMergeWithoutShuffleEnabled() || layout.getShardByColumns() == null
+                || layout.getShardByColumns().isEmpty()) {
+            return -1;
         }
+        Set<Short> shardNums = mergingSegments.stream().map(seg -> seg.getCuboidShardNum(layout.getId()))
+                .collect(Collectors.toSet());
+        return shardNums.size() == 1 ? shardNums.iterator().next() : -1;
+    }
+
+    // the shards of the merged segment are used to prune the files when querying and merging it
+    private void updateCuboidShardNums(String cubeId, String segmentId, Map<Long, Short> cuboidShardNums)
+            throws IOException {
+        CubeManager cubeManager = CubeManager.getInstance(config);
+        CubeInstance cubeCopy = cubeManager.getCubeByUuid(cubeId).latestCopyForWrite();
+        CubeUpdate update = new CubeUpdate(cubeCopy);
+        CubeSegment segment = cubeCopy.getSegmentById(segmentId);
+        segment.setCuboidShardNums(cuboidShardNums);
+        update.setToUpdateSegs(segment);
+        cubeManager.updateCube(update);
     }
 
     public static Map<Long, DFLayoutMergeAssist> generateMergeAssist(List<SegmentInfo> mergingSegments,
@@ -143,8 +200,9 @@ public class CubeMergeJob extends SparkApplication {
         return mergeCuboidsAssist;
     }
 
-    private LayoutEntity saveAndUpdateCuboid(Dataset<Row> dataset, SegmentInfo seg, LayoutEntity layout,
-                                             DFLayoutMergeAssist assist) throws IOException {
+    // the sorted shards are saved as they are instead of repartitioned, unless they are -1
+    LayoutEntity saveAndUpdateCuboid(Dataset<Row> dataset, SegmentInfo seg, LayoutEntity layout,
+                                     DFLayoutMergeAssist assist, int sortedShards) throws IOException {
         long layoutId = layout.getId();
         long sourceCount = 0L;
 
@@ -174,13 +232,20 @@ public class CubeMergeJob extends SparkApplication {
         layout.setRows(rowCount);
         layout.setSourceRows(sourceCount);
 
-        int partitionNum = BuildUtils.repartitionIfNeed(layout, storage, path, tempPath, config, ss);
+        int partitionNum = sortedShards;
+        if (sortedShards > 0) {
+            Repartitioner.renameTempPath(tempPath, path);
+        } else {
+            partitionNum = BuildUtils.repartitionIfNeed(layout, storage, path, tempPath, config, ss);
+        }
         layout.setShardNum(partitionNum);
         ss.sparkContext().setLocalProperty(QueryExecutionCache.N_EXECUTION_ID_KEY(), null);
         ss.sparkContext().setJobDescription(null);
         QueryExecutionCache.removeQueryExecution(queryExecutionId);
 
         BuildUtils.fillCuboidInfo(layout, path);
+        BuildUtils.saveFileIndexes(layout, path, config, ss);
+        BuildUtils.saveBitmapRollups(layout, path, config, ss);
 
         return layout;
     }
@@ -27,6 +27,7 @@ import org.apache.kylin.engine.spark.metadata.{ColumnDesc, DTType, FunctionDesc,
 import org.apache.kylin.measure.bitmap.BitmapMeasureType
 import org.apache.kylin.measure.hllc.HLLCMeasureType
 import org.apache.spark.sql.catalyst.expressions.aggregate.AggregateFunction
+import org.apache.spark.sql.execution.DatasetPartitions
 import org.apache.spark.sql.functions.{col, _}
 import org.apache.spark.sql.types.{StringType, _}
 import org.apache.spark.sql.udaf._
@@ -38,6 +39,13 @@ import scala.collection.mutable
 import scala.collection.mutable.ListBuffer
 
 object CuboidAggregator {
+  // columns of the sibling cuboids aggregated together
+  val GROUPING_ID = "__KYLIN_GROUPING_ID"
+  val SOURCE_ROWS = "__KYLIN_SOURCE_ROWS"
+  private val EXPANDED = "__KYLIN_EXPANDED"
+  private val PARTITION_ID = "__KYLIN_PARTITION_ID"
+  private val EXPANDED_PREFIX = "__KYLIN_DIM_"
+
   def agg(ss: SparkSession,
           dataSet: DataFrame,
           dimensions: util.Set[Integer],
@@ -58,10 +66,101 @@ object CuboidAggregator {
         .dropDuplicates()
     }
 
-    val reuseLayout = dataSet.schema.fieldNames
-      .contains(measures.keySet().asScala.head.toString)
+    val reuseLayout = isReuseLayout(dataSet, measures)
+    val agg = aggColumns(dataSet, measures, reuseLayout, isSparkSql)
+
+    val df: DataFrame = if (!dimensions.isEmpty) {
+      dataSet
+        .groupBy(NSparkCubingUtil.getColumns(dimensions): _*)
+        .agg(agg.head, agg.drop(1): _*)
+    } else {
+      dataSet
+        .agg(agg.head, agg.drop(1): _*)
+    }
+
+    // Avoid sum(decimal) add more precision
+    // For example: sum(decimal(19,4)) -> decimal(29,4)  sum(sum(decimal(19,4))) -> decimal(38,4)
+    if (reuseLayout) {
+      val columns = NSparkCubingUtil.getColumns(dimensions) ++ measureColumns(dataSet.schema, measures)
+      df.select(columns: _*)
+    } else {
+      df
+    }
+  }
+
+  /**
+   * Aggregates the dimensions of several sibling cuboids in one scan of their parent, like grouping sets.
+   * Each row of the parent is expanded into a row per cuboid, with the dimensions not in the cuboid
+   * as null, and the rows of the cuboid at index i of the list have GROUPING_ID i in the result.
+   * The measures are those of all the cuboids, and SOURCE_ROWS is the number of the parent rows
+   * aggregated into each result row.
+   */
+  def aggSiblings(ss: SparkSession,
+                  dataSet: DataFrame,
+                  dimensionsList: util.List[util.Set[Integer]],
+                  measures: util.Map[Integer, FunctionDesc],
+                  isSparkSql: Boolean): DataFrame = {
+    require(!measures.isEmpty, "Sibling cuboids without measures are not aggregated together.")
+    val allDimensions = dimensionsList.asScala.flatMap(_.asScala).distinct.sorted
+    val types = dataSet.schema.map(f => f.name -> f.dataType).toMap
+
+    val groupings = dimensionsList.asScala.zipWithIndex.map { case (dimensions, index) =>
+      val keys = allDimensions.map { d =>
+        val key = if (dimensions.contains(d)) col(d.toString) else lit(null).cast(types(d.toString))
+        key.as(EXPANDED_PREFIX + d)
+      }
+      struct(lit(index).as(GROUPING_ID) +: keys: _*)
+    }
+    val expanded = dataSet.withColumn(EXPANDED, explode(array(groupings: _*)))
+
+    val reuseLayout = isReuseLayout(dataSet, measures)
+    val agg = aggColumns(dataSet, measures, reuseLayout, isSparkSql) :+ count(lit(1)).as(SOURCE_ROWS)
+    val keys = (GROUPING_ID +: allDimensions.map(EXPANDED_PREFIX + _)).map(k => col(s"$EXPANDED.$k").as(k))
+    val df = expanded.groupBy(keys: _*).agg(agg.head, agg.drop(1): _*)
 
-    val agg = measures.asScala.map { case(id, measure) =>
+    val measureCols = if (reuseLayout) {
+      measureColumns(dataSet.schema, measures).toSeq
+    } else {
+      measures.keySet().asScala.map(id => col(id.toString)).toSeq
+    }
+    df.select((col(GROUPING_ID) +: allDimensions.map(d => col(EXPANDED_PREFIX + d).as(d.toString))) ++
+      measureCols :+ col(SOURCE_ROWS): _*)
+  }
+
+  /**
+   * Partitions the result of aggSiblings by GROUPING_ID, the rows of the cuboid at index i are in the
+   * partitions from i * partitionsPerCuboid until (i + 1) * partitionsPerCuboid, so that each cuboid
+   * can be read from its own partitions with siblingRows.
+   */
+  def partitionSiblings(ss: SparkSession,
+                        aggregated: DataFrame,
+                        dimensionsList: util.List[util.Set[Integer]],
+                        partitionsPerCuboid: Int): DataFrame = {
+    // rows of a cuboid are spread by the hash of their dimension values, which is the same when a task
+    // is retried, unlike the hash of binary measures
+    val dimensions = dimensionsList.asScala.flatMap(_.asScala).distinct.sorted.map(d => col(d.toString))
+    val spread = if (dimensions.isEmpty) lit(0) else pmod(hash(dimensions: _*), lit(partitionsPerCuboid))
+    val partitionId = col(GROUPING_ID) * partitionsPerCuboid + spread
+    DatasetPartitions.partitionBy(ss, aggregated.withColumn(PARTITION_ID, partitionId), PARTITION_ID,
+      dimensionsList.size() * partitionsPerCuboid)
+  }
+
+  /**
+   * The rows of the cuboid at the index in the result of partitionSiblings, only its own partitions are read.
+   */
+  def siblingRows(ss: SparkSession, partitioned: DataFrame, index: Int, partitionsPerCuboid: Int): DataFrame = {
+    DatasetPartitions.partitions(ss, partitioned, partition => partition / partitionsPerCuboid == index)
+  }
+
+  private def isReuseLayout(dataSet: DataFrame, measures: util.Map[Integer, FunctionDesc]): Boolean = {
+    dataSet.schema.fieldNames.contains(measures.keySet().asScala.head.toString)
+  }
+
+  private def aggColumns(dataSet: DataFrame,
+                         measures: util.Map[Integer, FunctionDesc],
+                         reuseLayout: Boolean,
+                         isSparkSql: Boolean): Seq[Column] = {
+    measures.asScala.map { case(id, measure) =>
       val columns = new mutable.ListBuffer[Column]
 
       if (reuseLayout) {
@@ -112,24 +211,6 @@ object CuboidAggregator {
           max(columns.head).as(id.toString)
       }
     }.toSeq
-
-    val df: DataFrame = if (!dimensions.isEmpty) {
-      dataSet
-        .groupBy(NSparkCubingUtil.getColumns(dimensions): _*)
-        .agg(agg.head, agg.drop(1): _*)
-    } else {
-      dataSet
-        .agg(agg.head, agg.drop(1): _*)
-    }
-
-    // Avoid sum(decimal) add more precision
-    // For example: sum(decimal(19,4)) -> decimal(29,4)  sum(sum(decimal(19,4))) -> decimal(38,4)
-    if (reuseLayout) {
-      val columns = NSparkCubingUtil.getColumns(dimensions) ++ measureColumns(dataSet.schema, measures)
-      df.select(columns: _*)
-    } else {
-      df
-    }
   }
 
   private def getCountDistinctAggregate(columns: ListBuffer[Column],
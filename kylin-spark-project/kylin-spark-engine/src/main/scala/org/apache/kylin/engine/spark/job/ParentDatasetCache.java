@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.job;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.util.HadoopUtil;
+import org.apache.kylin.engine.spark.utils.SparkConfHelper;
+import org.apache.spark.SparkConf;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import scala.math.BigInt;
+
+/**
+ * Caches the parent dataset of a layout with several children to be built, so that the children
+ * don't read and decode the parent from its storage again and again. The children of a parent are
+ * decided one by one as their other parent candidates are built, so a parent is counted with the
+ * children that may still be decided on it, and released when none of them is left to be built.
+ * The cached parents are within a budget of the executor memory, the others are read from storage as before.
+ */
+public class ParentDatasetCache {
+    protected static final Logger logger = LoggerFactory.getLogger(ParentDatasetCache.class);
+
+    // parquet is columnar and compressed, the rows are usually a few times larger when serialized
+    private static final int SERIALIZED_SIZE_RATIO = 3;
+
+    private final StorageLevel storageLevel;
+    private final long budget;
+    private long used = 0;
+    private final Map<Long, CachedParent> cached = Maps.newHashMap();
+
+    public ParentDatasetCache(KylinConfig config, SparkSession ss) {
+        this(config, ss.sparkContext().getConf());
+    }
+
+    ParentDatasetCache(KylinConfig config, SparkConf conf) {
+        long executorMemory = conf.getSizeAsBytes(SparkConfHelper.EXECUTOR_MEMORY, "1g");
+        int executorInstances = conf.getInt(SparkConfHelper.EXECUTOR_INSTANCES, 1);
+        if (conf.getBoolean(SparkConfHelper.DYNAMIC_ALLOCATION_ENABLED, false)) {
+            executorInstances = conf.getInt(SparkConfHelper.DYNAMIC_ALLOCATION_MAX_EXECUTORS, executorInstances);
+        }
+        this.budget = (long) (executorMemory * executorInstances * config.getSparkEngineParentCacheMemoryFraction());
+        this.storageLevel = StorageLevel.fromString(config.getSparkStorageLevel());
+        logger.info("Cache parent datasets of at most {} bytes with storage level {}.", budget,
+                storageLevel.description());
+    }
+
+    /**
+     * Returns the parent dataset for the decided children, which is cached if the parent has several
+     * batches of children to be built or undecided children that may be built from it, and fits in
+     * the budget, or has been cached for other children. Each batch must release it once built.
+     *
+     * @param children the decided children, which won't be built from the other parents any more
+     * @param batchesNum the number of batches the decided children are built in
+     * @param undecidedChildren the children not decided yet that may be built from the parent
+     */
+    public synchronized Dataset<Row> acquire(long parentId, Dataset<Row> parentDS, String parentPath,
+            Collection<Long> children, int batchesNum, Collection<Long> undecidedChildren) {
+        CachedParent parent = cached.get(parentId);
+        if (parent != null) {
+            parent.pendingBatches += batchesNum;
+        } else if (parentPath != null && batchesNum + undecidedChildren.size() >= 2) {
+            parent = cache(parentId, parentDS, parentPath, batchesNum, undecidedChildren);
+        }
+        releaseDecided(children);
+        return parent == null ? parentDS : parent.dataset;
+    }
+
+    public synchronized void release(long parentId) {
+        CachedParent parent = cached.get(parentId);
+        if (parent == null) {
+            return;
+        }
+        parent.pendingBatches--;
+        if (parent.isIdle()) {
+            cached.remove(parentId);
+            unpersist(parentId, parent);
+        }
+    }
+
+    public synchronized void releaseAll() {
+        for (CachedParent parent : cached.values()) {
+            parent.dataset.unpersist(false);
+        }
+        cached.clear();
+        used = 0;
+    }
+
+    private CachedParent cache(long parentId, Dataset<Row> parentDS, String parentPath, int batchesNum,
+            Collection<Long> undecidedChildren) {
+        long size = estimateSize(parentDS, parentPath);
+        if (!reserve("parent " + parentId, size)) {
+            return null;
+        }
+        CachedParent parent = new CachedParent(parentDS.persist(storageLevel), size, batchesNum,
+                Sets.newHashSet(undecidedChildren));
+        cached.put(parentId, parent);
+        logger.info("Cache parent {} for {} batches and {} undecided children.", parentId, batchesNum,
+                undecidedChildren.size());
+        return parent;
+    }
+
+    /**
+     * Reserves the budget for a dataset cached by others, like the aggregated siblings of a parent,
+     * which must be freed once the dataset is unpersisted. Returns false if it doesn't fit in the budget.
+     */
+    public synchronized boolean reserve(String name, long size) {
+        if (size <= 0 || used + size > budget) {
+            logger.info("Skip caching {} of {} bytes, {} of {} bytes are used.", name, size, used, budget);
+            return false;
+        }
+        used += size;
+        logger.info("Reserve {} bytes for {}, {} of {} bytes are used.", size, name, used, budget);
+        return true;
+    }
+
+    public synchronized void free(long size) {
+        used -= size;
+    }
+
+    // the decided children are no longer expected by the other parents, which are released if idle
+    private void releaseDecided(Collection<Long> children) {
+        Iterator<Map.Entry<Long, CachedParent>> iterator = cached.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, CachedParent> entry = iterator.next();
+            CachedParent parent = entry.getValue();
+            parent.undecidedChildren.removeAll(children);
+            if (parent.isIdle()) {
+                iterator.remove();
+                unpersist(entry.getKey(), parent);
+            }
+        }
+    }
+
+    private void unpersist(long parentId, CachedParent parent) {
+        used -= parent.size;
+        parent.dataset.unpersist(false);
+        logger.info("Release cached parent {}, {} of {} bytes are used.", parentId, used, budget);
+    }
+
+    /**
+     * Estimates the serialized size of a dataset, by its storage if it has a path, or else by its plan.
+     * Returns -1 if the size is unknown.
+     */
+    public long estimateSize(Dataset<Row> dataset, String path) {
+        if (path == null) {
+            BigInt size = dataset.queryExecution().optimizedPlan().stats().sizeInBytes();
+            return size.isValidLong() ? size.toLong() : -1;
+        }
+        try {
+            FileSystem fs = HadoopUtil.getWorkingFileSystem();
+            return HadoopUtil.getContentSummary(fs, new Path(path)).getLength() * SERIALIZED_SIZE_RATIO;
+        } catch (IOException e) {
+            logger.warn("Failed to get the size of " + path, e);
+            return -1;
+        }
+    }
+
+    private static class CachedParent {
+        private final Dataset<Row> dataset;
+        private final long size;
+        private int pendingBatches;
+        private final Set<Long> undecidedChildren;
+
+        CachedParent(Dataset<Row> dataset, long size, int pendingBatches, Set<Long> undecidedChildren) {
+            this.dataset = dataset;
+            this.size = size;
+            this.pendingBatches = pendingBatches;
+            this.undecidedChildren = undecidedChildren;
+        }
+
+        boolean isIdle() {
+            return pendingBatches <= 0 && undecidedChildren.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.job;
+
+import static org.apache.spark.sql.functions.count;
+import static org.apache.spark.sql.functions.lit;
+import static org.apache.spark.sql.functions.sum;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
+
+import org.apache.kylin.engine.spark.metadata.FunctionDesc;
+import org.apache.kylin.engine.spark.metadata.cube.model.LayoutEntity;
+import org.apache.kylin.engine.spark.utils.JobMetrics;
+import org.apache.kylin.engine.spark.utils.Metrics;
+import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.SparkSession;
+import org.apache.spark.storage.StorageLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Sibling layouts of a parent aggregated together in one scan of the parent, instead of a scan per
+ * layout. The aggregated result is computed and cached by the first of the layouts to be built, the
+ * others wait for it, and each of them saves its own rows from its own partitions of the cache. The
+ * cache is within the budget reserved from the parent cache, and released when all of the layouts are built.
+ */
+public class SiblingAggregation {
+    protected static final Logger logger = LoggerFactory.getLogger(SiblingAggregation.class);
+
+    private final SparkSession ss;
+    private final long parentId;
+    private final List<LayoutEntity> layouts;
+    private final Dataset<Row> aggregated;
+    private final int partitionsPerLayout;
+    private final ParentDatasetCache parentCache;
+    private final long reservedSize;
+    private final FutureTask<Map<Integer, JobMetrics>> aggregation = new FutureTask<>(this::aggregate);
+    private int pendingLayouts;
+    private boolean released = false;
+
+    /**
+     * @param parentCache the parent is released from it after the aggregation
+     * @param reservedSize the budget reserved from the parent cache, freed once the aggregated result is released
+     */
+    public SiblingAggregation(SparkSession ss, long parentId, Dataset<Row> parentDS, List<LayoutEntity> layouts,
+            StorageLevel storageLevel, ParentDatasetCache parentCache, long reservedSize) {
+        this.ss = ss;
+        this.parentId = parentId;
+        this.layouts = layouts;
+        this.parentCache = parentCache;
+        this.reservedSize = reservedSize;
+        this.pendingLayouts = layouts.size();
+        this.partitionsPerLayout = Math.max(1, ss.sessionState().conf().numShufflePartitions() / layouts.size());
+
+        List<Set<Integer>> dimensionsList = layouts.stream().map(l -> l.getOrderedDimensions().keySet())
+                .collect(Collectors.toList());
+        Map<Integer, FunctionDesc> measures = Maps.newTreeMap();
+        layouts.forEach(l -> measures.putAll(l.getOrderedMeasures()));
+        Dataset<Row> union = CuboidAggregator.aggSiblings(ss, parentDS, dimensionsList, measures, false);
+        this.aggregated = CuboidAggregator.partitionSiblings(ss, union, dimensionsList, partitionsPerLayout)
+                .persist(storageLevel);
+    }
+
+    public List<LayoutEntity> getLayouts() {
+        return layouts;
+    }
+
+    /**
+     * The aggregated rows of the layout, whose rows are known in the metrics.
+     */
+    public Dataset<Row> getLayoutDS(LayoutEntity layout) {
+        awaitAggregation();
+        return CuboidAggregator.siblingRows(ss, aggregated, layouts.indexOf(layout), partitionsPerLayout);
+    }
+
+    public JobMetrics getMetrics(LayoutEntity layout) {
+        JobMetrics layoutMetrics = awaitAggregation().get(layouts.indexOf(layout));
+        if (layoutMetrics == null) {
+            layoutMetrics = new JobMetrics();
+            layoutMetrics.setMetrics(Metrics.CUBOID_ROWS_CNT(), 0);
+            layoutMetrics.setMetrics(Metrics.SOURCE_ROWS_CNT(), 0);
+        }
+        return layoutMetrics;
+    }
+
+    // the first of the layouts aggregates, the others wait for its result
+    private Map<Integer, JobMetrics> awaitAggregation() {
+        aggregation.run();
+        try {
+            return aggregation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted when waiting for the aggregation of parent " + parentId, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to aggregate the siblings from parent " + parentId, e.getCause());
+        }
+    }
+
+    private Map<Integer, JobMetrics> aggregate() {
+        long start = System.currentTimeMillis();
+        Map<Integer, JobMetrics> metrics = Maps.newHashMap();
+        try {
+            // the rows of a layout can't be collected from the plan of saving it, which only scans the cache
+            List<Row> counts = aggregated.groupBy(CuboidAggregator.GROUPING_ID())
+                    .agg(count(lit(1)), sum(CuboidAggregator.SOURCE_ROWS())).collectAsList();
+            for (Row row : counts) {
+                JobMetrics layoutMetrics = new JobMetrics();
+                layoutMetrics.setMetrics(Metrics.CUBOID_ROWS_CNT(), row.getLong(1));
+                layoutMetrics.setMetrics(Metrics.SOURCE_ROWS_CNT(), row.getLong(2));
+                metrics.put(row.getInt(0), layoutMetrics);
+            }
+        } finally {
+            parentCache.release(parentId);
+        }
+        logger.info("Aggregated layouts {} from parent {} together, takes {} ms.",
+                layouts.stream().map(LayoutEntity::getId).collect(Collectors.toList()), parentId,
+                System.currentTimeMillis() - start);
+        return metrics;
+    }
+
+    public synchronized void release() {
+        if (--pendingLayouts == 0) {
+            releaseAll();
+        }
+    }
+
+    public synchronized void releaseAll() {
+        if (released) {
+            return;
+        }
+        released = true;
+        aggregated.unpersist(false);
+        parentCache.free(reservedSize);
+    }
+}
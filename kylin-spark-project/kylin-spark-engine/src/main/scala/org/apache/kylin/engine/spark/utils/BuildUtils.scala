@@ -32,6 +32,7 @@ import org.apache.kylin.engine.spark.metadata.{FunctionDesc, SegmentInfo}
 import org.apache.kylin.measure.bitmap.BitmapMeasureType
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.execution.datasource.{BitmapRollup, BloomFilterIndex, FileManifest, FileStatsIndex}
 
 import scala.collection.JavaConverters._
 
@@ -91,6 +92,61 @@ object BuildUtils extends Logging {
     }
   }
 
+  @throws[IOException]
+  def saveFileIndexes(layout: LayoutEntity, strPath: String, config: KylinConfig, sparkSession: SparkSession): Unit = {
+    if (layout.getFileCount <= 0) {
+      return
+    }
+    var fileRows = Map.empty[String, Long]
+    val bloomColumns = config.getParquetBloomFilterColumns.map(_.toUpperCase(Locale.ROOT)).toSet
+    val bloomColumnIds = layout.getOrderedDimensions.asScala
+      .filter { case (_, column) => bloomColumns.contains(column.identity.toUpperCase(Locale.ROOT)) }
+      .keys.map(_.intValue).toSeq
+    if (config.isParquetFileStatsEnabled || bloomColumnIds.nonEmpty) {
+      val start = System.currentTimeMillis()
+      val dimensions = if (config.isParquetFileStatsEnabled) {
+        layout.getOrderedDimensions.keySet.asScala.map(_.intValue).toSeq
+      } else {
+        Nil
+      }
+      // the stats are read from the footers, and the bloom filters built in the same task of each file
+      val (stats, filters) = FileStatsIndex.collect(sparkSession, strPath, layout.getId, dimensions,
+        bloomColumnIds, config.getParquetBloomFilterFpp)
+      fileRows = stats.getFiles.asScala.map(f => (f.getFileName, f.getRows)).toMap
+      if (config.isParquetFileStatsEnabled) {
+        FileStatsIndex.save(strPath, stats)
+      }
+      if (bloomColumnIds.nonEmpty) {
+        BloomFilterIndex.save(strPath, filters)
+      }
+      logInfo(s"Saved file stats and bloom filters of columns ${bloomColumnIds.mkString(",")} of layout " +
+        s"${layout.getId}, cost ${System.currentTimeMillis() - start} ms.")
+    }
+
+    if (config.isParquetFileManifestEnabled) {
+      val manifest = FileManifest.collect(HadoopUtil.getWorkingFileSystem, strPath, layout.getId, fileRows)
+      FileManifest.save(strPath, manifest)
+      logInfo(s"Saved manifest of ${manifest.getFiles.size()} files of layout ${layout.getId}.")
+    }
+  }
+
+  @throws[IOException]
+  def saveBitmapRollups(layout: LayoutEntity, strPath: String, config: KylinConfig, sparkSession: SparkSession): Unit = {
+    val rollupColumns = config.getBitmapRollupColumns.map(_.toUpperCase(Locale.ROOT)).toSet
+    val columnIds = layout.getOrderedDimensions.asScala
+      .filter { case (_, column) => rollupColumns.contains(column.identity.toUpperCase(Locale.ROOT)) }
+      .keys.map(_.intValue).toSeq
+    val bitmapIds = layout.getOrderedMeasures.asScala
+      .filter { case (_, function) => function.returnType.dataType.equalsIgnoreCase(BitmapMeasureType.DATATYPE_BITMAP) }
+      .keys.map(_.intValue).toSeq
+    if (layout.getFileCount <= 0 || columnIds.isEmpty || bitmapIds.isEmpty) {
+      return
+    }
+    val start = System.currentTimeMillis()
+    BitmapRollup.save(sparkSession, strPath, columnIds, bitmapIds)
+    logInfo(s"Saved bitmap rollups of layout ${layout.getId} to columns ${columnIds.mkString(",")}, " +
+      s"cost ${System.currentTimeMillis() - start} ms.")
+  }
 
   def getCurrentYarnConfiguration: YarnConfiguration = {
     val conf = new YarnConfiguration()
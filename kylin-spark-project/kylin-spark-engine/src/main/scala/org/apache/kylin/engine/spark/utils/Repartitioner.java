@@ -173,18 +173,26 @@ public class Repartitioner {
             long end = System.currentTimeMillis();
             logger.info("Repartition and rewrite ends. Cost: {} ms.", end - start);
         } else {
-            Path goalPath = new Path(path);
-            if (readFileSystem.exists(goalPath)) {
-                logger.info("Path {} is exists, delete it.", goalPath);
-                readFileSystem.delete(goalPath, true);
-            }
-            if (readFileSystem.rename(new Path(tempPath), goalPath)) {
-                logger.info("Rename temp path to target path successfully. Temp path: {}, target path: {}.", tempPath,
-                        path);
-            } else {
-                throw new RuntimeException(String.format(Locale.ROOT,
-                        "Rename temp path to target path wrong. Temp path: %s, target path: %s.", tempPath, path));
-            }
+            renameTempPath(tempPath, path);
+        }
+    }
+
+    /**
+     * Moves the files saved to the temp path to the target path as they are.
+     */
+    public static void renameTempPath(String tempPath, String path) throws IOException {
+        FileSystem fs = HadoopUtil.getWorkingFileSystem();
+        Path goalPath = new Path(path);
+        if (fs.exists(goalPath)) {
+            logger.info("Path {} is exists, delete it.", goalPath);
+            fs.delete(goalPath, true);
+        }
+        if (fs.rename(new Path(tempPath), goalPath)) {
+            logger.info("Rename temp path to target path successfully. Temp path: {}, target path: {}.", tempPath,
+                    path);
+        } else {
+            throw new RuntimeException(String.format(Locale.ROOT,
+                    "Rename temp path to target path wrong. Temp path: %s, target path: %s.", tempPath, path));
         }
     }
 }
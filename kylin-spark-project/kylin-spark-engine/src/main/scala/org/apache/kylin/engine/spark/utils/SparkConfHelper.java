@@ -55,6 +55,8 @@ public class SparkConfHelper {
     public static final String DEFAULT_QUEUE = "spark.yarn.queue";
     public static final String REQUIRED_CORES = "required_cores";
     public static final String EXECUTOR_INSTANCES = "spark.executor.instances";
+    public static final String DYNAMIC_ALLOCATION_ENABLED = "spark.dynamicAllocation.enabled";
+    public static final String DYNAMIC_ALLOCATION_MAX_EXECUTORS = "spark.dynamicAllocation.maxExecutors";
     public static final String EXECUTOR_CORES = "spark.executor.cores";
     public static final String EXECUTOR_MEMORY = "spark.executor.memory";
     public static final String EXECUTOR_OVERHEAD = "spark.executor.memoryOverhead";
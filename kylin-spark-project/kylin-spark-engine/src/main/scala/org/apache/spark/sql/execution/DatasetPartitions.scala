@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import org.apache.spark.HashPartitioner
+import org.apache.spark.rdd.PartitionPruningRDD
+import org.apache.spark.sql.{DataFrame, Dataset, SparkSession}
+
+/**
+ * Places the rows of a dataset in the partitions their partition id column tells, and reads some of
+ * those partitions back. The rows stay internal rows, they aren't converted to external rows and back.
+ */
+object DatasetPartitions {
+
+  /**
+   * @param partitionId the integer column of the partition of a row, from 0 until numPartitions, which
+   *                    is dropped from the result
+   */
+  def partitionBy(ss: SparkSession, df: DataFrame, partitionId: String, numPartitions: Int): DataFrame = {
+    val ordinal = df.schema.fieldIndex(partitionId)
+    // the keys are the partition ids themselves with the hash partitioner
+    val rdd = df.queryExecution.toRdd
+      .map(row => (row.getInt(ordinal), row.copy()))
+      .partitionBy(new HashPartitioner(numPartitions))
+      .values
+    Dataset.ofRows(ss, LogicalRDD(df.queryExecution.analyzed.output, rdd)(ss)).drop(partitionId)
+  }
+
+  /**
+   * The rows of the partitions the filter keeps, the other partitions aren't read.
+   */
+  def partitions(ss: SparkSession, df: DataFrame, filter: Int => Boolean): DataFrame = {
+    val rdd = PartitionPruningRDD.create(df.queryExecution.toRdd, filter)
+    Dataset.ofRows(ss, LogicalRDD(df.queryExecution.analyzed.output, rdd)(ss))
+  }
+}
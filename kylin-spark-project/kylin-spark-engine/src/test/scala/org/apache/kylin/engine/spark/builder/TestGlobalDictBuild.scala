@@ -23,8 +23,9 @@ import java.util.Set
 
 import org.apache.commons.io.FileUtils
 import org.apache.commons.lang3.RandomStringUtils
+import org.apache.hadoop.fs.Path
 import org.apache.kylin.common.KylinConfig
-import org.apache.kylin.common.util.DateFormat
+import org.apache.kylin.common.util.{DateFormat, HadoopUtil}
 import org.apache.kylin.cube.{CubeInstance, CubeManager, CubeSegment}
 import org.apache.kylin.engine.spark.metadata.{ColumnDesc, MetadataConverter, SegmentInfo}
 import org.apache.kylin.job.engine.JobEngineConfig
@@ -32,7 +33,7 @@ import org.apache.kylin.job.impl.threadpool.DefaultScheduler
 import org.apache.kylin.job.lock.MockJobLock
 import org.apache.kylin.metadata.model.SegmentRange.TSRange
 import org.apache.spark.TaskContext
-import org.apache.spark.dict.{NGlobalDictMetaInfo, NGlobalDictionaryV2}
+import org.apache.spark.dict.{NGlobalDictHDFSStore, NGlobalDictMetaInfo, NGlobalDictionaryV2}
 import org.apache.spark.sql.catalyst.encoders.RowEncoder
 import org.apache.spark.sql.common.{LocalMetadata, SharedSparkSession, SparderBaseFunSuite}
 import org.apache.spark.sql.functions.col
@@ -40,7 +41,7 @@ import org.apache.spark.sql.types.{StringType, StructType}
 import org.apache.spark.sql.{Dataset, Row}
 import org.junit.Assert
 
-import scala.collection.JavaConverters.setAsJavaSetConverter
+import scala.collection.JavaConverters._
 import scala.collection.mutable
 
 class TestGlobalDictBuild extends SparderBaseFunSuite with SharedSparkSession with LocalMetadata {
@@ -111,6 +112,49 @@ class TestGlobalDictBuild extends SparderBaseFunSuite with SharedSparkSession wi
     DefaultScheduler.destroyInstance()
   }
 
+  test("global dict builds deltas of the latest version and compacts them") {
+    init()
+    FileUtils.deleteQuietly(new File("/tmp/kylin"))
+    val cubeMgr: CubeManager = CubeManager.getInstance(getTestConfig)
+    val cube: CubeInstance = cubeMgr.getCube(CUBE_NAME)
+    var seg = cube.getLastSegment
+    if (cube.getLastSegment == null) {
+      val range = new TSRange(0L, DateFormat.stringToMillis("2015-01-01"))
+      seg = cubeMgr.appendSegment(cube, range)
+    }
+    val segInfo = MetadataConverter.getSegmentInfo(seg.getCubeInstance, seg.getUuid, seg.getName, seg.getStorageLocationIdentifier)
+    val dictColSet = setAsJavaSetConverter(segInfo.toBuildDictColumns).asJava
+    val col = dictColSet.iterator().next()
+    // the buckets are never resized
+    seg.getConfig.setProperty("kylin.dictionary.globalV2-threshold-bucket-size", "100000")
+    val maxVersions = seg.getConfig.getGlobalDictV2MaxVersions
+    val dictDir = seg.getConfig.getHdfsWorkingDirectory + new NGlobalDictionaryV2(seg.getProject, col.tableName,
+      col.columnName, seg.getConfig.getHdfsWorkingDirectory).getResourceDir
+    HadoopUtil.deletePath(HadoopUtil.getCurrentConfiguration, new Path(dictDir))
+
+    val values = mutable.ArrayBuffer[String]()
+    (1 to maxVersions + 1).foreach { i =>
+      val randomDataSet = generateOriginData(100, 20 + i)
+      values ++= randomDataSet.collect().map(_.getString(0))
+      val meta = buildDict(segInfo, seg, randomDataSet, dictColSet)
+      Assert.assertEquals(values.size, meta.getDictCount)
+
+      val dict = new NGlobalDictionaryV2(seg.getProject, col.tableName, col.columnName,
+        seg.getConfig.getHdfsWorkingDirectory)
+      val store = new NGlobalDictHDFSStore(dictDir)
+      // a full version is written when the latest version is read from max versions
+      Assert.assertEquals((i - 1) % maxVersions + 1, store.getVersionChainLength(store.listAllVersions().last))
+
+      val encoded = (0 until meta.getBucketSize).flatMap { bucketId =>
+        dict.loadBucketDictionary(bucketId).getAbsoluteDictMap.object2LongEntrySet.asScala
+          .map(e => e.getKey -> e.getLongValue)
+      }
+      Assert.assertEquals(values.toSet, encoded.map(_._1).toSet)
+      Assert.assertEquals((1L to values.size).toSet, encoded.map(_._2).toSet)
+    }
+    DefaultScheduler.destroyInstance()
+  }
+
   def buildDict(segInfo: SegmentInfo, seg: CubeSegment, randomDataSet: Dataset[Row], dictColSet: Set[ColumnDesc]): NGlobalDictMetaInfo = {
     val dictionaryBuilder = new DFDictionaryBuilder(randomDataSet, segInfo, randomDataSet.sparkSession, dictColSet)
     val col = dictColSet.iterator().next()
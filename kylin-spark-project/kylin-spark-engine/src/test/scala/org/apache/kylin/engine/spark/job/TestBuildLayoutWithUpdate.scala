@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.job
+
+import java.util.{Properties, List => JList}
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.function.BiConsumer
+
+import org.apache.kylin.common.KylinConfig
+import org.apache.kylin.engine.spark.metadata.{ColumnDesc, FunctionDesc, SegmentInfo}
+import org.apache.kylin.engine.spark.metadata.cube.model.{ForestSpanningTree, LayoutEntity}
+import org.apache.spark.sql.common.SparderBaseFunSuite
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class TestBuildLayoutWithUpdate extends SparderBaseFunSuite {
+
+  private val config = KylinConfig.createKylinConfig(new Properties())
+
+  /**
+   * root (0, 1, 2) -> a (0, 1), b (0, 2) -> c (0), whose parent candidates are a and b
+   */
+  private def layouts(): Seq[LayoutEntity] = {
+    Seq((1L, Seq(0, 1, 2), 100L), (2L, Seq(0, 1), 50L), (3L, Seq(0, 2), 20L), (4L, Seq(0), 10L)).map {
+      case (id, dimensions, rows) =>
+        val layout = LayoutEntity.newLayoutEntity(id)
+        layout.setOrderedDimensions(dimensions.map(d => Integer.valueOf(d) -> (null: ColumnDesc)).toMap.asJava)
+        layout.setOrderedMeasures(Map(Integer.valueOf(100) -> (null: FunctionDesc)).asJava)
+        layout.setRows(rows)
+        layout
+    }
+  }
+
+  private def segment(toBuild: Seq[LayoutEntity]): SegmentInfo = {
+    SegmentInfo("seg", "seg", "seg", "default", config, null, Nil, Nil, Array.empty, Nil, toBuild.toList,
+      mutable.Set(toBuild: _*), Set.empty, Set.empty, null, null)
+  }
+
+  private def ids(decided: java.util.Map[LayoutEntity, JList[LayoutEntity]]): Map[Long, Seq[Long]] = {
+    decided.asScala.map { case (parent, children) => parent.getId -> children.asScala.map(_.getId) }.toMap
+  }
+
+  private def submitChildren(f: (LayoutEntity, Seq[LayoutEntity]) => Unit) = {
+    new BiConsumer[LayoutEntity, JList[LayoutEntity]] {
+      override def accept(parent: LayoutEntity, children: JList[LayoutEntity]): Unit = f(parent, children.asScala)
+    }
+  }
+
+  test("a child of several parent candidates is ready once all of them are built") {
+    val Seq(root, a, b, c) = layouts()
+    val seg = segment(Seq(root, a, b, c))
+    val st = new ForestSpanningTree(Seq(root, a, b, c).asJava)
+
+    seg.updateLayout(root)
+    assert(ids(st.decideTheReadyChildren(root, seg)) == Map(1L -> Seq(2L, 3L)))
+    seg.updateLayout(a)
+    assert(ids(st.decideTheReadyChildren(a, seg)).isEmpty)
+    // the smallest built parent candidate is the parent
+    seg.updateLayout(b)
+    assert(ids(st.decideTheReadyChildren(b, seg)) == Map(3L -> Seq(4L)))
+  }
+
+  test("build a child as soon as its parent candidates are built") {
+    val Seq(root, a, b, c) = layouts()
+    val seg = segment(Seq(root, a, b, c))
+    val st = new ForestSpanningTree(Seq(root, a, b, c).asJava)
+    val events = new ConcurrentLinkedQueue[String]()
+
+    val build = new BuildLayoutWithUpdate(config)
+    def submit(parent: Long, layout: LayoutEntity): Unit = {
+      build.submit(new BuildLayoutWithUpdate.JobEntity {
+        override def getName: String = "build-index-" + layout.getId
+
+        override def build(): LayoutEntity = {
+          events.add(s"$parent->${layout.getId}")
+          layout
+        }
+      }, config)
+    }
+
+    submit(0L, root)
+    build.takeLayoutsOfTree(seg, st, submitChildren((parent, children) => children.foreach(submit(parent.getId, _))))
+    assert(events.asScala.toSet == Set("0->1", "1->2", "1->3", "3->4"))
+    assert(events.asScala.last == "3->4")
+    assert(seg.toBuildLayouts.isEmpty)
+  }
+
+  test("fail the build when a layout fails") {
+    val Seq(root, a, b, c) = layouts()
+    val seg = segment(Seq(root, a, b, c))
+    val st = new ForestSpanningTree(Seq(root, a, b, c).asJava)
+    val built = new ConcurrentLinkedQueue[Long]()
+
+    val build = new BuildLayoutWithUpdate(config)
+    def submit(layout: LayoutEntity): Unit = {
+      build.submit(new BuildLayoutWithUpdate.JobEntity {
+        override def getName: String = "build-index-" + layout.getId
+
+        override def build(): LayoutEntity = {
+          if (layout eq a) {
+            throw new IllegalStateException("failed to build layout 2")
+          }
+          built.add(layout.getId)
+          layout
+        }
+      }, config)
+    }
+
+    submit(root)
+    val e = intercept[RuntimeException] {
+      build.takeLayoutsOfTree(seg, st, submitChildren((_, children) => children.foreach(submit)))
+    }
+    assert(e.getCause.getMessage == "failed to build layout 2")
+    // the child of the failed layout is never built
+    assert(!built.contains(4L))
+    assert(seg.toBuildLayouts.contains(a) && seg.toBuildLayouts.contains(c))
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.job
+
+import com.google.common.collect.Lists
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.KylinConfig
+import org.apache.kylin.common.util.HadoopUtil
+import org.apache.kylin.engine.spark.metadata.cube.PathManager
+import org.apache.kylin.engine.spark.metadata.cube.model.{ForestSpanningTree, LayoutEntity}
+import org.apache.kylin.engine.spark.metadata.{ColumnDesc, DTType, FunctionDesc, SegmentInfo}
+import org.apache.kylin.metadata.MetadataConstants
+import org.apache.spark.sql.SaveMode
+import org.apache.spark.sql.common.{LocalMetadata, SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.SortExec
+import org.apache.spark.sql.execution.exchange.ShuffleExchangeExec
+import org.apache.spark.sql.functions.{col, sum}
+import org.apache.spark.sql.types.{IntegerType, LongType}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class TestCubeMergeJob extends SparderBaseFunSuite with SharedSparkSession with LocalMetadata {
+
+  private val cubeName = "ci_left_join_cube"
+  private val numShards = 4
+
+  private def newLayout(): LayoutEntity = {
+    val price = new ColumnDesc("PRICE", LongType, "FACT", "FACT", 3)
+    val layout = LayoutEntity.newLayoutEntity(1L)
+    layout.setOrderedDimensions(Seq(0, 1).map(d =>
+      Integer.valueOf(d) -> new ColumnDesc(s"DIM$d", IntegerType, "FACT", "FACT", d)).toMap.asJava)
+    layout.setOrderedMeasures(Map(Integer.valueOf(100) ->
+      FunctionDesc("SUM", DTType("bigint", -1, -1), List(price), "SUM")).asJava)
+    layout.setShardByColumns(Lists.newArrayList[Integer](0))
+    layout
+  }
+
+  private def segment(name: String, config: KylinConfig, layout: LayoutEntity): SegmentInfo = {
+    SegmentInfo(name, name, name, "default", config, null, Nil, Nil, Array.empty, Nil, List(layout),
+      mutable.Set(layout), Set.empty, Set.empty, null, null)
+  }
+
+  private def newJob(kylinConfig: KylinConfig): CubeMergeJob = {
+    val job = new CubeMergeJob {
+      ss = spark
+      config = kylinConfig
+      infos = new BuildJobInfos
+    }
+    job.setParam(MetadataConstants.P_CUBE_NAME, cubeName)
+    job
+  }
+
+  // the layout of the segments saved in sorted shards like built
+  private def saveSegments(config: KylinConfig, layout: LayoutEntity): Seq[SegmentInfo] = {
+    Seq(0 until 100, 50 until 300).zipWithIndex.map { case (range, i) =>
+      val seg = segment(s"seg$i", config, layout)
+      val path = PathManager.getParquetStoragePath(config, cubeName, seg.name, seg.identifier, "1")
+      spark.createDataFrame(range.map(r => (r % 7, r % 13, r.toLong))).toDF("0", "1", "100")
+        .groupBy("0", "1").agg(sum("100").as("100"))
+        .repartition(numShards, col("0")).sortWithinPartitions("0", "1")
+        .write.mode(SaveMode.Overwrite).parquet(path)
+      seg
+    }
+  }
+
+  test("merge the sorted shards of a layout in order and save them as they are") {
+    val config = KylinConfig.getInstanceFromEnv
+    val layout = newLayout()
+    val segments = saveSegments(config, layout)
+    val assist = CubeMergeJob.generateMergeAssist(segments.asJava, spark).get(1L)
+    val job = newJob(config)
+
+    val merged = job.mergeLayout(assist, new ForestSpanningTree(Lists.newArrayList(layout)), cubeName, numShards)
+    assert(merged.getSecond == numShards)
+    val plan = merged.getFirst.queryExecution.executedPlan
+    assert(plan.collect { case e: ShuffleExchangeExec => e }.isEmpty)
+    assert(plan.collect { case s: SortExec => s }.isEmpty)
+    val sorted = merged.getFirst.rdd.mapPartitions { rows =>
+      val keys = rows.map(r => (r.getInt(0), r.getInt(1))).toSeq
+      Iterator.single(keys == keys.sorted)
+    }.collect()
+    assert(sorted.forall(identity))
+    val expected = segments.map(seg => spark.read.parquet(
+      PathManager.getParquetStoragePath(config, cubeName, seg.name, seg.identifier, "1")))
+      .reduce(_ union _).groupBy("0", "1").agg(sum("100").as("100"))
+    assert(merged.getFirst.collect().toSet == expected.collect().toSet)
+
+    val mergedSeg = segment("merged", config, layout)
+    job.saveAndUpdateCuboid(merged.getFirst, mergedSeg, layout, assist, merged.getSecond)
+    val path = PathManager.getParquetStoragePath(config, cubeName, mergedSeg.name, mergedSeg.identifier, "1")
+    val fs = HadoopUtil.getWorkingFileSystem
+    assert(!fs.exists(new Path(path + CubeBuildJob.TEMP_DIR_SUFFIX)))
+    assert(fs.listStatus(new Path(path)).count(_.getPath.getName.startsWith("part-")) <= numShards)
+    assert(layout.getShardNum == numShards)
+    assert(spark.read.parquet(path).collect().toSet == expected.collect().toSet)
+  }
+
+  test("repartition the merged layout when its shards are too large") {
+    val config = KylinConfig.createKylinConfig(KylinConfig.getInstanceFromEnv)
+    config.setProperty("kylin.storage.columnar.shard-size-mb", "0")
+    val layout = newLayout()
+    val segments = saveSegments(config, layout)
+    val assist = CubeMergeJob.generateMergeAssist(segments.asJava, spark).get(1L)
+
+    val merged = newJob(config).mergeLayout(assist, new ForestSpanningTree(Lists.newArrayList(layout)), cubeName,
+      numShards)
+    assert(merged.getSecond == -1)
+  }
+}
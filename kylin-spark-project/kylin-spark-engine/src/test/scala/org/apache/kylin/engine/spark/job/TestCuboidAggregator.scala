@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.job
+
+import java.util
+
+import com.google.common.collect.{Lists, Maps, Sets}
+import org.apache.kylin.engine.spark.metadata.{ColumnDesc, DTType, FunctionDesc}
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.functions.col
+import org.apache.spark.sql.types.{BinaryType, IntegerType, LongType, StringType, StructType}
+
+class TestCuboidAggregator extends SparderBaseFunSuite with SharedSparkSession {
+
+  private def measures: util.Map[Integer, FunctionDesc] = {
+    val price = new ColumnDesc("PRICE", LongType, "FACT", "FACT", 3)
+    val map = Maps.newTreeMap[Integer, FunctionDesc]()
+    map.put(100, FunctionDesc("COUNT", DTType("bigint", -1, -1), List(price), "COUNT"))
+    map.put(101, FunctionDesc("SUM", DTType("bigint", -1, -1), List(price), "SUM"))
+    map.put(102, FunctionDesc("MAX", DTType("bigint", -1, -1), List(price), "MAX"))
+    map
+  }
+
+  test("aggregate sibling cuboids in one scan of the parent") {
+    val schema = new StructType().add("0", StringType).add("1", IntegerType).add("2", StringType)
+      .add("3", LongType)
+    val rows = Seq(Row("a", 1, "x", 10L), Row("a", 2, null, 20L), Row("b", 1, "x", null),
+      Row(null, 1, "y", 5L), Row("b", 1, "x", 7L))
+    val parent = spark.createDataFrame(spark.sparkContext.parallelize(rows), schema)
+
+    val dimensionsList: util.List[util.Set[Integer]] = Lists.newArrayList(
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](0, 1)),
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](0)),
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](2)),
+      Sets.newLinkedHashSet[Integer]())
+    val aggregated = CuboidAggregator.aggSiblings(spark, parent, dimensionsList, measures, false)
+    // the measures of a layout are aggregated again from the layout
+    val layout = aggregated.where(col(CuboidAggregator.GROUPING_ID) === 0)
+      .drop(CuboidAggregator.GROUPING_ID, CuboidAggregator.SOURCE_ROWS)
+
+    dimensionsList.toArray.zipWithIndex.foreach { case (d, i) =>
+      val dimensions = d.asInstanceOf[util.Set[Integer]]
+      val columns = NSparkCubingUtil.getColumns(dimensions, measures.keySet())
+      val expected = CuboidAggregator.agg(spark, parent, dimensions, measures, null, false)
+      val actual = aggregated.where(col(CuboidAggregator.GROUPING_ID) === i)
+      assert(actual.select(columns: _*).collect().toSet == expected.select(columns: _*).collect().toSet)
+      assert(actual.select(CuboidAggregator.SOURCE_ROWS).collect().map(_.getLong(0)).sum == rows.size)
+
+      val expectedFromLayout = CuboidAggregator.agg(spark, layout, dimensions, measures, null, false)
+      val actualFromLayout = CuboidAggregator.aggSiblings(spark, layout, dimensionsList, measures, false)
+        .where(col(CuboidAggregator.GROUPING_ID) === i)
+      assert(actualFromLayout.select(columns: _*).collect().toSet ==
+        expectedFromLayout.select(columns: _*).collect().toSet)
+    }
+  }
+
+  test("read each sibling cuboid from its own partitions") {
+    val schema = new StructType().add("0", StringType).add("1", IntegerType).add("2", StringType)
+      .add("3", LongType)
+    val rows = (0 until 50).map(i => Row(s"k${i % 7}", i % 3, s"v${i % 5}", i.toLong))
+    val parent = spark.createDataFrame(spark.sparkContext.parallelize(rows), schema)
+    val dimensionsList: util.List[util.Set[Integer]] = Lists.newArrayList(
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](0, 1)),
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](2)))
+    val aggregated = CuboidAggregator.aggSiblings(spark, parent, dimensionsList, measures, false)
+    val partitioned = CuboidAggregator.partitionSiblings(spark, aggregated, dimensionsList, 3)
+    assert(partitioned.rdd.getNumPartitions == 6)
+
+    (0 until dimensionsList.size()).foreach { i =>
+      val sibling = CuboidAggregator.siblingRows(spark, partitioned, i, 3)
+      assert(sibling.rdd.getNumPartitions == 3)
+      assert(sibling.collect().toSet == aggregated.where(col(CuboidAggregator.GROUPING_ID) === i).collect().toSet)
+    }
+  }
+
+  test("place the rows of sibling cuboids the same way each time they are computed") {
+    val schema = new StructType().add("0", StringType).add("1", IntegerType).add("2", StringType)
+      .add("3", LongType)
+    val rows = (0 until 50).map(i => Row(s"k${i % 7}", i % 3, s"v${i % 5}", i.toLong))
+    val parent = spark.createDataFrame(spark.sparkContext.parallelize(rows), schema)
+    val dimensionsList: util.List[util.Set[Integer]] = Lists.newArrayList(
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](0, 1)),
+      Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](2)))
+    // binary measures, like bitmaps, are new arrays each time the rows are computed
+    val aggregated = CuboidAggregator.aggSiblings(spark, parent, dimensionsList, measures, false)
+      .withColumn("200", col("0").cast(BinaryType))
+    assert(CuboidAggregator.partitionSiblings(spark, aggregated, dimensionsList, 3).columns
+      .sameElements(aggregated.columns))
+
+    // partitioned again, so that the aggregated rows are computed again
+    def placement: Set[(Int, String)] = CuboidAggregator.partitionSiblings(spark, aggregated, dimensionsList, 3)
+      .rdd.mapPartitionsWithIndex { (partition, iter) =>
+        iter.map(row => (partition, row.toSeq.take(4).mkString(",")))
+      }.collect().toSet
+    val first = placement
+    assert(first.size == aggregated.count())
+    assert(first.forall { case (partition, row) => partition / 3 == row.split(",").head.toInt })
+    assert(placement == first)
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.job
+
+import org.apache.kylin.common.KylinConfig
+import org.apache.kylin.engine.spark.utils.SparkConfHelper
+import org.apache.spark.SparkConf
+import org.apache.spark.sql.common.{LocalMetadata, SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.storage.StorageLevel
+
+import scala.collection.JavaConverters._
+
+class TestParentDatasetCache extends SparderBaseFunSuite with SharedSparkSession with LocalMetadata {
+
+  test("cache a parent until its last child is built") {
+    withTempPath { dir =>
+      val path = dir.getCanonicalPath
+      spark.range(100).toDF("id").write.parquet(path)
+      val cache = new ParentDatasetCache(KylinConfig.getInstanceFromEnv, spark)
+
+      // a parent of a single child is read from storage
+      val single = spark.read.parquet(path)
+      assert(cache.acquire(1L, single, path, ids(10L), 1, ids()) eq single)
+      assert(single.storageLevel == StorageLevel.NONE)
+
+      val parent = cache.acquire(2L, spark.read.parquet(path), path, ids(20L, 21L), 2, ids())
+      assert(parent.storageLevel == StorageLevel.MEMORY_AND_DISK_SER)
+      // children decided later share the cached parent
+      assert(cache.acquire(2L, spark.read.parquet(path), path, ids(22L), 1, ids()) eq parent)
+
+      cache.release(2L)
+      cache.release(2L)
+      assert(parent.storageLevel == StorageLevel.MEMORY_AND_DISK_SER)
+      cache.release(2L)
+      assert(parent.storageLevel == StorageLevel.NONE)
+    }
+  }
+
+  test("cache a parent whose children are decided one by one") {
+    withTempPath { dir =>
+      val path = dir.getCanonicalPath
+      spark.range(100).toDF("id").write.parquet(path)
+      val cache = new ParentDatasetCache(KylinConfig.getInstanceFromEnv, spark)
+
+      // the first child is decided, the others wait for their other parent candidates
+      val parent = cache.acquire(1L, spark.read.parquet(path), path, ids(10L), 1, ids(11L, 12L))
+      assert(parent.storageLevel == StorageLevel.MEMORY_AND_DISK_SER)
+      cache.release(1L)
+      assert(parent.storageLevel == StorageLevel.MEMORY_AND_DISK_SER)
+
+      assert(cache.acquire(1L, spark.read.parquet(path), path, ids(11L), 1, ids(12L)) eq parent)
+      cache.release(1L)
+      assert(parent.storageLevel == StorageLevel.MEMORY_AND_DISK_SER)
+
+      // the last child is decided on another parent
+      cache.acquire(2L, spark.read.parquet(path), path, ids(12L), 1, ids())
+      assert(parent.storageLevel == StorageLevel.NONE)
+    }
+  }
+
+  test("skip caching parents out of the memory budget") {
+    withTempPath { dir =>
+      val path = dir.getCanonicalPath
+      spark.range(100).toDF("id").write.parquet(path)
+      val config = KylinConfig.createKylinConfig(KylinConfig.getInstanceFromEnv)
+      config.setProperty("kylin.engine.spark.parent-cache-memory-fraction", "0")
+      val cache = new ParentDatasetCache(config, spark)
+      val parent = cache.acquire(1L, spark.read.parquet(path), path, ids(10L, 11L), 2, ids())
+      assert(parent.storageLevel == StorageLevel.NONE)
+    }
+  }
+
+  test("reserve the budget for datasets cached by others") {
+    withTempPath { dir =>
+      val path = dir.getCanonicalPath
+      spark.range(100).toDF("id").write.parquet(path)
+      val config = KylinConfig.createKylinConfig(KylinConfig.getInstanceFromEnv)
+      // a budget of 1000 bytes
+      config.setProperty("kylin.engine.spark.parent-cache-memory-fraction", (1000.0 / 1024 / 1024 / 1024).toString)
+      val conf = new SparkConf().set(SparkConfHelper.EXECUTOR_MEMORY, "1g")
+      val cache = new ParentDatasetCache(config, conf)
+
+      assert(cache.estimateSize(spark.range(100).toDF("id"), null) > 0)
+      assert(cache.estimateSize(spark.read.parquet(path), path) > 0)
+      assert(cache.reserve("siblings", 800))
+      assert(!cache.reserve("siblings", 800))
+      cache.free(800)
+      assert(cache.reserve("siblings", 800))
+    }
+  }
+
+  test("budget the cache with the max executors of dynamic allocation") {
+    withTempPath { dir =>
+      val path = dir.getCanonicalPath
+      spark.range(100).toDF("id").write.parquet(path)
+      val config = KylinConfig.createKylinConfig(KylinConfig.getInstanceFromEnv)
+      // a budget of one byte per executor
+      config.setProperty("kylin.engine.spark.parent-cache-memory-fraction", (1.0 / 1024 / 1024 / 1024).toString)
+      val conf = new SparkConf()
+        .set(SparkConfHelper.EXECUTOR_MEMORY, "1g")
+        .set(SparkConfHelper.EXECUTOR_INSTANCES, "1")
+        .set(SparkConfHelper.DYNAMIC_ALLOCATION_MAX_EXECUTORS, "100000000")
+
+      val parent = new ParentDatasetCache(config, conf)
+        .acquire(1L, spark.read.parquet(path), path, ids(10L, 11L), 2, ids())
+      assert(parent.storageLevel == StorageLevel.NONE)
+
+      conf.set(SparkConfHelper.DYNAMIC_ALLOCATION_ENABLED, "true")
+      val cache = new ParentDatasetCache(config, conf)
+      val cachedParent = cache.acquire(1L, spark.read.parquet(path), path, ids(10L, 11L), 2, ids())
+      assert(cachedParent.storageLevel == StorageLevel.MEMORY_AND_DISK_SER)
+      cache.releaseAll()
+    }
+  }
+
+  private def ids(ids: Long*): java.util.List[java.lang.Long] = ids.map(Long.box).asJava
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.sql.Date
+import java.util.Properties
+
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.KylinConfig
+import org.apache.kylin.common.util.DateFormat
+import org.apache.spark.sql.{Column, DataFrame, KylinFunctions, SparkSession}
+import org.apache.spark.sql.catalyst.expressions.Expression
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.FileSourceScanExec
+import org.apache.spark.sql.execution.datasources.{HadoopFsRelation, InMemoryFileIndex, LogicalRelation}
+import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.functions._
+import org.apache.spark.sql.sources.{And, GreaterThanOrEqual, LessThan, LessThanOrEqual}
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.sql.udaf.EncodePreciseCountDistinct
+
+// layouts of segments without time partition column, whose rollups are used when there are no other filters
+private class RollupIndex(session: SparkSession, layoutPaths: Seq[Path])
+  extends InMemoryFileIndex(session, layoutPaths, Map.empty, None) with BitmapRollupIndex {
+
+  override def bitmapRollups(relation: LogicalRelation, filters: Seq[Expression], column: String): Option[Seq[Path]] = {
+    val conf = session.sparkContext.hadoopConfiguration
+    if (filters.isEmpty && layoutPaths.forall(p => BitmapRollup.exists(p.toString, column, conf))) {
+      Some(layoutPaths.map(p => BitmapRollup.path(p.toString, column)))
+    } else {
+      None
+    }
+  }
+}
+
+class TestBitmapRollup extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("read intersect bitmaps of whole segments from their rollups") {
+    withTempPath { dir =>
+      // users visiting pages by day, a segment of 3 days each, as layouts of columns day, page and users
+      val visits = spark.range(0, 60000, 1, 4).select((col("id") % 9).as("day"),
+        (col("id") % 4).cast("string").as("page"), (col("id") % 997).as("user"))
+      val layoutPaths = Seq("seg_a", "seg_b", "seg_c").zipWithIndex.map { case (seg, i) =>
+        val layoutPath = new Path(dir.getCanonicalPath, seg + "/1")
+        visits.where(col("day") >= i * 3 && col("day") < i * 3 + 3)
+          .groupBy(col("day").as("0"), col("page").as("1"))
+          .agg(Column(EncodePreciseCountDistinct(col("user").expr).toAggregateExpression()).as("2"))
+          .write.parquet(layoutPath.toString)
+        BitmapRollup.save(spark, layoutPath.toString, Seq(1), Seq(2))
+        layoutPath
+      }
+      val schema = spark.read.parquet(layoutPaths.head.toString).schema
+
+      def funnel(days: Option[Int]): DataFrame = {
+        val index = new RollupIndex(spark, layoutPaths)
+        val layout = spark.baseRelationToDataFrame(
+          HadoopFsRelation(index, new StructType(), schema, None, new ParquetFileFormat, Map.empty)(spark))
+        days.map(d => layout.where(col("0") < d)).getOrElse(layout)
+          .where(col("1").isin("0", "2"))
+          .agg(KylinFunctions.intersect_count(col("2"), col("1"), array(lit("0"), lit("2"))).as("users"))
+      }
+
+      def expected(days: Int): Long = {
+        val byPage = visits.where(col("day") < days).select("page", "user").distinct().collect()
+          .groupBy(_.getString(0)).mapValues(_.map(_.getLong(1)).toSet)
+        (byPage("0") intersect byPage("2")).size
+      }
+
+      def scannedPaths(df: DataFrame): Seq[String] = {
+        df.queryExecution.executedPlan.collect { case scan: FileSourceScanExec => scan }
+          .flatMap(_.relation.location.rootPaths.map(_.getName))
+      }
+
+      spark.experimental.extraStrategies = Seq(BitmapRollupStrategy)
+      val conf = KylinConfig.setAndUnsetThreadLocalConfig(KylinConfig.createKylinConfig(new Properties()))
+      try {
+        val all = funnel(None)
+        assert(all.collect().head.getLong(0) == expected(9))
+        assert(scannedPaths(all) == Seq.fill(3)("_bitmap_rollup_1"), all.queryExecution.executedPlan)
+
+        // part of the segments
+        val partial = funnel(Some(4))
+        assert(partial.collect().head.getLong(0) == expected(4))
+        assert(scannedPaths(partial) == Seq.fill(3)("1"), partial.queryExecution.executedPlan)
+      } finally {
+        conf.close()
+        spark.experimental.extraStrategies = Nil
+      }
+    }
+  }
+
+  test("segments entirely selected by time filters") {
+    val start = DateFormat.stringToMillis("2020-01-01")
+    val end = DateFormat.stringToMillis("2020-02-01")
+    val segment = SegFilters(start, end, "yyyy-MM-dd")
+    assert(segment.covers(And(GreaterThanOrEqual("d", Date.valueOf("2020-01-01")), LessThan("d", "2020-02-01"))))
+    assert(segment.covers(And(GreaterThanOrEqual("d", "2019-12-01"), LessThanOrEqual("d", "2020-01-31"))))
+    assert(!segment.covers(GreaterThanOrEqual("d", "2020-01-02")))
+    assert(!segment.covers(LessThanOrEqual("d", "2020-01-30")))
+  }
+}
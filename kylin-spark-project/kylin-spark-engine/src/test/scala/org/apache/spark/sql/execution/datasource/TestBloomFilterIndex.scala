@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, EqualTo, Expression, GreaterThan, In, Literal}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.types._
+
+class TestBloomFilterIndex extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("build and prune by bloom filters") {
+    withTempPath { dir =>
+      val schema = StructType(Array(
+        StructField("1", LongType, nullable = true),
+        StructField("2", StringType, nullable = true),
+        StructField("3", DoubleType, nullable = true)))
+      val data = (0 until 200).map(i => Row(i.toLong * 2, s"user_$i", i.toDouble))
+      spark.createDataFrame(spark.sparkContext.parallelize(data, 2), schema)
+        .write.parquet(dir.getCanonicalPath)
+
+      val (stats, filters) = FileStatsIndex.collect(spark, dir.getCanonicalPath, 1L, Seq(1), Seq(1, 2, 3), 0.01)
+      assert(filters.size == 2)
+      assert(stats.getFiles.size() == 2)
+      // double is not supported
+      assert(filters.values.forall(_.keySet == Set(1, 2)))
+
+      val idCol = AttributeReference("1", LongType)()
+      val nameCol = AttributeReference("2", StringType)()
+      val files = filters.values.toSeq
+      def matchedFiles(filter: Expression): Int =
+        files.count(BloomFilterIndex.mightMatch(filter, _))
+
+      assert(matchedFiles(EqualTo(idCol, Literal(10L))) == 1)
+      assert(matchedFiles(EqualTo(Literal("user_150"), nameCol)) == 1)
+      assert(matchedFiles(In(nameCol, Seq(Literal("user_1"), Literal("user_199")))) == 2)
+      assert(matchedFiles(And(EqualTo(idCol, Literal(10L)), EqualTo(nameCol, Literal("user_5")))) == 1)
+      // not indexed, or not an equality
+      assert(matchedFiles(EqualTo(AttributeReference("3", DoubleType)(), Literal(1.0d))) == 2)
+      assert(matchedFiles(GreaterThan(idCol, Literal(10L))) == 2)
+    }
+  }
+}
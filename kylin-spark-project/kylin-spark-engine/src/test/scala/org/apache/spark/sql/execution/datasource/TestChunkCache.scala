@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.io.File
+import java.nio.file.Files
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FileSystem, Path}
+import org.apache.parquet.hadoop.ParquetFileReader
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.metric.SQLMetrics
+
+import scala.util.Random
+
+class TestChunkCache extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("read pages through memory and disk tiers") {
+    withTempPath { dir =>
+      dir.mkdirs()
+      val data = new Array[Byte](10 * 1000 + 7)
+      new Random(42).nextBytes(data)
+      val file = new File(dir, "data")
+      Files.write(file.toPath, data)
+
+      val fs = FileSystem.getLocal(new Configuration)
+      val status = fs.getFileStatus(new Path(file.getCanonicalPath))
+      // room for some of the 11 pages in memory, the others are spilled to disk
+      val cache = new ChunkCache(8000, 1L << 20, 1000, dir)
+
+      val random = new Random(7)
+      for (_ <- 0 until 50) {
+        val in = new CachedInputStream(cache, fs, status)
+        val position = random.nextInt(data.length)
+        val bytes = new Array[Byte](random.nextInt(3000) + 1)
+        val n = in.read(position, bytes, 0, bytes.length)
+        assert(n == math.min(bytes.length, data.length - position))
+        assert(bytes.take(n).sameElements(data.slice(position, position + n)))
+        in.close()
+        cache.awaitSpills()
+        // evicted pages are freed once spilled
+        assert(cache.directMemoryBytes <= 8000)
+      }
+      assert(cache.missCount == 11)
+      assert(cache.memoryHitCount > 0)
+      assert(cache.diskHitCount > 0)
+      assert(cache.remoteReadBytes == data.length)
+
+      val metrics = new ChunkCacheMetrics(SQLMetrics.createMetric(spark.sparkContext, "hits"),
+        SQLMetrics.createMetric(spark.sparkContext, "misses"))
+      val in = new CachedInputStream(cache, fs, status)
+      val all = new Array[Byte](data.length)
+      ChunkCache.tracked(metrics)(in.readFully(0, all))
+      assert(all.sameElements(data))
+      assert(metrics.hits.value == 11)
+      assert(metrics.misses.value == 0)
+      assert(in.read(data.length, all, 0, 1) == -1)
+      in.seek(data.length - 1)
+      assert(in.read() == (data.last & 0xff))
+      assert(in.read() == -1)
+      in.close()
+      assert(cache.missCount == 11)
+    }
+  }
+
+  test("read parquet files through the chunk cache file system") {
+    withTempPath { dir =>
+      spark.range(0, 1000, 1, 2).toDF("1").write.parquet(dir.getCanonicalPath)
+      val conf = new Configuration(spark.sparkContext.hadoopConfiguration)
+      conf.set("fs.file.impl", classOf[ChunkCacheFileSystem].getName)
+      conf.setBoolean("fs.file.impl.disable.cache", true)
+      conf.set(ChunkCacheFileSystem.PATH_PREFIX, new Path(dir.getCanonicalFile.toURI).toString)
+
+      val layoutPath = new Path(dir.getCanonicalPath)
+      val fs = layoutPath.getFileSystem(conf)
+      assert(fs.isInstanceOf[ChunkCacheFileSystem])
+      val files = fs.listStatus(layoutPath).filter(f => FileManifest.isDataFile(f.getPath))
+      assert(files.nonEmpty)
+      val cache = ChunkCache.getOrCreate(conf)
+      files.foreach { file =>
+        val footer = ParquetFileReader.readFooter(conf, file.getPath)
+        assert(footer.getBlocks.get(0).getRowCount > 0)
+      }
+      val misses = cache.missCount
+      assert(misses > 0)
+      // the statuses are cached too, the files are not touched any more
+      files.foreach(file => assert(new File(file.getPath.toUri).delete()))
+      files.foreach { file =>
+        ParquetFileReader.readFooter(conf, file.getPath)
+      }
+      assert(cache.missCount == misses)
+    }
+  }
+}
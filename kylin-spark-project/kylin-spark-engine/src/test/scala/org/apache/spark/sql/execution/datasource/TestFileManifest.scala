@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import org.apache.hadoop.fs.{LocatedFileStatus, Path}
+import org.apache.kylin.common.util.JsonUtil
+import org.apache.kylin.engine.spark.metadata.cube.model.LayoutFileManifest
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+
+class TestFileManifest extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("collect manifest and restore file statuses") {
+    withTempPath { dir =>
+      spark.range(0, 100, 1, 3).toDF("1").write.parquet(dir.getCanonicalPath)
+      val layoutPath = new Path(dir.getCanonicalPath)
+      val fs = layoutPath.getFileSystem(spark.sparkContext.hadoopConfiguration)
+      // hidden files like the file stats are not part of the manifest
+      fs.create(new Path(layoutPath, "_file_stats")).close()
+
+      val listed = fs.listStatus(layoutPath).filter(f => FileManifest.isDataFile(f.getPath))
+      val rows = listed.map(f => (f.getPath.getName, 10L)).toMap
+      val manifest = FileManifest.collect(fs, dir.getCanonicalPath, 1L, rows)
+      assert(manifest.getFiles.size() == listed.length)
+
+      val restored = FileManifest.toFileStatuses(layoutPath,
+        JsonUtil.readValue(JsonUtil.writeValueAsString(manifest), classOf[LayoutFileManifest]))
+      assert(restored.map(f => (f.getPath.getName, f.getLen)).toSet ==
+        listed.map(f => (f.getPath.getName, f.getLen)).toSet)
+      assert(restored.forall(_.isInstanceOf[LocatedFileStatus]))
+      assert(restored.forall(_.asInstanceOf[LocatedFileStatus].getBlockLocations.nonEmpty))
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.sql.{Date, Timestamp}
+
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, EqualTo, GreaterThan, In, IsNull, LessThan, Literal, Or}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.types._
+
+import scala.collection.JavaConverters._
+
+class TestFileStatsIndex extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("collect and prune by file stats") {
+    withTempPath { dir =>
+      val schema = StructType(Array(
+        StructField("1", IntegerType, nullable = true),
+        StructField("2", StringType, nullable = true),
+        StructField("3", DateType, nullable = true)))
+      val data = Seq(
+        Row(1, "a", Date.valueOf("2012-01-01")),
+        Row(5, "c", Date.valueOf("2012-01-05")),
+        Row(10, null, Date.valueOf("2012-02-01")),
+        Row(20, "x", Date.valueOf("2012-02-10")))
+      spark.createDataFrame(spark.sparkContext.parallelize(data, 2), schema)
+        .write.parquet(dir.getCanonicalPath)
+
+      val stats = FileStatsIndex.collect(spark, dir.getCanonicalPath, 1L, Seq(1, 2, 3))
+      assert(stats.getFiles.size() == 2)
+      val files = stats.getFiles.asScala.sortBy(_.getColumns.get(1).getMin.toInt)
+      val (first, second) = (files.head, files.last)
+      assert(first.getRows == 2)
+      assert(first.getColumns.get(1).getMax == "5")
+      assert(second.getColumns.get(2).getNullCount == 1)
+
+      val intCol = AttributeReference("1", IntegerType)()
+      val strCol = AttributeReference("2", StringType)()
+      val dateCol = AttributeReference("3", DateType)()
+
+      assert(FileStatsIndex.mightMatch(EqualTo(intCol, Literal(3)), first))
+      assert(!FileStatsIndex.mightMatch(EqualTo(intCol, Literal(3)), second))
+      assert(!FileStatsIndex.mightMatch(GreaterThan(intCol, Literal(5)), first))
+      assert(FileStatsIndex.mightMatch(LessThan(Literal(5), intCol), second))
+      assert(!FileStatsIndex.mightMatch(In(strCol, Seq(Literal("d"), Literal("z"))), first))
+      assert(!FileStatsIndex.mightMatch(IsNull(strCol), first))
+      assert(FileStatsIndex.mightMatch(IsNull(strCol), second))
+      assert(!FileStatsIndex.mightMatch(
+        EqualTo(dateCol, Literal(Date.valueOf("2012-01-20"))), first))
+      assert(FileStatsIndex.mightMatch(
+        Or(EqualTo(intCol, Literal(100)), EqualTo(strCol, Literal("b"))), first))
+      assert(!FileStatsIndex.mightMatch(
+        And(EqualTo(intCol, Literal(1)), EqualTo(strCol, Literal("d"))), first))
+    }
+  }
+
+  test("collect file stats from the row groups in the footers") {
+    withTempPath { dir =>
+      val schema = StructType(Array(
+        StructField("1", DecimalType(10, 2), nullable = true),
+        StructField("2", TimestampType, nullable = true),
+        StructField("3", StringType, nullable = true)))
+      val data = Seq(
+        Row(new java.math.BigDecimal("1.50"), Timestamp.valueOf("2012-01-01 00:00:00"), "b"),
+        Row(new java.math.BigDecimal("-3.25"), Timestamp.valueOf("2012-01-02 00:00:00"), null))
+      spark.createDataFrame(spark.sparkContext.parallelize(data, 1), schema)
+        .write.parquet(dir.getCanonicalPath)
+
+      val stats = FileStatsIndex.collect(spark, dir.getCanonicalPath, 1L, Seq(1, 2, 3))
+      val file = stats.getFiles.asScala.head
+      assert(file.getRows == 2)
+      assert(file.getColumns.get(1).getMin == "-3.25")
+      assert(file.getColumns.get(1).getMax == "1.50")
+      // int96 timestamps have no statistics
+      assert(!file.getColumns.containsKey(2))
+      assert(file.getColumns.get(3).getMax == "b")
+      assert(file.getColumns.get(3).getNullCount == 1)
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.util.Properties
+
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.sql.DataFrame
+import org.apache.spark.sql.catalyst.expressions.InSet
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.FileSourceScanExec
+import org.apache.spark.sql.functions._
+
+class TestRuntimeFilterPushDown extends SparderBaseFunSuite with SharedSparkSession {
+
+  private def config(maxValues: Int): KylinConfig = {
+    val props = new Properties()
+    props.setProperty("kylin.query.spark-engine.runtime-filter.max-values", maxValues.toString)
+    KylinConfig.createKylinConfig(props)
+  }
+
+  private def runtimeFilters(df: DataFrame): Seq[Set[Any]] = {
+    df.queryExecution.executedPlan.collect { case scan: FileSourceScanExec => scan }
+      .flatMap(_.dataFilters)
+      .collect { case InSet(_, values) => values }
+  }
+
+  test("push join keys of a filtered lookup side to the fact scan") {
+    withTempPath { dir =>
+      val factPath = dir.getCanonicalPath + "/fact"
+      val lookupPath = dir.getCanonicalPath + "/lookup"
+      spark.range(0, 10000, 1, 4).select((col("id") % 100).as("key"), col("id").as("amount"))
+        .repartitionByRange(4, col("key"))
+        .write.parquet(factPath)
+      spark.range(0, 100).select(col("id"), when(col("id") < 3, "east").otherwise("west").as("region"))
+        .write.parquet(lookupPath)
+
+      val rule = RuntimeFilterPushDown(spark)
+      def query(joinType: String, region: String = "region = 'east'"): DataFrame = {
+        val fact = spark.read.parquet(factPath)
+        val lookup = spark.read.parquet(lookupPath).where(region)
+        fact.join(lookup, col("key") === col("id"), joinType).groupBy("region").agg(sum("amount"))
+      }
+      val expected = Seq("inner", "left").map(joinType => query(joinType).collect().toSet)
+
+      spark.experimental.extraOptimizations = Seq(rule)
+      spark.experimental.extraStrategies = Seq(RuntimeFilterStrategy)
+      val conf = KylinConfig.setAndUnsetThreadLocalConfig(config(10))
+      try {
+        // optimizing the query and computing its statistics run no job
+        val analyzed = query("inner")
+        val group = "runtime-filter-optimize"
+        spark.sparkContext.setJobGroup(group, group)
+        val optimized = analyzed.queryExecution.optimizedPlan
+        optimized.stats
+        spark.sparkContext.clearJobGroup()
+        assert(spark.sparkContext.statusTracker.getJobIdsForGroup(group).isEmpty)
+        assert(optimized.find(_.expressions.exists(_.find(_.isInstanceOf[RuntimeFilter]).isDefined)).isDefined, optimized)
+
+        val inner = query("inner")
+        assert(inner.collect().toSet == expected.head)
+        assert(runtimeFilters(inner) == Seq(Set(0L, 1L, 2L)), inner.queryExecution.executedPlan)
+
+        // the lookup side is only filtered by the not null filter of the join key
+        val unfiltered = query("inner", "region is not null")
+        assert(runtimeFilters(unfiltered).isEmpty)
+
+        // unmatched rows of the fact side are kept by a left join
+        val left = query("left")
+        assert(left.collect().toSet == expected(1))
+        assert(runtimeFilters(left).isEmpty)
+      } finally {
+        conf.close()
+      }
+
+      // too many keys
+      val fewer = KylinConfig.setAndUnsetThreadLocalConfig(config(2))
+      try {
+        val inner = query("inner")
+        assert(inner.collect().toSet == expected.head)
+        assert(runtimeFilters(inner).isEmpty)
+      } finally {
+        fewer.close()
+        spark.experimental.extraOptimizations = Nil
+        spark.experimental.extraStrategies = Nil
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import java.util.Properties
+
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.sql.common.SparderBaseFunSuite
+
+class TestScanPartitions extends SparderBaseFunSuite {
+
+  private val MB = 1024L * 1024L
+
+  private val config = {
+    val props = new Properties()
+    props.setProperty("kylin.query.spark-engine.partition-split-size-mb", "64")
+    props.setProperty("kylin.query.spark-engine.partition-split-rows", "1000000")
+    KylinConfig.createKylinConfig(props)
+  }
+
+  test("small scans run as a single task") {
+    assert(ScanPartitions.scanTasks(config, 0, -1) == 1)
+    assert(ScanPartitions.scanTasks(config, 10 * MB, -1) == 1)
+    assert(ScanPartitions.maxSplitBytes(config, 10 * MB, -1, 100, 4 * MB) == 10 * MB)
+    assert(ScanPartitions.shufflePartitions(config, 10 * MB, -1, 100) == 1)
+    assert(ScanPartitions.scanTasks(config, 100 * MB, -1) == 2)
+  }
+
+  test("split by rows of densely compressed layouts") {
+    // 10 bytes a row, a task reads 1M rows of 10 million bytes
+    assert(ScanPartitions.splitBytes(config, 100000000L, 10000000L) == 10000000L)
+    assert(ScanPartitions.scanTasks(config, 100000000L, 10000000L) == 10)
+    // sparse rows are split by size
+    assert(ScanPartitions.splitBytes(config, 100 * MB, 1000) == 64 * MB)
+  }
+
+  test("splits of very dense layouts are not smaller than the min bytes") {
+    // 10 rows a byte, 1M rows are about 100KB
+    val bytes = 1024 * MB
+    val rows = bytes * 10
+    assert(ScanPartitions.splitBytes(config, bytes, rows) < MB)
+    // 256 tasks of 4MB, in full waves of 8 cores
+    assert(ScanPartitions.maxSplitBytes(config, bytes, rows, 8, 4 * MB) == 4 * MB)
+    // rounding up to waves does not shrink the splits below the min bytes either
+    assert(ScanPartitions.maxSplitBytes(config, 20 * MB, rows, 8, 4 * MB) == 4 * MB)
+    assert(ScanPartitions.maxSplitBytes(config, 1 * MB, rows, 8, 4 * MB) == 4 * MB)
+  }
+
+  test("large scans are rounded up to full waves") {
+    // 20 tasks of 64MB on 8 cores are 3 waves of 8 tasks
+    val bytes = 20 * 64 * MB
+    assert(ScanPartitions.scanTasks(config, bytes, -1) == 20)
+    assert(ScanPartitions.maxSplitBytes(config, bytes, -1, 8, 4 * MB) == bytes / 24 + 1)
+    assert(ScanPartitions.shufflePartitions(config, bytes, -1, 8) == 8)
+    assert(ScanPartitions.shufflePartitions(config, bytes, -1, 100) == 10)
+  }
+}
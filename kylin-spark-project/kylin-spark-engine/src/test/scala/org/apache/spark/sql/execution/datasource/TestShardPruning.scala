@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import org.apache.kylin.common.QueryContextFacade
+import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, EqualTo, Expression, In, InSet, Literal, Or}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.functions.{col, spark_partition_id}
+import org.apache.spark.sql.types.{IntegerType, StringType}
+import org.apache.spark.unsafe.types.UTF8String
+
+class TestShardPruning extends SparderBaseFunSuite with SharedSparkSession {
+
+  private val numShards = 8
+  private val allShards = (0 until numShards).toSet
+  private val id = AttributeReference("1", IntegerType)()
+  private val name = AttributeReference("2", StringType)()
+  private val shardByColumns = Seq(id, name)
+
+  // the shards of the keys, repartitioned the same way as a layout sharded by both columns
+  private def shardsOf(keys: Seq[(Int, String)]): Set[Int] = {
+    spark.createDataFrame(keys).toDF("1", "2")
+      .repartition(numShards, col("1"), col("2"))
+      .select(spark_partition_id())
+      .collect().map(_.getInt(0)).toSet
+  }
+
+  private def scannedShards(filter: Expression): Set[Int] = {
+    val shardValues = FilePruner.getShardValues(filter, shardByColumns)
+    val shards = FilePruner.getShardSet(shardValues, shardByColumns, numShards)
+    allShards.filter(shards.get)
+  }
+
+  test("prune shards on composite shard by keys") {
+    assert(scannedShards(And(EqualTo(id, Literal(1)), EqualTo(Literal("a"), name))) == shardsOf(Seq((1, "a"))))
+    assert(scannedShards(Or(
+      And(EqualTo(id, Literal(1)), EqualTo(name, Literal("a"))),
+      And(EqualTo(id, Literal(2)), EqualTo(name, Literal("b"))))) == shardsOf(Seq((1, "a"), (2, "b"))))
+    // a shard by column is not constrained
+    assert(scannedShards(EqualTo(id, Literal(1))) == allShards)
+    assert(scannedShards(Or(
+      And(EqualTo(id, Literal(1)), EqualTo(name, Literal("a"))),
+      EqualTo(id, Literal(2)))) == allShards)
+    // a literal of another type is hashed differently from the stored values
+    assert(scannedShards(And(EqualTo(id, Literal(1L)), EqualTo(name, Literal("a")))) == allShards)
+  }
+
+  test("prune shards on IN lists") {
+    val names = Set[Any](UTF8String.fromString("a"), UTF8String.fromString("b"))
+    assert(scannedShards(And(In(id, Seq(Literal(1), Literal(2), Literal(3))), InSet(name, names))) ==
+      shardsOf(for (i <- 1 to 3; n <- Seq("a", "b")) yield (i, n)))
+    // the values of a column are intersected
+    assert(scannedShards(And(In(id, Seq(Literal(1), Literal(2))),
+      And(EqualTo(id, Literal(2)), EqualTo(name, Literal("a"))))) == shardsOf(Seq((2, "a"))))
+    assert(scannedShards(And(EqualTo(id, Literal(1)),
+      And(EqualTo(id, Literal(2)), EqualTo(name, Literal("a"))))).isEmpty)
+  }
+
+  test("count the scanned shards in the query context") {
+    QueryContextFacade.resetCurrent()
+    try {
+      val pinned = FilePruner.getShardValues(And(EqualTo(id, Literal(1)), EqualTo(name, Literal("a"))), shardByColumns)
+      assert(FilePruner.selectShards(pinned, shardByColumns, numShards).cardinality() == 1)
+      val unconstrained = FilePruner.getShardValues(EqualTo(id, Literal(1)), shardByColumns)
+      assert(FilePruner.selectShards(unconstrained, shardByColumns, numShards).cardinality() == numShards)
+
+      assert(QueryContextFacade.current().getTotalShards == 2 * numShards)
+      assert(QueryContextFacade.current().getScannedShards == 1 + numShards)
+    } finally {
+      QueryContextFacade.resetCurrent()
+    }
+  }
+}
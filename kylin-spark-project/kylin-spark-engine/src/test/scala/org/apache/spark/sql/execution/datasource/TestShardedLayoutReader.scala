@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasource
+
+import com.google.common.collect.{Lists, Sets}
+import org.apache.hadoop.fs.Path
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.exchange.ShuffleExchangeExec
+import org.apache.spark.sql.functions.{col, sum}
+
+class TestShardedLayoutReader extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("merge the sorted shards of segments without a shuffle") {
+    withTempPath { dir =>
+      val numShards = 4
+      val segments = Seq(0 until 100, 50 until 300).zipWithIndex.map { case (range, i) =>
+        val path = new Path(dir.getCanonicalPath, s"seg$i")
+        spark.createDataFrame(range.map(r => (r % 7, r % 13, r.toLong))).toDF("0", "1", "2")
+          .repartition(numShards, col("0")).sortWithinPartitions("0", "1")
+          .write.parquet(path.toString)
+        path
+      }
+      val fs = segments.head.getFileSystem(spark.sessionState.newHadoopConf())
+      val files = Lists.newArrayList(segments.flatMap(p => fs.listStatus(p))
+        .filter(_.getPath.getName.startsWith("part-")): _*)
+
+      val merged = ShardedLayoutReader.read(spark, files, numShards,
+        Lists.newArrayList[Integer](0), Sets.newLinkedHashSet[Integer](Lists.newArrayList[Integer](0, 1)))
+      assert(merged.rdd.getNumPartitions == numShards)
+      val sorted = merged.rdd.mapPartitions { rows =>
+        val keys = rows.map(r => (r.getInt(0), r.getInt(1))).toSeq
+        Iterator.single(keys == keys.sorted)
+      }.collect()
+      assert(sorted.forall(identity))
+
+      val aggregated = merged.groupBy("0", "1").agg(sum("2")).sortWithinPartitions("0", "1")
+      assert(aggregated.queryExecution.executedPlan.collect { case e: ShuffleExchangeExec => e }.isEmpty)
+      val expected = segments.map(p => spark.read.parquet(p.toString)).reduce(_ union _)
+        .groupBy("0", "1").agg(sum("2"))
+      assert(aggregated.collect().toSet == expected.collect().toSet)
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution.datasources.parquet
+
+import org.apache.hadoop.fs.Path
+import org.apache.spark.sql.{DataFrame, SaveMode}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.datasource.ParquetFooterCache
+import org.apache.spark.sql.execution.datasources.{HadoopFsRelation, InMemoryFileIndex}
+import org.apache.spark.sql.functions._
+import org.apache.spark.sql.internal.SQLConf
+
+class TestKylinParquetFileFormat extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("skip splits by cached footers") {
+    withTempPath { dir =>
+      // many small row groups, and splits smaller than them
+      spark.range(0, 20000, 1, 2).toDF("1")
+        .withColumn("2", concat(lit("value_"), col("1")))
+        .write.option("parquet.block.size", 8192).parquet(dir.getCanonicalPath)
+      spark.conf.set(SQLConf.FILES_MAX_PARTITION_BYTES.key, "4096")
+      spark.conf.set(SQLConf.FILES_OPEN_COST_IN_BYTES.key, "0")
+      // the cache is shared by the whole JVM
+      val cachedFooters = ParquetFooterCache.size
+      try {
+        val expected = spark.read.parquet(dir.getCanonicalPath)
+        val actual = spark.read.format(classOf[KylinParquetFileFormat].getName).load(dir.getCanonicalPath)
+        Seq("`1` = 15000", "`1` > 100 and `1` < 3000", "`2` = 'value_7'", "`1` < 0", "true").foreach { filter =>
+          assert(actual.where(filter).collect().toSet == expected.where(filter).collect().toSet, filter)
+        }
+        // read by the row based reader too
+        spark.conf.set(SQLConf.PARQUET_VECTORIZED_READER_ENABLED.key, "false")
+        assert(actual.where("`1` > 100 and `1` < 3000").collect().toSet ==
+          expected.where("`1` > 100 and `1` < 3000").collect().toSet)
+        assert(ParquetFooterCache.size == cachedFooters + 2)
+
+        ParquetFooterCache.invalidate(_.startsWith(dir.toURI.toString.stripSuffix("/")))
+        assert(ParquetFooterCache.size == cachedFooters)
+      } finally {
+        spark.conf.unset(SQLConf.FILES_MAX_PARTITION_BYTES.key)
+        spark.conf.unset(SQLConf.FILES_OPEN_COST_IN_BYTES.key)
+        spark.conf.unset(SQLConf.PARQUET_VECTORIZED_READER_ENABLED.key)
+      }
+    }
+  }
+
+  test("read the footers of a segment again once it is built again") {
+    withTempPath { dir =>
+      val layout = new Path(dir.toURI.toString, "seg_1/1")
+      assert(KylinParquetFileFormat.segmentDirectory(new Path(layout, "part-0.parquet")) == "seg_1")
+
+      val file = new Path(layout, "part-0.parquet")
+      val fs = file.getFileSystem(spark.sessionState.newHadoopConf())
+
+      // the file is rewritten at the same path
+      def write(rows: Long): Unit = {
+        val written = new Path(dir.toURI.toString, "written")
+        spark.range(0, rows, 1, 1).toDF("1").withColumn("2", concat(lit("value_"), col("1")))
+          .write.mode(SaveMode.Overwrite).option("parquet.block.size", 8192).parquet(written.toString)
+        fs.delete(layout, true)
+        fs.mkdirs(layout)
+        fs.rename(fs.globStatus(new Path(written, "part-*")).head.getPath, file)
+      }
+
+      def read(version: String): DataFrame = {
+        val index = new InMemoryFileIndex(spark, Seq(layout), Map.empty, None)
+        val format = new KylinParquetFileFormat(Map("seg_1" -> version))
+        spark.baseRelationToDataFrame(
+          HadoopFsRelation(index, index.partitionSchema, spark.read.parquet(file.toString).schema, None,
+            format, Map.empty)(spark))
+      }
+
+      spark.conf.set(SQLConf.FILES_MAX_PARTITION_BYTES.key, "4096")
+      spark.conf.set(SQLConf.FILES_OPEN_COST_IN_BYTES.key, "0")
+      try {
+        write(20000)
+        assert(read("1").where("`1` > 15000").count() == 4999)
+        // the rows of the rebuilt files are in other row groups than the cached footer says
+        write(40000)
+        assert(read("2").where("`1` > 15000").count() == 24999)
+
+        val footer = ParquetFooterCache.get(file, fs.getConf, "2")
+        assert(footer.getBlocks.size() > 1)
+        assert(ParquetFooterCache.get(file, fs.getConf, "2") eq footer)
+        assert(ParquetFooterCache.get(file, fs.getConf, "3") ne footer)
+      } finally {
+        spark.conf.unset(SQLConf.FILES_MAX_PARTITION_BYTES.key)
+        spark.conf.unset(SQLConf.FILES_OPEN_COST_IN_BYTES.key)
+        ParquetFooterCache.invalidate(_.startsWith(dir.toURI.toString.stripSuffix("/")))
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.udaf
+
+import org.apache.kylin.measure.hllc.HLLCounter
+import org.apache.spark.sql.{Column, DataFrame, KylinFunctions}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.functions._
+
+class TestCountDistinctUDAF extends SparderBaseFunSuite with SharedSparkSession {
+
+  // cuboid rows of (segment, key) encoded like the cube build, with null and repeated values
+  private def cuboid: DataFrame = {
+    spark.range(0, 20000, 1, 4)
+      .select((col("id") % 3).as("segment"), (col("id") % 7).as("key"),
+        when(col("id") % 11 === 0, lit(null)).otherwise(col("id") % 5000).as("value"))
+      .groupBy("segment", "key")
+      .agg(Column(EncodePreciseCountDistinct(col("value").expr).toAggregateExpression()).as("bitmap"),
+        Column(EncodeApproxCountDistinct(col("value").expr, 14).toAggregateExpression()).as("hllc"))
+  }
+
+  test("merge serialized bitmaps and registers across rows") {
+    val expected = spark.range(0, 20000).where("id % 11 != 0").select((col("id") % 7).as("key"),
+      (col("id") % 5000).as("value"))
+      .groupBy("key").agg(countDistinct("value").as("count"))
+      .collect().map(row => (row.getLong(0), row.getLong(1))).toMap
+
+    val cuboidRows = cuboid.cache()
+    try {
+      val merged = cuboidRows.groupBy("key")
+        .agg(KylinFunctions.precise_count_distinct(col("bitmap")).as("precise"),
+          KylinFunctions.approx_count_distinct(col("hllc"), 14).as("approx"),
+          Column(ReuseApproxCountDistinct(col("hllc").expr, 14).toAggregateExpression()).as("reused"))
+        .collect()
+      assert(merged.length == expected.size)
+
+      // the same counter as merging the counters of the rows one by one
+      val byKey = cuboidRows.select("key", "hllc").collect().groupBy(_.getLong(0))
+      merged.foreach { row =>
+        val key = row.getLong(0)
+        assert(row.getLong(1) == expected(key), key)
+        val counter = new HLLCounter(14)
+        byKey(key).foreach { cuboidRow =>
+          val another = new HLLCounter(14)
+          another.readRegisters(java.nio.ByteBuffer.wrap(cuboidRow.getAs[Array[Byte]](1)))
+          counter.merge(another)
+        }
+        assert(row.getLong(2) == counter.getCountEstimate, key)
+        val reused = new HLLCounter(14)
+        reused.readRegisters(java.nio.ByteBuffer.wrap(row.getAs[Array[Byte]](3)))
+        assert((0 until (1 << 14)).forall(i => reused.getRegister.get(i) == counter.getRegister.get(i)), key)
+      }
+    } finally {
+      cuboidRows.unpersist()
+    }
+  }
+}
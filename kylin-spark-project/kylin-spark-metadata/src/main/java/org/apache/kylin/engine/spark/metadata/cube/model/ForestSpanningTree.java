@@ -97,6 +97,15 @@ public class ForestSpanningTree extends SpanningTree {
         return Collections2.transform(parentNode.children, TRANSFORM_FUNC::apply);
     }
 
+    @Override
+    public Collection<LayoutEntity> getUndecidedChildren(long parentId) {
+        return nodesMap.values().stream() //
+                .filter(node -> node.parent == null && node.parentCandidates != null) //
+                .filter(node -> node.parentCandidates.stream().anyMatch(c -> c.getId() == parentId)) //
+                .map(node -> node.indexEntity) //
+                .collect(Collectors.toList());
+    }
+
     @Override
     public Collection<LayoutEntity> getAllIndexEntities() {
         return Collections2.transform(nodesMap.values(), TRANSFORM_FUNC::apply);
@@ -134,6 +143,42 @@ public class ForestSpanningTree extends SpanningTree {
 
     }
 
+    @Override
+    public Map<LayoutEntity, List<LayoutEntity>> decideTheReadyChildren(LayoutEntity built, SegmentInfo segment) {
+        TreeNode builtNode = nodesMap.get(built.getId());
+        builtNode.hasBeenDecided = true;
+
+        // a child is ready once its parent candidates are all built, and the smallest of them built
+        // by this job is its parent, like a layer decides the parents from small to large
+        Comparator<LayoutEntity> c1 = Comparator.comparingLong(o -> o.rows);
+        Comparator<LayoutEntity> c2 = Comparator.comparingLong(LayoutEntity::getId);
+
+        Map<LayoutEntity, List<LayoutEntity>> decided = Maps.newLinkedHashMap();
+        for (TreeNode node : nodesMap.values()) {
+            if (node.parent != null || node.parentCandidates == null
+                    || node.parentCandidates.stream().noneMatch(en -> en.getId() == built.getId())
+                    || !node.parentCandidates.stream().allMatch(c -> isBuilt(c, segment))) {
+                continue;
+            }
+            LayoutEntity parent = node.parentCandidates.stream() //
+                    .filter(c -> nodesMap.get(c.getId()).hasBeenDecided) //
+                    .min(c1.thenComparing(c2)) //
+                    .orElse(built);
+            TreeNode parentNode = nodesMap.get(parent.getId());
+            node.level = parentNode.level + 1;
+            node.parent = parentNode;
+            parentNode.children.add(node);
+            decided.computeIfAbsent(parent, p -> Lists.newArrayList()).add(node.indexEntity);
+        }
+
+        logger.info("Adjust spanning tree. Built index entity: {}. Ready children: {}", built.getId(),
+                decided.entrySet().stream()
+                        .map(e -> e.getKey().getId() + "->"
+                                + Arrays.toString(e.getValue().stream().map(LayoutEntity::getId).toArray()))
+                        .collect(Collectors.joining(", ")));
+        return decided;
+    }
+
     private void adjustTree(LayoutEntity parent, SegmentInfo seg) {
         TreeNode parentNode = nodesMap.get(parent.getId());
 
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.metadata.cube.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Lists;
+
+/**
+ * Listing of the parquet files of a built layout, saved next to the files when the layout is
+ * built or merged, so that the query engine does not need to list the layout directory.
+ */
+public class LayoutFileManifest {
+
+    // hidden file, skipped by spark when reading the layout directory
+    public static final String FILE_NAME = "_manifest";
+
+    @JsonProperty("layout_id")
+    private long layoutId;
+
+    @JsonProperty("files")
+    private List<FileEntry> files = Lists.newArrayList();
+
+    public long getLayoutId() {
+        return layoutId;
+    }
+
+    public void setLayoutId(long layoutId) {
+        this.layoutId = layoutId;
+    }
+
+    public List<FileEntry> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<FileEntry> files) {
+        this.files = files;
+    }
+
+    public static class FileEntry {
+
+        @JsonProperty("file_name")
+        private String fileName;
+
+        @JsonProperty("length")
+        private long length;
+
+        @JsonProperty("modification_time")
+        private long modificationTime;
+
+        @JsonProperty("block_size")
+        private long blockSize;
+
+        @JsonProperty("replication")
+        private short replication;
+
+        // -1 when unknown
+        @JsonProperty("rows")
+        private long rows = -1;
+
+        @JsonProperty("blocks")
+        private List<Block> blocks = Lists.newArrayList();
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public void setFileName(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void setLength(long length) {
+            this.length = length;
+        }
+
+        public long getModificationTime() {
+            return modificationTime;
+        }
+
+        public void setModificationTime(long modificationTime) {
+            this.modificationTime = modificationTime;
+        }
+
+        public long getBlockSize() {
+            return blockSize;
+        }
+
+        public void setBlockSize(long blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        public short getReplication() {
+            return replication;
+        }
+
+        public void setReplication(short replication) {
+            this.replication = replication;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public void setRows(long rows) {
+            this.rows = rows;
+        }
+
+        public List<Block> getBlocks() {
+            return blocks;
+        }
+
+        public void setBlocks(List<Block> blocks) {
+            this.blocks = blocks;
+        }
+    }
+
+    /**
+     * Block location at build time, only a locality hint for scheduling.
+     */
+    public static class Block {
+
+        @JsonProperty("offset")
+        private long offset;
+
+        @JsonProperty("length")
+        private long length;
+
+        @JsonProperty("hosts")
+        private String[] hosts;
+
+        @JsonProperty("names")
+        private String[] names;
+
+        public Block() {
+        }
+
+        public Block(long offset, long length, String[] hosts, String[] names) {
+            this.offset = offset;
+            this.length = length;
+            this.hosts = hosts;
+            this.names = names;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String[] getHosts() {
+            return hosts;
+        }
+
+        public String[] getNames() {
+            return names;
+        }
+    }
+}
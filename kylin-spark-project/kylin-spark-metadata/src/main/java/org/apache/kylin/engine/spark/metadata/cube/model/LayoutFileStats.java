@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.engine.spark.metadata.cube.model;
+
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Per-file statistics of a built layout, saved next to the parquet files of the layout
+ * when the layout is built or merged, and used by the query engine to skip files.
+ * Column values are kept as strings, see FileStatsIndex for the encoding.
+ */
+public class LayoutFileStats {
+
+    // hidden file, skipped by spark when reading the layout directory
+    public static final String FILE_NAME = "_file_stats";
+
+    @JsonProperty("layout_id")
+    private long layoutId;
+
+    @JsonProperty("files")
+    private List<FileStats> files = Lists.newArrayList();
+
+    public long getLayoutId() {
+        return layoutId;
+    }
+
+    public void setLayoutId(long layoutId) {
+        this.layoutId = layoutId;
+    }
+
+    public List<FileStats> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<FileStats> files) {
+        this.files = files;
+    }
+
+    public static class FileStats {
+
+        @JsonProperty("file_name")
+        private String fileName;
+
+        @JsonProperty("rows")
+        private long rows;
+
+        // column id -> stats
+        @JsonProperty("columns")
+        private Map<Integer, ColumnStats> columns = Maps.newHashMap();
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public void setFileName(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public void setRows(long rows) {
+            this.rows = rows;
+        }
+
+        public Map<Integer, ColumnStats> getColumns() {
+            return columns;
+        }
+
+        public void setColumns(Map<Integer, ColumnStats> columns) {
+            this.columns = columns;
+        }
+    }
+
+    public static class ColumnStats {
+
+        // null when all values of the column are null
+        @JsonProperty("min")
+        private String min;
+
+        @JsonProperty("max")
+        private String max;
+
+        @JsonProperty("null_count")
+        private long nullCount;
+
+        public ColumnStats() {
+        }
+
+        public ColumnStats(String min, String max, long nullCount) {
+            this.min = min;
+            this.max = max;
+            this.nullCount = nullCount;
+        }
+
+        public String getMin() {
+            return min;
+        }
+
+        public String getMax() {
+            return max;
+        }
+
+        public long getNullCount() {
+            return nullCount;
+        }
+    }
+}
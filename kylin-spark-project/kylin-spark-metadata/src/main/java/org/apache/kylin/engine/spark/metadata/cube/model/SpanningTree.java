@@ -25,6 +25,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import org.apache.kylin.engine.spark.metadata.SegmentInfo;
 
 public abstract class SpanningTree implements Serializable {
@@ -46,8 +47,21 @@ public abstract class SpanningTree implements Serializable {
 
     abstract public void decideTheNextLayer(Collection<LayoutEntity> currentLayer, SegmentInfo segment);
 
+    /**
+     * Decide the children that can be built once the layout is built, instead of once its layer is built.
+     * Returns the decided children by their parents, which may be other built layouts than the given one.
+     */
+    abstract public Map<LayoutEntity, List<LayoutEntity>> decideTheReadyChildren(LayoutEntity built,
+            SegmentInfo segment);
+
     abstract public Collection<LayoutEntity> getChildrenByIndexPlan(LayoutEntity parent);
 
+    /**
+     * Returns the children not decided yet that may be built from the given layout, once their other
+     * parent candidates are built.
+     */
+    abstract public Collection<LayoutEntity> getUndecidedChildren(long parentId);
+
     abstract public Collection<LayoutEntity> getAllIndexEntities();
 
     public static class TreeNode implements Serializable {
@@ -25,6 +25,7 @@ import org.apache.kylin.source.adhocquery.AbstractPushdownRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
@@ -44,8 +45,6 @@ public class PushDownRunnerSparkImpl extends AbstractPushdownRunner {
         int columnCount = response.getColumns().size();
         List<StructField> fieldList = response.getColumns();
 
-        results.addAll(response.getRows());
-
         // fill in selected column meta
         for (int i = 0; i < columnCount; ++i) {
             int nullable = fieldList.get(i).isNullable() ? 1 : 0;
@@ -54,6 +53,12 @@ public class PushDownRunnerSparkImpl extends AbstractPushdownRunner {
                     null, fieldList.get(i).getPrecision(), fieldList.get(i).getScale(), fieldList.get(i).getDataType(),
                     fieldList.get(i).getDataTypeName(), false, false, false));
         }
+
+        // rows are added one by one as they are pulled, the results may hand them on instead of keeping them
+        Iterator<List<String>> rows = response.getRows();
+        while (rows.hasNext()) {
+            results.add(rows.next());
+        }
     }
 
     @Override
@@ -20,13 +20,14 @@ package org.apache.kylin.query.pushdown;
 
 import org.apache.kylin.engine.spark.metadata.cube.StructField;
 
+import java.util.Iterator;
 import java.util.List;
 
 public class PushdownResponse {
     private List<StructField> columns;
-    private List<List<String>> rows;
+    private Iterator<List<String>> rows;
 
-    public PushdownResponse(List<StructField> columns, List<List<String>> rows) {
+    public PushdownResponse(List<StructField> columns, Iterator<List<String>> rows) {
         this.columns = columns;
         this.rows = rows;
     }
@@ -35,7 +36,10 @@ public class PushdownResponse {
         return this.columns;
     }
 
-    public List<List<String>> getRows() {
+    /**
+     * Rows of the result, which may be pulled from executors as they are iterated.
+     */
+    public Iterator<List<String>> getRows() {
         return this.rows;
     }
 
@@ -43,7 +47,7 @@ public class PushdownResponse {
         this.columns = columns;
     }
 
-    public void setRows(List<List<String>> rows) {
+    public void setRows(Iterator<List<String>> rows) {
         this.rows = rows;
     }
 }
@@ -25,6 +25,7 @@ import org.apache.spark.sql.SparkSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
 
@@ -33,7 +34,7 @@ public class SparkSubmitter {
 
     public static PushdownResponse submitPushDownTask(String sql) {
         SparkSession ss = SparderContext.getSparkSession();
-        Pair<List<List<String>>, List<StructField>> pair = SparkSqlClient.executeSql(ss, sql, UUID.randomUUID());
+        Pair<Iterator<List<String>>, List<StructField>> pair = SparkSqlClient.executeSql(ss, sql, UUID.randomUUID());
         return new PushdownResponse(pair.getSecond(), pair.getFirst());
     }
 
@@ -18,7 +18,7 @@
 
 package org.apache.kylin.query.pushdown
 
-import java.util.{UUID, List => JList}
+import java.util.{UUID, ArrayList => JArrayList, Iterator => JIterator, List => JList}
 
 import org.apache.kylin.common.exceptions.KylinTimeoutException
 import org.apache.kylin.common.util.{HadoopUtil, Pair}
@@ -26,19 +26,22 @@ import org.apache.kylin.common.{KylinConfig, QueryContextFacade}
 import org.apache.kylin.engine.spark.metadata.cube.StructField
 import org.apache.kylin.query.runtime.plans.QueryToExecutionIDCache
 import org.apache.spark.network.util.JavaUtils
+import org.apache.spark.sql.catalyst.expressions.GenericRow
+import org.apache.spark.sql.execution.SparkPlan
 import org.apache.spark.sql.functions._
 import org.apache.spark.sql.hive.utils.{QueryMetricUtils, ResourceDetectUtils}
 import org.apache.spark.sql.types.StringType
 import org.apache.spark.sql.utils.SparkTypeUtil
-import org.apache.spark.sql.{DataFrame, SparkSession}
+import org.apache.spark.sql.{ArrowResultCollector, DataFrame, Row, SparkSession, StreamResultCollector}
 import org.slf4j.{Logger, LoggerFactory}
 
 import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
 
 object SparkSqlClient {
 	val logger: Logger = LoggerFactory.getLogger(classOf[SparkSqlClient])
 
-	def executeSql(ss: SparkSession, sql: String, uuid: UUID): Pair[JList[JList[String]], JList[StructField]] = {
+	def executeSql(ss: SparkSession, sql: String, uuid: UUID): Pair[JIterator[JList[String]], JList[StructField]] = {
 		ss.sparkContext.setLocalProperty("spark.scheduler.pool", "query_pushdown")
 		HadoopUtil.setCurrentConfiguration(ss.sparkContext.hadoopConfiguration)
 		val s = "Start to run sql with SparkSQL..."
@@ -73,7 +76,7 @@ object SparkSqlClient {
 		}
 	}
 
-	private def DFToList(ss: SparkSession, sql: String, uuid: UUID, df: DataFrame): Pair[JList[JList[String]], JList[StructField]] = {
+	private def DFToList(ss: SparkSession, sql: String, uuid: UUID, df: DataFrame): Pair[JIterator[JList[String]], JList[StructField]] = {
 		val jobGroup = Thread.currentThread.getName
 		ss.sparkContext.setJobGroup(jobGroup, s"Push down: $sql", interruptOnCancel = true)
 		try {
@@ -83,25 +86,78 @@ object SparkSqlClient {
 			val tempDF = df.toDF(temporarySchema: _*)
 			val columns = tempDF.schema.map(tp => col(s"`${tp.name}`").cast(StringType))
 			val frame = tempDF.select(columns: _*)
-			val rowList = frame.collect().map(_.toSeq.map(_.asInstanceOf[String]).asJava).toSeq.asJava
+			val config = KylinConfig.getInstanceFromEnv
+			if (isCacheEnabled(config)) {
+				QueryContextFacade.current().setPushDownSourcePaths(sourcePaths(frame.queryExecution.executedPlan).asJava)
+			}
+			// the result of a caller which hands the rows on without keeping all of them is returned as it is
+			// pulled from executors a wave of partitions at a time
+			val rows: Iterator[Row] =
+				if (config.isQueryStreamResultEnabled && QueryContextFacade.current().isStreamResult) {
+					StreamResultCollector.stream(frame, ss.sparkContext.defaultParallelism)
+				} else if (config.isArrowResultEnabled) {
+					ArrowResultCollector.collect(frame).iterator.map(new GenericRow(_))
+				} else {
+					frame.collect().iterator
+				}
+			val rowIterator = rows.map { row =>
+				val values = new JArrayList[String](row.length)
+				var i = 0
+				while (i < row.length) {
+					values.add(row.getString(i))
+					i += 1
+				}
+				values: JList[String]
+			}
 			val fieldList = df.schema.map(field => SparkTypeUtil.convertSparkFieldToJavaField(field)).asJava
 			val (scanRows, scanBytes) = QueryMetricUtils.collectScanMetrics(frame.queryExecution.executedPlan)
-			Pair.newPair(rowList, fieldList)
+			// the streamed rows fail while the caller iterates them, after this method returned
+			val iterator = new Iterator[JList[String]] {
+				override def hasNext: Boolean = handleErrors(ss, jobGroup)(rowIterator.hasNext)
+
+				override def next(): JList[String] = handleErrors(ss, jobGroup)(rowIterator.next())
+			}
+			Pair.newPair(iterator.asJava, fieldList)
 		} catch {
-			case e: Throwable =>
-				if (e.isInstanceOf[InterruptedException]) {
-					ss.sparkContext.cancelJobGroup(jobGroup)
-					logger.info("Query timeout ", e)
-					Thread.currentThread.interrupt()
-					throw new KylinTimeoutException("Query timeout after: " + KylinConfig.getInstanceFromEnv.getQueryTimeoutSeconds + "s")
-				}
-				else throw e
+			case e: InterruptedException =>
+				handleErrors(ss, jobGroup)(throw e)
 		} finally {
 			df.sparkSession.sessionState.conf.setLocalProperty("spark.sql.shuffle.partitions", null)
 			HadoopUtil.setCurrentConfiguration(null)
 		}
 	}
 
+	private def handleErrors[T](ss: SparkSession, jobGroup: String)(body: => T): T = {
+		try {
+			body
+		} catch {
+			case e: InterruptedException =>
+				ss.sparkContext.cancelJobGroup(jobGroup)
+				logger.info("Query timeout ", e)
+				Thread.currentThread.interrupt()
+				throw new KylinTimeoutException("Query timeout after: " + KylinConfig.getInstanceFromEnv.getQueryTimeoutSeconds + "s")
+		}
+	}
+
+	// the source paths only sign a pushdown result for the query cache
+	private def isCacheEnabled(config: KylinConfig): Boolean = {
+		config.isQueryCacheEnabled && config.isPushdownQueryCacheEnabled && config.isQueryCacheSignatureEnabled
+	}
+
+	/**
+	 * Source paths of the query, by which its cached result is signed. Empty if the query reads
+	 * anything else than files, e.g. a cached or a jdbc relation, whose changes are not known.
+	 */
+	private def sourcePaths(plan: SparkPlan): Seq[String] = {
+		try {
+			ResourceDetectUtils.getSourcePaths(plan).map(_.map(_.toString).distinct.sorted).getOrElse(Seq.empty)
+		} catch {
+			case NonFatal(e) =>
+				logger.warn("Failed to find the source paths of pushdown query.", e)
+				Seq.empty
+		}
+	}
+
 }
 
 class SparkSqlClient
@@ -157,7 +157,7 @@ object DerivedProcess {
                 .equalTo(col(newNames(pkIndex))))
           }
       }
-      df.join(newNameLookupDf, joinCol, derivedInfo.join.getType)
+      df.join(broadcastIfSmall(newNameLookupDf, kylinConfig), joinCol, derivedInfo.join.getType)
     }
 
     cubeInstance.getDescriptor.getHostToDerivedInfo(cuboid.getColumns, null)
@@ -186,6 +186,20 @@ object DerivedProcess {
     (joinedDf, DeriveSummary(hostToDerives, derivedColumnNameMapping))
   }
 
+  /**
+   * Small snapshots are broadcast to the cuboid scan tasks, which look up the derived columns
+   * themselves, rather than shuffling the cuboid data for a join. Snapshots cached by
+   * [[SparderLookupManager]] reuse their broadcasts.
+   */
+  private def broadcastIfSmall(lookupDf: DataFrame, kylinConfig: KylinConfig): DataFrame = {
+    val threshold = kylinConfig.getDerivedLookupBroadcastThresholdMB
+    if (threshold >= 0 && lookupDf.queryExecution.optimizedPlan.stats.sizeInBytes <= threshold * 1024 * 1024) {
+      broadcast(lookupDf)
+    } else {
+      lookupDf
+    }
+  }
+
   def getLookupTablePathAndPkIndex(deriveInfo: DeriveInfo, cubeInstance: CubeInstance, alias: String):
   (String, String, String, Array[Int]) = {
     val segment = cubeInstance.getLatestReadySegment
@@ -15,37 +15,49 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+
 package org.apache.kylin.query.runtime
 
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{Callable, TimeUnit}
 
-import com.google.common.cache.{Cache, CacheBuilder, RemovalListener, RemovalNotification}
+import com.google.common.cache.{Cache, CacheBuilder, RemovalListener, RemovalNotification, Weigher}
 import org.apache.kylin.common.KylinConfig
 import org.apache.kylin.metadata.TableMetadataManager
 import org.apache.kylin.query.DeriveTableColumnInfo
 import org.apache.spark.internal.Logging
+import org.apache.spark.sql.execution.CachedLookupTable
 import org.apache.spark.sql.types.{StructField, StructType}
 import org.apache.spark.sql.{DataFrame, Dataset, Row, SparderContext}
 import org.apache.spark.sql.utils.SparkTypeUtil
 
 // scalastyle:off
 object SparderLookupManager extends Logging {
-  val DEFAULT_MAXSIZE = 100
   val DEFAULT_EXPIRE_TIME = 1
   val DEFAULT_TIME_UNIT = TimeUnit.HOURS
 
-  val sourceCache: Cache[String, Dataset[Row]] = CacheBuilder.newBuilder
-    .maximumSize(DEFAULT_MAXSIZE)
-    .expireAfterWrite(DEFAULT_EXPIRE_TIME, DEFAULT_TIME_UNIT)
-    .removalListener(new RemovalListener[String, Dataset[Row]]() {
+  private lazy val maxBytes = KylinConfig.getInstanceFromEnv.getLookupTableCacheSizeMB * 1024 * 1024
+
+  // snapshot path -> snapshot, snapshots too large to be cached are kept as None
+  // a single segment, so that the whole budget is shared by all tables
+  lazy val sourceCache: Cache[String, Option[CachedLookupTable]] = CacheBuilder.newBuilder
+    .concurrencyLevel(1)
+    .maximumWeight(maxBytes)
+    .weigher(new Weigher[String, Option[CachedLookupTable]] {
+      // the rows, and about as much for the hashed relations built on them
+      override def weigh(key: String, value: Option[CachedLookupTable]): Int = {
+        value.map(table => math.min(table.sizeInBytes * 2, Int.MaxValue).toInt).getOrElse(1)
+      }
+    })
+    .expireAfterAccess(DEFAULT_EXPIRE_TIME, DEFAULT_TIME_UNIT)
+    .removalListener(new RemovalListener[String, Option[CachedLookupTable]]() {
       override def onRemoval(
-        notification: RemovalNotification[String, Dataset[Row]]): Unit = {
+        notification: RemovalNotification[String, Option[CachedLookupTable]]): Unit = {
         logInfo("Remove lookup table from spark : " + notification.getKey)
-        notification.getValue.unpersist()
+        notification.getValue.foreach(_.release())
       }
     })
     .build
-    .asInstanceOf[Cache[String, Dataset[Row]]]
+    .asInstanceOf[Cache[String, Option[CachedLookupTable]]]
 
   def create(
     name: String,
@@ -76,11 +88,34 @@ object SparderLookupManager extends Logging {
     name: String,
     sourcePath: String,
     kylinConfig: KylinConfig): DataFrame = {
-    val value = sourceCache.getIfPresent(sourcePath)
-    if (value != null) {
-      value
+    if (!kylinConfig.isLookupTableCacheEnabled) {
+      return create(name, sourcePath, kylinConfig)
+    }
+    // cubes may use different snapshots of a table at the same time, the replaced ones expire
+    val value = sourceCache.get(sourcePath, new Callable[Option[CachedLookupTable]] {
+      override def call(): Option[CachedLookupTable] = load(name, sourcePath, kylinConfig)
+    })
+    value match {
+      case Some(table) => table.toDF(SparderContext.getSparkSession)
+      case None => create(name, sourcePath, kylinConfig)
+    }
+  }
+
+  private def load(name: String, sourcePath: String, kylinConfig: KylinConfig): Option[CachedLookupTable] = {
+    val maxTableBytes = maxBytes / 4
+    val df = create(name, sourcePath, kylinConfig)
+    // files size first, so that large snapshots are not collected
+    if (df.queryExecution.optimizedPlan.stats.sizeInBytes > maxTableBytes) {
+      logInfo(s"Lookup table $name is too large to be cached, snapshot $sourcePath")
+      return None
+    }
+    val table = CachedLookupTable(name, df)
+    if (table.sizeInBytes > maxTableBytes) {
+      logInfo(s"Lookup table $name of ${table.sizeInBytes} bytes is too large to be cached, snapshot $sourcePath")
+      None
     } else {
-      create(name, sourcePath, kylinConfig)
+      logInfo(s"Cache lookup table $name of ${table.rows.length} rows, ${table.sizeInBytes} bytes, snapshot $sourcePath")
+      Some(table)
     }
   }
 }
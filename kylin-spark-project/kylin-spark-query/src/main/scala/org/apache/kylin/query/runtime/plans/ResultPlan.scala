@@ -20,13 +20,16 @@ package org.apache.kylin.query.runtime.plans
 import com.google.common.cache.{Cache, CacheBuilder}
 import com.google.common.collect.Lists
 import org.apache.calcite.linq4j.{Enumerable, Linq4j}
-import org.apache.calcite.rel.`type`.RelDataType
+import org.apache.calcite.rel.`type`.{RelDataType, RelDataTypeField}
 import org.apache.kylin.common.exceptions.KylinTimeoutException
 import org.apache.kylin.common.{KylinConfig, QueryContext, QueryContextFacade}
 import org.apache.kylin.common.util.HadoopUtil
+import org.apache.kylin.query.runtime.plans.CollectMode.CollectMode
 import org.apache.kylin.query.runtime.plans.ResultType.ResultType
+import org.apache.spark.SparkContext
 import org.apache.spark.internal.Logging
-import org.apache.spark.sql.{DataFrame, SparderContext}
+import org.apache.spark.sql.{ArrowResultCollector, DataFrame, LocalQueryExecutor, Row, SparderContext, StreamResultCollector}
+import org.apache.spark.sql.execution.datasource.ScanPartitions
 import org.apache.spark.sql.hive.utils.QueryMetricUtils
 import org.apache.spark.sql.utils.SparkTypeUtil
 
@@ -38,52 +41,55 @@ object ResultType extends Enumeration {
   val ASYNC, NORMAL, SCALA = Value
 }
 
-object ResultPlan extends Logging {
-  val PARTITION_SPLIT_BYTES: Long = KylinConfig.getInstanceFromEnv.getQueryPartitionSplitSizeMB * 1024 * 1024 // 64MB
+object CollectMode extends Enumeration {
+  type CollectMode = Value
+  val LOCAL, STREAM, ARROW, ROWS = Value
+}
 
+object ResultPlan extends Logging {
   def collectEnumerable(
     df: DataFrame,
     rowType: RelDataType): Enumerable[Array[Any]] = {
-    val rowsItr: Array[Array[Any]] = collectInternal(df, rowType)
-    Linq4j.asEnumerable(rowsItr.array)
+    val rowsItr: Iterable[Array[Any]] = collectInternal(df, rowType)
+    Linq4j.asEnumerable(rowsItr.asJava)
   }
 
   def collectScalarEnumerable(
     df: DataFrame,
     rowType: RelDataType): Enumerable[Any] = {
-    val rowsItr: Array[Array[Any]] = collectInternal(df, rowType)
-    val x = rowsItr.toIterable.map(a => a.apply(0)).asJava
+    val rowsItr: Iterable[Array[Any]] = collectInternal(df, rowType)
+    val x = rowsItr.view.map(a => a.apply(0)).asJava
     Linq4j.asEnumerable(x)
   }
 
   private def collectInternal(
     df: DataFrame,
-    rowType: RelDataType): Array[Array[Any]] = {
+    rowType: RelDataType): Iterable[Array[Any]] = {
     val resultTypes = rowType.getFieldList.asScala
     val jobGroup = Thread.currentThread().getName
-    val sparkContext = SparderContext.getSparkSession.sparkContext
+    val sparkContext = df.sparkSession.sparkContext
     val kapConfig = KylinConfig.getInstanceFromEnv
-    var pool = "heavy_tasks"
+    val liveCores = ScanPartitions.liveCores(sparkContext)
     val partitionsNum =
       if (kapConfig.getSparkSqlShufflePartitions != -1) {
         kapConfig.getSparkSqlShufflePartitions
       } else {
-        Math.min(QueryContextFacade.current().getSourceScanBytes / PARTITION_SPLIT_BYTES + 1,
-          SparderContext.getTotalCore).toInt
+        ScanPartitions.shufflePartitions(kapConfig, QueryContextFacade.current().getSourceScanBytes,
+          QueryContextFacade.current().getSourceScanRows, liveCores)
       }
+    df.sparkSession.sessionState.conf.setLocalProperty("spark.sql.shuffle.partitions", partitionsNum.toString)
+    var pool = "heavy_tasks"
     if (QueryContextFacade.current().isHighPriorityQuery) {
       pool = "vip_tasks"
     } else if (QueryContextFacade.current().isTableIndex) {
       pool = "extreme_heavy_tasks"
-    } else if (partitionsNum <= SparderContext.getTotalCore) {
-      pool = "lightweight_tasks"
     }
 
-    // set priority
+    // set priority, and the job group before the query is planned: runtime filter values and segment
+    // results are collected by jobs while planning, which are cancelled along with the query
     sparkContext.setLocalProperty("spark.scheduler.pool", pool)
     val queryId = QueryContextFacade.current().getQueryId
     sparkContext.setLocalProperty(QueryToExecutionIDCache.KYLIN_QUERY_ID_KEY, queryId)
-    df.sparkSession.sessionState.conf.setLocalProperty("spark.sql.shuffle.partitions", partitionsNum.toString)
     QueryContextFacade.current().setDataset(df)
 
     sparkContext.setJobGroup(jobGroup,
@@ -91,24 +97,79 @@ object ResultPlan extends Logging {
       "sparder",
       interruptOnCancel = true)
     try {
-      val rows = df.collect()
+      // plan the query first, the scans of cuboids reset the shuffle partitions by the files left after pruning
+      df.queryExecution.executedPlan
+      val scanTasks = ScanPartitions.scanTasks(kapConfig, QueryContextFacade.current().getSourceScanBytes,
+        QueryContextFacade.current().getSourceScanRows)
+      if (pool == "heavy_tasks" && scanTasks <= liveCores) {
+        pool = "lightweight_tasks"
+        sparkContext.setLocalProperty("spark.scheduler.pool", pool)
+      }
+
+      // small queries run in the query server without spark jobs, and rows of a large result are
+      // never all materialized on the driver: they are collected as arrow batches which are decoded
+      // lazily, or streamed to a caller which hands them on as they are read
+      val rows: Iterable[Array[Any]] = collectMode(df, kapConfig) match {
+        case CollectMode.LOCAL =>
+          LocalQueryExecutor.collect(df).map(toCalciteRow(_, resultTypes)).toArray.toIterable
+        case CollectMode.STREAM =>
+          streamRows(df, pool, liveCores).view.map(toCalciteRow(_, resultTypes))
+        case CollectMode.ARROW =>
+          ArrowResultCollector.collect(df, resultTypes.map(_.getType))
+        case CollectMode.ROWS =>
+          df.collect().map(toCalciteRow(_, resultTypes)).toIterable
+      }
       val (scanRows, scanBytes) = QueryMetricUtils.collectScanMetrics(df.queryExecution.executedPlan)
       //      QueryContextFacade.current().setScanRows(scanRows)
       //      QueryContextFacade.current().setScanBytes(scanBytes)
-      val dt = rows.map { row =>
-        var rowIndex = 0
-        row.toSeq.map { cell => {
-          var vale = cell
-          val rType = resultTypes.apply(rowIndex).getType
-          val value = SparkTypeUtil.convertStringToValue(vale,
-            rType,
-            toCalcite = true)
-          rowIndex = rowIndex + 1
-          value
+      // the lazily decoded or streamed rows fail while calcite iterates them, after this method
+      // returned, so they are handled the same way there
+      new Iterable[Array[Any]] {
+        override def iterator: Iterator[Array[Any]] = new Iterator[Array[Any]] {
+          private val itr = handleErrors(sparkContext, jobGroup)(rows.iterator)
+
+          override def hasNext: Boolean = handleErrors(sparkContext, jobGroup)(itr.hasNext)
+
+          override def next(): Array[Any] = handleErrors(sparkContext, jobGroup)(itr.next())
         }
-        }.toArray
       }
-      dt
+    } catch {
+      case e: InterruptedException =>
+        handleErrors(sparkContext, jobGroup)(throw e)
+    } finally {
+      //      QueryContextFacade.current().setExecutionID(QueryToExecutionIDCache.getQueryExecutionID(queryId))
+    }
+  }
+
+  private[plans] def collectMode(df: DataFrame, kapConfig: KylinConfig): CollectMode = {
+    if (isLocalQuery(df, kapConfig)) {
+      CollectMode.LOCAL
+    } else if (kapConfig.isQueryStreamResultEnabled && QueryContextFacade.current().isStreamResult) {
+      CollectMode.STREAM
+    } else if (kapConfig.isArrowResultEnabled && ArrowResultCollector.isSupported(df.schema)) {
+      CollectMode.ARROW
+    } else {
+      CollectMode.ROWS
+    }
+  }
+
+  private def toCalciteRow(row: Row, resultTypes: Seq[RelDataTypeField]): Array[Any] = {
+    var rowIndex = 0
+    row.toSeq.map { cell => {
+      var vale = cell
+      val rType = resultTypes.apply(rowIndex).getType
+      val value = SparkTypeUtil.convertStringToValue(vale,
+        rType,
+        toCalcite = true)
+      rowIndex = rowIndex + 1
+      value
+    }
+    }.toArray
+  }
+
+  private def handleErrors[T](sparkContext: SparkContext, jobGroup: String)(body: => T): T = {
+    try {
+      body
     } catch {
       case e: InterruptedException =>
         //        QueryContextFacade.current().setTimeout(true)
@@ -118,8 +179,33 @@ object ResultPlan extends Logging {
           e)
         throw new KylinTimeoutException(
           s"Query timeout after: ${KylinConfig.getInstanceFromEnv.getQueryTimeoutSeconds}s");
-    } finally {
-      //      QueryContextFacade.current().setExecutionID(QueryToExecutionIDCache.getQueryExecutionID(queryId))
+    }
+  }
+
+  private def isLocalQuery(df: DataFrame, kapConfig: KylinConfig): Boolean = {
+    val thresholdMB = kapConfig.getQueryLocalExecutionThresholdMB
+    val local = thresholdMB >= 0 &&
+      LocalQueryExecutor.canExecute(df.queryExecution.executedPlan, thresholdMB * 1024 * 1024)
+    if (local) {
+      logInfo(s"Run query in the query server, scanning ${QueryContextFacade.current().getSourceScanBytes} bytes")
+    }
+    local
+  }
+
+  /**
+   * Pull the result a wave of partitions at a time, so that the driver only holds the rows of a
+   * wave and the first rows are handed on before the last partitions are computed.
+   */
+  private def streamRows(df: DataFrame, pool: String, liveCores: Int): Iterable[Row] = {
+    val sparkContext = df.sparkSession.sparkContext
+    val queryId = QueryContextFacade.current().getQueryId
+    new Iterable[Row] {
+      override def iterator: Iterator[Row] = {
+        // jobs are submitted while iterating, after withScope cleared the scheduler pool
+        sparkContext.setLocalProperty("spark.scheduler.pool", pool)
+        sparkContext.setLocalProperty(QueryToExecutionIDCache.KYLIN_QUERY_ID_KEY, queryId)
+        StreamResultCollector.stream(df, liveCores)
+      }
     }
   }
 
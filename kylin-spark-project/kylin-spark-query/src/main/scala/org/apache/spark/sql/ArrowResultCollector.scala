@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql
+
+import java.io.ByteArrayInputStream
+import java.nio.channels.Channels
+import java.util.TimeZone
+
+import org.apache.arrow.vector.{VectorLoader, VectorSchemaRoot}
+import org.apache.arrow.vector.ipc.ReadChannel
+import org.apache.arrow.vector.ipc.message.MessageSerializer
+import org.apache.calcite.rel.`type`.RelDataType
+import org.apache.calcite.sql.`type`.SqlTypeName
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.catalyst.CatalystTypeConverters
+import org.apache.spark.sql.catalyst.util.DateTimeUtils
+import org.apache.spark.sql.execution.SQLExecution
+import org.apache.spark.sql.execution.arrow.ArrowUtils
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.utils.SparkTypeUtil
+import org.apache.spark.sql.vectorized.{ArrowColumnVector, ColumnVector}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Collects query results from executors as arrow record batches instead of rows.
+ *
+ * Batches are columnar and compact, and they are only decoded, one batch at a time, when the
+ * result is iterated, so the driver never holds all rows of a large result as objects. Cells are
+ * converted to the values calcite expects straight from the arrow vectors, without building rows.
+ */
+object ArrowResultCollector extends Logging {
+
+  private type CellConverter = (ColumnVector, Int) => Any
+
+  def isSupported(schema: StructType): Boolean = {
+    schema.fields.forall { field =>
+      field.dataType match {
+        case BooleanType | ByteType | ShortType | IntegerType | LongType | FloatType | DoubleType => true
+        case StringType | BinaryType | DateType | TimestampType => true
+        case _: DecimalType => true
+        case _ => false
+      }
+    }
+  }
+
+  /**
+   * Run the query and collect its result as arrow batches, the returned rows can be iterated more
+   * than once, each time decoding the batches again.
+   *
+   * The cell converters are chosen before the query runs, so a result type that can not be
+   * converted fails here instead of while the result is iterated.
+   */
+  def collect(df: DataFrame, resultTypes: Seq[RelDataType]): Iterable[Array[Any]] = {
+    collect(df, df.schema.fields.zip(resultTypes).map { case (field, rType) =>
+      cellConverter(field.dataType, rType)
+    })
+  }
+
+  /**
+   * Same as above, giving the cells as the external values spark rows hold.
+   */
+  def collect(df: DataFrame): Iterable[Array[Any]] = {
+    collect(df, df.schema.fields.map { field =>
+      val toScala = CatalystTypeConverters.createToScalaConverter(field.dataType)
+      (v: ColumnVector, i: Int) => toScala(cell(v, i, field.dataType))
+    })
+  }
+
+  private def collect(df: DataFrame, converters: Array[CellConverter]): Iterable[Array[Any]] = {
+    val schema = df.schema
+    val batches = SQLExecution.withNewExecutionId(df.sparkSession, df.queryExecution) {
+      df.toArrowBatchRdd(df.queryExecution.executedPlan).collect()
+    }
+    logInfo(s"Collected ${batches.length} arrow batches of ${batches.map(_.length.toLong).sum} bytes.")
+
+    val timeZoneId = df.sparkSession.sessionState.conf.sessionLocalTimeZone
+    new Iterable[Array[Any]] {
+      override def iterator: Iterator[Array[Any]] =
+        batches.iterator.flatMap(decode(_, schema, converters, timeZoneId))
+    }
+  }
+
+  // decode a whole batch at once, so that its arrow buffers are released right away
+  private def decode(
+      batch: Array[Byte],
+      schema: StructType,
+      converters: Array[CellConverter],
+      timeZoneId: String): Array[Array[Any]] = {
+    val allocator = ArrowUtils.rootAllocator.newChildAllocator("sparder result", 0, Long.MaxValue)
+    val root = VectorSchemaRoot.create(ArrowUtils.toArrowSchema(schema, timeZoneId), allocator)
+    try {
+      // same as ArrowConverters.loadBatch, which is private to the arrow package
+      val recordBatch = MessageSerializer.deserializeRecordBatch(
+        new ReadChannel(Channels.newChannel(new ByteArrayInputStream(batch))), allocator)
+      try {
+        new VectorLoader(root).load(recordBatch)
+      } finally {
+        recordBatch.close()
+      }
+      val columns: Array[ColumnVector] = root.getFieldVectors.asScala.map(new ArrowColumnVector(_)).toArray
+      Array.tabulate(root.getRowCount) { rowId =>
+        val values = new Array[Any](columns.length)
+        var i = 0
+        while (i < columns.length) {
+          values(i) = if (columns(i).isNullAt(rowId)) null else converters(i)(columns(i), rowId)
+          i += 1
+        }
+        values
+      }
+    } finally {
+      root.close()
+      allocator.close()
+    }
+  }
+
+  /**
+   * Converts cells of a spark type to the calcite type of the column, giving the same values as
+   * SparkTypeUtil.convertStringToValue does for the collected rows.
+   */
+  private def cellConverter(dataType: DataType, rType: RelDataType): CellConverter = {
+    (dataType, rType.getSqlTypeName) match {
+      case (BooleanType, SqlTypeName.BOOLEAN) => (v, i) => v.getBoolean(i)
+      case (ByteType, SqlTypeName.TINYINT) => (v, i) => v.getByte(i)
+      case (ShortType, SqlTypeName.SMALLINT) => (v, i) => v.getShort(i)
+      case (IntegerType, SqlTypeName.INTEGER) => (v, i) => v.getInt(i)
+      case (LongType, SqlTypeName.BIGINT) => (v, i) => v.getLong(i)
+      case (DoubleType, SqlTypeName.DOUBLE | SqlTypeName.FLOAT) => (v, i) => v.getDouble(i)
+      case (StringType, SqlTypeName.VARCHAR | SqlTypeName.CHAR) => (v, i) => v.getUTF8String(i).toString
+      case (t: DecimalType, SqlTypeName.DECIMAL) =>
+        val scale = rType.getScale
+        (v, i) => {
+          val decimal = v.getDecimal(i, t.precision, t.scale).toJavaBigDecimal
+          if (decimal.scale > 0) decimal.setScale(scale, java.math.BigDecimal.ROUND_HALF_EVEN) else decimal
+        }
+      // days since epoch, as calcite keeps dates
+      case (DateType, SqlTypeName.DATE) => (v, i) => v.getInt(i)
+      // calcite takes the local wall clock time as utc millis
+      case (TimestampType, SqlTypeName.TIMESTAMP | SqlTypeName.TIME) => (v, i) => {
+        val millis = DateTimeUtils.toJavaTimestamp(v.getLong(i)).getTime
+        millis + TimeZone.getDefault.getOffset(millis)
+      }
+      case _ =>
+        val toScala = CatalystTypeConverters.createToScalaConverter(dataType)
+        (v, i) => SparkTypeUtil.convertStringToValue(toScala(cell(v, i, dataType)), rType, toCalcite = true)
+    }
+  }
+
+  private def cell(vector: ColumnVector, rowId: Int, dataType: DataType): Any = dataType match {
+    case BooleanType => vector.getBoolean(rowId)
+    case ByteType => vector.getByte(rowId)
+    case ShortType => vector.getShort(rowId)
+    case IntegerType | DateType => vector.getInt(rowId)
+    case LongType | TimestampType => vector.getLong(rowId)
+    case FloatType => vector.getFloat(rowId)
+    case DoubleType => vector.getDouble(rowId)
+    case StringType => vector.getUTF8String(rowId)
+    case BinaryType => vector.getBinary(rowId)
+    case t: DecimalType => vector.getDecimal(rowId, t.precision, t.scale)
+  }
+}
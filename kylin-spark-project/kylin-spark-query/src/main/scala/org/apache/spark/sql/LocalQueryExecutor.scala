@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql
+
+import java.io.Closeable
+
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.catalyst.expressions.aggregate.{AggregateExpression, AggregateMode, DeclarativeAggregate, Final, Partial}
+import org.apache.spark.sql.catalyst.expressions.codegen.{GenerateMutableProjection, GenerateOrdering, GeneratePredicate}
+import org.apache.spark.sql.catalyst.expressions.{Attribute, EmptyRow, JoinedRow, SpecificInternalRow, UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.catalyst.{CatalystTypeConverters, InternalRow}
+import org.apache.spark.sql.execution._
+import org.apache.spark.sql.execution.aggregate.HashAggregateExec
+import org.apache.spark.sql.execution.datasources.{DataSourceStrategy, PartitionedFile}
+import org.apache.spark.sql.execution.exchange.ShuffleExchangeExec
+import org.apache.spark.sql.vectorized.ColumnarBatch
+import org.apache.spark.util.Utils
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Runs the physical plan of a small query in the calling thread, without submitting spark jobs.
+ *
+ * Queries answered by a few MB of a cuboid spend more time in job and stage scheduling than in
+ * reading the files. For those, the selected files are read with the vectorized parquet reader of
+ * the scan in the query server, and filters, projections, aggregates, sorts and limits of the plan
+ * are evaluated on the rows with the same generated code as in the executors. Plans with other
+ * operators, like joins, windows or imperative aggregates, are not supported and run as usual.
+ */
+object LocalQueryExecutor extends Logging {
+
+  /**
+   * Whether the plan only has supported operators and its scans read at most maxBytes after pruning.
+   */
+  def canExecute(plan: SparkPlan, maxBytes: Long): Boolean = {
+    val local = unwrap(plan)
+    isSupported(local) && scanBytes(local) <= maxBytes
+  }
+
+  def collect(df: DataFrame): Iterable[Row] = {
+    val plan = unwrap(df.queryExecution.executedPlan)
+    val toRow = CatalystTypeConverters.createToScalaConverter(df.schema)
+    // there is no task whose completion closes the readers, a limit leaves them open
+    val readers = new ArrayBuffer[Closeable]
+    try {
+      execute(plan, readers).map(row => toRow(row).asInstanceOf[Row]).toArray.toIterable
+    } finally {
+      readers.foreach(reader => Utils.tryLogNonFatalError(reader.close()))
+    }
+  }
+
+  // codegen stages are only boundaries of generated code
+  private def unwrap(plan: SparkPlan): SparkPlan = plan.transform {
+    case stage: WholeStageCodegenExec => stage.child
+    case adapter: InputAdapter => adapter.child
+  }
+
+  // a single partition needs no exchange
+  private def withoutExchange(plan: SparkPlan): SparkPlan = plan match {
+    case exchange: ShuffleExchangeExec => exchange.child
+    case other => other
+  }
+
+  private def isSupported(plan: SparkPlan): Boolean = plan.subqueries.isEmpty && (plan match {
+    case _: FileSourceScanExec | _: LocalTableScanExec => true
+    case _: ProjectExec | _: FilterExec | _: SortExec | _: TakeOrderedAndProjectExec =>
+      plan.children.forall(isSupported)
+    case _: CollectLimitExec | _: LocalLimitExec | _: GlobalLimitExec | _: UnionExec | _: ShuffleExchangeExec =>
+      plan.children.forall(isSupported)
+    case agg: HashAggregateExec =>
+      finalWithPartial(agg).exists(partial => partial.subqueries.isEmpty && isSupported(partial.child))
+    case _ => false
+  })
+
+  // only the two phases of aggregates without distinct, the partial one is run in place of the final one
+  private def finalWithPartial(agg: HashAggregateExec): Option[HashAggregateExec] = {
+    def isDeclarative(aggs: Seq[AggregateExpression], mode: AggregateMode): Boolean = aggs.forall { expr =>
+      expr.mode == mode && !expr.isDistinct && expr.aggregateFunction.isInstanceOf[DeclarativeAggregate]
+    }
+
+    withoutExchange(agg.child) match {
+      case partial: HashAggregateExec
+        if isDeclarative(agg.aggregateExpressions, Final) && isDeclarative(partial.aggregateExpressions, Partial)
+          && agg.aggregateExpressions.map(_.aggregateFunction) == partial.aggregateExpressions.map(_.aggregateFunction) =>
+        Some(partial)
+      case _ =>
+        None
+    }
+  }
+
+  private def scanBytes(plan: SparkPlan): Long = plan.collect {
+    case scan: FileSourceScanExec =>
+      scan.relation.location.listFiles(scan.partitionFilters, scan.dataFilters).flatMap(_.files).map(_.getLen).sum
+  }.sum
+
+  private def execute(plan: SparkPlan, readers: ArrayBuffer[Closeable]): Iterator[InternalRow] = plan match {
+    case scan: FileSourceScanExec =>
+      readFiles(scan, readers)
+    case scan: LocalTableScanExec =>
+      scan.executeCollect().iterator
+    case project: ProjectExec =>
+      val projection = UnsafeProjection.create(project.projectList, project.child.output)
+      projection.initialize(0)
+      execute(project.child, readers).map(row => projection(row).copy())
+    case filter: FilterExec =>
+      val predicate = GeneratePredicate.generate(filter.condition, filter.child.output)
+      predicate.initialize(0)
+      execute(filter.child, readers).filter(predicate.eval)
+    case sort: SortExec =>
+      val ordering = GenerateOrdering.generate(sort.sortOrder, sort.child.output)
+      execute(sort.child, readers).toArray.sorted(ordering).iterator
+    case take: TakeOrderedAndProjectExec =>
+      val ordering = GenerateOrdering.generate(take.sortOrder, take.child.output)
+      val projection = UnsafeProjection.create(take.projectList, take.child.output)
+      execute(take.child, readers).toArray.sorted(ordering).iterator.take(take.limit).map(row => projection(row).copy())
+    case limit: CollectLimitExec =>
+      execute(limit.child, readers).take(limit.limit)
+    case limit: LocalLimitExec =>
+      execute(limit.child, readers).take(limit.limit)
+    case limit: GlobalLimitExec =>
+      execute(limit.child, readers).take(limit.limit)
+    case union: UnionExec =>
+      union.children.iterator.flatMap(execute(_, readers))
+    case exchange: ShuffleExchangeExec =>
+      execute(exchange.child, readers)
+    case agg: HashAggregateExec =>
+      aggregate(agg, finalWithPartial(agg).get, readers)
+  }
+
+  /**
+   * Read the selected files, counting the files, rows and bytes in the metrics of the scan as
+   * its tasks would.
+   */
+  private def readFiles(scan: FileSourceScanExec, readers: ArrayBuffer[Closeable]): Iterator[InternalRow] = {
+    val relation = scan.relation
+    val read = relation.fileFormat.buildReaderWithPartitionValues(
+      sparkSession = relation.sparkSession,
+      dataSchema = relation.dataSchema,
+      partitionSchema = relation.partitionSchema,
+      requiredSchema = scan.requiredSchema,
+      filters = scan.dataFilters.flatMap(DataSourceStrategy.translateFilter),
+      options = relation.options,
+      hadoopConf = relation.sparkSession.sessionState.newHadoopConfWithOptions(relation.options))
+    val files = relation.location.listFiles(scan.partitionFilters, scan.dataFilters).flatMap { partition =>
+      partition.files.map { file =>
+        PartitionedFile(partition.values, file.getPath.toUri.toString, 0, file.getLen)
+      }
+    }
+    val numOutputRows = scan.metrics("numOutputRows")
+    scan.metrics.get("numFiles").foreach(_.add(files.size))
+    files.iterator.flatMap { file =>
+      checkInterrupted()
+      val rows = read(file)
+      rows match {
+        case reader: Closeable => readers += reader
+        case _ =>
+      }
+      scan.metrics.get("readBytes").foreach(_.add(file.length))
+      if (scan.supportsBatch) {
+        // batches are reused by the reader
+        rows.asInstanceOf[Iterator[ColumnarBatch]].flatMap { batch =>
+          checkInterrupted()
+          numOutputRows.add(batch.numRows())
+          batch.rowIterator().asScala.map(_.copy())
+        }
+      } else {
+        rows.map { row =>
+          numOutputRows.add(1)
+          row.copy()
+        }
+      }
+    }
+  }
+
+  /**
+   * Aggregate the input of the partial aggregate, and produce the result of the final one.
+   */
+  private def aggregate(
+      agg: HashAggregateExec,
+      partial: HashAggregateExec,
+      readers: ArrayBuffer[Closeable]): Iterator[InternalRow] = {
+    val functions = partial.aggregateExpressions.map(_.aggregateFunction.asInstanceOf[DeclarativeAggregate])
+    val bufferAttributes = functions.flatMap(_.aggBufferAttributes)
+    val input = partial.child.output
+
+    val groupingKey = UnsafeProjection.create(partial.groupingExpressions, input)
+    val initialize = GenerateMutableProjection.generate(functions.flatMap(_.initialValues), Nil, false)
+    val update = GenerateMutableProjection.generate(functions.flatMap(_.updateExpressions),
+      bufferAttributes ++ input, false)
+    val evaluate = UnsafeProjection.create(functions.map(_.evaluateExpression), bufferAttributes)
+    val groupingAttributes: Seq[Attribute] = agg.groupingExpressions.map(_.toAttribute)
+    val result = UnsafeProjection.create(agg.resultExpressions, groupingAttributes ++ agg.aggregateAttributes)
+
+    def newBuffer(): InternalRow = {
+      val buffer = new SpecificInternalRow(bufferAttributes.map(_.dataType))
+      initialize.target(buffer)(EmptyRow)
+      buffer
+    }
+
+    val buffers = new java.util.LinkedHashMap[UnsafeRow, InternalRow]()
+    val joined = new JoinedRow
+    execute(partial.child, readers).foreach { row =>
+      val key = groupingKey(row)
+      var buffer = buffers.get(key)
+      if (buffer == null) {
+        buffer = newBuffer()
+        buffers.put(key.copy(), buffer)
+      }
+      update.target(buffer)(joined(buffer, row))
+    }
+    // a global aggregate has a result even without input
+    if (buffers.isEmpty && agg.groupingExpressions.isEmpty) {
+      buffers.put(groupingKey(EmptyRow).copy(), newBuffer())
+    }
+
+    buffers.entrySet().iterator().asScala.map { entry =>
+      result(joined(entry.getKey, evaluate(entry.getValue))).copy()
+    }
+  }
+
+  private def checkInterrupted(): Unit = {
+    if (Thread.currentThread().isInterrupted) {
+      throw new InterruptedException("Local query execution is interrupted")
+    }
+  }
+}
@@ -35,7 +35,8 @@ import java.util.concurrent.atomic.AtomicReference
 import org.apache.kylin.common.KylinConfig
 import org.apache.kylin.spark.classloader.ClassLoaderUtils
 import org.apache.spark.{SparkConf, SparkContext, SparkEnv}
-import org.apache.spark.sql.execution.datasource.KylinSourceStrategy
+import org.apache.spark.sql.execution.datasource.{BitmapRollupStrategy, KylinSourceStrategy, ParquetFooterCache, RuntimeFilterPushDown, RuntimeFilterStrategy}
+import org.apache.spark.sql.execution.{LookupTableStrategy, SegmentResultCacheStrategy}
 
 import scala.collection.JavaConverters._
 
@@ -128,7 +129,12 @@ object SparderContext extends Logging {
                     .master("local")
                     .appName("sparder-test-sql-context")
                     .withExtensions { ext =>
+                      ext.injectPlannerStrategy(_ => RuntimeFilterStrategy)
+                      ext.injectPlannerStrategy(_ => BitmapRollupStrategy)
                       ext.injectPlannerStrategy(_ => KylinSourceStrategy)
+                      ext.injectOptimizerRule(session => RuntimeFilterPushDown(session))
+                      ext.injectPlannerStrategy(_ => SegmentResultCacheStrategy)
+                      ext.injectPlannerStrategy(_ => LookupTableStrategy)
                     }
                     .enableHiveSupport()
                     .getOrCreateKylinSession()
@@ -137,7 +143,12 @@ object SparderContext extends Logging {
                     .appName("sparder-sql-context")
                     .master("yarn-client")
                     .withExtensions { ext =>
+                      ext.injectPlannerStrategy(_ => RuntimeFilterStrategy)
+                      ext.injectPlannerStrategy(_ => BitmapRollupStrategy)
                       ext.injectPlannerStrategy(_ => KylinSourceStrategy)
+                      ext.injectOptimizerRule(session => RuntimeFilterPushDown(session))
+                      ext.injectPlannerStrategy(_ => SegmentResultCacheStrategy)
+                      ext.injectPlannerStrategy(_ => LookupTableStrategy)
                     }
                     .enableHiveSupport()
                     .getOrCreateKylinSession()
@@ -151,6 +162,7 @@ object SparderContext extends Logging {
                   .getContextClassLoader
                   .toString)
               registerListener(sparkSession.sparkContext)
+              ParquetFooterCache.registerListener(kylinConf)
               initMonitorEnv()
               APP_MASTER_TRACK_URL = null
             } catch {
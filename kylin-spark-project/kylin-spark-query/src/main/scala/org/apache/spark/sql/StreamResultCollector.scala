@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql
+
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.catalyst.{CatalystTypeConverters, InternalRow}
+
+/**
+ * Pulls query results from executors a wave of partitions at a time, for callers which hand the
+ * rows on as they are read.
+ *
+ * Unlike Dataset.toLocalIterator, which runs a job per partition, a job computes as many partitions
+ * as the wave has, so the result is computed once in fewer jobs. The driver holds no more rows than
+ * the partitions of a wave have, and the first rows are handed on once the first wave is computed.
+ */
+object StreamResultCollector extends Logging {
+
+  /**
+   * The jobs run while the returned rows are iterated, in the thread iterating them.
+   */
+  def stream(df: DataFrame, partitionsPerWave: Int): Iterator[Row] = {
+    val rdd = df.queryExecution.toRdd
+    val numPartitions = rdd.getNumPartitions
+    val wave = math.max(partitionsPerWave, 1)
+    logInfo(s"Stream result of $numPartitions partitions in waves of $wave partitions.")
+    val toRow = CatalystTypeConverters.createToScalaConverter(df.schema)
+    (0 until numPartitions by wave).iterator.flatMap { start =>
+      val partitions = start until math.min(start + wave, numPartitions)
+      // rows of the plan are reused by the iterators of its partitions
+      val rows = df.sparkSession.sparkContext.runJob(rdd,
+        (itr: Iterator[InternalRow]) => itr.map(_.copy()).toArray, partitions)
+      rows.iterator.flatMap(_.iterator).map(toRow(_).asInstanceOf[Row])
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.spark.SparkContext
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.internal.Logging
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.analysis.MultiInstanceRelation
+import org.apache.spark.sql.catalyst.expressions.{Alias, And, Attribute, AttributeMap, AttributeReference, AttributeSet, BoundReference, Expression, NamedExpression, UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.catalyst.planning.{ExtractEquiJoinKeys, PhysicalOperation}
+import org.apache.spark.sql.catalyst.plans.physical.{BroadcastDistribution, BroadcastMode, BroadcastPartitioning, IdentityBroadcastMode, Partitioning}
+import org.apache.spark.sql.catalyst.plans.{Inner, LeftOuter}
+import org.apache.spark.sql.catalyst.plans.logical.{LeafNode, LogicalPlan, ResolvedHint, Statistics}
+import org.apache.spark.sql.execution.joins.{BroadcastHashJoinExec, BuildRight, HashedRelation}
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.sql.{DataFrame, Dataset, SparkSession, Strategy}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Rows of a lookup table snapshot kept on the driver, with the hashed relations built on them for
+ * joins, broadcast once and reused by every query joining the snapshot on the same keys.
+ */
+class CachedLookupTable(val name: String, val schema: StructType, val rows: Array[UnsafeRow]) extends Logging {
+
+  val sizeInBytes: Long = rows.map(_.getSizeInBytes.toLong).sum
+
+  private val broadcasts = new ConcurrentHashMap[(BroadcastMode, Seq[Int]), Broadcast[Any]]()
+
+  // set once the table is evicted, queries planned before may still join it
+  @volatile private var released = false
+
+  /**
+   * The relation of the given columns of the table only, derived joins append a few columns of
+   * wide lookup tables.
+   */
+  def broadcast(mode: BroadcastMode, ordinals: Seq[Int], sc: SparkContext): Broadcast[Any] = {
+    val key = (mode.canonicalized, ordinals)
+    if (released) {
+      // not kept, the context cleaner removes it once the query is done with it
+      return build(mode, ordinals, sc)
+    }
+    val broadcast = broadcasts.computeIfAbsent(key,
+      new java.util.function.Function[(BroadcastMode, Seq[Int]), Broadcast[Any]] {
+        override def apply(key: (BroadcastMode, Seq[Int])): Broadcast[Any] = build(mode, ordinals, sc)
+      })
+    if (released) {
+      // added while the table was released
+      broadcasts.remove(key)
+    }
+    broadcast
+  }
+
+  private def build(mode: BroadcastMode, ordinals: Seq[Int], sc: SparkContext): Broadcast[Any] = {
+    val columns = if (ordinals == schema.indices) {
+      rows.iterator
+    } else {
+      val project = UnsafeProjection.create(ordinals.map(i => BoundReference(i, schema(i).dataType, nullable = true)))
+      rows.iterator.map(project)
+    }
+    val relation = mode.transform(columns, Some(rows.length.toLong))
+    val size = relation match {
+      case hashed: HashedRelation => hashed.estimatedSize
+      case _ => 0L
+    }
+    logInfo(s"Broadcast lookup table $name of ${rows.length} rows, ${ordinals.size} columns, relation of $size bytes")
+    sc.broadcast[Any](relation)
+  }
+
+  /**
+   * The table as a relation, joins with it are planned by [[LookupTableStrategy]], which must be
+   * one of the strategies of the session.
+   */
+  def toDF(session: SparkSession): DataFrame = {
+    Dataset.ofRows(session, LookupRelation(schema.toAttributes, this))
+  }
+
+  /**
+   * Executors drop their copies of the broadcasts, running queries fetch them again from the driver.
+   */
+  def release(): Unit = {
+    released = true
+    broadcasts.values().asScala.foreach(_.unpersist(blocking = false))
+    broadcasts.clear()
+  }
+}
+
+object CachedLookupTable {
+
+  def apply(name: String, df: DataFrame): CachedLookupTable = {
+    val toUnsafe = UnsafeProjection.create(df.schema)
+    val rows = df.queryExecution.executedPlan.executeCollect().map {
+      case row: UnsafeRow => row
+      case row => toUnsafe(row).copy()
+    }
+    new CachedLookupTable(name, df.schema, rows)
+  }
+}
+
+case class LookupRelation(output: Seq[Attribute], table: CachedLookupTable)
+  extends LeafNode with MultiInstanceRelation {
+
+  override def newInstance(): LogicalPlan = copy(output = output.map(_.newInstance()))
+
+  override def computeStats(): Statistics = Statistics(sizeInBytes = table.sizeInBytes)
+
+  override def simpleString: String = s"LookupRelation ${table.name}, ${table.rows.length} rows"
+}
+
+/**
+ * The build side of a broadcast hash join on a cached lookup table, its broadcast is built once.
+ * The output is the columns of the table at the given ordinals.
+ */
+case class LookupBroadcastExec(
+    output: Seq[Attribute],
+    ordinals: Seq[Int],
+    mode: BroadcastMode,
+    table: CachedLookupTable)
+  extends LeafExecNode {
+
+  override def outputPartitioning: Partitioning = BroadcastPartitioning(mode)
+
+  override protected def doExecute(): RDD[InternalRow] = {
+    throw new UnsupportedOperationException("LookupBroadcastExec does not support the execute() code path.")
+  }
+
+  override protected[sql] def doExecuteBroadcast[T](): Broadcast[T] = {
+    table.broadcast(mode, ordinals, sparkContext).asInstanceOf[Broadcast[T]]
+  }
+
+  override def simpleString: String = s"LookupBroadcast ${table.name}, $mode"
+}
+
+/**
+ * Joins with a cached lookup table on its right side are planned as broadcast hash joins on the
+ * cached broadcast. Projections of the lookup table are applied after the join, filters as well for
+ * inner joins, so that the broadcast only depends on the join keys.
+ */
+object LookupTableStrategy extends Strategy {
+
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = plan match {
+    case ExtractEquiJoinKeys(joinType @ (Inner | LeftOuter), leftKeys, rightKeys, condition, left,
+    LookupOperation(projects, filters, lookup))
+      if filters.isEmpty || joinType == Inner =>
+      // in terms of the lookup table rather than its projection
+      val aliases = AttributeMap(projects.collect { case alias: Alias =>
+        (alias.toAttribute, alias.child)
+      })
+
+      def onLookup(expr: Expression): Expression = expr.transform {
+        case attr: Attribute if aliases.contains(attr) => aliases(attr)
+      }
+
+      val buildKeys = rightKeys.map(onLookup)
+      val joinCondition = condition.map(onLookup)
+      // only the columns the query reads are kept in the broadcast
+      val required = AttributeSet(projects.flatMap(_.references) ++ filters.flatMap(_.references) ++
+        buildKeys.flatMap(_.references) ++ joinCondition.toSeq.flatMap(_.references))
+      val buildOutput = lookup.output.filter(required.contains)
+      val ordinals = buildOutput.map(attr => lookup.output.indexWhere(_.exprId == attr.exprId))
+
+      val planned = BroadcastHashJoinExec(leftKeys, buildKeys, joinType, BuildRight, joinCondition,
+        planLater(left), LookupBroadcastExec(buildOutput, ordinals, IdentityBroadcastMode, lookup.table))
+      // the hashed relation the join asks for, keys rewritten and bound the way the join looks them up
+      val BroadcastDistribution(mode) = planned.requiredChildDistribution(1)
+      val join = planned.copy(right = LookupBroadcastExec(buildOutput, ordinals, mode, lookup.table))
+      val filtered = filters.reduceOption(And).map(FilterExec(_, join)).getOrElse(join)
+
+      // columns of the lookup table are null for unmatched rows of a left join
+      val lookupOutput = lookup.outputSet
+      val projectList = if (joinType == LeftOuter) {
+        projects.map(_.transform {
+          case attr: AttributeReference if lookupOutput.contains(attr) => attr.withNullability(true)
+        }.asInstanceOf[NamedExpression])
+      } else {
+        projects
+      }
+      ProjectExec(left.output ++ projectList, filtered) :: Nil
+    case lookup: LookupRelation =>
+      LocalTableScanExec(lookup.output, lookup.table.rows) :: Nil
+    case _ =>
+      Nil
+  }
+
+  /**
+   * Projections and filters of a lookup table, under a broadcast hint or not.
+   */
+  private object LookupOperation {
+    def unapply(plan: LogicalPlan): Option[(Seq[NamedExpression], Seq[Expression], LookupRelation)] = plan match {
+      case ResolvedHint(child, _) => unapply(child)
+      case PhysicalOperation(projects, filters, lookup: LookupRelation) => Some((projects, filters, lookup))
+      case _ => None
+    }
+  }
+}
@@ -0,0 +1,434 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.google.common.cache.{Cache, CacheBuilder, RemovalListener, RemovalNotification, Weigher}
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.internal.Logging
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.Strategy
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{Alias, Attribute, AttributeMap, BindReferences, Expression, InputFileName, Literal, NamedExpression, RegExpExtract, UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.catalyst.expressions.aggregate.{AggregateExpression, Final, Partial, PartialMerge}
+import org.apache.spark.sql.catalyst.planning.{PhysicalAggregation, PhysicalOperation}
+import org.apache.spark.sql.catalyst.plans.logical.{LogicalPlan, Project}
+import org.apache.spark.sql.execution.aggregate.{HashAggregateExec, ObjectHashAggregateExec, SortAggregateExec}
+import org.apache.spark.sql.execution.datasource.SegmentFileIndex
+import org.apache.spark.sql.execution.datasources.{HadoopFsRelation, LogicalRelation}
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.storage.StorageLevel
+import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.util.{AccumulatorV2, CompletionIterator}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.util.Try
+
+/**
+ * Partial aggregates of cuboid scans by segment, persisted on the executors until the segment is
+ * built again.
+ *
+ * A query run again after a segment is appended only scans the new segment, and the final aggregate
+ * merges its partial aggregates with the cached ones of the other segments. Entries are keyed by the
+ * version of the segment and the filters, grouping columns and aggregate functions of the query on
+ * the cuboid, so queries of other shapes do not share them. Segments whose partial aggregates have
+ * too many rows are remembered as well, so that their queries are not aggregated by segment again.
+ *
+ * The rows of the partial aggregates are counted while the query scanning them runs, so scanned
+ * segments are pending until all their partitions are computed, and are cached, or known to be too
+ * large, on the next lookup.
+ */
+object SegmentResultCache extends Logging {
+
+  private val MAX_TOO_LARGE_SEGMENTS = 10000
+
+  private val MAX_PENDING_SEGMENTS = 100
+
+  private lazy val maxBytes = KylinConfig.getInstanceFromEnv.getSegmentResultCacheSizeMB * 1024 * 1024
+
+  private lazy val cache: Cache[String, CachedSegment] = CacheBuilder.newBuilder
+    .maximumWeight(maxBytes)
+    .weigher(new Weigher[String, CachedSegment] {
+      override def weigh(key: String, segment: CachedSegment): Int = {
+        math.min(key.length * 2L + segment.sizeInBytes, Int.MaxValue).toInt
+      }
+    })
+    .removalListener(new RemovalListener[String, CachedSegment] {
+      override def onRemoval(notification: RemovalNotification[String, CachedSegment]): Unit = {
+        notification.getValue.scanned.release()
+      }
+    })
+    .build[String, CachedSegment]
+
+  private val tooLarge: Cache[String, java.lang.Boolean] = CacheBuilder.newBuilder
+    .maximumSize(MAX_TOO_LARGE_SEGMENTS)
+    .build[String, java.lang.Boolean]
+
+  // segments of queries that have not computed all their partitions yet, by cache key
+  private val pending: Cache[String, PendingSegment] = CacheBuilder.newBuilder
+    .maximumSize(MAX_PENDING_SEGMENTS)
+    .removalListener(new RemovalListener[String, PendingSegment] {
+      override def onRemoval(notification: RemovalNotification[String, PendingSegment]): Unit = {
+        notification.getValue.scanned.release()
+      }
+    })
+    .build[String, PendingSegment]
+
+  // rows persisted by a stopped spark context are gone
+  def get(key: String): Option[CachedSegment] = {
+    resolvePending()
+    Option(cache.getIfPresent(key)).filterNot(_.scanned.rdd.sparkContext.isStopped)
+  }
+
+  /**
+   * Partial aggregates of a segment being scanned, cached once their rows are known.
+   */
+  def putPending(key: String, segment: PendingSegment): Unit = {
+    segment.scanned.retain()
+    pending.put(key, segment)
+  }
+
+  private def resolvePending(): Unit = synchronized {
+    pending.asMap.asScala.toSeq.foreach { case (key, segment) =>
+      segment.scanned.stats.foreach { stats =>
+        val (numRows, sizeInBytes) = stats.getOrElse(segment.directory, (0L, 0L))
+        val unknown = stats.keys.filterNot(segment.scanned.directories.contains)
+        if (numRows > segment.scanned.maxRows) {
+          markTooLarge(key)
+          logInfo(s"Partial aggregates of segment ${segment.directory} have $numRows rows, not cached")
+        } else if (unknown.nonEmpty) {
+          logWarning(s"Rows of unknown segments ${unknown.mkString(",")}, partial aggregates not cached")
+        } else if (stats.values.forall(_._1 <= segment.scanned.maxRows)) {
+          // a segment without rows for the query is cached as well
+          segment.scanned.retain()
+          cache.put(key, new CachedSegment(segment.scanned, segment.directory, numRows, sizeInBytes))
+          logInfo(s"Cache partial aggregates of segment ${segment.directory}, $numRows rows")
+        }
+        pending.invalidate(key)
+      }
+    }
+  }
+
+  def isTooLarge(key: String): Boolean = tooLarge.getIfPresent(key) != null
+
+  def markTooLarge(key: String): Unit = tooLarge.put(key, true)
+
+  def invalidateAll(): Unit = {
+    pending.invalidateAll()
+    cache.invalidateAll()
+    tooLarge.invalidateAll()
+  }
+}
+
+/**
+ * Partial aggregates of the segments scanned by a query, with the segment column, persisted on the
+ * executors as long as the partial aggregates of one of the segments are cached or pending.
+ *
+ * @param directories directories of the segments the query scans
+ * @param maxRows     partial aggregates of a segment with more rows than this are not cached
+ */
+class ScannedSegments(child: RDD[InternalRow], output: Seq[Attribute], scanOutput: Seq[Attribute],
+    segmentOrdinal: Int, val directories: Set[String], val maxRows: Int) {
+
+  private val accumulator = new SegmentStatsAccumulator
+  child.sparkContext.register(accumulator, "segment result rows")
+
+  val rdd: RDD[InternalRow] = {
+    val (ordinal, counts) = (segmentOrdinal, accumulator)
+    child.mapPartitionsWithIndexInternal { (index, iter) =>
+      // rows and bytes by segment, counted once the partition is persisted
+      val bySegment = mutable.HashMap[String, (Long, Long)]()
+      val rows = iter.map { row =>
+        val directory = row.getUTF8String(ordinal).toString
+        val bytes = row match {
+          case unsafe: UnsafeRow => unsafe.getSizeInBytes
+          case _ => 0
+        }
+        val (numRows, sizeInBytes) = bySegment.getOrElse(directory, (0L, 0L))
+        bySegment(directory) = (numRows + 1, sizeInBytes + bytes)
+        row.copy()
+      }
+      CompletionIterator[InternalRow, Iterator[InternalRow]](rows, counts.add((index, bySegment.toMap)))
+    }.persist(StorageLevel.MEMORY_AND_DISK)
+  }
+
+  private val refCount = new AtomicInteger()
+
+  /**
+   * Rows and bytes of the partial aggregates by segment, None until all the partitions are computed.
+   */
+  def stats: Option[Map[String, (Long, Long)]] = {
+    val partitions = accumulator.value
+    if (partitions.size < rdd.partitions.length) {
+      None
+    } else {
+      Some(partitions.values.flatten.groupBy(_._1).mapValues(stats => (stats.map(_._2._1).sum, stats.map(_._2._2).sum)))
+    }
+  }
+
+  def retain(): Unit = refCount.incrementAndGet()
+
+  def release(): Unit = {
+    if (refCount.decrementAndGet() == 0) {
+      rdd.unpersist(blocking = false)
+    }
+  }
+
+  /**
+   * Rows of the given segment, or of all of them, without the segment column.
+   */
+  def rows(segment: Option[String]): RDD[InternalRow] = {
+    val (outputAttrs, scanAttrs, ordinal) = (output, scanOutput, segmentOrdinal)
+    val directory = segment.map(UTF8String.fromString)
+    rdd.mapPartitionsWithIndexInternal { (index, iter) =>
+      val toOutput = UnsafeProjection.create(outputAttrs, scanAttrs)
+      toOutput.initialize(index)
+      iter.filter(row => directory.forall(_ == row.getUTF8String(ordinal))).map(toOutput)
+    }
+  }
+}
+
+/**
+ * Partial aggregates of a segment, kept in the rows of the segments scanned with it.
+ */
+class CachedSegment(val scanned: ScannedSegments, val directory: String, val numRows: Long, val sizeInBytes: Long)
+
+/**
+ * Partial aggregates of a segment scanned by a query, whose rows are not known yet.
+ */
+class PendingSegment(val scanned: ScannedSegments, val directory: String)
+
+/**
+ * Rows and bytes of partial aggregates by segment, by partition, so that a partition computed again
+ * is not counted twice.
+ */
+class SegmentStatsAccumulator
+  extends AccumulatorV2[(Int, Map[String, (Long, Long)]), Map[Int, Map[String, (Long, Long)]]] {
+
+  private var partitions = Map.empty[Int, Map[String, (Long, Long)]]
+
+  override def isZero: Boolean = synchronized(partitions.isEmpty)
+
+  override def copy(): SegmentStatsAccumulator = synchronized {
+    val acc = new SegmentStatsAccumulator
+    acc.partitions = partitions
+    acc
+  }
+
+  override def reset(): Unit = synchronized(partitions = Map.empty)
+
+  override def add(v: (Int, Map[String, (Long, Long)])): Unit = synchronized(partitions += v)
+
+  override def merge(other: AccumulatorV2[(Int, Map[String, (Long, Long)]), Map[Int, Map[String, (Long, Long)]]])
+    : Unit = synchronized(partitions ++= other.value)
+
+  override def value: Map[Int, Map[String, (Long, Long)]] = synchronized(partitions)
+}
+
+/**
+ * Partial aggregates of the segments, the cached ones with the ones of the segments scanned by the
+ * child. The child groups its partial aggregates by segment as well, its rows are persisted on the
+ * executors and cached by segment when none of the segments has more than maxRows of them, only the
+ * number of rows of each segment is brought to the driver, when the partitions are computed.
+ *
+ * @param cacheKeys cache keys of the scanned segments, by segment directory
+ */
+case class SegmentResultCacheExec(
+    output: Seq[Attribute],
+    @transient cached: Seq[CachedSegment],
+    cacheKeys: Map[String, String],
+    segment: Attribute,
+    maxRows: Int,
+    child: Option[SparkPlan])
+  extends SparkPlan {
+
+  override def children: Seq[SparkPlan] = child.toSeq
+
+  override protected def doExecute(): RDD[InternalRow] = {
+    val cachedRows = cached.map { seg =>
+      val numPartitions = math.max(math.min(seg.numRows / SegmentResultCacheExec.ROWS_PER_PARTITION,
+        sparkContext.defaultParallelism), 1).toInt
+      seg.scanned.rows(Some(seg.directory)).coalesce(numPartitions)
+    }
+    child match {
+      case None =>
+        sparkContext.union(cachedRows)
+      case Some(plan) =>
+        val ordinal = plan.output.indexWhere(_.exprId == segment.exprId)
+        val scanned = new ScannedSegments(plan.execute(), output, plan.output, ordinal, cacheKeys.keySet, maxRows)
+        cacheKeys.foreach { case (directory, key) =>
+          SegmentResultCache.putPending(key, new PendingSegment(scanned, directory))
+        }
+        sparkContext.union(cachedRows :+ scanned.rows(None))
+    }
+  }
+
+  override def simpleString: String = {
+    s"SegmentResultCache ${cached.size} cached segments, scan segments ${cacheKeys.keys.mkString(",")}"
+  }
+}
+
+object SegmentResultCacheExec {
+  val ROWS_PER_PARTITION = 100000
+}
+
+/**
+ * Aggregates of the scan of a segment file index, without distinct aggregates, are planned as partial
+ * aggregates by segment under a [[SegmentResultCacheExec]], and a final aggregate on top of it.
+ * Segments with cached partial aggregates are not scanned.
+ *
+ * Grouping by segment multiplies the groups of the partial aggregates by the scanned segments, so
+ * queries are planned as usual when they scan many segments, a segment whose layout has more rows
+ * than cached ones, or a segment already known to have too many partial aggregates.
+ */
+object SegmentResultCacheStrategy extends Strategy with Logging {
+
+  // the segment directory is the grandparent of data files
+  private val SEGMENT_OF_FILE = "([^/]+)/[^/]+/[^/]+$"
+
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = plan match {
+    case PhysicalAggregation(groupings, aggregates, resultExpressions, child @ PhysicalOperation(projects, filters,
+    relation @ LogicalRelation(fsRelation @ HadoopFsRelation(index: SegmentFileIndex, _, _, _, _, _), _, _, _)))
+      if isEnabled(index) && aggregates.forall {
+        case agg: AggregateExpression => !agg.isDistinct && agg.deterministic
+        case _ => false
+      } && (groupings ++ projects ++ filters).forall(_.deterministic) =>
+      val aggregateExpressions = aggregates.map(_.asInstanceOf[AggregateExpression])
+      planKey(groupings, aggregateExpressions, projects, filters, relation) match {
+        case Some(key) if index.segmentVersions.nonEmpty =>
+          val config = KylinConfig.getInstanceFromEnv
+          val pruned = index.prunedSegments(relation, filters)
+          val cached = index.segmentVersions.filterKeys(pruned.contains).map { case (dir, version) =>
+            val cacheKey = Seq(dir, version, key).mkString("\n")
+            (dir, cacheKey, SegmentResultCache.get(cacheKey))
+          }
+          val (hits, misses) = cached.partition(_._3.isDefined)
+          val maxRows = config.getSegmentResultCacheMaxRows
+          if (cached.isEmpty || !isSmall(index, misses.map(m => (m._1, m._2)))) {
+            Nil
+          } else {
+            val groupingAttributes = groupings.map(_.toAttribute)
+            val bufferAttributes = aggregateExpressions.flatMap(_.aggregateFunction.inputAggBufferAttributes)
+            val segment = Alias(RegExpExtract(InputFileName(), Literal(SEGMENT_OF_FILE), Literal(1)), "segment")()
+            val scan = if (misses.isEmpty) {
+              None
+            } else {
+              val scanned = if (hits.isEmpty) {
+                child
+              } else {
+                val restricted = fsRelation.copy(location = index.withSegments(misses.map(_._1).toSet))(
+                  fsRelation.sparkSession)
+                child transform {
+                  case r: LogicalRelation if r eq relation => r.copy(relation = restricted)
+                }
+              }
+              val withSegment = Project(scanned.output :+ segment, scanned)
+              val keys = groupingAttributes :+ segment.toAttribute
+
+              val partialAggregates = aggregateExpressions.map(_.copy(mode = Partial))
+              val partial = createAggregate(None, groupings :+ segment.toAttribute, partialAggregates,
+                partialAggregates.flatMap(_.aggregateFunction.aggBufferAttributes), 0, keys ++ bufferAttributes,
+                planLater(withSegment))
+              val mergeAggregates = aggregateExpressions.map(_.copy(mode = PartialMerge))
+              Some(createAggregate(Some(keys), keys, mergeAggregates,
+                mergeAggregates.map(_.resultAttribute), keys.length, keys ++ bufferAttributes, partial))
+            }
+            logInfo(s"Partial aggregates of ${hits.size} segments cached, scan ${misses.map(_._1).mkString(",")}")
+            val leaf = SegmentResultCacheExec(groupingAttributes ++ bufferAttributes, hits.toSeq.map(_._3.get),
+              misses.map(m => (m._1, m._2)).toMap, segment.toAttribute, maxRows, scan)
+
+            val finalAggregates = aggregateExpressions.map(_.copy(mode = Final))
+            createAggregate(Some(groupingAttributes), groupingAttributes, finalAggregates,
+              finalAggregates.map(_.resultAttribute), groupingAttributes.length, resultExpressions, leaf) :: Nil
+          }
+        case _ =>
+          Nil
+      }
+    case _ =>
+      Nil
+  }
+
+  // few segments to scan, none of them known to have more partial aggregates than cached ones
+  private def isSmall(index: SegmentFileIndex, misses: Iterable[(String, String)]): Boolean = {
+    val config = KylinConfig.getInstanceFromEnv
+    val maxRows = config.getSegmentResultCacheMaxRows
+    misses.size <= config.getSegmentResultCacheMaxSegments && misses.forall { case (dir, cacheKey) =>
+      index.segmentRows(dir).forall(_ <= maxRows) && !SegmentResultCache.isTooLarge(cacheKey)
+    }
+  }
+
+  // small scans are run in the query server by the LocalQueryExecutor
+  private def isEnabled(index: SegmentFileIndex): Boolean = {
+    val config = KylinConfig.getInstanceFromEnv
+    val localThresholdMB = config.getQueryLocalExecutionThresholdMB
+    config.isSegmentResultCacheEnabled && (localThresholdMB < 0 || index.sizeInBytes > localThresholdMB * 1024 * 1024)
+  }
+
+  /**
+   * The filters, grouping expressions and aggregate functions on the columns of the relation by
+   * ordinal, which identify the partial aggregates of a segment regardless of names and expression ids.
+   */
+  private def planKey(
+      groupings: Seq[NamedExpression],
+      aggregates: Seq[AggregateExpression],
+      projects: Seq[NamedExpression],
+      filters: Seq[Expression],
+      relation: LogicalRelation): Option[String] = {
+    val aliases = AttributeMap(projects.collect { case alias: Alias => (alias.toAttribute, alias.child) })
+
+    def onRelation(expr: Expression): String = {
+      val unaliased = expr.transform {
+        case alias: Alias => alias.child
+        case attr: Attribute if aliases.contains(attr) => aliases(attr)
+      }
+      BindReferences.bindReference(unaliased, relation.output).canonicalized.toString
+    }
+
+    Try {
+      Seq(groupings.map(onRelation).mkString(", "),
+        aggregates.map(onRelation).mkString(", "),
+        filters.map(onRelation).sorted.mkString(" AND ")).mkString("\n")
+    }.toOption
+  }
+
+  // the physical aggregate operator spark would choose for the aggregate functions
+  private def createAggregate(
+      requiredChildDistributionExpressions: Option[Seq[Expression]],
+      groupingExpressions: Seq[NamedExpression],
+      aggregateExpressions: Seq[AggregateExpression],
+      aggregateAttributes: Seq[Attribute],
+      initialInputBufferOffset: Int,
+      resultExpressions: Seq[NamedExpression],
+      child: SparkPlan): SparkPlan = {
+    val useHash = HashAggregateExec.supportsAggregate(
+      aggregateExpressions.flatMap(_.aggregateFunction.aggBufferAttributes))
+    if (useHash) {
+      HashAggregateExec(requiredChildDistributionExpressions, groupingExpressions, aggregateExpressions,
+        aggregateAttributes, initialInputBufferOffset, resultExpressions, child)
+    } else if (SQLConf.get.useObjectHashAggregation && ObjectHashAggregateExec.supportsAggregate(aggregateExpressions)) {
+      ObjectHashAggregateExec(requiredChildDistributionExpressions, groupingExpressions, aggregateExpressions,
+        aggregateAttributes, initialInputBufferOffset, resultExpressions, child)
+    } else {
+      SortAggregateExec(requiredChildDistributionExpressions, groupingExpressions, aggregateExpressions,
+        aggregateAttributes, initialInputBufferOffset, resultExpressions, child)
+    }
+  }
+}
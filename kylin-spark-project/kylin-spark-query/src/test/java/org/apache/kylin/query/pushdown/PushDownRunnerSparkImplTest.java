@@ -20,6 +20,7 @@ package org.apache.kylin.query.pushdown;
 
 import com.google.common.collect.Lists;
 import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.QueryContextFacade;
 import org.apache.kylin.common.util.LocalFileMetadataTestCase;
 import org.apache.kylin.common.util.TempMetadataBuilder;
 import org.apache.kylin.metadata.querymeta.SelectedColumnMeta;
@@ -62,6 +63,7 @@ public class PushDownRunnerSparkImplTest extends LocalFileMetadataTestCase {
 
     @After
     public void after() throws Exception {
+        QueryContextFacade.resetCurrent();
         ss.stop();
         cleanupTestMetadata();
     }
@@ -118,6 +120,30 @@ public class PushDownRunnerSparkImplTest extends LocalFileMetadataTestCase {
         Assert.assertEquals("SPARK-SQL", pushDownRunnerSpark.getName());
     }
 
+    @Test
+    public void testStreamPushDownResult() {
+        PushDownRunnerSparkImpl pushDownRunnerSpark = new PushDownRunnerSparkImpl();
+        pushDownRunnerSpark.init(null);
+
+        String sql = "select * from TEST_KYLIN_FACT";
+        List<List<String>> collectedRows = Lists.newArrayList();
+        pushDownRunnerSpark.executeQuery(sql, collectedRows, Lists.newArrayList());
+        // source paths only sign the results of the pushdown cache
+        Assert.assertTrue(QueryContextFacade.current().getPushDownSourcePaths().isEmpty());
+
+        QueryContextFacade.current().setStreamResult(true);
+        getTestConfig().setProperty("kylin.query.pushdown.cache-enabled", "true");
+        getTestConfig().setProperty("kylin.query.cache-signature-enabled", "true");
+        List<List<String>> streamedRows = Lists.newArrayList();
+        pushDownRunnerSpark.executeQuery(sql, streamedRows, Lists.newArrayList());
+
+        Assert.assertEquals(10000, streamedRows.size());
+        Assert.assertEquals(collectedRows, streamedRows);
+        List<String> sourcePaths = QueryContextFacade.current().getPushDownSourcePaths();
+        Assert.assertEquals(1, sourcePaths.size());
+        Assert.assertTrue(sourcePaths.get(0).endsWith("DEFAULT.TEST_KYLIN_FACT.csv"));
+    }
+
     @Test
     public void testPushDownRunnerSparkWithDotColumn() {
         PushDownRunnerSparkImpl pushDownRunnerSpark = new PushDownRunnerSparkImpl();
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kylin.query.runtime.plans
+
+import java.util.Properties
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
+import org.apache.calcite.rel.`type`.{RelDataType, RelDataTypeSystem}
+import org.apache.calcite.sql.`type`.{SqlTypeFactoryImpl, SqlTypeName}
+import org.apache.kylin.common.{KylinConfig, QueryContextFacade}
+import org.apache.spark.scheduler.{SparkListener, SparkListenerJobStart}
+import org.apache.spark.sql.{DataFrame, Strategy}
+import org.apache.spark.sql.catalyst.plans.logical.LogicalPlan
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.SparkPlan
+import org.apache.spark.sql.functions._
+import org.apache.spark.sql.utils.SparkTypeUtil
+import org.apache.spark.util.LongAccumulator
+import org.scalatest.concurrent.Eventually._
+import org.scalatest.time.SpanSugar._
+
+import scala.collection.JavaConverters._
+
+class TestResultPlan extends SparderBaseFunSuite with SharedSparkSession {
+
+  private val MARKER = "test.marker"
+
+  private val typeFactory = new SqlTypeFactoryImpl(RelDataTypeSystem.DEFAULT)
+
+  private def config(props: (String, String)*): KylinConfig = {
+    val properties = new Properties()
+    properties.setProperty("kylin.query.spark-engine.local-execution-threshold-mb", "-1")
+    props.foreach { case (key, value) => properties.setProperty(key, value) }
+    KylinConfig.createKylinConfig(properties)
+  }
+
+  private def query: DataFrame = query(3, spark.sparkContext.longAccumulator)
+
+  // the accumulator counts the rows computed
+  private def query(partitions: Int, computed: LongAccumulator): DataFrame = {
+    val compute = udf { id: Long =>
+      computed.add(1)
+      id
+    }.asNondeterministic()
+    spark.range(0, 100, 1, partitions)
+      .select(compute(col("id")).as("id"),
+        concat(lit("v_"), col("id")).as("s"),
+        col("id").cast("decimal(19,4)").as("d"))
+  }
+
+  private val rowType: RelDataType = typeFactory.createStructType(
+    Seq(typeFactory.createSqlType(SqlTypeName.BIGINT),
+      typeFactory.createSqlType(SqlTypeName.VARCHAR),
+      typeFactory.createSqlType(SqlTypeName.DECIMAL, 19, 4)).asJava,
+    Seq("ID", "S", "D").asJava)
+
+  // the mode and rows of collecting the result through calcite, and the spark jobs of the query
+  private def collect(df: DataFrame, config: KylinConfig, stream: Boolean = false)
+  : (CollectMode.CollectMode, Seq[Seq[Any]], Int) = {
+    val jobs = new AtomicInteger()
+    val marked = new AtomicBoolean()
+    val listener = new SparkListener {
+      override def onJobStart(jobStart: SparkListenerJobStart): Unit = {
+        if (jobStart.properties.getProperty(MARKER) != null) {
+          marked.set(true)
+        } else if (!marked.get()) {
+          jobs.incrementAndGet()
+        }
+      }
+    }
+    spark.sparkContext.addSparkListener(listener)
+    val scope = KylinConfig.setAndUnsetThreadLocalConfig(config)
+    try {
+      QueryContextFacade.current().setStreamResult(stream)
+      val mode = ResultPlan.collectMode(df, config)
+      val rows = ResultPlan.collectEnumerable(df, rowType).asScala.map(_.toSeq).toList
+      // the listener is told of the jobs in the order they started, the marker job is the last one
+      spark.sparkContext.setLocalProperty(MARKER, "true")
+      spark.sparkContext.parallelize(Seq(1), 1).count()
+      eventually(timeout(10.seconds)) {
+        assert(marked.get())
+      }
+      (mode, rows, jobs.get())
+    } finally {
+      spark.sparkContext.setLocalProperty(MARKER, null)
+      scope.close()
+      QueryContextFacade.resetCurrent()
+      spark.sparkContext.removeSparkListener(listener)
+    }
+  }
+
+  private def expected(df: DataFrame): Seq[Seq[Any]] = {
+    val resultTypes = rowType.getFieldList.asScala.map(_.getType)
+    df.collect().map { row =>
+      row.toSeq.zip(resultTypes).map { case (cell, rType) =>
+        SparkTypeUtil.convertStringToValue(cell, rType, toCalcite = true)
+      }
+    }.toList
+  }
+
+  test("collect as arrow batches by default") {
+    val df = query
+    val (mode, rows, jobs) = collect(df, config())
+    assert(mode == CollectMode.ARROW)
+    assert(rows == expected(df))
+    assert(jobs == 1)
+  }
+
+  test("collect rows when arrow is disabled or not supported") {
+    val df = query
+    val (mode, rows, jobs) = collect(df, config("kylin.query.spark-engine.arrow-result-enabled" -> "false"))
+    assert(mode == CollectMode.ROWS)
+    assert(rows == expected(df))
+    assert(jobs == 1)
+
+    val arrays = spark.range(3).select(array(col("id")))
+    assert(ResultPlan.collectMode(arrays, config()) == CollectMode.ROWS)
+  }
+
+  test("stream the result a wave of partitions at a time when the rows are handed on") {
+    val cores = spark.sparkContext.defaultParallelism
+    val computed = spark.sparkContext.longAccumulator
+    val df = query(cores * 2 + 1, computed)
+    val (mode, rows, jobs) = collect(df, config(), stream = true)
+    assert(mode == CollectMode.STREAM)
+    // each row is computed once, in a job per wave of partitions
+    assert(computed.value == 100)
+    assert(jobs == 3)
+    assert(rows == expected(query))
+
+    // or collected in one job when streaming is disabled
+    computed.reset()
+    val (collectMode, collectedRows, collectJobs) =
+      collect(df, config("kylin.query.spark-engine.stream-result-enabled" -> "false"), stream = true)
+    assert(collectMode == CollectMode.ARROW)
+    assert(computed.value == 100)
+    assert(collectJobs == 1)
+    assert(collectedRows == rows)
+  }
+
+  test("plan the query in the job group and the pool of the query") {
+    // jobs run while planning, like those collecting runtime filter values, see the local properties
+    var jobGroup: String = null
+    var pool: String = null
+    val planning = new Strategy {
+      override def apply(plan: LogicalPlan): Seq[SparkPlan] = {
+        jobGroup = spark.sparkContext.getLocalProperty("spark.jobGroup.id")
+        pool = spark.sparkContext.getLocalProperty("spark.scheduler.pool")
+        Nil
+      }
+    }
+    spark.sparkContext.clearJobGroup()
+    spark.sparkContext.setLocalProperty("spark.scheduler.pool", null)
+    spark.experimental.extraStrategies = Seq(planning)
+    try {
+      collect(query, config())
+    } finally {
+      spark.experimental.extraStrategies = Nil
+    }
+    assert(jobGroup == Thread.currentThread().getName)
+    assert(pool == "heavy_tasks")
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql
+
+import org.apache.calcite.rel.`type`.RelDataTypeSystem
+import org.apache.calcite.sql.`type`.{SqlTypeFactoryImpl, SqlTypeName}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.functions._
+import org.apache.spark.sql.internal.SQLConf
+import org.apache.spark.sql.utils.SparkTypeUtil
+
+class TestArrowResultCollector extends SparderBaseFunSuite with SharedSparkSession {
+
+  private val typeFactory = new SqlTypeFactoryImpl(RelDataTypeSystem.DEFAULT)
+
+  test("collect as arrow batches gives the same values as collect") {
+    // several batches per partition
+    spark.conf.set(SQLConf.ARROW_EXECUTION_MAX_RECORDS_PER_BATCH.key, "7")
+    try {
+      val df = spark.range(0, 100, 1, 3)
+        .select(col("id"),
+          col("id").cast("int").as("i"),
+          concat(lit("v_"), col("id")).as("s"),
+          when(col("id") % 10 === 0, null).otherwise(col("id").cast("decimal(19,4)")).as("d"),
+          expr("date_add(to_date('2012-01-01'), cast(id as int))").as("dt"),
+          expr("cast(id * 1000 as timestamp)").as("ts"),
+          col("id").cast("float").as("f"),
+          // converted the same way as the collected rows
+          col("id").cast("int").as("i_as_long"))
+      assert(ArrowResultCollector.isSupported(df.schema))
+      val resultTypes = Seq(
+        typeFactory.createSqlType(SqlTypeName.BIGINT),
+        typeFactory.createSqlType(SqlTypeName.INTEGER),
+        typeFactory.createSqlType(SqlTypeName.VARCHAR),
+        typeFactory.createSqlType(SqlTypeName.DECIMAL, 19, 2),
+        typeFactory.createSqlType(SqlTypeName.DATE),
+        typeFactory.createSqlType(SqlTypeName.TIMESTAMP),
+        typeFactory.createSqlType(SqlTypeName.FLOAT),
+        typeFactory.createSqlType(SqlTypeName.BIGINT))
+
+      val values = ArrowResultCollector.collect(df, resultTypes)
+      val expected = df.collect().map { row =>
+        row.toSeq.zip(resultTypes).map { case (cell, rType) =>
+          SparkTypeUtil.convertStringToValue(cell, rType, toCalcite = true)
+        }
+      }
+      assert(values.map(_.toSeq).toSeq == expected.toSeq)
+      // can be iterated again
+      assert(values.size == 100)
+    } finally {
+      spark.conf.unset(SQLConf.ARROW_EXECUTION_MAX_RECORDS_PER_BATCH.key)
+    }
+    assert(!ArrowResultCollector.isSupported(spark.range(1).select(array(col("id"))).schema))
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.apache.spark.scheduler.{SparkListener, SparkListenerJobStart}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.functions._
+
+class TestLocalQueryExecutor extends SparderBaseFunSuite with SharedSparkSession {
+
+  test("run small queries without spark jobs") {
+    withTempPath { dir =>
+      spark.range(0, 1000, 1, 3).toDF("id")
+        .withColumn("k", col("id") % 7)
+        .withColumn("s", concat(lit("v_"), col("id") % 13))
+        .withColumn("d", (col("id") / 3).cast("decimal(19,4)"))
+        .write.parquet(dir.getCanonicalPath)
+      val table = spark.read.parquet(dir.getCanonicalPath)
+
+      val queries = Seq(
+        table.where("k = 3").select("id", "s"),
+        table.groupBy("k", "s").agg(sum("d"), count(lit(1)), max("id"), avg("id")).orderBy("k", "s"),
+        table.where("id < 0").agg(sum("d"), count(lit(1))),
+        table.where("id > 500").groupBy("s").agg(min("d").as("m")).orderBy(desc("m")).limit(3),
+        table.where("k = 2").select("id").union(table.where("k = 1").select("id")))
+
+      val jobs = new AtomicInteger()
+      val listener = new SparkListener {
+        override def onJobStart(jobStart: SparkListenerJobStart): Unit = jobs.incrementAndGet()
+      }
+      queries.foreach { df =>
+        val expected = df.collect().toSeq
+        assert(LocalQueryExecutor.canExecute(df.queryExecution.executedPlan, 1L << 20), df.queryExecution.executedPlan)
+        spark.sparkContext.addSparkListener(listener)
+        try {
+          val actual = LocalQueryExecutor.collect(df).toSeq
+          if (df.queryExecution.executedPlan.find(_.isInstanceOf[execution.SortExec]).isDefined) {
+            assert(actual == expected)
+          } else {
+            assert(actual.toSet == expected.toSet && actual.size == expected.size)
+          }
+        } finally {
+          spark.sparkContext.listenerBus.waitUntilEmpty(10000)
+          spark.sparkContext.removeSparkListener(listener)
+        }
+      }
+      assert(jobs.get() == 0)
+
+      // a limit stops reading early, the scan is counted in its metrics
+      val limited = table.where("k = 3").limit(2)
+      assert(LocalQueryExecutor.canExecute(limited.queryExecution.executedPlan, 1L << 20))
+      assert(LocalQueryExecutor.collect(limited).size == 2)
+      val scan = limited.queryExecution.executedPlan.collectFirst {
+        case scan: execution.FileSourceScanExec => scan
+      }.get
+      assert(scan.metrics("numOutputRows").value > 0)
+      assert(scan.metrics("numFiles").value == 3)
+
+      // too large, or not supported
+      assert(!LocalQueryExecutor.canExecute(table.queryExecution.executedPlan, 100))
+      assert(!LocalQueryExecutor.canExecute(table.agg(countDistinct("k")).queryExecution.executedPlan, 1L << 20))
+    }
+  }
+}
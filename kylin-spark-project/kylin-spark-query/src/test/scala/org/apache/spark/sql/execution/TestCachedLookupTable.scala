@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import org.apache.spark.sql.DataFrame
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.exchange.BroadcastExchangeExec
+import org.apache.spark.sql.functions._
+
+class TestCachedLookupTable extends SparderBaseFunSuite with SharedSparkSession {
+
+  override def beforeAll(): Unit = {
+    super.beforeAll()
+    // as sparder registers it
+    spark.experimental.extraStrategies = Seq(LookupTableStrategy)
+  }
+
+  test("join cached lookup tables on a reused broadcast") {
+    val fact = spark.range(0, 100, 1, 3).select((col("id") % 12).as("fk"), col("id").as("amount"))
+    // keys 0 to 9, some facts have no lookup row
+    val source = spark.range(0, 10).select(col("id").as("pk"), concat(lit("name_"), col("id")).as("name"),
+      (col("id") % 3).as("category"))
+    val table = CachedLookupTable("DEFAULT.LOOKUP", source)
+    assert(table.rows.length == 10)
+
+    def joined(lookup: DataFrame, joinType: String): DataFrame = {
+      fact.join(lookup.toDF("PK", "NAME", "CATEGORY"), col("fk") === col("PK"), joinType)
+        .where("CATEGORY is null or CATEGORY != 1")
+        .select("fk", "amount", "NAME")
+    }
+
+    val broadcasts = Seq("inner", "left").map { joinType =>
+      val df = joined(table.toDF(spark), joinType)
+      val expected = joined(source, joinType).collect().toSet
+      assert(df.collect().toSet == expected, joinType)
+
+      val plan = df.queryExecution.executedPlan
+      assert(plan.collect { case e: BroadcastExchangeExec => e }.isEmpty, plan)
+      val build = plan.collect { case e: LookupBroadcastExec => e }
+      assert(build.size == 1, plan)
+      build.head.executeBroadcast[Any]().id
+    }
+    // a join on the same keys again
+    val again = joined(table.toDF(spark), "inner").queryExecution.executedPlan
+      .collect { case e: LookupBroadcastExec => e }.head.executeBroadcast[Any]().id
+    assert(again == broadcasts.head)
+    assert(broadcasts.distinct.size == 1)
+
+    // filters on the lookup table are not applied after a left join
+    val filtered = fact.join(table.toDF(spark).toDF("PK", "NAME", "CATEGORY").where("CATEGORY = 1"),
+      col("fk") === col("PK"), "left")
+    val expected = fact.join(source.toDF("PK", "NAME", "CATEGORY").where("CATEGORY = 1"),
+      col("fk") === col("PK"), "left")
+    assert(filtered.collect().toSet == expected.collect().toSet)
+    assert(filtered.queryExecution.executedPlan.collect { case e: LookupBroadcastExec => e }.isEmpty)
+    assert(table.toDF(spark).count() == 10)
+    table.release()
+
+    // queries planned before the release still join it, their broadcasts are not kept
+    val afterRelease = joined(table.toDF(spark), "inner")
+    assert(afterRelease.collect().toSet == joined(source, "inner").collect().toSet)
+    val released = afterRelease.queryExecution.executedPlan.collect { case e: LookupBroadcastExec => e }.head
+    assert(released.executeBroadcast[Any]().id != released.executeBroadcast[Any]().id)
+  }
+
+  test("broadcast only the lookup columns a join appends") {
+    val fact = spark.range(0, 100, 1, 3).select((col("id") % 12).as("fk"), col("id").as("amount"))
+    val source = spark.range(0, 10).select(col("id").as("pk"), concat(lit("name_"), col("id")).as("name"),
+      (col("id") % 3).as("category"), lit("unused").as("comment"))
+    val table = CachedLookupTable("DEFAULT.WIDE_LOOKUP", source)
+
+    def joined(lookup: DataFrame): DataFrame = {
+      fact.join(broadcast(lookup.toDF("PK", "NAME", "CATEGORY", "COMMENT")), col("fk") === col("PK"), "left")
+        .select("fk", "amount", "NAME")
+    }
+
+    val df = joined(table.toDF(spark))
+    assert(df.collect().toSet == joined(source).collect().toSet)
+    val build = df.queryExecution.executedPlan.collect { case e: LookupBroadcastExec => e }
+    assert(build.size == 1, df.queryExecution.executedPlan)
+    assert(build.head.ordinals == Seq(0, 1))
+    assert(build.head.output.map(_.name) == Seq("pk", "name"))
+    table.release()
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import java.util.Properties
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
+import org.apache.hadoop.fs.Path
+import org.apache.kylin.common.KylinConfig
+import org.apache.spark.scheduler.{SparkListener, SparkListenerJobStart}
+import org.apache.spark.sql.{DataFrame, SparkSession}
+import org.apache.spark.sql.common.{SharedSparkSession, SparderBaseFunSuite}
+import org.apache.spark.sql.execution.datasource.SegmentFileIndex
+import org.apache.spark.sql.catalyst.expressions.Expression
+import org.apache.spark.sql.execution.datasources.{HadoopFsRelation, InMemoryFileIndex, LogicalRelation, PartitionDirectory}
+import org.apache.spark.sql.execution.datasources.parquet.ParquetFileFormat
+import org.apache.spark.sql.functions._
+import org.apache.spark.sql.types.StructType
+import org.scalatest.concurrent.Eventually._
+import org.scalatest.time.SpanSugar._
+
+// segments left by filters are the pruned ones, when there are filters
+private class SegmentIndex(session: SparkSession, root: Path, val segments: Set[String], versions: Map[String, String],
+    rows: Map[String, Long] = Map.empty, pruned: Option[Set[String]] = None)
+  extends InMemoryFileIndex(session, segments.toSeq.map(seg => new Path(root, seg + "/1")), Map.empty, None)
+    with SegmentFileIndex {
+
+  override def segmentVersions: Map[String, String] = versions.filter(v => segments.contains(v._1))
+
+  override def segmentRows(directoryName: String): Option[Long] = rows.get(directoryName)
+
+  override def prunedSegments(relation: LogicalRelation, filters: Seq[Expression]): Set[String] = {
+    pruned.filter(_ => filters.nonEmpty).getOrElse(segments).intersect(segments)
+  }
+
+  override def listFiles(partitionFilters: Seq[Expression], dataFilters: Seq[Expression]): Seq[PartitionDirectory] = {
+    val left = prunedSegments(null, partitionFilters ++ dataFilters)
+    super.listFiles(partitionFilters, dataFilters)
+      .map(dir => dir.copy(files = dir.files.filter(f => left.contains(f.getPath.getParent.getParent.getName))))
+  }
+
+  override def withSegments(directoryNames: Set[String]): SegmentIndex = {
+    new SegmentIndex(session, root, directoryNames, versions, rows, pruned)
+  }
+}
+
+class TestSegmentResultCache extends SparderBaseFunSuite with SharedSparkSession {
+
+  private def config(maxRows: Int, maxSegments: Int = 32): KylinConfig = {
+    val props = new Properties()
+    props.setProperty("kylin.query.spark-engine.local-execution-threshold-mb", "-1")
+    props.setProperty("kylin.query.spark-engine.segment-result-cache.enabled", "true")
+    props.setProperty("kylin.query.spark-engine.segment-result-cache.max-rows", maxRows.toString)
+    props.setProperty("kylin.query.spark-engine.segment-result-cache.max-segments", maxSegments.toString)
+    KylinConfig.createKylinConfig(props)
+  }
+
+  // spark jobs run by the function
+  private def jobsOf(f: => Unit): Int = {
+    val jobs = new AtomicInteger()
+    val marked = new AtomicBoolean()
+    val listener = new SparkListener {
+      override def onJobStart(jobStart: SparkListenerJobStart): Unit = {
+        if (jobStart.properties.getProperty("test.marker") != null) {
+          marked.set(true)
+        } else if (!marked.get()) {
+          jobs.incrementAndGet()
+        }
+      }
+    }
+    spark.sparkContext.addSparkListener(listener)
+    try {
+      f
+      // the listener is told of the jobs in the order they started, the marker job is the last one
+      spark.sparkContext.setLocalProperty("test.marker", "true")
+      spark.sparkContext.parallelize(Seq(1), 1).count()
+      eventually(timeout(10.seconds)) {
+        assert(marked.get())
+      }
+      jobs.get()
+    } finally {
+      spark.sparkContext.setLocalProperty("test.marker", null)
+      spark.sparkContext.removeSparkListener(listener)
+    }
+  }
+
+  private def query(df: DataFrame): DataFrame = {
+    df.where("v % 5 != 0").groupBy((col("k") % 3).as("g"))
+      .agg(sum("v"), count(lit(1)), max("v"), approx_count_distinct("v"))
+  }
+
+  private def bySegment(df: DataFrame): Boolean = {
+    df.queryExecution.executedPlan.find(_.isInstanceOf[SegmentResultCacheExec]).isDefined
+  }
+
+  private def scannedSegments(df: DataFrame): Seq[Set[String]] = {
+    df.queryExecution.executedPlan.collect {
+      case scan: FileSourceScanExec => scan.relation.location.asInstanceOf[SegmentIndex].segments
+    }
+  }
+
+  test("scan the segments without cached partial aggregates only") {
+    withTempPath { dir =>
+      val root = new Path(dir.getCanonicalPath)
+      Seq("seg_a", "seg_b", "seg_c").zipWithIndex.foreach { case (seg, i) =>
+        spark.range(i * 1000, i * 1000 + 1500, 1, 2).select(col("id").as("k"), (col("id") * 2).as("v"))
+          .write.parquet(new Path(root, seg + "/1").toString)
+      }
+      val schema = spark.read.parquet(new Path(root, "seg_a/1").toString).schema
+
+      def table(segments: Set[String], versions: Map[String, String], rows: Map[String, Long] = Map.empty,
+          pruned: Option[Set[String]] = None): DataFrame = {
+        val index = new SegmentIndex(spark, root, segments, versions, rows, pruned)
+        spark.baseRelationToDataFrame(
+          HadoopFsRelation(index, new StructType(), schema, None, new ParquetFileFormat, Map.empty)(spark))
+      }
+
+      val versions = Map("seg_a" -> "1", "seg_b" -> "1", "seg_c" -> "1")
+      val two = Set("seg_a", "seg_b")
+      val three = two + "seg_c"
+      val expectedOfTwo = query(table(two, versions)).collect().toSet
+      val expectedOfThree = query(table(three, versions)).collect().toSet
+      def filteredQuery(df: DataFrame): DataFrame = df.where("k > 100").groupBy("k").agg(sum("v"))
+      val expectedFiltered = filteredQuery(table(three, versions)).collect().toSet
+
+      spark.experimental.extraStrategies = Seq(SegmentResultCacheStrategy)
+      val conf = KylinConfig.setAndUnsetThreadLocalConfig(config(100000))
+      try {
+        SegmentResultCache.invalidateAll()
+        val first = query(table(two, versions))
+        // rows of the segments are counted by the job of the query
+        assert(jobsOf(assert(first.collect().toSet == expectedOfTwo)) == 1)
+        assert(scannedSegments(first) == Seq(two), first.queryExecution.executedPlan)
+
+        // all cached
+        val again = query(table(two, versions))
+        assert(again.collect().toSet == expectedOfTwo)
+        assert(scannedSegments(again).isEmpty, again.queryExecution.executedPlan)
+
+        // a segment appended
+        val appended = query(table(three, versions))
+        assert(appended.collect().toSet == expectedOfThree)
+        assert(scannedSegments(appended) == Seq(Set("seg_c")), appended.queryExecution.executedPlan)
+
+        // a segment built again
+        val rebuilt = query(table(three, versions + ("seg_b" -> "2")))
+        assert(rebuilt.collect().toSet == expectedOfThree)
+        assert(scannedSegments(rebuilt) == Seq(Set("seg_b")), rebuilt.queryExecution.executedPlan)
+
+        // other filters
+        val filtered = filteredQuery(table(three, versions))
+        assert(filtered.collect().toSet == expectedFiltered)
+        assert(scannedSegments(filtered) == Seq(three))
+      } finally {
+        conf.close()
+      }
+
+      // too many rows to be cached, known once they are aggregated
+      val fewRows = KylinConfig.setAndUnsetThreadLocalConfig(config(2))
+      try {
+        SegmentResultCache.invalidateAll()
+        Seq(true, false).foreach { first =>
+          val df = query(table(two, versions))
+          assert(df.collect().toSet == expectedOfTwo)
+          assert(scannedSegments(df) == Seq(two), df.queryExecution.executedPlan)
+          assert(bySegment(df) == first, df.queryExecution.executedPlan)
+        }
+
+        // known from the rows of the layouts
+        val large = query(table(two, versions.mapValues(_ + "-large"), Map("seg_a" -> 1500L, "seg_b" -> 1500L)))
+        assert(large.collect().toSet == expectedOfTwo)
+        assert(!bySegment(large), large.queryExecution.executedPlan)
+      } finally {
+        fewRows.close()
+      }
+
+      // too many segments to scan
+      val fewSegments = KylinConfig.setAndUnsetThreadLocalConfig(config(100000, 2))
+      try {
+        SegmentResultCache.invalidateAll()
+        val df = query(table(three, versions))
+        assert(df.collect().toSet == expectedOfThree)
+        assert(!bySegment(df), df.queryExecution.executedPlan)
+
+        // segments left by pruning are counted and cached only
+        Seq(true, false).foreach { first =>
+          val pruned = query(table(three, versions, pruned = Some(two)))
+          assert(pruned.collect().toSet == expectedOfTwo)
+          assert(bySegment(pruned), pruned.queryExecution.executedPlan)
+          assert(scannedSegments(pruned).isEmpty != first, pruned.queryExecution.executedPlan)
+        }
+      } finally {
+        fewSegments.close()
+        spark.experimental.extraStrategies = Nil
+      }
+    }
+  }
+}
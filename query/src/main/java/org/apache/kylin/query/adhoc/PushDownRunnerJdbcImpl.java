@@ -95,7 +95,6 @@ public class PushDownRunnerJdbcImpl extends AbstractPushdownRunner {
         try {
             statement = connection.createStatement();
             resultSet = statement.executeQuery(query);
-            extractResults(resultSet, results);
             metaData = resultSet.getMetaData();
             columnCount = metaData.getColumnCount();
 
@@ -104,6 +103,7 @@ public class PushDownRunnerJdbcImpl extends AbstractPushdownRunner {
                 SelectedColumnMeta columnMeta = extractColumnMeta(metaData, i);
                 columnMetas.add(columnMeta);
             }
+            extractResults(resultSet, results);
         } finally {
             DBUtils.closeQuietly(resultSet);
             DBUtils.closeQuietly(statement);
@@ -53,7 +53,6 @@ public class PushdownRunnerSDKImpl extends AbstractPushdownRunner {
         try (Connection conn = dataSource.getConnection(); Statement state = conn.createStatement()) {
             rs = state.executeQuery(sql);
 
-            extractResults(rs, results);
             metaData = rs.getMetaData();
             columnCount = metaData.getColumnCount();
 
@@ -67,6 +66,7 @@ public class PushdownRunnerSDKImpl extends AbstractPushdownRunner {
                         metaData.getPrecision(i), metaData.getScale(i), kylinTypeId, kylinTypeName,
                         metaData.isReadOnly(i), false, false));
             }
+            extractResults(rs, results);
         } catch (Exception e) {
             throw new RuntimeException("executeQuery failed", e);
         } finally {
@@ -59,6 +59,16 @@ public class PushDownExecutor {
 
     public Pair<List<List<String>>, List<SelectedColumnMeta>> pushDownQuery(String project, String sql,
             String defaultSchema, SQLException sqlException, boolean isSelect, boolean isPrepare) throws Exception {
+        return pushDownQuery(project, sql, defaultSchema, sqlException, isSelect, isPrepare, null, null);
+    }
+
+    /**
+     * @param returnRows the list the rows of the runner are added to, or null to collect them
+     * @param returnColumnMeta the list the column metas of the runner are added to, or null
+     */
+    public Pair<List<List<String>>, List<SelectedColumnMeta>> pushDownQuery(String project, String sql,
+            String defaultSchema, SQLException sqlException, boolean isSelect, boolean isPrepare,
+            List<List<String>> returnRows, List<SelectedColumnMeta> returnColumnMeta) throws Exception {
 
         if (!kylinConfig.isPushDownEnabled()) {
             return null;
@@ -80,9 +90,11 @@ public class PushDownExecutor {
         if (ids.isEmpty() && StringUtils.isNotEmpty(kylinConfig.getPushDownRunnerClassName())) {
             IPushDownRunner runner = (IPushDownRunner) ClassUtil.newInstance(kylinConfig.getPushDownRunnerClassName());
             runner.init(kylinConfig);
-            return queryBySingleRunner(runner, project, sql, defaultSchema, sqlException, isSelect, isPrepare);
+            return queryBySingleRunner(runner, project, sql, defaultSchema, sqlException, isSelect, isPrepare,
+                    returnRows, returnColumnMeta);
         } else {
-            return queryByMultiJdbcRunners(ids, project, sql, defaultSchema, sqlException, isSelect, isPrepare);
+            return queryByMultiJdbcRunners(ids, project, sql, defaultSchema, sqlException, isSelect, isPrepare,
+                    returnRows, returnColumnMeta);
         }
     }
 
@@ -122,7 +134,8 @@ public class PushDownExecutor {
 
     private Pair<List<List<String>>, List<SelectedColumnMeta>> queryBySingleRunner(IPushDownRunner runner,
             String project, String sql, String defaultSchema, SQLException sqlException, boolean isSelect,
-            boolean isPrepare) throws Exception {
+            boolean isPrepare, List<List<String>> returnRows, List<SelectedColumnMeta> returnColumnMeta)
+            throws Exception {
 
         logger.debug("Query Pushdown runner {}", runner);
 
@@ -144,8 +157,12 @@ public class PushDownExecutor {
 
         sql = runner.convertSql(kylinConfig, sql, project, defaultSchema, isPrepare);
 
-        List<List<String>> returnRows = Lists.newArrayList();
-        List<SelectedColumnMeta> returnColumnMeta = Lists.newArrayList();
+        if (returnRows == null) {
+            returnRows = Lists.newArrayList();
+        }
+        if (returnColumnMeta == null) {
+            returnColumnMeta = Lists.newArrayList();
+        }
 
         if (isSelect) {
             runner.executeQuery(sql, returnRows, returnColumnMeta);
@@ -157,20 +174,30 @@ public class PushDownExecutor {
     }
 
     private Pair<List<List<String>>, List<SelectedColumnMeta>> queryByMultiJdbcRunners(List<String> ids, String project,
-            String sql, String defaultSchema, SQLException sqlException, boolean isSelect, boolean isPrepare)
-            throws Exception {
+            String sql, String defaultSchema, SQLException sqlException, boolean isSelect, boolean isPrepare,
+            List<List<String>> returnRows, List<SelectedColumnMeta> returnColumnMeta) throws Exception {
+        if (returnRows == null) {
+            returnRows = Lists.newArrayList();
+        }
+        if (returnColumnMeta == null) {
+            returnColumnMeta = Lists.newArrayList();
+        }
         for (int i = 0; i < ids.size(); i++) {
             String id = ids.get(i);
-            PushDownRunnerJdbcImpl runner = new PushDownRunnerJdbcImpl();
-            runner.initById(kylinConfig, id);
+            IPushDownRunner runner = createJdbcRunner(id);
 
             try {
                 Pair<List<List<String>>, List<SelectedColumnMeta>> ret = queryBySingleRunner(runner, project, sql,
-                        defaultSchema, sqlException, isSelect, isPrepare);
+                        defaultSchema, sqlException, isSelect, isPrepare, returnRows, returnColumnMeta);
                 if (null != ret) {
                     return ret;
                 }
             } catch (Exception e) {
+                // rows may have been handed on as they were added, the next runner would add them again
+                if (!returnRows.isEmpty()) {
+                    throw e;
+                }
+                returnColumnMeta.clear();
                 logger.error("Execute pushdown query/update by jdbc runner " + id + " failed: "
                         + ExceptionUtils.getStackTrace(e));
             }
@@ -178,4 +205,11 @@ public class PushDownExecutor {
 
         throw new RuntimeException("Execute pushdown query/update by multi jdbc runners failed");
     }
+
+    // overridden by tests
+    IPushDownRunner createJdbcRunner(String id) {
+        PushDownRunnerJdbcImpl runner = new PushDownRunnerJdbcImpl();
+        runner.initById(kylinConfig, id);
+        return runner;
+    }
 }
\ No newline at end of file
@@ -62,6 +62,18 @@ public class PushDownUtil {
         return executor.pushDownQuery(project, sql, defaultSchema, sqlException, true, isPrepare);
     }
 
+    /**
+     * Push down a select query, whose rows are added to the given list as the runner reads them,
+     * after the column metas are added to theirs.
+     */
+    public static Pair<List<List<String>>, List<SelectedColumnMeta>> tryPushDownSelectQuery(String project, String sql,
+            String defaultSchema, SQLException sqlException, boolean isPrepare, List<List<String>> returnRows,
+            List<SelectedColumnMeta> returnColumnMeta) throws Exception {
+        PushDownExecutor executor = new PushDownExecutor();
+        return executor.pushDownQuery(project, sql, defaultSchema, sqlException, true, isPrepare, returnRows,
+                returnColumnMeta);
+    }
+
     public static Pair<List<List<String>>, List<SelectedColumnMeta>> tryPushDownNonSelectQuery(String project,
             String sql, String defaultSchema, boolean isPrepare) throws Exception {
         PushDownExecutor executor = new PushDownExecutor();
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.apache.kylin.query.util;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.KylinConfig.SetAndUnsetThreadLocalConfig;
+import org.apache.kylin.common.util.Pair;
+import org.apache.kylin.metadata.querymeta.SelectedColumnMeta;
+import org.apache.kylin.metadata.realization.RoutingIndicatorException;
+import org.apache.kylin.source.adhocquery.AbstractPushdownRunner;
+import org.apache.kylin.source.adhocquery.IPushDownRunner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class PushDownExecutorTest {
+
+    private static final SQLException NOT_ON_CUBE = new SQLException(new RoutingIndicatorException("not on cube"));
+
+    // adds a column meta and the given rows, then fails if asked to
+    private static class FakeRunner extends AbstractPushdownRunner {
+
+        private final List<List<String>> rows;
+        private final boolean fails;
+
+        FakeRunner(List<List<String>> rows, boolean fails) {
+            this.rows = rows;
+            this.fails = fails;
+        }
+
+        @Override
+        public void init(KylinConfig config) {
+        }
+
+        @Override
+        public void executeQuery(String query, List<List<String>> returnRows,
+                List<SelectedColumnMeta> returnColumnMeta) throws Exception {
+            returnColumnMeta.add(new SelectedColumnMeta(false, false, false, false, 1, true, 10, "C", "C", null,
+                    null, null, 10, 0, 12, "VARCHAR", true, false, false));
+            returnRows.addAll(rows);
+            if (fails) {
+                throw new IllegalStateException("runner failed");
+            }
+        }
+
+        @Override
+        public void executeUpdate(String sql) {
+        }
+    }
+
+    private static PushDownExecutor executor(final Map<String, IPushDownRunner> runners) {
+        return new PushDownExecutor() {
+            @Override
+            IPushDownRunner createJdbcRunner(String id) {
+                return runners.get(id);
+            }
+        };
+    }
+
+    private static KylinConfig config() {
+        Properties props = new Properties();
+        props.setProperty("kylin.query.pushdown.enabled", "true");
+        props.setProperty("kylin.query.pushdown.runner.ids", "a,b");
+        return KylinConfig.createKylinConfig(props);
+    }
+
+    @Test
+    public void testMultiRunnersAddRowsToGivenLists() throws Exception {
+        List<List<String>> rows = Lists.<List<String>> newArrayList(Arrays.asList("1"), Arrays.asList("2"));
+        try (SetAndUnsetThreadLocalConfig autoUnset = KylinConfig.setAndUnsetThreadLocalConfig(config())) {
+            PushDownExecutor executor = executor(ImmutableMap.<String, IPushDownRunner> of( //
+                    "a", new FakeRunner(Lists.<List<String>> newArrayList(), true), //
+                    "b", new FakeRunner(rows, false)));
+            List<List<String>> returnRows = Lists.newArrayList();
+            List<SelectedColumnMeta> returnColumnMeta = Lists.newArrayList();
+            Pair<List<List<String>>, List<SelectedColumnMeta>> r = executor.pushDownQuery("default", "select c",
+                    "DEFAULT", NOT_ON_CUBE, true, false, returnRows, returnColumnMeta);
+
+            // the failed runner added no rows, its column meta is dropped
+            Assert.assertEquals(rows, returnRows);
+            Assert.assertEquals(1, returnColumnMeta.size());
+            Assert.assertSame(returnRows, r.getFirst());
+            Assert.assertSame(returnColumnMeta, r.getSecond());
+        }
+    }
+
+    @Test
+    public void testMultiRunnersFailOnceRowsAreHandedOn() throws Exception {
+        List<List<String>> rows = Lists.<List<String>> newArrayList(Arrays.asList("1"));
+        try (SetAndUnsetThreadLocalConfig autoUnset = KylinConfig.setAndUnsetThreadLocalConfig(config())) {
+            PushDownExecutor executor = executor(ImmutableMap.<String, IPushDownRunner> of( //
+                    "a", new FakeRunner(rows, true), //
+                    "b", new FakeRunner(rows, false)));
+            List<List<String>> returnRows = Lists.newArrayList();
+            try {
+                executor.pushDownQuery("default", "select c", "DEFAULT", NOT_ON_CUBE, true, false, returnRows,
+                        Lists.<SelectedColumnMeta> newArrayList());
+                Assert.fail("rows of the failed runner were handed on");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals(rows, returnRows);
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.TreeSet;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
@@ -47,7 +48,9 @@ import org.apache.kylin.rest.request.MetaRequest;
 import org.apache.kylin.rest.request.PrepareSqlRequest;
 import org.apache.kylin.rest.request.SQLRequest;
 import org.apache.kylin.rest.request.SaveSqlRequest;
+import org.apache.kylin.rest.response.ColumnarResponseWriter;
 import org.apache.kylin.rest.response.SQLResponse;
+import org.apache.kylin.rest.service.QueryCursorService;
 import org.apache.kylin.rest.service.QueryService;
 import org.apache.kylin.rest.util.ValidateUtil;
 import org.slf4j.Logger;
@@ -62,6 +65,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.HandlerMapping;
 import org.supercsv.io.CsvListWriter;
 import org.supercsv.io.ICsvListWriter;
 import org.supercsv.prefs.CsvPreference;
@@ -83,6 +87,10 @@ public class QueryController extends BasicController {
     @Qualifier("queryService")
     private QueryService queryService;
 
+    @Autowired
+    @Qualifier("queryCursorService")
+    private QueryCursorService queryCursorService;
+
     {
         BOM_CHARACTER = new String(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF }, StandardCharsets.UTF_8);
     }
@@ -90,9 +98,64 @@ public class QueryController extends BasicController {
     @RequestMapping(value = "/query", method = RequestMethod.POST, produces = { "application/json" })
     @ResponseBody
     public SQLResponse query(@RequestBody PrepareSqlRequest sqlRequest) {
+        if (sqlRequest.getFetchSize() > 0) {
+            return queryCursorService.openCursor(sqlRequest);
+        }
         return queryService.doQueryWithCache(sqlRequest);
     }
 
+    /**
+     * The query response in the columnar encoding, for clients preferring it to JSON by the Accept header.
+     */
+    @RequestMapping(value = "/query", method = RequestMethod.POST, produces = {
+            ColumnarResponseWriter.CONTENT_TYPE })
+    public void queryColumnar(@RequestBody PrepareSqlRequest sqlRequest, HttpServletRequest request,
+            HttpServletResponse response) {
+        acceptErrorsAsJson(request);
+        writeColumnar(query(sqlRequest), response);
+    }
+
+    /**
+     * The next page of a result kept by a cursor, opened by a query with a fetch size.
+     */
+    @RequestMapping(value = "/query/cursor/{cursorId}", method = RequestMethod.POST, produces = {
+            "application/json" })
+    @ResponseBody
+    public SQLResponse fetchCursor(@PathVariable String cursorId,
+            @RequestParam(value = "fetchSize", required = false, defaultValue = "0") int fetchSize) {
+        return queryCursorService.fetch(cursorId, fetchSize);
+    }
+
+    @RequestMapping(value = "/query/cursor/{cursorId}", method = RequestMethod.POST, produces = {
+            ColumnarResponseWriter.CONTENT_TYPE })
+    public void fetchCursorColumnar(@PathVariable String cursorId,
+            @RequestParam(value = "fetchSize", required = false, defaultValue = "0") int fetchSize,
+            HttpServletRequest request, HttpServletResponse response) {
+        acceptErrorsAsJson(request);
+        writeColumnar(fetchCursor(cursorId, fetchSize), response);
+    }
+
+    // the error response of a failed request is in JSON, which is also acceptable to the client
+    private static void acceptErrorsAsJson(HttpServletRequest request) {
+        request.removeAttribute(HandlerMapping.PRODUCIBLE_MEDIA_TYPES_ATTRIBUTE);
+    }
+
+    private static void writeColumnar(SQLResponse sqlResponse, HttpServletResponse response) {
+        response.setContentType(ColumnarResponseWriter.CONTENT_TYPE);
+        try {
+            ColumnarResponseWriter.write(sqlResponse, response.getOutputStream());
+        } catch (IOException e) {
+            throw new InternalErrorException(e);
+        }
+    }
+
+    @RequestMapping(value = "/query/cursor/{cursorId}", method = RequestMethod.DELETE, produces = {
+            "application/json" })
+    @ResponseBody
+    public void closeCursor(@PathVariable String cursorId) {
+        queryCursorService.closeCursor(cursorId);
+    }
+
     // TODO should be just "prepare" a statement, get back expected ResultSetMetaData
     @RequestMapping(value = "/query/prestate", method = RequestMethod.POST, produces = "application/json")
     @ResponseBody
@@ -142,7 +205,6 @@ public class QueryController extends BasicController {
             throw new ForbiddenException(msg.getEXPORT_RESULT_NOT_ALLOWED());
         }
 
-        SQLResponse result = queryService.doQueryWithCache(sqlRequest);
         response.setContentType("text/" + format + ";charset=utf-8");
 
         SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmssSSS", Locale.ROOT);
@@ -151,14 +213,43 @@ public class QueryController extends BasicController {
         response.setHeader("Content-Disposition",
                 "attachment; filename=\"" + ValidateUtil.convertStringToBeAlphanumericUnderscore(nowStr) + ".result."
                         + ValidateUtil.convertStringToBeAlphanumericUnderscore(format) + "\"");
-        ICsvListWriter csvWriter = null;
 
+        // rows are written as they are read from the result set, the response does not hold them,
+        // the writer is opened on the first rows so that a failed query still gets an error response
+        CsvResultRowHandler handler = new CsvResultRowHandler(response);
         try {
+            SQLResponse result = queryService.doQueryWithCache(sqlRequest, handler);
+
+            // answered without a result set, e.g. prepare only
+            if (handler.csvWriter == null) {
+                handler.handleColumnMetas(result.getColumnMetas());
+                for (List<String> row : result.getResults()) {
+                    handler.handleRow(row);
+                }
+            }
+        } catch (IOException e) {
+            throw new InternalErrorException(e);
+        } finally {
+            IOUtils.closeQuietly(handler.csvWriter);
+        }
+    }
+
+    private static class CsvResultRowHandler implements QueryService.ResultRowHandler {
+
+        private final HttpServletResponse response;
+        private ICsvListWriter csvWriter = null;
+
+        CsvResultRowHandler(HttpServletResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void handleColumnMetas(List<SelectedColumnMeta> columnMetas) throws IOException {
             csvWriter = new CsvListWriter(response.getWriter(), CsvPreference.STANDARD_PREFERENCE);
 
             List<String> headerList = new ArrayList<String>();
 
-            for (SelectedColumnMeta column : result.getColumnMetas()) {
+            for (SelectedColumnMeta column : columnMetas) {
                 headerList.add(column.getLabel());
             }
 
@@ -175,14 +266,11 @@ public class QueryController extends BasicController {
 
             String[] headers = new String[headerList.size()];
             csvWriter.writeHeader(headerList.toArray(headers));
+        }
 
-            for (List<String> row : result.getResults()) {
-                csvWriter.write(row);
-            }
-        } catch (IOException e) {
-            throw new InternalErrorException(e);
-        } finally {
-            IOUtils.closeQuietly(csvWriter);
+        @Override
+        public void handleRow(List<String> row) throws IOException {
+            csvWriter.write(row);
         }
     }
 
@@ -108,17 +108,14 @@ public class PrepareSqlRequest extends SQLRequest {
     }
 
     @Override
-    public Object getCacheKey() {
-        if (cacheKey != null)
-            return cacheKey;
-
-        cacheKey = super.getCacheKey();
+    public Object getCacheKey(Object identity) {
+        Object key = super.getCacheKey(identity);
 
         if (params != null) {
-            ArrayList keyList = (ArrayList) (cacheKey);
+            ArrayList keyList = (ArrayList) (key);
             Collections.addAll(keyList, params);
         }
-        return cacheKey;
+        return key;
     }
 
     @Override
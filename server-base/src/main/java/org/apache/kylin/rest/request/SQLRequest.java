@@ -37,6 +37,8 @@ public class SQLRequest implements Serializable {
     private Integer offset = 0;
     private Integer limit = 0;
     private boolean acceptPartial = false;
+    // rows of the first page when the result is kept by a cursor, not in the cache key as the result is the same
+    private Integer fetchSize = 0;
 
     private Map<String, String> backdoorToggles;
 
@@ -101,18 +103,34 @@ public class SQLRequest implements Serializable {
         this.acceptPartial = acceptPartial;
     }
 
+    public Integer getFetchSize() {
+        return fetchSize == null ? 0 : fetchSize;
+    }
+
+    public void setFetchSize(Integer fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     public Object getCacheKey() {
         if (cacheKey != null)
             return cacheKey;
 
-        cacheKey = Lists.newArrayList(sql.replaceAll("[ ]", " ") //
+        cacheKey = getCacheKey(username);
+        return cacheKey;
+    }
+
+    /**
+     * The key of the request on behalf of the given identity rather than the user, for requests whose
+     * results are the same for different users, like users with the same table ACL.
+     */
+    public Object getCacheKey(Object identity) {
+        return Lists.newArrayList(sql.replaceAll("[ ]", " ") //
                 , getNormProject() //
                 , offset //
                 , limit //
                 , acceptPartial //
                 , backdoorToggles //
-                , username);
-        return cacheKey;
+                , identity);
     }
 
     @Override
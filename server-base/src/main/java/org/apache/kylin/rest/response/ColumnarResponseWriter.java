@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.kylin.common.util.JsonUtil;
+
+/**
+ * Writes a query response in the columnar encoding, which clients like the JDBC driver prefer to
+ * JSON by the Accept header. The values of a column are written together in the binary form of the
+ * column type, so that the client reads them without parsing strings.
+ *
+ * <pre>
+ * int          magic, "KYLC"
+ * byte         version
+ * deflated:
+ *   int, bytes the JSON of the response without its results
+ *   int        number of rows
+ *   int        number of columns, 0 if there are no rows
+ *   per column:
+ *     byte     encoding, binary or string
+ *     bytes    bitmap of the null values, a bit per row
+ *     values   the values not null
+ * </pre>
+ *
+ * Strings and binaries are their UTF-8 bytes after the length, decimals are the scale and the bytes
+ * of the unscaled value, dates are epoch days, times are seconds of the day and timestamps are epoch
+ * millis of their UTC wall time, the same values the JDBC driver converts from JSON. A column is
+ * written as strings if any of its values is not of the column type.
+ */
+public class ColumnarResponseWriter {
+
+    public static final String CONTENT_TYPE = "application/vnd.apache.kylin.columnar";
+
+    public static final int MAGIC = 0x4B594C43;
+    public static final byte VERSION = 1;
+
+    public static final byte ENCODING_STRING = 0;
+    public static final byte ENCODING_BINARY = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ColumnarResponseWriter() {
+    }
+
+    public static void write(SQLResponse response, OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.flush();
+
+        // the size matters less than the time for the results of a query
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            DataOutputStream data = new DataOutputStream(deflated);
+
+            SQLResponse withoutResults = response.copy();
+            withoutResults.setResults(null);
+            writeBytes(data, JsonUtil.writeValueAsBytes(withoutResults));
+
+            List<List<String>> rows = response.getResults() == null ? Collections.<List<String>> emptyList()
+                    : response.getResults();
+            int columnCount = rows.isEmpty() ? 0 : response.getColumnMetas().size();
+            data.writeInt(rows.size());
+            data.writeInt(columnCount);
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+            DataOutputStream values = new DataOutputStream(buffer);
+            byte[] nulls = new byte[(rows.size() + 7) / 8];
+            for (int i = 0; i < columnCount; i++) {
+                byte encoding = ENCODING_BINARY;
+                try {
+                    writeColumn(rows, i, response.getColumnMetas().get(i).getColumnType(), nulls, values);
+                } catch (IllegalArgumentException e) {
+                    // the client converts the strings as it does those in JSON
+                    encoding = ENCODING_STRING;
+                    buffer.reset();
+                    writeColumn(rows, i, Types.VARCHAR, nulls, values);
+                }
+                data.writeByte(encoding);
+                data.write(nulls);
+                buffer.writeTo(data);
+                buffer.reset();
+            }
+
+            data.flush();
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeColumn(List<List<String>> rows, int column, int sqlType, byte[] nulls,
+            DataOutputStream out) throws IOException {
+        for (int row = 0; row < rows.size(); row++) {
+            String value = rows.get(row).get(column);
+            if (value == null) {
+                nulls[row >> 3] |= 1 << (row & 7);
+            } else {
+                nulls[row >> 3] &= ~(1 << (row & 7));
+                writeValue(value, sqlType, out);
+            }
+        }
+    }
+
+    private static void writeValue(String value, int sqlType, DataOutputStream out) throws IOException {
+        switch (sqlType) {
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+            BigDecimal decimal = new BigDecimal(value);
+            out.writeInt(decimal.scale());
+            writeBytes(out, decimal.unscaledValue().toByteArray());
+            break;
+        case Types.BIT:
+        case Types.BOOLEAN:
+            out.writeBoolean(Boolean.parseBoolean(value));
+            break;
+        case Types.TINYINT:
+            out.writeByte(Byte.parseByte(value));
+            break;
+        case Types.SMALLINT:
+            out.writeShort(Short.parseShort(value));
+            break;
+        case Types.INTEGER:
+            out.writeInt(Integer.parseInt(value));
+            break;
+        case Types.BIGINT:
+            out.writeLong(Long.parseLong(value));
+            break;
+        case Types.FLOAT:
+            out.writeFloat(Float.parseFloat(value));
+            break;
+        case Types.REAL:
+        case Types.DOUBLE:
+            out.writeDouble(Double.parseDouble(value));
+            break;
+        case Types.DATE:
+            out.writeInt((int) Date.valueOf(value).toLocalDate().toEpochDay());
+            break;
+        case Types.TIME:
+            out.writeInt(Time.valueOf(value).toLocalTime().toSecondOfDay());
+            break;
+        case Types.TIMESTAMP:
+            out.writeLong(Timestamp.valueOf(value).toLocalDateTime().toInstant(ZoneOffset.UTC).toEpochMilli());
+            break;
+        default:
+            writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+            break;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -66,6 +66,10 @@ public class SQLResponse implements Serializable {
 
     protected long totalScanBytes;
 
+    protected long totalShards;
+
+    protected long scannedShards;
+
     protected boolean hitExceptionCache = false;
 
     protected boolean storageCacheUsed = false;
@@ -76,9 +80,15 @@ public class SQLResponse implements Serializable {
     
     protected String traceUrl = null;
 
+    // id of the cursor keeping the rows after this page, null if there are no more rows
+    protected String cursorId = null;
+
     // it's sql response signature for cache checking, no need to return and should be JsonIgnore
     protected String signature;
 
+    // paths of the source files read by pushdown, to check the signature of a cached pushdown result
+    protected List<String> pushDownSourcePaths;
+
     // it's a temporary flag, no need to return and should be JsonIgnore
     // indicating the lazy query start time, -1 indicating not enabled
     protected long lazyQueryStartTime = -1L;
@@ -107,6 +117,28 @@ public class SQLResponse implements Serializable {
         this.queryPushDown = isPushDown;
     }
 
+    /**
+     * A copy sharing the columns and rows of this response, for another request answered by it.
+     */
+    public SQLResponse copy() {
+        SQLResponse copy = new SQLResponse(columnMetas, results, cube, affectedRowCount, isException,
+                exceptionMessage, isPartial, queryPushDown);
+        copy.throwable = throwable;
+        copy.duration = duration;
+        copy.totalScanCount = totalScanCount;
+        copy.totalScanBytes = totalScanBytes;
+        copy.totalShards = totalShards;
+        copy.scannedShards = scannedShards;
+        copy.hitExceptionCache = hitExceptionCache;
+        copy.storageCacheUsed = storageCacheUsed;
+        copy.queryStatistics = queryStatistics;
+        copy.traceUrl = traceUrl;
+        copy.signature = signature;
+        copy.pushDownSourcePaths = pushDownSourcePaths;
+        copy.cursorId = cursorId;
+        return copy;
+    }
+
     public List<SelectedColumnMeta> getColumnMetas() {
         return columnMetas;
     }
@@ -189,6 +221,22 @@ public class SQLResponse implements Serializable {
         this.totalScanBytes = totalScanBytes;
     }
 
+    public long getTotalShards() {
+        return totalShards;
+    }
+
+    public void setTotalShards(long totalShards) {
+        this.totalShards = totalShards;
+    }
+
+    public long getScannedShards() {
+        return scannedShards;
+    }
+
+    public void setScannedShards(long scannedShards) {
+        this.scannedShards = scannedShards;
+    }
+
     public boolean isHitExceptionCache() {
         return hitExceptionCache;
     }
@@ -213,6 +261,14 @@ public class SQLResponse implements Serializable {
         this.traceUrl = traceUrl;
     }
 
+    public String getCursorId() {
+        return cursorId;
+    }
+
+    public void setCursorId(String cursorId) {
+        this.cursorId = cursorId;
+    }
+
     @JsonIgnore
     public String getSignature() {
         return signature;
@@ -222,6 +278,15 @@ public class SQLResponse implements Serializable {
         this.signature = signature;
     }
 
+    @JsonIgnore
+    public List<String> getPushDownSourcePaths() {
+        return pushDownSourcePaths;
+    }
+
+    public void setPushDownSourcePaths(List<String> pushDownSourcePaths) {
+        this.pushDownSourcePaths = pushDownSourcePaths;
+    }
+
     @JsonIgnore
     public boolean isRunning() {
         return this.lazyQueryStartTime >= 0;
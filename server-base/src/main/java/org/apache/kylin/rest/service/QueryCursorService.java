@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.util.DaemonThreadFactory;
+import org.apache.kylin.common.util.RandomUtil;
+import org.apache.kylin.metadata.querymeta.SelectedColumnMeta;
+import org.apache.kylin.rest.exception.InternalErrorException;
+import org.apache.kylin.rest.exception.NotFoundException;
+import org.apache.kylin.rest.request.SQLRequest;
+import org.apache.kylin.rest.response.SQLResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+
+/**
+ * Server side cursors of query results. The rows of a query are written to a local spool file as
+ * they are read, instead of being kept in the response, and the client fetches them page by page.
+ * A cursor lives in the query server that ran the query, so its pages must be fetched from the
+ * same server. The spool files left by a previous run of the server are removed when it starts.
+ */
+@Component("queryCursorService")
+public class QueryCursorService extends BasicService {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryCursorService.class);
+
+    private static final String SPOOL_FILE_SUFFIX = ".spool";
+
+    @Autowired
+    @Qualifier("queryService")
+    private QueryService queryService;
+
+    private volatile Cache<String, QueryCursor> cursors;
+
+    // bytes of the spool files being written or kept by cursors
+    private final AtomicLong spoolBytes = new AtomicLong();
+
+    private ScheduledExecutorService cleanUpExecutor;
+
+    @PostConstruct
+    public void init() {
+        File dir = new File(getConfig().getQueryCursorSpoolDir());
+        File[] spoolFiles = dir.listFiles();
+        if (spoolFiles != null) {
+            for (File spoolFile : spoolFiles) {
+                if (spoolFile.getName().endsWith(SPOOL_FILE_SUFFIX) && FileUtils.deleteQuietly(spoolFile)) {
+                    logger.info("Removed spool file {} of a previous query server", spoolFile);
+                }
+            }
+        }
+
+        // expired cursors are only removed from the cache on its accesses, so their files would be
+        // kept as long as no query uses a cursor
+        long period = Math.max(1, Math.min(60, getConfig().getQueryCursorTimeoutSeconds()));
+        cleanUpExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+        cleanUpExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getCursors().cleanUp();
+                } catch (Exception e) {
+                    logger.warn("Failed to clean up expired query cursors", e);
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (cleanUpExecutor != null) {
+            cleanUpExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the query and return the first page of its result, the rest is kept by a cursor whose id
+     * is in the response, unless all rows are in the first page.
+     */
+    public SQLResponse openCursor(SQLRequest sqlRequest) {
+        File spoolFile = newSpoolFile();
+        SpoolRowHandler spool;
+        try {
+            spool = new SpoolRowHandler(spoolFile, spoolBytes, getConfig().getQueryCursorMaxSpoolSizeMB());
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(spoolFile);
+            throw new InternalErrorException("Failed to create the spool file of query cursor", e);
+        }
+
+        QueryCursor cursor = null;
+        boolean kept = false;
+        try {
+            SQLResponse response = queryService.doQueryWithCache(sqlRequest, spool);
+            if (response.getIsException()) {
+                return response;
+            }
+            // answered without a result set, e.g. prepare only
+            if (!spool.started && response.getResults() != null) {
+                for (List<String> row : response.getResults()) {
+                    spool.handleRow(row);
+                }
+            }
+            spool.close();
+
+            cursor = new QueryCursor(RandomUtil.randomUUID().toString(), sqlRequest.getUsername(), spoolFile,
+                    spool.rowCount, spoolBytes, spool.bytes);
+            spool.release();
+            response.setResults(cursor.fetch(getFetchSize(sqlRequest.getFetchSize())));
+            if (!cursor.isExhausted()) {
+                getCursors().put(cursor.id, cursor);
+                response.setCursorId(cursor.id);
+                kept = true;
+                logger.info("Opened query cursor {} of {} rows", cursor.id, cursor.rowCount);
+            }
+            return response;
+        } catch (IOException e) {
+            throw new InternalErrorException("Failed to spool the query result", e);
+        } finally {
+            IOUtils.closeQuietly(spool);
+            if (!kept) {
+                IOUtils.closeQuietly(cursor);
+                spoolBytes.addAndGet(-spool.bytes);
+                FileUtils.deleteQuietly(spoolFile);
+            }
+        }
+    }
+
+    /**
+     * The next page of the result kept by the cursor, which is closed after its last page.
+     */
+    public SQLResponse fetch(String cursorId, int fetchSize) {
+        QueryCursor cursor = getCursor(cursorId);
+        SQLResponse response = new SQLResponse();
+        try {
+            response.setResults(cursor.fetch(getFetchSize(fetchSize)));
+        } catch (IOException e) {
+            getCursors().invalidate(cursorId);
+            throw new InternalErrorException("Failed to read the spooled query result", e);
+        }
+        if (cursor.isExhausted()) {
+            getCursors().invalidate(cursorId);
+        } else {
+            response.setCursorId(cursorId);
+        }
+        return response;
+    }
+
+    public void closeCursor(String cursorId) {
+        getCursor(cursorId);
+        getCursors().invalidate(cursorId);
+    }
+
+    private QueryCursor getCursor(String cursorId) {
+        QueryCursor cursor = getCursors().getIfPresent(cursorId);
+        if (cursor == null || !cursor.username.equals(queryService.getUserName())) {
+            throw new NotFoundException(
+                    String.format(Locale.ROOT, "Query cursor %s is not found, it may have expired", cursorId));
+        }
+        return cursor;
+    }
+
+    private int getFetchSize(int fetchSize) {
+        int maxFetchSize = getConfig().getQueryCursorMaxFetchSize();
+        return fetchSize <= 0 ? maxFetchSize : Math.min(fetchSize, maxFetchSize);
+    }
+
+    private File newSpoolFile() {
+        File dir = new File(getConfig().getQueryCursorSpoolDir());
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new InternalErrorException("Failed to create the spool directory of query cursors " + dir);
+        }
+        return new File(dir, RandomUtil.randomUUID().toString() + SPOOL_FILE_SUFFIX);
+    }
+
+    public void setQueryService(QueryService queryService) {
+        this.queryService = queryService;
+    }
+
+    private Cache<String, QueryCursor> getCursors() {
+        if (cursors == null) {
+            synchronized (this) {
+                if (cursors == null) {
+                    KylinConfig config = getConfig();
+                    cursors = CacheBuilder.newBuilder().maximumSize(config.getQueryCursorMaxCount())
+                            .expireAfterAccess(config.getQueryCursorTimeoutSeconds(), TimeUnit.SECONDS)
+                            .removalListener(new RemovalListener<String, QueryCursor>() {
+                                @Override
+                                public void onRemoval(RemovalNotification<String, QueryCursor> notification) {
+                                    logger.info("Query cursor {} is closed due to {}", notification.getKey(),
+                                            notification.getCause());
+                                    notification.getValue().close();
+                                }
+                            }).build();
+                }
+            }
+        }
+        return cursors;
+    }
+
+    // a row is the number of its values, then each value as its UTF-8 bytes after their length, -1 for null
+    private static class SpoolRowHandler implements QueryService.ResultRowHandler, Closeable {
+
+        private final DataOutputStream out;
+        private final AtomicLong spoolBytes;
+        private final long maxSpoolBytes;
+        private boolean started = false;
+        private long rowCount = 0;
+        // bytes written and counted in the spool bytes, until they are handed to the cursor
+        private long bytes = 0;
+
+        SpoolRowHandler(File spoolFile, AtomicLong spoolBytes, long maxSpoolSizeMB) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile)));
+            this.spoolBytes = spoolBytes;
+            this.maxSpoolBytes = maxSpoolSizeMB * 1024 * 1024;
+        }
+
+        @Override
+        public void handleColumnMetas(List<SelectedColumnMeta> columnMetas) {
+            started = true;
+        }
+
+        @Override
+        public void handleRow(List<String> row) throws IOException {
+            long written = 4;
+            out.writeInt(row.size());
+            for (String value : row) {
+                if (value == null) {
+                    out.writeInt(-1);
+                    written += 4;
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    written += 4 + bytes.length;
+                }
+            }
+            rowCount++;
+
+            this.bytes += written;
+            if (spoolBytes.addAndGet(written) > maxSpoolBytes) {
+                throw new IOException(String.format(Locale.ROOT,
+                        "Query cursors spool more than %d MB, fetch or close the open cursors, or use a smaller result",
+                        maxSpoolBytes / 1024 / 1024));
+            }
+        }
+
+        // the bytes are counted by the cursor of the spool file from now on
+        void release() {
+            bytes = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class QueryCursor implements Closeable {
+
+        private final String id;
+        private final String username;
+        private final File spoolFile;
+        private final long rowCount;
+        private final DataInputStream in;
+        private final AtomicLong spoolBytes;
+        private long fetchedCount = 0;
+        private long bytes;
+
+        QueryCursor(String id, String username, File spoolFile, long rowCount, AtomicLong spoolBytes, long bytes)
+                throws IOException {
+            this.id = id;
+            this.username = username;
+            this.spoolFile = spoolFile;
+            this.rowCount = rowCount;
+            this.spoolBytes = spoolBytes;
+            this.bytes = bytes;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile)));
+        }
+
+        // pages of a cursor may be fetched concurrently, or while the cursor expires
+        synchronized List<List<String>> fetch(int fetchSize) throws IOException {
+            int size = (int) Math.min(fetchSize, rowCount - fetchedCount);
+            List<List<String>> rows = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++) {
+                int columnCount = in.readInt();
+                List<String> row = Lists.newArrayListWithCapacity(columnCount);
+                for (int j = 0; j < columnCount; j++) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        row.add(null);
+                    } else {
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        row.add(new String(bytes, StandardCharsets.UTF_8));
+                    }
+                }
+                rows.add(row);
+            }
+            fetchedCount += size;
+            return rows;
+        }
+
+        synchronized boolean isExhausted() {
+            return fetchedCount >= rowCount;
+        }
+
+        @Override
+        public synchronized void close() {
+            IOUtils.closeQuietly(in);
+            FileUtils.deleteQuietly(spoolFile);
+            spoolBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+    }
+}
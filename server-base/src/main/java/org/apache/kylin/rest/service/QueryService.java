@@ -23,6 +23,7 @@ import static org.apache.kylin.common.util.CheckUtil.checkCondition;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.UnknownHostException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -33,6 +34,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -79,6 +81,7 @@ import org.apache.kylin.common.util.StringUtil;
 import org.apache.kylin.cube.CubeInstance;
 import org.apache.kylin.cube.CubeManager;
 import org.apache.kylin.cube.cuboid.Cuboid;
+import org.apache.kylin.metadata.acl.TableACLManager;
 import org.apache.kylin.metadata.badquery.BadQueryEntry;
 import org.apache.kylin.metadata.model.DataModelDesc;
 import org.apache.kylin.metadata.model.JoinDesc;
@@ -111,6 +114,7 @@ import org.apache.kylin.rest.msg.MsgPicker;
 import org.apache.kylin.rest.request.PrepareSqlRequest;
 import org.apache.kylin.rest.request.SQLRequest;
 import org.apache.kylin.rest.response.SQLResponse;
+import org.apache.kylin.rest.security.TableInterceptor;
 import org.apache.kylin.rest.util.AclEvaluate;
 import org.apache.kylin.rest.util.AclPermissionUtil;
 import org.apache.kylin.rest.util.QueryRequestLimits;
@@ -143,6 +147,13 @@ public class QueryService extends BasicService {
     public static final String QUERY_CACHE = "StorageCache";
     public static final String QUERY_STORE_PATH_PREFIX = "/query/";
     private static final Logger logger = LoggerFactory.getLogger(QueryService.class);
+
+    // set while a query streams its results to the caller instead of returning them in the response
+    private static final ThreadLocal<ResultRowHandler> resultRowHandler = new ThreadLocal<>();
+
+    // responses of the queries being executed, by the key shared by identical queries
+    private final RunningQueries runningQueries = new RunningQueries();
+
     final BadQueryDetector badQueryDetector = new BadQueryDetector();
     final ResourceStore queryStore;
 
@@ -331,10 +342,13 @@ public class QueryService extends BasicService {
             }
         }
 
-        int resultRowCount = 0;
+        long resultRowCount = 0;
         if (!response.getIsException() && response.getResults() != null) {
             resultRowCount = response.getResults().size();
         }
+        if (!response.getIsException() && resultRowHandler.get() instanceof CountingRowHandler) {
+            resultRowCount += ((CountingRowHandler) resultRowHandler.get()).rowCount;
+        }
 
         String newLine = System.getProperty("line.separator");
         StringBuilder stringBuilder = new StringBuilder();
@@ -350,6 +364,8 @@ public class QueryService extends BasicService {
         stringBuilder.append("Cuboid Ids: ").append(cuboidIds).append(newLine);
         stringBuilder.append("Total scan count: ").append(response.getTotalScanCount()).append(newLine);
         stringBuilder.append("Total scan bytes: ").append(response.getTotalScanBytes()).append(newLine);
+        stringBuilder.append("Scanned shards: ").append(response.getScannedShards()).append(" of ")
+                .append(response.getTotalShards()).append(newLine);
         stringBuilder.append("Result row count: ").append(resultRowCount).append(newLine);
         stringBuilder.append("Accept Partial: ").append(request.isAcceptPartial()).append(newLine);
         stringBuilder.append("Is Partial Result: ").append(response.isPartial()).append(newLine);
@@ -378,6 +394,25 @@ public class QueryService extends BasicService {
         return doQueryWithCache(sqlRequest, false);
     }
 
+    /**
+     * Query and hand the result rows to the handler as they are read, instead of collecting them
+     * into the returned response, which then has no result rows unless the query was answered
+     * without reading a result set, e.g. prepare only. Pushdown rows are handed over as the runner
+     * reads them, and sparder pulls them from executors a wave of partitions at a time. Streamed
+     * queries bypass the query cache.
+     */
+    public SQLResponse doQueryWithCache(SQLRequest sqlRequest, ResultRowHandler handler) {
+        resultRowHandler.set(new CountingRowHandler(handler));
+        QueryContextFacade.current().setStreamResult(true);
+        try {
+            return doQueryWithCache(sqlRequest);
+        } finally {
+            resultRowHandler.remove();
+            // not to stream the next query of the thread if this one failed before its context was reset
+            QueryContextFacade.resetCurrent();
+        }
+    }
+
     public SQLResponse doQueryWithCache(SQLRequest sqlRequest, boolean isQueryInspect) {
         Message msg = MsgPicker.getMsg();
         sqlRequest.setUsername(getUserName());
@@ -436,9 +471,7 @@ public class QueryService extends BasicService {
 
             // real execution if required
             if (sqlResponse == null) {
-                try (QueryRequestLimits limit = new QueryRequestLimits(sqlRequest.getProject())) {
-                    sqlResponse = queryAndUpdateCache(sqlRequest, isQueryCacheEnabled);
-                }
+                sqlResponse = queryOrWaitForRunning(sqlRequest, isQueryCacheEnabled);
             }
 
             sqlResponse.setDuration(queryContext.getAccumulatedMillis());
@@ -460,6 +493,54 @@ public class QueryService extends BasicService {
         }
     }
 
+    /**
+     * Identical select queries arriving while one of them runs, e.g. of a dashboard opened by many
+     * users at once, wait for the response of the running one instead of all missing the cache and
+     * running it again. Queries are identical for users with the same table ACL.
+     */
+    private SQLResponse queryOrWaitForRunning(SQLRequest sqlRequest, boolean isQueryCacheEnabled) {
+        KylinConfig kylinConfig = KylinConfig.getInstanceFromEnv();
+        if (!kylinConfig.isQueryInflightDedupEnabled() || resultRowHandler.get() != null
+                || !QueryUtil.isSelectStatement(sqlRequest.getSql())) {
+            return queryWithLimits(sqlRequest, isQueryCacheEnabled);
+        }
+
+        Object key = sqlRequest.getCacheKey(getAclSignature(sqlRequest.getProject()));
+        final QueryContext queryContext = QueryContextFacade.current();
+        return runningQueries.queryOrWait(key, () -> {
+            SQLResponse sqlResponse = queryWithLimits(sqlRequest, isQueryCacheEnabled);
+            // before the waiting queries copy the response
+            sqlResponse.setDuration(queryContext.getAccumulatedMillis());
+            return sqlResponse;
+        }, kylinConfig.getLazyQueryWaitingTimeoutMilliSeconds());
+    }
+
+    private SQLResponse queryWithLimits(SQLRequest sqlRequest, boolean isQueryCacheEnabled) {
+        try (QueryRequestLimits limit = new QueryRequestLimits(sqlRequest.getProject())) {
+            return queryAndUpdateCache(sqlRequest, isQueryCacheEnabled);
+        }
+    }
+
+    /**
+     * What the results of a query depend on besides the request itself. Only the table ACL of the user
+     * is known to be applied to queries, other query interceptors may depend on anything of the user.
+     */
+    private Object getAclSignature(String project) {
+        KylinConfig kylinConfig = KylinConfig.getInstanceFromEnv();
+        String[] interceptors = kylinConfig.getQueryInterceptors();
+        if (interceptors.length == 0) {
+            return "";
+        }
+        if (interceptors.length == 1 && TableInterceptor.class.getName().equals(interceptors[0])) {
+            if (!kylinConfig.isTableACLEnabled()) {
+                return "";
+            }
+            return Lists.newArrayList(TableACLManager.getInstance(kylinConfig).getTableACLByCache(project)
+                    .getTableBlackList(getUserName(), AclPermissionUtil.getCurrentUserGroups()));
+        }
+        return getUserName();
+    }
+
     private SQLResponse queryAndUpdateCache(SQLRequest sqlRequest, boolean queryCacheEnabled) {
         KylinConfig kylinConfig = KylinConfig.getInstanceFromEnv();
         Message msg = MsgPicker.getMsg();
@@ -510,13 +591,15 @@ public class QueryService extends BasicService {
             }
 
             if (checkCondition(queryCacheEnabled, "query cache is disabled") //
-                    && checkCondition(!Strings.isNullOrEmpty(sqlResponse.getCube()),
+                    && checkCondition(!Strings.isNullOrEmpty(sqlResponse.getCube()) || sqlResponse.isPushDown(),
                             "query does not hit cube nor hybrid") //
                     && checkCondition(!sqlResponse.getIsException(), "query has exception") //
                     && checkCondition(
                             !(sqlResponse.isPushDown()
                                     && (isSelect == false || kylinConfig.isPushdownQueryCacheEnabled() == false)),
                             "query is executed with pushdown, but it is non-select, or the cache for pushdown is disabled") //
+                    && checkCondition(!sqlResponse.isPushDown() || sqlResponse.getSignature() != null,
+                            "query is executed with pushdown, but its source files are unknown or cache signature is disabled") //
                     && checkCondition(
                             cacheManager.getCache(QUERY_CACHE) instanceof MemcachedCacheManager.MemCachedCacheAdaptor
                                     || sqlResponse.getDuration() > durationThreshold
@@ -556,7 +639,8 @@ public class QueryService extends BasicService {
 
     private boolean isQueryCacheEnabled(KylinConfig kylinConfig) {
         return checkCondition(kylinConfig.isQueryCacheEnabled(), "query cache disabled in KylinConfig") && //
-                checkCondition(!BackdoorToggles.getDisableCache(), "query cache disabled in BackdoorToggles");
+                checkCondition(!BackdoorToggles.getDisableCache(), "query cache disabled in BackdoorToggles") && //
+                checkCondition(resultRowHandler.get() == null, "query results are streamed");
     }
 
     protected void recordMetric(SQLRequest sqlRequest, SQLResponse sqlResponse) throws UnknownHostException {
@@ -564,7 +648,7 @@ public class QueryService extends BasicService {
         QueryMetrics2Facade.updateMetrics(sqlRequest, sqlResponse);
     }
 
-    private String getUserName() {
+    String getUserName() {
         String username = SecurityContextHolder.getContext().getAuthentication().getName();
         if (StringUtils.isEmpty(username)) {
             username = "";
@@ -1022,8 +1106,22 @@ public class QueryService extends BasicService {
     private Pair<List<List<String>>, List<SelectedColumnMeta>> pushDownQuery(SQLRequest sqlRequest, String correctedSql,
             Connection conn, SQLException sqlException) throws Exception {
         try {
-            return PushDownUtil.tryPushDownSelectQuery(sqlRequest.getProject(), correctedSql, conn.getSchema(),
-                    sqlException, BackdoorToggles.getPrepareOnly());
+            ResultRowHandler handler = resultRowHandler.get();
+            if (handler == null) {
+                return PushDownUtil.tryPushDownSelectQuery(sqlRequest.getProject(), correctedSql, conn.getSchema(),
+                        sqlException, BackdoorToggles.getPrepareOnly());
+            }
+            // the pushdown rows are handed to the handler as the runner reads them
+            List<SelectedColumnMeta> columnMetas = Lists.newArrayList();
+            RowHandlerList rows = new RowHandlerList(handler, columnMetas);
+            Pair<List<List<String>>, List<SelectedColumnMeta>> r = PushDownUtil.tryPushDownSelectQuery(
+                    sqlRequest.getProject(), correctedSql, conn.getSchema(), sqlException,
+                    BackdoorToggles.getPrepareOnly(), rows, columnMetas);
+            if (r == null) {
+                return null;
+            }
+            rows.start();
+            return new Pair<>(Lists.<List<String>> newArrayList(), r.getSecond());
         } catch (Exception e2) {
             logger.error("pushdown engine failed current query too", e2);
             //exception in pushdown, throw it instead of exception in calcite
@@ -1050,14 +1148,28 @@ public class QueryService extends BasicService {
                     metaData.isDefinitelyWritable(i)));
         }
 
+        ResultRowHandler handler = resultRowHandler.get();
+        if (handler != null) {
+            handler.handleColumnMetas(columnMetas);
+        }
+
         // fill in results
+        long rowCount = 0;
         while (resultSet.next()) {
             List<String> oneRow = Lists.newArrayListWithCapacity(columnCount);
             for (int i = 0; i < columnCount; i++) {
                 oneRow.add((resultSet.getString(i + 1)));
             }
 
-            results.add(oneRow);
+            if (handler != null) {
+                handler.handleRow(oneRow);
+            } else {
+                results.add(oneRow);
+            }
+            rowCount++;
+        }
+        if (handler != null) {
+            logger.info("Streamed {} result rows", rowCount);
         }
 
         return new Pair<>(results, columnMetas);
@@ -1163,7 +1275,12 @@ public class QueryService extends BasicService {
                 exceptionMessage, isPartialResult, isPushDown);
         response.setTotalScanCount(queryContext.getScannedRows());
         response.setTotalScanBytes(queryContext.getScannedBytes());
+        response.setTotalShards(queryContext.getTotalShards());
+        response.setScannedShards(queryContext.getScannedShards());
         response.setCubeSegmentStatisticsList(queryContext.getCubeSegmentStatisticsResultList());
+        if (Boolean.TRUE.equals(isPushDown)) {
+            response.setPushDownSourcePaths(Lists.newArrayList(queryContext.getPushDownSourcePaths()));
+        }
         if (getConfig().isQueryCacheSignatureEnabled()) {
             response.setSignature(SQLResponseSignatureUtil.createSignature(getConfig(), response, projectName));
         }
@@ -1377,6 +1494,81 @@ public class QueryService extends BasicService {
         }
     }
 
+    /**
+     * Receives the result of a query row by row, see {@link #doQueryWithCache(SQLRequest, ResultRowHandler)}.
+     */
+    public interface ResultRowHandler {
+
+        void handleColumnMetas(List<SelectedColumnMeta> columnMetas) throws IOException;
+
+        void handleRow(List<String> row) throws IOException;
+    }
+
+    // hands the rows added by a pushdown runner to the handler, instead of keeping them, after the column
+    // metas the runner added before its rows
+    private static class RowHandlerList extends AbstractList<List<String>> {
+
+        private final ResultRowHandler handler;
+        private final List<SelectedColumnMeta> columnMetas;
+        private boolean started = false;
+        private int size = 0;
+
+        RowHandlerList(ResultRowHandler handler, List<SelectedColumnMeta> columnMetas) {
+            this.handler = handler;
+            this.columnMetas = columnMetas;
+        }
+
+        void start() throws IOException {
+            if (!started) {
+                handler.handleColumnMetas(columnMetas);
+                started = true;
+            }
+        }
+
+        @Override
+        public boolean add(List<String> row) {
+            try {
+                start();
+                handler.handleRow(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            size++;
+            return true;
+        }
+
+        @Override
+        public List<String> get(int index) {
+            throw new UnsupportedOperationException("Rows are handed to the handler, not kept");
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    // counts the streamed rows, which are not in the response, for the query log
+    private static class CountingRowHandler implements ResultRowHandler {
+
+        private final ResultRowHandler handler;
+        private long rowCount = 0;
+
+        CountingRowHandler(ResultRowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleColumnMetas(List<SelectedColumnMeta> columnMetas) throws IOException {
+            handler.handleColumnMetas(columnMetas);
+        }
+
+        @Override
+        public void handleRow(List<String> row) throws IOException {
+            handler.handleRow(row);
+            rowCount++;
+        }
+    }
 }
 
 @SuppressWarnings("serial")
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.service;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.apache.kylin.rest.response.SQLResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Identical queries running at the same time, by their key. The first of them runs, the others wait
+ * for its response.
+ */
+class RunningQueries {
+
+    private static final Logger logger = LoggerFactory.getLogger(RunningQueries.class);
+
+    private final ConcurrentMap<Object, SettableFuture<SQLResponse>> runningQueries = Maps.newConcurrentMap();
+
+    /**
+     * Runs the query, or returns a copy of the response of the identical one already running. The
+     * query runs by itself as well when the identical one fails or does not finish within the timeout.
+     */
+    SQLResponse queryOrWait(Object key, Supplier<SQLResponse> query, long timeoutMillis) {
+        SettableFuture<SQLResponse> future = SettableFuture.create();
+        SettableFuture<SQLResponse> running = runningQueries.putIfAbsent(key, future);
+        if (running != null) {
+            SQLResponse response = waitForRunning(running, timeoutMillis);
+            if (response != null) {
+                return response;
+            }
+            return query.get();
+        }
+
+        SQLResponse sqlResponse = null;
+        try {
+            sqlResponse = query.get();
+            return sqlResponse;
+        } finally {
+            runningQueries.remove(key, future);
+            // null when the query failed, the waiting queries then run by themselves. The waiting ones
+            // get a copy of their own, the running one goes on updating its response.
+            future.set(sqlResponse == null ? null : sqlResponse.copy());
+        }
+    }
+
+    int size() {
+        return runningQueries.size();
+    }
+
+    private SQLResponse waitForRunning(SettableFuture<SQLResponse> running, long timeoutMillis) {
+        logger.info("Identical query is running, waiting for its response...");
+        SQLResponse response;
+        try {
+            response = running.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.info("Identical query is still running, run the query");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for an identical query", e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+        if (response == null || response.getIsException()) {
+            return null;
+        }
+        logger.info("The sqlResponse is shared by the identical query");
+        SQLResponse copy = response.copy();
+        copy.setStorageCacheUsed(true);
+        return copy;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.signature;
+
+import java.io.FileNotFoundException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.kylin.common.KylinConfig;
+import org.apache.kylin.common.util.HadoopUtil;
+import org.apache.kylin.metadata.project.ProjectInstance;
+import org.apache.kylin.rest.response.SQLResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Signature of a pushdown result by the source paths it read: the modification time of each path.
+ * Files written, removed or replaced in a directory change its modification time, and so do
+ * partitions added to the location of a table. It takes a single file status call per path, as it
+ * is checked on every cache hit.
+ */
+public class PushDownSourceSignatureCalculator implements SignatureCalculator {
+
+    public static final Logger logger = LoggerFactory.getLogger(PushDownSourceSignatureCalculator.class);
+
+    @Override
+    public String calculateSignature(KylinConfig config, SQLResponse sqlResponse, ProjectInstance project) {
+        List<String> paths = sqlResponse.getPushDownSourcePaths();
+        if (paths == null || paths.isEmpty()) {
+            return null;
+        }
+        try {
+            List<String> signatures = Lists.newArrayListWithCapacity(paths.size());
+            for (String path : paths) {
+                signatures.add(getPathSignature(new Path(path)));
+            }
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] signature = md.digest(signatures.toString().getBytes("UTF-8"));
+            return new String(Base64.encodeBase64(signature), "UTF-8");
+        } catch (Exception e) {
+            logger.warn("Failed to calculate signature due to " + e);
+            return null;
+        }
+    }
+
+    private static String getPathSignature(Path path) throws Exception {
+        FileSystem fs = HadoopUtil.getFileSystem(path);
+        try {
+            return path + ":" + fs.getFileStatus(path).getModificationTime();
+        } catch (FileNotFoundException e) {
+            return path + ":-1";
+        }
+    }
+}
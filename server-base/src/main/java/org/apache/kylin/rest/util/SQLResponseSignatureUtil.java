@@ -23,6 +23,7 @@ import org.apache.kylin.metadata.project.ProjectInstance;
 import org.apache.kylin.metadata.project.ProjectManager;
 import org.apache.kylin.rest.response.SQLResponse;
 import org.apache.kylin.rest.signature.FactTableRealizationSetCalculator;
+import org.apache.kylin.rest.signature.PushDownSourceSignatureCalculator;
 import org.apache.kylin.rest.signature.SignatureCalculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +47,13 @@ public class SQLResponseSignatureUtil {
         ProjectInstance project = ProjectManager.getInstance(config).getProject(projectName);
         Preconditions.checkNotNull(project);
 
+        if (sqlResponse.isPushDown()) {
+            if (!config.isPushdownQueryCacheEnabled()) {
+                return null;
+            }
+            return new PushDownSourceSignatureCalculator().calculateSignature(config, sqlResponse, project);
+        }
+
         SignatureCalculator signatureCalculator;
         try {
             Class signatureClass = getSignatureClass(project.getConfig());
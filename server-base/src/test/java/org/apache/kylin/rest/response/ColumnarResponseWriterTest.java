@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.response;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.kylin.common.util.JsonUtil;
+import org.apache.kylin.metadata.querymeta.SelectedColumnMeta;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.Lists;
+
+public class ColumnarResponseWriterTest {
+
+    @Test
+    public void testWrite() throws IOException {
+        List<SelectedColumnMeta> columnMetas = Lists.newArrayList(column("ID", Types.BIGINT),
+                column("PRICE", Types.DECIMAL), column("TS", Types.TIMESTAMP), column("NAME", Types.VARCHAR),
+                column("CNT", Types.INTEGER));
+        List<List<String>> results = Lists.newArrayList();
+        results.add(Arrays.asList("1", "10.50", "2012-01-01 10:20:30.123", "中文", "3"));
+        results.add(Arrays.asList(null, "-0.001", null, "", "n/a"));
+        SQLResponse response = new SQLResponse(columnMetas, results, 0, false, null);
+        response.setCursorId("c1");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColumnarResponseWriter.write(response, bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(ColumnarResponseWriter.MAGIC, in.readInt());
+        assertEquals(ColumnarResponseWriter.VERSION, in.readByte());
+
+        DataInputStream data = new DataInputStream(new InflaterInputStream(in));
+        JsonNode header = JsonUtil.readValueAsTree(new String(readBytes(data), StandardCharsets.UTF_8));
+        Assert.assertTrue(header.get("results").isNull());
+        assertEquals(5, header.get("columnMetas").size());
+        assertEquals("c1", header.get("cursorId").asText());
+        assertEquals(2, data.readInt());
+        assertEquals(5, data.readInt());
+
+        // the second row is null
+        assertEquals(ColumnarResponseWriter.ENCODING_BINARY, data.readByte());
+        assertEquals(2, data.readByte());
+        assertEquals(1L, data.readLong());
+
+        assertEquals(ColumnarResponseWriter.ENCODING_BINARY, data.readByte());
+        assertEquals(0, data.readByte());
+        for (String decimal : new String[] { "10.50", "-0.001" }) {
+            int scale = data.readInt();
+            assertEquals(new BigDecimal(decimal), new BigDecimal(new BigInteger(readBytes(data)), scale));
+        }
+
+        assertEquals(ColumnarResponseWriter.ENCODING_BINARY, data.readByte());
+        assertEquals(2, data.readByte());
+        assertEquals(LocalDateTime.of(2012, 1, 1, 10, 20, 30, 123000000).toInstant(ZoneOffset.UTC).toEpochMilli(),
+                data.readLong());
+
+        assertEquals(ColumnarResponseWriter.ENCODING_BINARY, data.readByte());
+        assertEquals(0, data.readByte());
+        assertEquals("中文", new String(readBytes(data), StandardCharsets.UTF_8));
+        assertEquals("", new String(readBytes(data), StandardCharsets.UTF_8));
+
+        // a value not of the column type
+        assertEquals(ColumnarResponseWriter.ENCODING_STRING, data.readByte());
+        assertEquals(0, data.readByte());
+        assertEquals("3", new String(readBytes(data), StandardCharsets.UTF_8));
+        assertEquals("n/a", new String(readBytes(data), StandardCharsets.UTF_8));
+        assertEquals(-1, data.read());
+
+        // the response itself is not changed
+        Assert.assertSame(results, response.getResults());
+    }
+
+    private static SelectedColumnMeta column(String name, int type) {
+        return new SelectedColumnMeta(false, false, false, false, 1, true, 10, name, name, null, null, null, 10, 2,
+                type, String.valueOf(type), true, false, false);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -34,7 +34,7 @@ public class SQLResponseTest {
     public void testInterfaceConsistency() throws IOException {
         String[] attrArray = new String[] { "columnMetas", "results", "cube", "affectedRowCount", "isException",
                 "exceptionMessage", "duration", "partial", "totalScanCount", "hitExceptionCache", "storageCacheUsed",
-                "pushDown", "traceUrl", "totalScanBytes" };
+                "pushDown", "traceUrl", "totalScanBytes", "totalShards", "scannedShards", "cursorId" };
 
         SQLResponse sqlResponse = new SQLResponse(null, null, "learn_cube", 100, false, null, false, false);
         String jsonStr = JsonUtil.writeValueAsString(sqlResponse);
@@ -46,4 +46,17 @@ public class SQLResponseTest {
             Assert.assertTrue(attr + " doesn't exist", jnode.has(attr));
         }
     }
+
+    @Test
+    public void testCopy() throws IOException {
+        SQLResponse sqlResponse = new SQLResponse(null, null, "learn_cube", 100, false, null, false, false);
+        sqlResponse.setDuration(10);
+        sqlResponse.setTotalScanCount(1000);
+        sqlResponse.setTotalScanBytes(2000);
+
+        SQLResponse copy = sqlResponse.copy();
+        assertEquals(JsonUtil.writeValueAsString(sqlResponse), JsonUtil.writeValueAsString(copy));
+        copy.setStorageCacheUsed(true);
+        Assert.assertFalse(sqlResponse.isStorageCacheUsed());
+    }
 }
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.service;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.kylin.common.util.LocalFileMetadataTestCase;
+import org.apache.kylin.metadata.querymeta.SelectedColumnMeta;
+import org.apache.kylin.rest.exception.InternalErrorException;
+import org.apache.kylin.rest.exception.NotFoundException;
+import org.apache.kylin.rest.request.SQLRequest;
+import org.apache.kylin.rest.response.SQLResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+
+public class QueryCursorServiceTest extends LocalFileMetadataTestCase {
+
+    private File spoolDir;
+    private QueryService queryService;
+    private QueryCursorService queryCursorService;
+
+    @Before
+    public void setUp() throws Exception {
+        this.createTestMetadata();
+        spoolDir = File.createTempFile("query_cursor", "");
+        FileUtils.deleteQuietly(spoolDir);
+        getTestConfig().setProperty("kylin.query.cursor.spool-dir", spoolDir.getAbsolutePath());
+
+        queryService = mock(QueryService.class);
+        when(queryService.getUserName()).thenReturn("ADMIN");
+        queryCursorService = new QueryCursorService();
+        queryCursorService.setQueryService(queryService);
+        queryCursorService.init();
+    }
+
+    @After
+    public void after() throws Exception {
+        queryCursorService.destroy();
+        FileUtils.deleteQuietly(spoolDir);
+        this.cleanupTestMetadata();
+    }
+
+    @Test
+    public void testFetchPages() {
+        final List<List<String>> rows = rows(25);
+        when(queryService.doQueryWithCache(any(SQLRequest.class), any(QueryService.ResultRowHandler.class)))
+                .thenAnswer(new Answer<SQLResponse>() {
+                    @Override
+                    public SQLResponse answer(InvocationOnMock invocation) throws Throwable {
+                        QueryService.ResultRowHandler handler = (QueryService.ResultRowHandler) invocation
+                                .getArguments()[1];
+                        handler.handleColumnMetas(Lists.<SelectedColumnMeta> newArrayList());
+                        for (List<String> row : rows) {
+                            handler.handleRow(row);
+                        }
+                        return new SQLResponse(null, Lists.<List<String>> newArrayList(), 0, false, null);
+                    }
+                });
+
+        SQLResponse first = queryCursorService.openCursor(request(10));
+        Assert.assertEquals(rows.subList(0, 10), first.getResults());
+        String cursorId = first.getCursorId();
+        Assert.assertNotNull(cursorId);
+
+        SQLResponse second = queryCursorService.fetch(cursorId, 10);
+        Assert.assertEquals(rows.subList(10, 20), second.getResults());
+        Assert.assertEquals(cursorId, second.getCursorId());
+
+        // pages of other users are not found
+        when(queryService.getUserName()).thenReturn("MODELER");
+        try {
+            queryCursorService.fetch(cursorId, 10);
+            Assert.fail();
+        } catch (NotFoundException e) {
+            // expected
+        }
+        when(queryService.getUserName()).thenReturn("ADMIN");
+
+        SQLResponse last = queryCursorService.fetch(cursorId, 10);
+        Assert.assertEquals(rows.subList(20, 25), last.getResults());
+        Assert.assertNull(last.getCursorId());
+        Assert.assertEquals(0, spoolDir.list().length);
+
+        try {
+            queryCursorService.fetch(cursorId, 10);
+            Assert.fail();
+        } catch (NotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResultWithoutResultSet() {
+        // e.g. prepare only, the rows are in the response
+        final List<List<String>> rows = rows(3);
+        when(queryService.doQueryWithCache(any(SQLRequest.class), any(QueryService.ResultRowHandler.class)))
+                .thenAnswer(new Answer<SQLResponse>() {
+                    @Override
+                    public SQLResponse answer(InvocationOnMock invocation) {
+                        return new SQLResponse(null, rows, 0, false, null);
+                    }
+                });
+
+        SQLResponse first = queryCursorService.openCursor(request(2));
+        Assert.assertEquals(rows.subList(0, 2), first.getResults());
+        Assert.assertEquals(1, spoolDir.list().length);
+
+        queryCursorService.closeCursor(first.getCursorId());
+        Assert.assertEquals(0, spoolDir.list().length);
+
+        // all rows in the first page
+        SQLResponse all = queryCursorService.openCursor(request(3));
+        Assert.assertEquals(rows, all.getResults());
+        Assert.assertNull(all.getCursorId());
+        Assert.assertEquals(0, spoolDir.list().length);
+    }
+
+    @Test
+    public void testRemoveSpoolFilesOfPreviousServer() throws Exception {
+        Assert.assertTrue(spoolDir.mkdirs());
+        File spoolFile = new File(spoolDir, "previous.spool");
+        File otherFile = new File(spoolDir, "other");
+        FileUtils.writeStringToFile(spoolFile, "rows", StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(otherFile, "other", StandardCharsets.UTF_8);
+
+        QueryCursorService restarted = new QueryCursorService();
+        restarted.init();
+        restarted.destroy();
+        Assert.assertFalse(spoolFile.exists());
+        Assert.assertTrue(otherFile.exists());
+    }
+
+    @Test
+    public void testMaxSpoolSize() {
+        getTestConfig().setProperty("kylin.query.cursor.max-spool-size-mb", "1");
+        final List<String> row = Arrays.asList(StringUtils.repeat("x", 1000));
+        when(queryService.doQueryWithCache(any(SQLRequest.class), any(QueryService.ResultRowHandler.class)))
+                .thenAnswer(new Answer<SQLResponse>() {
+                    @Override
+                    public SQLResponse answer(InvocationOnMock invocation) throws Throwable {
+                        QueryService.ResultRowHandler handler = (QueryService.ResultRowHandler) invocation
+                                .getArguments()[1];
+                        handler.handleColumnMetas(Lists.<SelectedColumnMeta> newArrayList());
+                        for (int i = 0; i < 600; i++) {
+                            handler.handleRow(row);
+                        }
+                        return new SQLResponse(null, Lists.<List<String>> newArrayList(), 0, false, null);
+                    }
+                });
+
+        // the spool of a kept cursor counts until it is closed
+        SQLResponse first = queryCursorService.openCursor(request(10));
+        Assert.assertNotNull(first.getCursorId());
+        try {
+            queryCursorService.openCursor(request(10));
+            Assert.fail();
+        } catch (InternalErrorException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("spool more than 1 MB"));
+        }
+        Assert.assertEquals(1, spoolDir.list().length);
+
+        queryCursorService.closeCursor(first.getCursorId());
+        SQLResponse second = queryCursorService.openCursor(request(10));
+        Assert.assertNotNull(second.getCursorId());
+    }
+
+    @Test
+    public void testCleanUpExpiredCursors() throws Exception {
+        queryCursorService.destroy();
+        getTestConfig().setProperty("kylin.query.cursor.timeout-seconds", "1");
+        queryCursorService = new QueryCursorService();
+        queryCursorService.setQueryService(queryService);
+        queryCursorService.init();
+        final List<List<String>> rows = rows(3);
+        when(queryService.doQueryWithCache(any(SQLRequest.class), any(QueryService.ResultRowHandler.class)))
+                .thenAnswer(new Answer<SQLResponse>() {
+                    @Override
+                    public SQLResponse answer(InvocationOnMock invocation) {
+                        return new SQLResponse(null, rows, 0, false, null);
+                    }
+                });
+
+        Assert.assertNotNull(queryCursorService.openCursor(request(1)).getCursorId());
+        Assert.assertEquals(1, spoolDir.list().length);
+        // removed without any access to the cursors
+        long deadline = System.currentTimeMillis() + 10000;
+        while (spoolDir.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(0, spoolDir.list().length);
+    }
+
+    private static SQLRequest request(int fetchSize) {
+        SQLRequest request = new SQLRequest();
+        request.setSql("select * from test_kylin_fact");
+        request.setProject("default");
+        request.setUsername("ADMIN");
+        request.setFetchSize(fetchSize);
+        return request;
+    }
+
+    private static List<List<String>> rows(int count) {
+        List<List<String>> rows = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            rows.add(Arrays.asList(String.valueOf(i), i % 3 == 0 ? null : "中" + i, ""));
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.apache.kylin.rest.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.kylin.rest.response.SQLResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunningQueriesTest {
+
+    private RunningQueries runningQueries;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        runningQueries = new RunningQueries();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testIdenticalQueriesInFlight() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Supplier<SQLResponse> query = () -> {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            SQLResponse response = new SQLResponse();
+            response.setDuration(42);
+            return response;
+        };
+
+        Future<SQLResponse> first = executor.submit(() -> runningQueries.queryOrWait("key", query, 60000));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        final Thread[] waiter = new Thread[1];
+        Future<SQLResponse> second = executor.submit(() -> {
+            waiter[0] = Thread.currentThread();
+            return runningQueries.queryOrWait("key", query, 60000);
+        });
+        waitUntilWaiting(waiter);
+        finish.countDown();
+
+        SQLResponse firstResponse = first.get(10, TimeUnit.SECONDS);
+        SQLResponse secondResponse = second.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(1, runs.get());
+        Assert.assertNotSame(firstResponse, secondResponse);
+        Assert.assertFalse(firstResponse.isStorageCacheUsed());
+        Assert.assertTrue(secondResponse.isStorageCacheUsed());
+        // the duration is set before the waiting query copies the response
+        Assert.assertEquals(42, secondResponse.getDuration());
+        Assert.assertEquals(0, runningQueries.size());
+    }
+
+    @Test
+    public void testRunAgainWhenRunningQueryFails() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final Supplier<SQLResponse> query = () -> {
+            if (runs.incrementAndGet() == 1) {
+                started.countDown();
+                try {
+                    finish.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new IllegalStateException("failed");
+            }
+            return new SQLResponse();
+        };
+
+        Future<SQLResponse> first = executor.submit(() -> runningQueries.queryOrWait("key", query, 60000));
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        final Thread[] waiter = new Thread[1];
+        Future<SQLResponse> second = executor.submit(() -> {
+            waiter[0] = Thread.currentThread();
+            return runningQueries.queryOrWait("key", query, 60000);
+        });
+        waitUntilWaiting(waiter);
+        finish.countDown();
+
+        try {
+            first.get(10, TimeUnit.SECONDS);
+            Assert.fail("the running query should fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        SQLResponse secondResponse = second.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(2, runs.get());
+        Assert.assertFalse(secondResponse.isStorageCacheUsed());
+    }
+
+    private void waitUntilWaiting(Thread[] waiter) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (waiter[0] == null || waiter[0].getState() != Thread.State.TIMED_WAITING) {
+            Assert.assertTrue("the identical query does not wait", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -18,9 +18,12 @@
 
 package org.apache.kylin.rest.signature;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.kylin.common.KylinConfig;
 import org.apache.kylin.common.KylinConfigExt;
 import org.apache.kylin.common.util.LocalFileMetadataTestCase;
@@ -41,6 +44,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 public class SignatureCalculatorTest extends LocalFileMetadataTestCase {
@@ -174,6 +178,39 @@ public class SignatureCalculatorTest extends LocalFileMetadataTestCase {
         }
     }
 
+    @Test
+    public void testPushDownSourceSignatureCalculator() throws IOException {
+        File source = File.createTempFile("pushdown_source", "");
+        FileUtils.deleteQuietly(source);
+        Assert.assertTrue(source.mkdirs());
+        try {
+            FileUtils.writeStringToFile(new File(source, "part-00000"), "1,2\n", StandardCharsets.UTF_8);
+            // modification times of local files may be in seconds
+            Assert.assertTrue(source.setLastModified(System.currentTimeMillis() - 10000));
+
+            SQLResponse sqlResponse = new SQLResponse(null, null, null, 0, false, null, false, true);
+            sqlResponse.setPushDownSourcePaths(Lists.newArrayList(source.toURI().toString()));
+            Assert.assertNull(SQLResponseSignatureUtil.createSignature(config, sqlResponse, projectName));
+
+            config.setProperty("kylin.query.pushdown.cache-enabled", "true");
+            sqlResponse.setPushDownSourcePaths(null);
+            Assert.assertNull(SQLResponseSignatureUtil.createSignature(config, sqlResponse, projectName));
+
+            sqlResponse.setPushDownSourcePaths(Lists.newArrayList(source.toURI().toString()));
+            String signature = SQLResponseSignatureUtil.createSignature(config, sqlResponse, projectName);
+            Assert.assertNotNull(signature);
+            sqlResponse.setSignature(signature);
+            Assert.assertTrue(SQLResponseSignatureUtil.checkSignature(config, sqlResponse, projectName));
+
+            {//Test the influence of files written to the source
+                FileUtils.writeStringToFile(new File(source, "part-00001"), "3,4\n", StandardCharsets.UTF_8);
+                Assert.assertFalse(SQLResponseSignatureUtil.checkSignature(config, sqlResponse, projectName));
+            }
+        } finally {
+            FileUtils.deleteQuietly(source);
+        }
+    }
+
     private CubeInstance cloneCubeInstance(CubeManager cubeManager, CubeInstance cube, String name) throws IOException {
         CubeInstance cubeClone = cubeManager.createCube(name, projectName, cube.getDescriptor(), cube.getOwner());
         CubeUpdate cubeUpdate = new CubeUpdate(cubeClone.latestCopyForWrite());